@@ -21,8 +21,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.text.TextUtils;
 import android.util.Log;
+import net.robotmedia.billing.model.AsyncTransactionManager;
+import net.robotmedia.billing.model.EntitlementSnapshot;
+import net.robotmedia.billing.model.EntitlementTable;
+import net.robotmedia.billing.model.ITransactionStore;
+import net.robotmedia.billing.model.InsertResult;
 import net.robotmedia.billing.model.Transaction;
 import net.robotmedia.billing.model.TransactionManager;
+import net.robotmedia.billing.model.TransactionQuery;
 import net.robotmedia.billing.security.DefaultSignatureValidator;
 import net.robotmedia.billing.security.ISignatureValidator;
 import net.robotmedia.billing.utils.Compatibility;
@@ -34,7 +40,12 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class BillingController {
 
@@ -81,13 +92,26 @@ public class BillingController {
 	@Nullable
 	private static ISignatureValidator validator = null;
 
+	// loads the entitlement snapshot on the background thread (result is null if there is no salt), started on the first
+	// use, guarded by snapshotLock
+	@Nullable
+	private static FutureTask<EntitlementSnapshot> snapshotLoading;
+
+	// counts shared by all processes, opened with the snapshot (null if there is no snapshot or file can't be mapped), guarded by snapshotLock
+	@Nullable
+	private static EntitlementTable entitlementTable;
+
+	@NotNull
+	private static final Object snapshotLock = new Object();
+
 	// todo serso: we only queue to this list and never remove (probably we should do it inside net.robotmedia.billing.BillingController.onPurchaseStateChanged )
 	// synchronized field
 	// value: product id with automatic confirmation
 	@NotNull
 	private static final Set<String> automaticConfirmations = new HashSet<String>();
 
-	// todo serso: we only queue to this list and never remove (probably we should do it inside net.robotmedia.billing.BillingController.confirmNotifications )
+	// notifications are removed when confirmed, see #onNotificationsConfirmed(String[]). Notifications are also stored in
+	// the transaction store => they can be confirmed after the process is restarted
 	// synchronized field
 	@NotNull
 	private static final Map<String, Set<String>> manualConfirmations = new HashMap<String, Set<String>>();
@@ -96,6 +120,15 @@ public class BillingController {
 	@NotNull
 	private static final Map<Long, IBillingRequest> pendingRequests = new HashMap<Long, IBillingRequest>();
 
+	// true if all stored transactions have product keys
+	private static volatile boolean productKeysUpdated = false;
+
+	// products whose transactions are submitted to the writer thread but not stored yet (snapshot of such product is stale),
+	// key: product id, value: number of pending writes
+	// synchronized field
+	@NotNull
+	private static final Map<String, Integer> pendingWrites = new HashMap<String, Integer>();
+
 	/**
 	 * Adds the specified notification to the set of manual confirmations of the
 	 * specified item.
@@ -144,22 +177,107 @@ public class BillingController {
 
 
 	/**
-	 * Requests to confirm all pending MANUAL notifications for the specified item.
+	 * Requests to confirm all pending MANUAL notifications for the specified item. Notifications received before the
+	 * process was restarted are looked up in the store on the writer thread of {@link AsyncTransactionManager} (after
+	 * the pending writes) and confirmed as well, see {@link #confirmNotificationsAsync(Context, String, AsyncTransactionManager.Callback)}
 	 *
 	 * @param context   context
 	 * @param productId id of the item whose purchase must be confirmed.
-	 * @return true if pending notifications for this item were found, false
+	 * @return true if pending notifications for this item were found in memory, false
 	 *         otherwise.
 	 */
 	public static boolean confirmNotifications(@NotNull Context context, @NotNull String productId) {
+		final boolean pending;
 		synchronized (manualConfirmations) {
-			final Set<String> notifications = manualConfirmations.get(productId);
-			if (notifications != null) {
-				confirmNotifications(context, notifications);
-				return true;
-			} else {
-				return false;
+			pending = manualConfirmations.containsKey(productId);
+		}
+		confirmNotificationsAsync(context, productId, null);
+		return pending;
+	}
+
+	/**
+	 * Asynchronous variant of {@link #confirmNotifications(Context, String)}: pending notifications (both in memory and
+	 * in the store) are confirmed on the writer thread
+	 *
+	 * @param context   context
+	 * @param productId id of the item whose purchase must be confirmed.
+	 * @param callback  callback notified on the main thread
+	 * @return future of the result: true if pending notifications for this item were found, false otherwise
+	 */
+	@NotNull
+	public static Future<Boolean> confirmNotificationsAsync(@NotNull final Context context, @NotNull final String productId, @Nullable AsyncTransactionManager.Callback<Boolean> callback) {
+		return AsyncTransactionManager.write(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				final Set<String> notifications = new HashSet<String>();
+				synchronized (manualConfirmations) {
+					final Set<String> pending = manualConfirmations.get(productId);
+					if (pending != null) {
+						notifications.addAll(pending);
+					}
+				}
+
+				// notifications received before the process was restarted
+				notifications.addAll(TransactionManager.getPendingNotifications(getProductKey(context, productId)));
+
+				if (!notifications.isEmpty()) {
+					confirmNotifications(context, notifications);
+					return true;
+				} else {
+					return false;
+				}
+			}
+		}, callback);
+	}
+
+	/**
+	 * Called after a {@link BillingRequest.ConfirmNotifications} request has been accepted: confirmed notifications
+	 * are no longer pending
+	 *
+	 * @param notifyIds ids of the confirmed notifications
+	 */
+	static void onNotificationsConfirmed(@NotNull String[] notifyIds) {
+		final List<String> confirmed = Arrays.asList(notifyIds);
+		synchronized (manualConfirmations) {
+			final Iterator<Set<String>> it = manualConfirmations.values().iterator();
+			while (it.hasNext()) {
+				final Set<String> notifications = it.next();
+				notifications.removeAll(confirmed);
+				if (notifications.isEmpty()) {
+					it.remove();
+				}
+			}
+		}
+
+		AsyncTransactionManager.write(new Callable<Void>() {
+			@Override
+			public Void call() {
+				TransactionManager.removePendingNotifications(confirmed);
+				return null;
 			}
+		}, null);
+	}
+
+	/**
+	 * Stores notifications which must be confirmed manually on the writer thread of {@link AsyncTransactionManager}
+	 *
+	 * @param context	   context
+	 * @param notifications key: notification id, value: product id
+	 */
+	private static void storePendingNotifications(@NotNull final Context context, @NotNull final Map<String, String> notifications) {
+		if (!notifications.isEmpty()) {
+			AsyncTransactionManager.write(new Callable<Void>() {
+				@Override
+				public Void call() {
+					// product ids are stored as product keys of the transactions
+					final Map<String, String> productKeys = new HashMap<String, String>(notifications.size());
+					for (Map.Entry<String, String> entry : notifications.entrySet()) {
+						productKeys.put(entry.getKey(), getProductKey(context, entry.getValue()));
+					}
+					TransactionManager.addPendingNotifications(productKeys);
+					return null;
+				}
+			}, null);
 		}
 	}
 
@@ -189,13 +307,150 @@ public class BillingController {
 	 * @param context   context
 	 * @param productId id of the item whose purchases will be counted.
 	 * @return number of purchases for the specified item.
+	 * @deprecated blocks until the pending writes are finished and reads the store if the entitlement snapshot doesn't know
+	 * the item, use {@link #countPurchasesAsync(Context, String, AsyncTransactionManager.Callback)}
 	 */
+	@Deprecated
 	public static int countPurchases(@NotNull Context context, @NotNull String productId) {
-		final String obfuscatedItemId = Security.obfuscate(context, getSalt(), productId);
+		// snapshot is updated after the transactions are stored => writes are awaited only if some of them change the product
+		if (!hasPendingWrites(productId)) {
+			final int count = countPurchasesInSnapshot(context, productId);
+			if (count != EntitlementTable.UNKNOWN) {
+				return count;
+			}
+		}
+
+		AsyncTransactionManager.awaitWrites();
+
+		final int count = countPurchasesInSnapshot(context, productId);
+		if (count != EntitlementTable.UNKNOWN) {
+			return count;
+		}
+		return TransactionManager.countPurchases(getProductKey(context, productId));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #countPurchases(Context, String)}
+	 *
+	 * @param context   context
+	 * @param productId id of the item whose purchases will be counted.
+	 * @param callback  callback notified on the main thread
+	 * @return future of the number of purchases
+	 */
+	@NotNull
+	public static Future<Integer> countPurchasesAsync(@NotNull final Context context, @NotNull final String productId, @Nullable AsyncTransactionManager.Callback<Integer> callback) {
+		return AsyncTransactionManager.read(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return countPurchases(context, productId);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Answers without touching the store (which might be still opening)
+	 *
+	 * @return number of purchases of the product, {@link EntitlementTable#UNKNOWN} if neither the shared table nor the
+	 * snapshot knows it
+	 */
+	private static int countPurchasesInSnapshot(@NotNull Context context, @NotNull String productId) {
+		final EntitlementSnapshot snapshot = getSnapshot(context);
+		if (snapshot != null) {
+			// shared table is updated by the process which stores transactions => always up to date
+			final EntitlementTable table = getEntitlementTable();
+			if (table != null) {
+				final int count = table.countPurchases(snapshot.fingerprint(productId));
+				if (count != EntitlementTable.UNKNOWN) {
+					return count;
+				}
+			}
+
+			if (snapshot.isValid()) {
+				return snapshot.countPurchases(productId);
+			}
+		}
+		return EntitlementTable.UNKNOWN;
+	}
+
+	private static boolean hasPendingWrites(@NotNull String productId) {
+		synchronized (pendingWrites) {
+			return pendingWrites.containsKey(productId);
+		}
+	}
+
+	private static void addPendingWrites(@NotNull Collection<String> productIds) {
+		synchronized (pendingWrites) {
+			for (String productId : productIds) {
+				final Integer writes = pendingWrites.get(productId);
+				pendingWrites.put(productId, writes == null ? 1 : writes + 1);
+			}
+		}
+	}
 
-		// item id != null => obfuscatedItemId != null
-		assert obfuscatedItemId != null;
-		return TransactionManager.countPurchases(obfuscatedItemId);
+	private static void removePendingWrites(@NotNull Collection<String> productIds) {
+		synchronized (pendingWrites) {
+			for (String productId : productIds) {
+				final Integer writes = pendingWrites.get(productId);
+				if (writes == null || writes <= 1) {
+					pendingWrites.remove(productId);
+				} else {
+					pendingWrites.put(productId, writes - 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of purchases for every item purchased at least once. Only transactions with state PURCHASED are counted.
+	 * All items are counted with one database query => this method should be preferred over calling {@link #countPurchases(Context, String)} for each item.
+	 *
+	 * @param context context
+	 * @return map of item ids to the number of their purchases. Items which were never purchased are not contained in the map.
+	 * @deprecated blocks until the pending writes are finished, use {@link #countPurchasesByProductAsync(Context, AsyncTransactionManager.Callback)}
+	 */
+	@Deprecated
+	@NotNull
+	public static Map<String, Integer> countPurchasesByProduct(@NotNull Context context) {
+		AsyncTransactionManager.awaitWrites();
+		return countPurchasesInStore(context);
+	}
+
+	/**
+	 * Asynchronous variant of {@link #countPurchasesByProduct(Context)}
+	 *
+	 * @param context  context
+	 * @param callback callback notified on the main thread
+	 * @return future of the map of item ids to the number of their purchases
+	 */
+	@NotNull
+	public static Future<Map<String, Integer>> countPurchasesByProductAsync(@NotNull final Context context, @Nullable AsyncTransactionManager.Callback<Map<String, Integer>> callback) {
+		return AsyncTransactionManager.read(new Callable<Map<String, Integer>>() {
+			@Override
+			public Map<String, Integer> call() {
+				return countPurchasesInStore(context);
+			}
+		}, callback);
+	}
+
+	@NotNull
+	private static Map<String, Integer> countPurchasesInStore(@NotNull Context context) {
+		if (isStoreEncrypted()) {
+			return TransactionManager.countPurchasesByProduct();
+		}
+
+		final byte[] salt = getSalt();
+		updateProductKeys(context, salt);
+
+		final Map<String, Integer> obfuscatedCounts = TransactionManager.countPurchasesByProduct();
+		final Map<String, Integer> result = new HashMap<String, Integer>(obfuscatedCounts.size());
+		for (Map.Entry<String, Integer> entry : obfuscatedCounts.entrySet()) {
+			final String productId = Security.unobfuscate(context, salt, entry.getKey());
+			if (productId != null) {
+				result.put(productId, entry.getValue());
+			}
+		}
+
+		return result;
 	}
 
 	protected static void debug(@Nullable String message) {
@@ -242,9 +497,25 @@ public class BillingController {
 	 */
 	@NotNull
 	public static List<Transaction> getTransactions(@NotNull Context context) {
-		final List<Transaction> transactions = TransactionManager.getTransactions();
-		ObfuscateUtils.unobfuscate(context, transactions, getSalt());
-		return transactions;
+		AsyncTransactionManager.awaitWrites();
+		return readTransactions(context, null);
+	}
+
+	/**
+	 * Asynchronous variant of {@link #getTransactions(Context)}: transactions are read and unobfuscated on the background thread
+	 *
+	 * @param context  context
+	 * @param callback callback notified on the main thread
+	 * @return future of the list of transactions
+	 */
+	@NotNull
+	public static Future<List<Transaction>> getTransactionsAsync(@NotNull final Context context, @Nullable AsyncTransactionManager.Callback<List<Transaction>> callback) {
+		return AsyncTransactionManager.read(new Callable<List<Transaction>>() {
+			@Override
+			public List<Transaction> call() {
+				return getTransactions(context);
+			}
+		}, callback);
 	}
 
 	/**
@@ -256,34 +527,182 @@ public class BillingController {
 	 */
 	@NotNull
 	public static List<Transaction> getTransactions(@NotNull Context context, @NotNull String productId) {
-		byte[] salt = getSalt();
+		AsyncTransactionManager.awaitWrites();
+		return readTransactions(context, getProductKey(context, productId));
+	}
 
-		final String obfuscatedItemId = Security.obfuscate(context, getSalt(), productId);
+	/**
+	 * Reads unobfuscated transactions. Product ids and developer payloads are unobfuscated by the store while they are
+	 * read (see {@link ObfuscateUtils#newDecoder(Context, byte[])}) => obfuscated bytes are not converted to strings first
+	 *
+	 * @param context    context
+	 * @param productKey product key, null for all products
+	 * @return unobfuscated transactions
+	 */
+	@NotNull
+	private static List<Transaction> readTransactions(@NotNull Context context, @Nullable String productKey) {
+		if (isStoreEncrypted()) {
+			return productKey == null ? TransactionManager.getTransactions() : TransactionManager.getTransactions(productKey);
+		}
 
-		assert obfuscatedItemId != null;
+		final byte[] salt = getSalt();
+		// one page with all transactions (keyset paging would skip transactions without order id on the page boundary)
+		final List<Transaction> transactions = TransactionManager.getTransactions(new TransactionQuery(productKey, Integer.MAX_VALUE), ObfuscateUtils.newDecoder(context, salt));
+		for (Transaction transaction : transactions) {
+			ObfuscateUtils.unobfuscateOrderId(context, transaction, salt);
+		}
+		return transactions;
+	}
 
-		final List<Transaction> transactions = TransactionManager.getTransactions(obfuscatedItemId);
-		ObfuscateUtils.unobfuscate(context, transactions, salt);
+	/**
+	 * Iterates over all transactions stored locally ordered by purchase time. Transactions are loaded page by page and
+	 * unobfuscated one by one when they are returned => this method should be preferred over {@link #getTransactions(Context)}
+	 * for big histories or when only the first transactions are needed.
+	 *
+	 * @param context  context
+	 * @param pageSize number of transactions loaded at once
+	 * @return iterator over transactions
+	 */
+	@NotNull
+	public static Iterator<Transaction> iterateTransactions(@NotNull Context context, int pageSize) {
+		return iterateTransactions(context, null, new TransactionQuery(null, pageSize));
+	}
 
-		return transactions;
+	/**
+	 * Iterates over the transactions of the specified item ordered by purchase time, see {@link #iterateTransactions(Context, int)}
+	 *
+	 * @param context   context
+	 * @param productId id of the item whose transactions will be returned.
+	 * @param pageSize  number of transactions loaded at once
+	 * @return iterator over transactions
+	 */
+	@NotNull
+	public static Iterator<Transaction> iterateTransactions(@NotNull Context context, @NotNull String productId, int pageSize) {
+		return iterateTransactions(context, productId, new TransactionQuery(null, pageSize));
+	}
+
+	/**
+	 * Iterates over the transactions which match the query (e.g. transactions purchased in the specified time range or
+	 * only refunded transactions), see {@link #iterateTransactions(Context, int)}. Filters are applied by the storage =>
+	 * only matching transactions are loaded and unobfuscated.
+	 *
+	 * @param context   context
+	 * @param productId id of the item whose transactions will be returned (null for all items)
+	 * @param query	 query with filters and page size (product key of the query is ignored)
+	 * @return iterator over transactions ordered by purchase time
+	 */
+	@NotNull
+	public static Iterator<Transaction> iterateTransactions(@NotNull Context context, @Nullable String productId, @NotNull TransactionQuery query) {
+		AsyncTransactionManager.awaitWrites();
+		final String productKey = productId == null ? null : getProductKey(context, productId);
+		return new TransactionIterator(context, query.forProduct(productKey), isStoreEncrypted(), getSalt());
+	}
+
+	/**
+	 * Returns the key by which transactions of the specified item are looked up in the storage
+	 *
+	 * @param context   context
+	 * @param productId item id
+	 * @return product key
+	 */
+	@NotNull
+	private static String getProductKey(@NotNull Context context, @NotNull String productId) {
+		if (isStoreEncrypted()) {
+			return productId;
+		}
+
+		final byte[] salt = getSalt();
+		updateProductKeys(context, salt);
+
+		final String productKey = Security.hash(context, salt, productId);
+
+		// item id != null => productKey != null
+		assert productKey != null;
+		return productKey;
+	}
+
+	/**
+	 * Sets product keys for transactions which were stored before the product keys were introduced. Product key can be
+	 * calculated only from the unobfuscated product id => it can't be done during the database upgrade.
+	 *
+	 * @param context context
+	 * @param salt	salt
+	 */
+	private static void updateProductKeys(@NotNull Context context, @Nullable byte[] salt) {
+		if (!productKeysUpdated) {
+			final Map<Long, String> productIds = TransactionManager.getProductIdsWithoutKey();
+
+			final Map<Long, String> productKeys = new HashMap<Long, String>(productIds.size());
+			for (Map.Entry<Long, String> entry : productIds.entrySet()) {
+				final String productId = Security.unobfuscate(context, salt, entry.getValue());
+				if (productId != null) {
+					productKeys.put(entry.getKey(), Security.hash(context, salt, productId));
+				}
+			}
+			TransactionManager.updateProductKeys(productKeys);
+
+			productKeysUpdated = true;
+		}
 	}
 
 	/**
 	 * Returns true if the specified item has been registered as purchased in
 	 * local memory. Note that if the item was later canceled or refunded this
-	 * will still return true. Also note that the item might have been purchased
+	 * will still return true (use {@link #isEntitled(Context, String)} to take
+	 * refunds and cancellations into account). Also note that the item might have been purchased
 	 * in another installation, but not yet registered in this one.
 	 *
 	 * @param context   context
 	 * @param productId item id.
 	 * @return true if the specified item is purchased, false otherwise.
+	 * @deprecated blocks as {@link #countPurchases(Context, String)}, use {@link #isPurchasedAsync(Context, String, AsyncTransactionManager.Callback)}
 	 */
+	@Deprecated
 	public static boolean isPurchased(@NotNull Context context, @NotNull String productId) {
-		final byte[] salt = getSalt();
-		final String obfuscatedItemId = Security.obfuscate(context, salt, productId);
+		return countPurchases(context, productId) > 0;
+	}
+
+	/**
+	 * Returns the number of orders of the specified item whose latest state is PURCHASED, i.e. refunded and cancelled
+	 * orders are not counted (see {@link net.robotmedia.billing.model.ITransactionStore#countEntitled(String)}).
+	 * Counts are read from the store (not from the entitlement snapshot)
+	 *
+	 * @param context   context
+	 * @param productId item id.
+	 * @return number of entitled orders of the item
+	 */
+	public static int countEntitled(@NotNull Context context, @NotNull String productId) {
+		AsyncTransactionManager.awaitWrites();
+		return TransactionManager.countEntitled(getProductKey(context, productId));
+	}
+
+	/**
+	 * Returns true if at least one order of the specified item has not been refunded or cancelled
+	 *
+	 * @param context   context
+	 * @param productId item id.
+	 * @return true if user is entitled to the item, false otherwise.
+	 */
+	public static boolean isEntitled(@NotNull Context context, @NotNull String productId) {
+		return countEntitled(context, productId) > 0;
+	}
 
-		assert obfuscatedItemId != null;
-		return TransactionManager.isPurchased(obfuscatedItemId);
+	/**
+	 * Asynchronous variant of {@link #isPurchased(Context, String)}
+	 *
+	 * @param context   context
+	 * @param productId item id.
+	 * @param callback  callback notified on the main thread
+	 * @return future of the result
+	 */
+	@NotNull
+	public static Future<Boolean> isPurchasedAsync(@NotNull final Context context, @NotNull final String productId, @Nullable AsyncTransactionManager.Callback<Boolean> callback) {
+		return AsyncTransactionManager.read(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return isPurchased(context, productId);
+			}
+		}, callback);
 	}
 
 	/**
@@ -343,6 +762,8 @@ public class BillingController {
 		}
 
 		final List<String> confirmations = new ArrayList<String>();
+		// key: notification id, value: product id
+		final Map<String, String> manual = new HashMap<String, String>();
 		for (Transaction transaction : transactions) {
 
 			if (transaction.notificationId != null) {
@@ -352,17 +773,17 @@ public class BillingController {
 					} else {
 						// TODO: Discriminate between purchases, cancellations and refunds.
 						addManualConfirmation(transaction.productId, transaction.notificationId);
+						manual.put(transaction.notificationId, transaction.productId);
 					}
 				}
 			}
-
-			storeTransaction(context, transaction);
-			BillingObserverRegistry.notifyPurchaseStateChange(transaction.productId, transaction.purchaseState);
 		}
 
-		if (!confirmations.isEmpty()) {
-			final String[] notifyIds = confirmations.toArray(new String[confirmations.size()]);
-			confirmNotifications(context, notifyIds);
+		// all orders of one payload are stored in one database transaction, notifications are confirmed only after the commit
+		storeTransactions(context, transactions, confirmations);
+		storePendingNotifications(context, manual);
+		for (Transaction transaction : transactions) {
+			BillingObserverRegistry.notifyPurchaseStateChange(transaction.productId, transaction.purchaseState);
 		}
 	}
 
@@ -544,9 +965,309 @@ public class BillingController {
 	}
 
 	static void storeTransaction(@NotNull Context context, @NotNull Transaction t) {
-		final Transaction clone = t.clone();
-		ObfuscateUtils.obfuscate(context, clone, getSalt());
-		TransactionManager.addTransaction(clone);
+		storeTransactions(context, Collections.singletonList(t), Collections.<String>emptyList());
+	}
+
+	/**
+	 * Stores transactions on the writer thread of {@link AsyncTransactionManager} (this method is called on the main thread).
+	 * Reads done through this class wait for the stored transactions.
+	 * Notifications are confirmed only after the transactions are committed => if the process dies or the write fails
+	 * Market sends them again
+	 *
+	 * @param context	   context
+	 * @param transactions transactions to be stored
+	 * @param notifyIds	ids of the notifications to be confirmed after the transactions are stored
+	 */
+	static void storeTransactions(@NotNull final Context context, @NotNull List<Transaction> transactions, @NotNull List<String> notifyIds) {
+		final List<String> confirmations = new ArrayList<String>(notifyIds);
+		final List<Transaction> clones = new ArrayList<Transaction>(transactions.size());
+		final List<String> productIds = new ArrayList<String>(transactions.size());
+		for (Transaction transaction : transactions) {
+			clones.add(transaction.clone());
+			productIds.add(transaction.productId);
+		}
+
+		// snapshot is updated by the listener of TransactionManager once it is loaded
+		loadSnapshot(context);
+		// counts of the products are not read from the snapshot until it is updated
+		addPendingWrites(productIds);
+		AsyncTransactionManager.write(new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					final boolean encrypted = isStoreEncrypted();
+					final byte[] salt = getSalt();
+					for (Transaction clone : clones) {
+						obfuscate(context, clone, encrypted, salt);
+					}
+					// restored orders which haven't changed are not rewritten
+					final InsertResult result = TransactionManager.addTransactions(clones);
+					if (result != null) {
+						debug("Transactions stored: " + result);
+					} else if (!confirmations.isEmpty()) {
+						// transactions were queued => they must be committed before the confirmation
+						TransactionManager.flush();
+					}
+
+					if (!confirmations.isEmpty()) {
+						confirmNotifications(context, confirmations);
+					}
+					return null;
+				} finally {
+					removePendingWrites(productIds);
+				}
+			}
+		}, null);
+	}
+
+	/**
+	 * Prepares transaction to be stored: encrypted store (see {@link ITransactionStore#isEncrypted()}) keeps transactions as they are,
+	 * otherwise each field is obfuscated separately
+	 */
+	private static void obfuscate(@NotNull Context context, @NotNull Transaction t, boolean encrypted, @Nullable byte[] salt) {
+		if (encrypted) {
+			t.productKey = t.productId;
+		} else {
+			ObfuscateUtils.obfuscate(context, t, salt);
+		}
+	}
+
+	/**
+	 * Returns the entitlement snapshot without waiting for it: snapshot is loaded on the background thread (started by the
+	 * first call) and then checked against the store on one of the reader threads of {@link AsyncTransactionManager}
+	 * (i.e. after the store is opened)
+	 *
+	 * @param context context
+	 * @return snapshot, null if it is still loading or there is no salt
+	 */
+	@Nullable
+	private static EntitlementSnapshot getSnapshot(@NotNull Context context) {
+		final Future<EntitlementSnapshot> loading = loadSnapshot(context);
+		return loading.isDone() ? getLoaded(loading) : null;
+	}
+
+	/**
+	 * Same as {@link #getSnapshot(Context)} but waits until the snapshot is loaded (must not be called on the main thread)
+	 */
+	@Nullable
+	private static EntitlementSnapshot awaitSnapshot(@NotNull Context context) {
+		return getLoaded(loadSnapshot(context));
+	}
+
+	@Nullable
+	private static EntitlementSnapshot getLoaded(@NotNull Future<EntitlementSnapshot> loading) {
+		try {
+			return loading.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Log.e(LOG_TAG, "Unable to load entitlement snapshot", e.getCause());
+			return null;
+		}
+	}
+
+	@NotNull
+	private static Future<EntitlementSnapshot> loadSnapshot(@NotNull Context context) {
+		synchronized (snapshotLock) {
+			if (snapshotLoading == null) {
+				final Context applicationContext = context.getApplicationContext();
+				snapshotLoading = new FutureTask<EntitlementSnapshot>(new Callable<EntitlementSnapshot>() {
+					@Override
+					public EntitlementSnapshot call() {
+						final byte[] salt = getSalt();
+						if (salt == null) {
+							return null;
+						}
+
+						// key derivation reads the installation id => it is done here too
+						final EntitlementSnapshot snapshot = EntitlementSnapshot.newInstance(applicationContext, salt);
+						snapshot.load();
+						try {
+							final EntitlementTable table = EntitlementTable.open(applicationContext);
+							synchronized (snapshotLock) {
+								entitlementTable = table;
+							}
+						} catch (IOException e) {
+							Log.e(LOG_TAG, "Unable to open entitlement table", e);
+						}
+						verifySnapshot(applicationContext, snapshot);
+						return snapshot;
+					}
+				});
+				// writes made before the snapshot is loaded are seen by the verification
+				TransactionManager.setListener(new SnapshotUpdater(applicationContext));
+				new Thread(snapshotLoading, "Billing snapshot loading").start();
+			}
+			return snapshotLoading;
+		}
+	}
+
+	private static void verifySnapshot(@NotNull final Context context, @NotNull final EntitlementSnapshot snapshot) {
+		AsyncTransactionManager.read(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				verify(context, snapshot);
+
+				// once published the table is updated only after transactions are stored (counts read here might be already outdated)
+				final EntitlementTable table = getEntitlementTable();
+				if (table != null && !table.isPublished()) {
+					snapshot.publish(table);
+				}
+				return null;
+			}
+		}, null);
+	}
+
+	/**
+	 * Checks the snapshot against the counts from the store and rebuilds it if they differ
+	 */
+	private static void verify(@NotNull Context context, @NotNull EntitlementSnapshot snapshot) throws IOException {
+		// snapshot might be updated by a write while the store is read => counts are read again
+		long version;
+		do {
+			version = snapshot.getVersion();
+		} while (!snapshot.verify(version, countPurchasesInStore(context)));
+	}
+
+	/**
+	 * Keeps the entitlement snapshot and the shared table up to date: notified by {@link TransactionManager} after every
+	 * write (on the writing thread, writers are serialized)
+	 */
+	private static class SnapshotUpdater implements TransactionManager.Listener {
+
+		@NotNull
+		private final Context context;
+
+		private SnapshotUpdater(@NotNull Context context) {
+			this.context = context;
+		}
+
+		@Override
+		public void onTransactionsChanged(@Nullable Collection<Transaction> transactions) {
+			final EntitlementSnapshot snapshot = awaitSnapshot(context);
+			if (snapshot == null) {
+				return;
+			}
+
+			final Map<String, String> products = transactions == null ? null : getProducts(transactions);
+			if (products != null) {
+				for (Map.Entry<String, String> entry : products.entrySet()) {
+					snapshot.setCount(entry.getKey(), TransactionManager.countPurchases(entry.getValue()));
+				}
+				// snapshot with unknown counts of other products must not be saved (it is saved when verified)
+				if (snapshot.isValid()) {
+					try {
+						snapshot.save();
+					} catch (IOException e) {
+						// snapshot is rebuilt from the store on the next start
+						Log.e(LOG_TAG, "Unable to save entitlement snapshot", e);
+					}
+				}
+			} else {
+				// any product might have changed (e.g. after import or compaction)
+				try {
+					verify(context, snapshot);
+				} catch (IOException e) {
+					Log.e(LOG_TAG, "Unable to save entitlement snapshot", e);
+				}
+			}
+
+			final EntitlementTable table = getEntitlementTable();
+			if (table != null) {
+				try {
+					if (snapshot.isValid()) {
+						snapshot.publish(table);
+					} else {
+						// other processes must not see the old counts
+						table.clear();
+					}
+				} catch (IOException e) {
+					Log.e(LOG_TAG, "Unable to publish entitlements", e);
+				}
+			}
+		}
+
+		/**
+		 * @param transactions transactions as stored
+		 * @return product keys of the transactions (key: product id), null if some product can't be identified
+		 */
+		@Nullable
+		private Map<String, String> getProducts(@NotNull Collection<Transaction> transactions) {
+			final boolean encrypted = isStoreEncrypted();
+			final byte[] salt = encrypted ? null : getSalt();
+			final Map<String, String> products = new HashMap<String, String>();
+			for (Transaction transaction : transactions) {
+				final String productId = encrypted ? transaction.productId : Security.unobfuscate(context, salt, transaction.productId);
+				if (productId == null || transaction.productKey == null) {
+					return null;
+				}
+				products.put(productId, transaction.productKey);
+			}
+			return products;
+		}
+	}
+
+	@Nullable
+	private static EntitlementTable getEntitlementTable() {
+		synchronized (snapshotLock) {
+			return entitlementTable;
+		}
+	}
+
+	private static boolean isStoreEncrypted() {
+		return TransactionManager.getStore().isEncrypted();
+	}
+
+	/**
+	 * Moves all stored transactions to the specified store (e.g. from the SQLite database with obfuscated fields to
+	 * {@link net.robotmedia.billing.model.EncryptedTransactionStore}) and uses it from now on. Transactions are converted
+	 * if one of the stores is encrypted and the other one is not.
+	 *
+	 * @param context context
+	 * @param store   new transaction store
+	 * @throws IllegalStateException if the current store is compacted, see {@link ITransactionStore#isCompacted()}
+	 * @deprecated blocks until the pending writes are finished and all transactions are copied,
+	 * use {@link #migrateTransactionsAsync(Context, ITransactionStore, AsyncTransactionManager.Callback)}
+	 */
+	@Deprecated
+	public static void migrateTransactions(@NotNull final Context context, @NotNull final ITransactionStore store) {
+		AsyncTransactionManager.awaitWrites();
+		final byte[] salt = getSalt();
+		TransactionManager.migrateStore(context, store, new TransactionManager.Converter() {
+			@Override
+			public void convert(@NotNull List<Transaction> transactions) {
+				final boolean encrypted = isStoreEncrypted();
+				if (encrypted != store.isEncrypted()) {
+					for (Transaction transaction : transactions) {
+						if (!encrypted) {
+							ObfuscateUtils.unobfuscate(context, transaction, salt);
+						}
+						obfuscate(context, transaction, store.isEncrypted(), salt);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous variant of {@link #migrateTransactions(Context, ITransactionStore)}: migration is executed on the writer
+	 * thread after the previously submitted writes
+	 *
+	 * @param context  context
+	 * @param store	new transaction store
+	 * @param callback callback notified on the main thread
+	 * @return future of the migration
+	 */
+	@NotNull
+	public static Future<Void> migrateTransactionsAsync(@NotNull final Context context, @NotNull final ITransactionStore store, @Nullable AsyncTransactionManager.Callback<Void> callback) {
+		return AsyncTransactionManager.write(new Callable<Void>() {
+			@Override
+			public Void call() {
+				migrateTransactions(context, store);
+				return null;
+			}
+		}, callback);
 	}
 
 	private static boolean verifyNonce(@NotNull JSONObject data) {
@@ -559,9 +1280,50 @@ public class BillingController {
 		}
 	}
 
+	/**
+	 * Deletes all stored transactions, the entitlement snapshot and the shared entitlement table
+	 *
+	 * @param context context
+	 * @deprecated blocks until the pending writes are finished, use {@link #dropBillingDataAsync(Context, AsyncTransactionManager.Callback)}
+	 */
+	@Deprecated
 	public static void dropBillingData(@NotNull Context context) {
 		Log.d(BillingController.class.getSimpleName(), "Dropping billing database...");
+		AsyncTransactionManager.awaitWrites();
 		TransactionManager.dropDatabase(context);
+
+		final EntitlementSnapshot snapshot = awaitSnapshot(context);
+		if (snapshot != null) {
+			snapshot.delete();
+		}
+
+		final EntitlementTable table = getEntitlementTable();
+		if (table != null) {
+			try {
+				table.clear();
+			} catch (IOException e) {
+				Log.e(LOG_TAG, "Unable to clear entitlement table", e);
+			}
+		}
+	}
+
+	/**
+	 * Asynchronous variant of {@link #dropBillingData(Context)}: data is dropped on the writer thread after the previously
+	 * submitted writes
+	 *
+	 * @param context  context
+	 * @param callback callback notified on the main thread
+	 * @return future of the drop
+	 */
+	@NotNull
+	public static Future<Void> dropBillingDataAsync(@NotNull final Context context, @Nullable AsyncTransactionManager.Callback<Void> callback) {
+		return AsyncTransactionManager.write(new Callable<Void>() {
+			@Override
+			public Void call() {
+				dropBillingData(context);
+				return null;
+			}
+		}, callback);
 	}
 
 	static void onRequestPurchaseResponse(@NotNull String productId, @NotNull ResponseCode response) {
@@ -184,6 +184,11 @@ abstract class BillingRequest implements IBillingRequest {
 			return BillingRequestType.CONFIRM_NOTIFICATIONS;
 		}
 
+		@Override
+		protected void processOkResponse(@NotNull Bundle response) {
+			BillingController.onNotificationsConfirmed(notifyIds);
+		}
+
 	}
 
 	/**
@@ -0,0 +1,83 @@
+package net.robotmedia.billing;
+
+import android.content.Context;
+import net.robotmedia.billing.model.ITransactionDecoder;
+import net.robotmedia.billing.model.Transaction;
+import net.robotmedia.billing.model.TransactionManager;
+import net.robotmedia.billing.model.TransactionQuery;
+import net.robotmedia.billing.utils.ObfuscateUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over stored transactions page by page (see {@link TransactionQuery}). Only one page is kept in memory.
+ * Product ids and developer payloads are unobfuscated while the page is read, order ids (which are needed as stored for
+ * the next page) are unobfuscated when the transaction is returned by {@link #next()}
+ */
+final class TransactionIterator implements Iterator<Transaction> {
+
+	@NotNull
+	private final Context context;
+
+	@Nullable
+	private final byte[] salt;
+
+	private final boolean encrypted;
+
+	// null if store is encrypted (nothing to decode)
+	@Nullable
+	private final ITransactionDecoder decoder;
+
+	@NotNull
+	private TransactionQuery query;
+
+	// transactions with order ids as stored (obfuscated)
+	@Nullable
+	private List<Transaction> page;
+
+	private int position;
+
+	TransactionIterator(@NotNull Context context, @NotNull TransactionQuery query, boolean encrypted, @Nullable byte[] salt) {
+		this.context = context;
+		this.query = query;
+		this.encrypted = encrypted;
+		this.salt = salt;
+		this.decoder = encrypted ? null : ObfuscateUtils.newDecoder(context, salt);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (page == null || (position == page.size() && page.size() == query.getLimit())) {
+			if (page != null) {
+				query = query.after(page.get(page.size() - 1));
+			}
+			page = decoder == null ? TransactionManager.getTransactions(query) : TransactionManager.getTransactions(query, decoder);
+			position = 0;
+		}
+		return position < page.size();
+	}
+
+	@NotNull
+	@Override
+	public Transaction next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		// page must keep the stored order ids for the next query => copy is unobfuscated
+		final Transaction result = page.get(position++).clone();
+		if (!encrypted) {
+			ObfuscateUtils.unobfuscateOrderId(context, result, salt);
+		}
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,285 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous variant of {@link TransactionManager}: writes are executed one by one on the writer thread, reads are
+ * executed on the small pool of reader threads. Each method returns a future and optionally notifies the callback on
+ * the main thread.
+ * Reads see all the writes submitted before them (reader waits for the last submitted write).
+ */
+public final class AsyncTransactionManager {
+
+	private static final String TAG = AsyncTransactionManager.class.getSimpleName();
+
+	private static final int READERS = 2;
+
+	@NotNull
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@NotNull
+		@Override
+		public Thread newThread(@NotNull Runnable r) {
+			final Thread thread = newThreadFactory("Billing writer").newThread(r);
+			writerThread = thread;
+			return thread;
+		}
+	});
+
+	@NotNull
+	private static final ExecutorService readers = Executors.newFixedThreadPool(READERS, newThreadFactory("Billing reader"));
+
+	// guarded by AsyncTransactionManager.class
+	@Nullable
+	private static Future<?> lastWrite;
+
+	@Nullable
+	private static volatile Thread writerThread;
+
+	private AsyncTransactionManager() {
+		throw new AssertionError();
+	}
+
+	public static interface Callback<T> {
+
+		void onSuccess(T result);
+
+		void onError(@NotNull Exception e);
+	}
+
+	@NotNull
+	public static Future<Void> addTransactions(@NotNull final Collection<Transaction> transactions, @Nullable Callback<Void> callback) {
+		final List<Transaction> copy = new ArrayList<Transaction>(transactions);
+		return write(new Callable<Void>() {
+			@Override
+			public Void call() {
+				TransactionManager.addTransactions(copy);
+				return null;
+			}
+		}, callback);
+	}
+
+	@NotNull
+	public static Future<Integer> countPurchases(@NotNull final String productKey, @Nullable Callback<Integer> callback) {
+		return read(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return TransactionManager.countPurchases(productKey);
+			}
+		}, callback);
+	}
+
+	@NotNull
+	public static Future<Map<String, Integer>> countPurchasesByProduct(@Nullable Callback<Map<String, Integer>> callback) {
+		return read(new Callable<Map<String, Integer>>() {
+			@Override
+			public Map<String, Integer> call() {
+				return TransactionManager.countPurchasesByProduct();
+			}
+		}, callback);
+	}
+
+	@NotNull
+	public static Future<List<Transaction>> getTransactions(@Nullable Callback<List<Transaction>> callback) {
+		return read(new Callable<List<Transaction>>() {
+			@Override
+			public List<Transaction> call() {
+				return TransactionManager.getTransactions();
+			}
+		}, callback);
+	}
+
+	@NotNull
+	public static Future<List<Transaction>> getTransactions(@NotNull final String productKey, @Nullable Callback<List<Transaction>> callback) {
+		return read(new Callable<List<Transaction>>() {
+			@Override
+			public List<Transaction> call() {
+				return TransactionManager.getTransactions(productKey);
+			}
+		}, callback);
+	}
+
+	@NotNull
+	public static Future<List<Transaction>> getTransactions(@NotNull final TransactionQuery query, @Nullable Callback<List<Transaction>> callback) {
+		return read(new Callable<List<Transaction>>() {
+			@Override
+			public List<Transaction> call() {
+				return TransactionManager.getTransactions(query);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Executes the task on the writer thread
+	 *
+	 * @param task	 task which modifies the storage
+	 * @param callback callback to be notified on the main thread (may be null)
+	 * @return future of the task
+	 */
+	@NotNull
+	public static <T> Future<T> write(@NotNull Callable<T> task, @Nullable Callback<T> callback) {
+		synchronized (AsyncTransactionManager.class) {
+			final Future<T> result = writer.submit(new CallbackTask<T>(task, callback));
+			lastWrite = result;
+			return result;
+		}
+	}
+
+	/**
+	 * Executes the task on one of the reader threads after all previously submitted writes are finished
+	 *
+	 * @param task	 task which reads the storage (may also e.g. unobfuscate the read transactions)
+	 * @param callback callback to be notified on the main thread (may be null)
+	 * @return future of the task
+	 */
+	@NotNull
+	public static <T> Future<T> read(@NotNull Callable<T> task, @Nullable Callback<T> callback) {
+		return readers.submit(new CallbackTask<T>(new AfterWriteTask<T>(getLastWrite(), task), callback));
+	}
+
+	/**
+	 * Blocks until all the writes submitted so far are finished => synchronous reads see the results of asynchronous writes.
+	 * Must not be called on the main thread if {@link TransactionManager#setMainThreadCheckEnabled(boolean) the check} is enabled
+	 */
+	public static void awaitWrites() {
+		TransactionManager.checkNotMainThread();
+		if (Thread.currentThread() != writerThread) {
+			awaitWrite(getLastWrite());
+		}
+	}
+
+	@Nullable
+	private static synchronized Future<?> getLastWrite() {
+		return lastWrite;
+	}
+
+	private static void awaitWrite(@Nullable Future<?> write) {
+		if (write != null) {
+			try {
+				write.get();
+			} catch (ExecutionException e) {
+				// failed write doesn't prevent the read
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@NotNull
+	private static ThreadFactory newThreadFactory(@NotNull final String name) {
+		return new ThreadFactory() {
+
+			@NotNull
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@NotNull
+			@Override
+			public Thread newThread(@NotNull final Runnable r) {
+				final Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, name + " #" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private static final class AfterWriteTask<T> implements Callable<T> {
+
+		@Nullable
+		private final Future<?> write;
+
+		@NotNull
+		private final Callable<T> task;
+
+		private AfterWriteTask(@Nullable Future<?> write, @NotNull Callable<T> task) {
+			this.write = write;
+			this.task = task;
+		}
+
+		@Override
+		public T call() throws Exception {
+			awaitWrite(write);
+			return task.call();
+		}
+	}
+
+	private static final class CallbackTask<T> implements Callable<T> {
+
+		@NotNull
+		private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+		@NotNull
+		private final Callable<T> task;
+
+		@Nullable
+		private final Callback<T> callback;
+
+		private CallbackTask(@NotNull Callable<T> task, @Nullable Callback<T> callback) {
+			this.task = task;
+			this.callback = callback;
+		}
+
+		@Override
+		public T call() throws Exception {
+			try {
+				final T result = task.call();
+				if (callback != null) {
+					mainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							callback.onSuccess(result);
+						}
+					});
+				}
+				return result;
+			} catch (final Exception e) {
+				Log.e(TAG, "Storage task failed", e);
+				if (callback != null) {
+					mainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							callback.onError(e);
+						}
+					});
+				}
+				throw e;
+			}
+		}
+	}
+}
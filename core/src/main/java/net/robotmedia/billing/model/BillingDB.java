@@ -17,11 +17,16 @@ package net.robotmedia.billing.model;
 
 import android.app.Application;
 import net.robotmedia.billing.model.Transaction.PurchaseState;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+import net.robotmedia.billing.utils.Base64;
+import net.robotmedia.billing.utils.Base64DecoderException;
+import net.robotmedia.billing.utils.Compatibility;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.solovyev.android.db.AndroidDbUtils;
@@ -29,49 +34,289 @@ import org.solovyev.android.db.DbExec;
 import org.solovyev.android.db.DbQuery;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 // public only for tests
 public class BillingDB {
 
+	private static final String TAG = BillingDB.class.getSimpleName();
+
 	static final String DATABASE_NAME = "billing.db";
-	static final int DATABASE_VERSION = 1;
+	static final int DATABASE_VERSION = 10;
 	static final String TABLE_TRANSACTIONS = "purchases";
 
+	// table with transactions stored by the first version of the database, see DatabaseHelper#onUpgrade
+	static final String TABLE_TRANSACTIONS_V1 = "purchases_v1";
+
+	// index of the version 2 (transactions are looked up by product key since version 3)
+	static final String INDEX_PRODUCT_ID_STATE = "purchases_productId_state";
+	static final String INDEX_PRODUCT_KEY_STATE = "purchases_productKey_state";
+	// index of the versions 2-3 (replaced by the index which also orders transactions purchased at the same time)
+	static final String INDEX_PURCHASE_TIME = "purchases_purchaseTime";
+	// indexes for paging, see TransactionQuery
+	static final String INDEX_PURCHASE_TIME_ID = "purchases_purchaseTime_id";
+	static final String INDEX_PRODUCT_KEY_PURCHASE_TIME_ID = "purchases_productKey_purchaseTime_id";
+	// index for queries of all products filtered by state, see TransactionQuery#withStates
+	static final String INDEX_STATE_PURCHASE_TIME_ID = "purchases_state_purchaseTime_id";
+
+	// transactions folded by the compaction (one row per product), see CompactionPolicy
+	static final String TABLE_AGGREGATES = "purchase_aggregates";
+	// orders of the folded transactions => restored orders are not stored again as new rows, see InsertTransactions
+	static final String TABLE_COMPACTED_ORDERS = "compacted_orders";
+
+	// notifications which must be confirmed manually (survive process restarts), see net.robotmedia.billing.BillingController#confirmNotifications
+	static final String TABLE_PENDING_NOTIFICATIONS = "pending_notifications";
+	static final String INDEX_PENDING_NOTIFICATIONS_PRODUCT_KEY = "pending_notifications_productKey";
+
+	// number of purchases (raw and folded) and of entitled orders of each product updated together with the transactions, see #checkPurchaseCounts()
+	static final String TABLE_PURCHASE_COUNTS = "purchase_counts";
+	// latest state (by purchase time) of each order including the folded ones, see #countEntitled(String)
+	static final String TABLE_ORDER_STATES = "order_states";
+
+	// progress of the conversion of the obfuscated fields from TEXT to BLOB (exists only while conversion is not finished), see BillingDB#migrateToBlobs
+	static final String TABLE_BLOB_MIGRATION = "blob_migration";
+
+	// number of rows moved from the old table in one SQLite transaction
+	static final int MIGRATION_CHUNK_SIZE = 500;
+
 	static final String COLUMN_ID = "_id";
 	static final String COLUMN_STATE = "state";
 	static final String COLUMN_PRODUCT_ID = "productId";
 	static final String COLUMN_PURCHASE_TIME = "purchaseTime";
 	static final String COLUMN_DEVELOPER_PAYLOAD = "developerPayload";
+	static final String COLUMN_PRODUCT_KEY = "productKey";
+	static final String COLUMN_TRANSACTION_COUNT = "transactionCount";
+	static final String COLUMN_PURCHASE_COUNT = "purchaseCount";
+	static final String COLUMN_FIRST_PURCHASE_TIME = "firstPurchaseTime";
+	static final String COLUMN_LAST_PURCHASE_TIME = "lastPurchaseTime";
+	static final String COLUMN_NOTIFICATION_ID = "notificationId";
+	static final String COLUMN_LAST_ROW_ID = "lastRowId";
+	static final String COLUMN_ENTITLED_COUNT = "entitledCount";
+
+	// 1 if product id is stored as BLOB + 2 if developer payload is stored as BLOB, see #createTransaction(Cursor)
+	static final String BLOB_FLAGS = "(typeof(" + COLUMN_PRODUCT_ID + ") = 'blob') + 2 * (typeof(" + COLUMN_DEVELOPER_PAYLOAD + ") = 'blob')";
 
 	static final String[] TABLE_TRANSACTIONS_COLUMNS = {
 			COLUMN_ID,
 			COLUMN_PRODUCT_ID,
 			COLUMN_STATE,
 			COLUMN_PURCHASE_TIME,
-			COLUMN_DEVELOPER_PAYLOAD
+			COLUMN_DEVELOPER_PAYLOAD,
+			COLUMN_PRODUCT_KEY,
+			BLOB_FLAGS
 	};
 
-	// NOTE: package protected for tests - should not be used directly
-	final SQLiteDatabase db;
+	// 1 if product has a purchase (raw or folded), see #isPurchased(String)
+	private static final String SQL_IS_PURCHASED = "SELECT COALESCE((SELECT " + COLUMN_PURCHASE_COUNT + " > 0 FROM " + TABLE_PURCHASE_COUNTS + " WHERE " + COLUMN_PRODUCT_KEY + " = ?), 0)";
+
+	// row of the product in the purchase counts table (product id is taken from the first purchase)
+	static final String SQL_ADD_PRODUCT_COUNT = "INSERT OR IGNORE INTO " + TABLE_PURCHASE_COUNTS + " (" +
+			COLUMN_PRODUCT_KEY + ", " + COLUMN_PRODUCT_ID + ", " + COLUMN_PURCHASE_COUNT + ") VALUES (?, ?, 0)";
+	static final String SQL_ADD_PURCHASES = "UPDATE " + TABLE_PURCHASE_COUNTS + " SET " + COLUMN_PURCHASE_COUNT + " = " + COLUMN_PURCHASE_COUNT + " + ? " +
+			"WHERE " + COLUMN_PRODUCT_KEY + " = ?";
+	static final String SQL_ADD_ENTITLED = "UPDATE " + TABLE_PURCHASE_COUNTS + " SET " + COLUMN_ENTITLED_COUNT + " = " + COLUMN_ENTITLED_COUNT + " + ? " +
+			"WHERE " + COLUMN_PRODUCT_KEY + " = ?";
+
+	// every compaction which folds transactions writes the aggregate row of the product, see #isCompacted()
+	private static final String SQL_IS_COMPACTED = "SELECT EXISTS (SELECT 1 FROM " + TABLE_AGGREGATES + ")";
+
+	// primary key lookup, see #countEntitled(String)
+	private static final String SQL_COUNT_ENTITLED = "SELECT COALESCE((SELECT " + COLUMN_ENTITLED_COUNT + " FROM " + TABLE_PURCHASE_COUNTS + " WHERE " + COLUMN_PRODUCT_KEY + " = ?), 0)";
+
+	// counts calculated from the stored transactions (raw and folded) and the order states,
+	// columns: product key, product id, number of purchases, number of entitled orders. Arguments: PURCHASED, PURCHASED
+	private static final String SQL_CALCULATED_PURCHASE_COUNTS = "SELECT " + COLUMN_PRODUCT_KEY + ", MAX(" + COLUMN_PRODUCT_ID + "), SUM(c), SUM(e) FROM (" +
+			"SELECT " + COLUMN_PRODUCT_KEY + ", MAX(" + COLUMN_PRODUCT_ID + ") AS " + COLUMN_PRODUCT_ID + ", COUNT(*) AS c, 0 AS e FROM " + TABLE_TRANSACTIONS +
+			" WHERE " + COLUMN_STATE + " = ? AND " + COLUMN_PRODUCT_KEY + " IS NOT NULL GROUP BY " + COLUMN_PRODUCT_KEY +
+			" UNION ALL " +
+			"SELECT " + COLUMN_PRODUCT_KEY + ", " + COLUMN_PRODUCT_ID + ", " + COLUMN_PURCHASE_COUNT + ", 0 FROM " + TABLE_AGGREGATES + " WHERE " + COLUMN_PURCHASE_COUNT + " > 0" +
+			" UNION ALL " +
+			"SELECT " + COLUMN_PRODUCT_KEY + ", NULL, 0, COUNT(*) FROM " + TABLE_ORDER_STATES +
+			" WHERE " + COLUMN_STATE + " = ? AND " + COLUMN_PRODUCT_KEY + " IS NOT NULL GROUP BY " + COLUMN_PRODUCT_KEY +
+			") GROUP BY " + COLUMN_PRODUCT_KEY;
 
 	// NOTE: package protected for tests - should not be used directly
 	final DatabaseHelper databaseHelper;
 
+	// database is opened on the background thread, see #awaitOpen()
+	@NotNull
+	private final FutureTask<SQLiteDatabase> opening;
+
+	@Nullable
+	private final OpenListener listener;
+
+	// guarded by this
+	@Nullable
+	private ScheduledExecutorService compactionExecutor;
+
+	// guarded by this
+	private boolean closed;
+
+	// statements of the write paths (used only by the writer, see StatementCache)
+	@NotNull
+	private final StatementCache statements = new StatementCache();
+
+	// counted down when rows of old table have been migrated, see #getMigratedDatabaseHelper()
+	@NotNull
+	private final CountDownLatch migrationLatch = new CountDownLatch(1);
+
 	private static volatile BillingDB instance;
 
-	private BillingDB(@NotNull Context context) {
-		databaseHelper = new DatabaseHelper(context);
-		db = databaseHelper.getWritableDatabase();
+	/**
+	 * Reports how long opening of the database takes (e.g. to the application's metrics).
+	 * Methods are called on the thread which opened the database or waited for it
+	 */
+	public static interface OpenListener {
+
+		/**
+		 * Called on the background thread when the database is opened (created/upgraded if needed) and configured
+		 *
+		 * @param millis time spent opening the database
+		 */
+		void onOpened(long millis);
+
+		/**
+		 * Called when the database was accessed before it was opened
+		 *
+		 * @param millis time the caller was blocked
+		 */
+		void onWaited(long millis);
 	}
 
+	private BillingDB(@NotNull Context context, @NotNull final StorageProfile profile, @Nullable final OpenListener listener) {
+		this.databaseHelper = new DatabaseHelper(context);
+		this.listener = listener;
+		this.opening = new FutureTask<SQLiteDatabase>(new Callable<SQLiteDatabase>() {
+			@Override
+			public SQLiteDatabase call() {
+				final long start = SystemClock.elapsedRealtime();
+				try {
+					final SQLiteDatabase db = databaseHelper.getWritableDatabase();
+					applyProfile(db, profile);
+					startMigration(db);
+					if (listener != null) {
+						listener.onOpened(SystemClock.elapsedRealtime() - start);
+					}
+					return db;
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Unable to open database", e);
+					throw e;
+				}
+			}
+		});
+
+		final Thread thread = new Thread(opening, "Billing database opening");
+		thread.start();
+	}
+
+	/**
+	 * Initializes database with {@link StorageProfile#PLATFORM_DEFAULT} profile => journal mode of the existing database
+	 * is not changed. Use {@link #init(Application, StorageProfile)} to switch to write-ahead logging
+	 *
+	 * @param application application
+	 */
 	public static void init(@NotNull Application application) {
-		instance = new BillingDB(application);
+		init(application, StorageProfile.PLATFORM_DEFAULT);
+	}
+
+	/**
+	 * @param application application
+	 * @param profile	 SQLite settings
+	 */
+	public static void init(@NotNull Application application, @NotNull StorageProfile profile) {
+		init(application, profile, null);
 	}
 
+	/**
+	 * Starts opening of the database on the background thread and returns immediately => can be called from
+	 * {@link Application#onCreate()}. Storage calls made before the database is opened wait for it.
+	 *
+	 * @param application application
+	 * @param profile	 SQLite settings
+	 * @param listener	listener to be notified about the open time (may be null)
+	 */
+	public static void init(@NotNull Application application, @NotNull StorageProfile profile, @Nullable OpenListener listener) {
+		final BillingDB db = new BillingDB(application, profile, listener);
+		synchronized (BillingDB.class) {
+			instance = db;
+		}
+	}
+
+	/**
+	 * Applies the settings of the profile. Journal mode is stored in the database file, other settings are applied
+	 * to the main connection only (readers in WAL mode use their own connections with default settings)
+	 */
+	static void applyProfile(@NotNull SQLiteDatabase db, @NotNull StorageProfile profile) {
+		final StorageProfile.JournalMode journalMode = profile.getJournalMode();
+		if (journalMode == StorageProfile.JournalMode.WAL) {
+			// readers use their own connections and are not blocked by the writer
+			if (!Compatibility.enableWriteAheadLogging(db)) {
+				Log.i(TAG, "Write-ahead logging is not available");
+			}
+		} else if (journalMode != null) {
+			pragma(db, "journal_mode = " + journalMode.name());
+		}
+
+		final StorageProfile.Synchronous synchronous = profile.getSynchronous();
+		if (synchronous != null) {
+			db.execSQL("PRAGMA synchronous = " + synchronous.ordinal());
+		}
+
+		if (profile.getCacheSizeKb() > 0) {
+			final long pages = profile.getCacheSizeKb() * 1024L / db.getPageSize();
+			db.execSQL("PRAGMA cache_size = " + Math.max(pages, 1));
+		}
+
+		if (profile.getMmapSize() > 0) {
+			// ignored by SQLite versions without memory-mapped I/O
+			pragma(db, "mmap_size = " + profile.getMmapSize());
+		}
+
+		Log.d(TAG, "Database opened with " + profile);
+	}
+
+	// pragmas which return the result must be executed as queries
+	private static void pragma(@NotNull SQLiteDatabase db, @NotNull String pragma) {
+		final Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+		try {
+			cursor.moveToFirst();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return database initialized by {@link #init(Application)}
+	 * @throws IllegalStateException if database was not initialized (or it was closed)
+	 */
 	@NotNull
 	public static BillingDB getInstance() {
-		return instance;
+		final BillingDB result = instance;
+		if (result == null) {
+			throw new IllegalStateException("BillingDB.init() must be called first");
+		}
+		return result;
+	}
+
+	/**
+	 * @return true if {@link #getInstance()} returns the database
+	 */
+	public static boolean isInitialized() {
+		return instance != null;
 	}
 
 	@NotNull
@@ -85,67 +330,592 @@ public class BillingDB {
 		return result;
 	}
 
-	public void close() {
-		// database should never be closed
-		//db.close();
-		//databaseHelper.close();
+	private void startMigration(@NotNull final SQLiteDatabase db) {
+		final boolean migrateV1 = tableExists(db, TABLE_TRANSACTIONS_V1);
+		final boolean migrateBlobs = tableExists(db, TABLE_BLOB_MIGRATION);
+		if (!migrateV1) {
+			// rows with TEXT values are readable => conversion to BLOBs doesn't wait for anything
+			migrationLatch.countDown();
+		}
+
+		if (migrateV1 || migrateBlobs) {
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					if (migrateV1) {
+						try {
+							migrateTransactionsV1(db);
+						} catch (RuntimeException e) {
+							// old table is kept => migration will continue on the next start
+							Log.e(TAG, "Unable to migrate transactions", e);
+							return;
+						} finally {
+							migrationLatch.countDown();
+						}
+					}
+
+					if (migrateBlobs) {
+						try {
+							migrateToBlobs(db);
+						} catch (RuntimeException e) {
+							// progress is kept => conversion will continue on the next start
+							Log.e(TAG, "Unable to convert transactions to BLOBs", e);
+						}
+					}
+				}
+			}, "Billing database migration");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Moves rows from the old table to the new one in chunks. Each chunk is moved in its own SQLite transaction => database is not locked for
+	 * the whole migration and interrupted migration can be continued from the same place
+	 *
+	 * @param db database
+	 */
+	static void migrateTransactionsV1(@NotNull SQLiteDatabase db) {
+		final String columns = COLUMN_ID + ", " + COLUMN_PRODUCT_ID + ", " + COLUMN_STATE + ", " + COLUMN_PURCHASE_TIME + ", " + COLUMN_DEVELOPER_PAYLOAD;
+
+		while (true) {
+			final Long lastRowId;
+			final Cursor cursor = db.rawQuery("SELECT MAX(rowid) FROM (SELECT rowid FROM " + TABLE_TRANSACTIONS_V1 + " ORDER BY rowid LIMIT " + MIGRATION_CHUNK_SIZE + ")", null);
+			try {
+				lastRowId = cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : null;
+			} finally {
+				cursor.close();
+			}
+
+			if (lastRowId == null) {
+				break;
+			}
+
+			Compatibility.beginTransactionNonExclusive(db);
+			try {
+				db.execSQL("INSERT OR IGNORE INTO " + TABLE_TRANSACTIONS + " (" + columns + ") SELECT " +
+						COLUMN_ID + ", " +
+						"CAST(" + COLUMN_PRODUCT_ID + " AS TEXT), " +
+						"CAST(" + COLUMN_STATE + " AS INTEGER), " +
+						"CAST(" + COLUMN_PURCHASE_TIME + " AS INTEGER), " +
+						"CAST(" + COLUMN_DEVELOPER_PAYLOAD + " AS TEXT) " +
+						"FROM " + TABLE_TRANSACTIONS_V1 + " WHERE rowid <= " + lastRowId);
+				// product keys are set later, see UpdateProductKeys
+				db.execSQL("INSERT OR IGNORE INTO " + TABLE_ORDER_STATES + " (" + COLUMN_ID + ", " + COLUMN_STATE + ", " + COLUMN_PURCHASE_TIME + ") SELECT " +
+						COLUMN_ID + ", " +
+						"CAST(" + COLUMN_STATE + " AS INTEGER), " +
+						"CAST(" + COLUMN_PURCHASE_TIME + " AS INTEGER) " +
+						"FROM " + TABLE_TRANSACTIONS_V1 + " WHERE rowid <= " + lastRowId + " AND " + COLUMN_ID + " IS NOT NULL");
+				db.execSQL("DELETE FROM " + TABLE_TRANSACTIONS_V1 + " WHERE rowid <= " + lastRowId);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+
+		db.execSQL("DROP TABLE " + TABLE_TRANSACTIONS_V1);
+	}
+
+	// args: product id read, product id to write, developer payload read, developer payload to write, row id
+	private static final String SQL_CONVERT_TO_BLOBS = "UPDATE " + TABLE_TRANSACTIONS + " SET " +
+			COLUMN_PRODUCT_ID + " = CASE WHEN " + COLUMN_PRODUCT_ID + " IS ? THEN ? ELSE " + COLUMN_PRODUCT_ID + " END, " +
+			COLUMN_DEVELOPER_PAYLOAD + " = CASE WHEN " + COLUMN_DEVELOPER_PAYLOAD + " IS ? THEN ? ELSE " + COLUMN_DEVELOPER_PAYLOAD + " END " +
+			"WHERE rowid = ?";
+
+	/**
+	 * Converts TEXT values of the obfuscated fields to BLOBs (see {@link #toStoredValue(String, boolean)}) in chunks. Each chunk is converted in
+	 * its own SQLite transaction together with the progress => interrupted conversion is continued from the same place.
+	 * Database is used while the conversion is running => value is replaced only if it hasn't changed since it was read
+	 * (new values are written as BLOBs anyway)
+	 *
+	 * @param db database
+	 */
+	static void migrateToBlobs(@NotNull SQLiteDatabase db) {
+		while (true) {
+			long lastRowId = 0;
+			final Cursor progress = db.rawQuery("SELECT " + COLUMN_LAST_ROW_ID + " FROM " + TABLE_BLOB_MIGRATION, null);
+			try {
+				if (progress.moveToFirst()) {
+					lastRowId = progress.getLong(0);
+				}
+			} finally {
+				progress.close();
+			}
+
+			// only TEXT values are read (NULL otherwise). Rows without product key are converted when the key is set, see UpdateProductKeys
+			final List<Object[]> rows = new ArrayList<Object[]>(MIGRATION_CHUNK_SIZE);
+			final Cursor cursor = db.rawQuery("SELECT rowid, " +
+					"CASE WHEN typeof(" + COLUMN_PRODUCT_ID + ") = 'text' THEN " + COLUMN_PRODUCT_ID + " END, " +
+					"CASE WHEN typeof(" + COLUMN_DEVELOPER_PAYLOAD + ") = 'text' THEN " + COLUMN_DEVELOPER_PAYLOAD + " END, " +
+					COLUMN_PRODUCT_KEY + ", typeof(" + COLUMN_PRODUCT_ID + ") = 'blob' " +
+					"FROM " + TABLE_TRANSACTIONS + " WHERE rowid > ? AND (typeof(" + COLUMN_PRODUCT_ID + ") = 'text' OR typeof(" + COLUMN_DEVELOPER_PAYLOAD + ") = 'text') " +
+					"ORDER BY rowid LIMIT " + MIGRATION_CHUNK_SIZE, new String[]{String.valueOf(lastRowId)});
+			try {
+				while (cursor.moveToNext()) {
+					final String productId = cursor.getString(1);
+					final String developerPayload = cursor.getString(2);
+					// BLOB is written only for obfuscated fields
+					final boolean obfuscated = cursor.getInt(4) != 0 || isObfuscated(cursor.getString(3), productId);
+					rows.add(new Object[]{productId, toStoredValue(productId, obfuscated), developerPayload, toStoredValue(developerPayload, obfuscated), cursor.getLong(0)});
+				}
+			} finally {
+				cursor.close();
+			}
+
+			if (rows.isEmpty()) {
+				break;
+			}
+
+			Compatibility.beginTransactionNonExclusive(db);
+			try {
+				for (Object[] row : rows) {
+					db.execSQL(SQL_CONVERT_TO_BLOBS, row);
+				}
+				db.execSQL("UPDATE " + TABLE_BLOB_MIGRATION + " SET " + COLUMN_LAST_ROW_ID + " = ?", new Object[]{rows.get(rows.size() - 1)[4]});
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+
+		// one row per product => aggregates and purchase counts are converted at once
+		Compatibility.beginTransactionNonExclusive(db);
+		try {
+			for (String table : new String[]{TABLE_AGGREGATES, TABLE_PURCHASE_COUNTS}) {
+				final Map<String, String> productIds = new HashMap<String, String>();
+				final Cursor cursor = db.rawQuery("SELECT " + COLUMN_PRODUCT_KEY + ", " + COLUMN_PRODUCT_ID + " FROM " + table +
+						" WHERE typeof(" + COLUMN_PRODUCT_ID + ") = 'text'", null);
+				try {
+					while (cursor.moveToNext()) {
+						productIds.put(cursor.getString(0), cursor.getString(1));
+					}
+				} finally {
+					cursor.close();
+				}
+
+				for (Map.Entry<String, String> entry : productIds.entrySet()) {
+					db.execSQL("UPDATE " + table + " SET " + COLUMN_PRODUCT_ID + " = ? WHERE " + COLUMN_PRODUCT_KEY + " = ? AND " + COLUMN_PRODUCT_ID + " IS ?",
+							new Object[]{toStoredValue(entry.getValue(), isObfuscated(entry.getKey(), entry.getValue())), entry.getKey(), entry.getValue()});
+				}
+			}
+			db.execSQL("DROP TABLE " + TABLE_BLOB_MIGRATION);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	private static boolean tableExists(@NotNull SQLiteDatabase db, @NotNull String table) {
+		final Cursor cursor = db.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?", new String[]{table});
+		try {
+			return cursor.moveToFirst();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return future which is done when the database is opened (or failed to open)
+	 */
+	@NotNull
+	public Future<?> getOpenFuture() {
+		return opening;
+	}
+
+	/**
+	 * Blocks until the database is opened. Wait time is reported to the listener only if the caller was actually blocked
+	 *
+	 * @return opened database
+	 */
+	@NotNull
+	SQLiteDatabase awaitOpen() {
+		if (!opening.isDone()) {
+			final long start = SystemClock.elapsedRealtime();
+			final SQLiteDatabase db = getOpened();
+			if (listener != null) {
+				listener.onWaited(SystemClock.elapsedRealtime() - start);
+			}
+			return db;
+		}
+		return getOpened();
+	}
+
+	@NotNull
+	private SQLiteDatabase getOpened() {
+		try {
+			return opening.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the database", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Unable to open database", e.getCause());
+		}
+	}
+
+	private void awaitMigration() {
+		try {
+			migrationLatch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Closes the database (database is normally used until the process dies, e.g. tests close it after each test).
+	 * Scheduled compaction is cancelled, cached statements are released and the connection is closed after the database has
+	 * been opened. Closed database can't be used anymore, {@link #init(Application)} must be called again
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		synchronized (BillingDB.class) {
+			if (instance == this) {
+				instance = null;
+			}
+		}
+		cancelCompaction();
+
+		final SQLiteDatabase db;
+		try {
+			db = getOpened();
+		} catch (IllegalStateException e) {
+			// database was not opened => nothing to close
+			return;
+		}
+		statements.close();
+		db.close();
+		databaseHelper.close();
+	}
+
+	/**
+	 * Folds old transactions of each product into the aggregate row as described in {@link CompactionPolicy} and returns
+	 * free pages to the file system. Number of purchases (and therefore {@link ITransactionStore#countPurchases(String)})
+	 * stays the same, folded transactions are not returned by the queries anymore.
+	 * NOTE: folded transactions can't be copied to another store => compacted store can't be migrated or exported
+	 * (see {@link #isCompacted()})
+	 *
+	 * @param policy compaction policy
+	 * @return number of folded transactions
+	 */
+	public int compact(@NotNull CompactionPolicy policy) {
+		final CompactTransactions compaction = new CompactTransactions(policy.getKeptTransactions());
+		AndroidDbUtils.doDbExec(this.getDatabaseHelper(), compaction);
+		Log.d(TAG, "Compaction folded " + compaction.getFolded() + " transactions");
+		if (compaction.getFolded() > 0) {
+			TransactionManager.onStoreChanged();
+		}
+
+		if (policy.getVacuumPages() > 0) {
+			// VACUUM can't be run inside SQLite transaction => database is used directly
+			vacuum(awaitOpen(), policy.getVacuumPages());
+		}
+
+		return compaction.getFolded();
+	}
+
+	/**
+	 * Runs {@link #compact(CompactionPolicy)} and {@link #checkPurchaseCounts()} periodically on the background thread
+	 * (first compaction is run after one interval). Previously scheduled compaction is cancelled
+	 *
+	 * @param policy compaction policy
+	 */
+	public synchronized void scheduleCompaction(@NotNull final CompactionPolicy policy) {
+		cancelCompaction();
+
+		compactionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@NotNull
+			@Override
+			public Thread newThread(@NotNull Runnable r) {
+				final Thread thread = new Thread(r, "Billing database compaction");
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact(policy);
+					checkPurchaseCounts();
+				} catch (RuntimeException e) {
+					// next compaction will try again
+					Log.e(TAG, "Unable to compact database", e);
+				}
+			}
+		}, policy.getIntervalMillis(), policy.getIntervalMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void cancelCompaction() {
+		if (compactionExecutor != null) {
+			compactionExecutor.shutdown();
+			compactionExecutor = null;
+		}
+	}
+
+	/**
+	 * Returns up to the specified number of free pages to the file system. Auto vacuum mode of the database is switched to
+	 * INCREMENTAL first if needed (it requires one full VACUUM)
+	 */
+	static void vacuum(@NotNull SQLiteDatabase db, int pages) {
+		final Cursor mode = db.rawQuery("PRAGMA auto_vacuum", null);
+		final boolean incremental;
+		try {
+			// 2 = INCREMENTAL
+			incremental = mode.moveToFirst() && mode.getInt(0) == 2;
+		} finally {
+			mode.close();
+		}
+
+		if (!incremental) {
+			db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+			db.execSQL("VACUUM");
+		}
+
+		final Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+		try {
+			// pages are freed while the statement is stepped
+			while (cursor.moveToNext()) {
+			}
+		} finally {
+			cursor.close();
+		}
 	}
 
 	public void insert(@NotNull Transaction transaction) {
-		AndroidDbUtils.doDbExec(this.getDatabaseHelper(), new InsertTransaction(transaction));
+		insertAll(Collections.singletonList(transaction));
+	}
+
+	/**
+	 * Inserts (or replaces) all specified transactions in one SQLite transaction. Rows which are the same as the
+	 * transactions are not rewritten
+	 *
+	 * @param transactions transactions to be stored
+	 * @return numbers of inserted, updated and unchanged transactions
+	 */
+	@NotNull
+	public InsertResult insertAll(@NotNull Collection<Transaction> transactions) {
+		if (transactions.isEmpty()) {
+			return InsertResult.EMPTY;
+		}
+
+		final InsertTransactions insert = new InsertTransactions(transactions, statements);
+		AndroidDbUtils.doDbExec(this.getDatabaseHelper(), insert);
+		return insert.getResult();
+	}
+
+	/**
+	 * @param productKey product key
+	 * @return number of transactions with state PURCHASED of the product (including the folded ones)
+	 */
+	public int countPurchases(@NotNull String productKey) {
+		return (int) queryForLong(CountPurchases.SQL, productKey);
+	}
+
+	/**
+	 * Same as {@link #countPurchases(String)} > 0
+	 *
+	 * @param productKey product key
+	 * @return true if product has at least one transaction with state PURCHASED
+	 */
+	public boolean isPurchased(@NotNull String productKey) {
+		return queryForLong(SQL_IS_PURCHASED, productKey) != 0;
+	}
+
+	/**
+	 * Unlike {@link #countPurchases(String)} only the latest state of each order is taken into account (by purchase time,
+	 * transaction older than the stored state of its order doesn't change it) => refunded and cancelled orders are not
+	 * counted. Transactions without order id are not counted
+	 *
+	 * @param productKey product key
+	 * @return number of orders of the product whose latest state is PURCHASED (including the folded ones)
+	 */
+	public int countEntitled(@NotNull String productKey) {
+		return (int) queryForLong(SQL_COUNT_ENTITLED, productKey);
+	}
+
+	/**
+	 * @param productKey product key
+	 * @return true if the latest state of at least one order of the product is PURCHASED, see {@link #countEntitled(String)}
+	 */
+	public boolean isEntitled(@NotNull String productKey) {
+		return countEntitled(productKey) > 0;
+	}
+
+	/**
+	 * @return true if some transactions were folded by {@link #compact(CompactionPolicy)}
+	 */
+	public boolean isCompacted() {
+		return queryForLong(SQL_IS_COMPACTED) != 0;
+	}
+
+	/**
+	 * Runs the query which returns one number. Readers don't share compiled statements (bindings of a shared statement
+	 * would have to be guarded => reads would be serialized): SQL is constant => it is compiled once per connection and
+	 * then taken from the connection's statement cache
+	 */
+	private long queryForLong(@NotNull String sql, @NotNull String... args) {
+		final Cursor cursor = awaitOpen().rawQuery(sql, args);
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Compares the purchase counts table with the counts calculated from the stored transactions and rebuilds the table
+	 * if they differ (e.g. if the database was changed by an older version of the library)
+	 *
+	 * @return number of products which had a wrong count (0 if table was consistent)
+	 */
+	public int checkPurchaseCounts() {
+		final CheckPurchaseCounts check = new CheckPurchaseCounts();
+		AndroidDbUtils.doDbExec(this.getDatabaseHelper(), check);
+		if (check.getInconsistent() > 0) {
+			Log.w(TAG, "Purchase counts of " + check.getInconsistent() + " products were rebuilt");
+		}
+		return check.getInconsistent();
+	}
+
+	/**
+	 * Closes cached statements, must be called before the database file is deleted
+	 */
+	void releaseStatements() {
+		statements.close();
+	}
+
+	/**
+	 * Stores notifications which wait for the manual confirmation
+	 *
+	 * @param notifications key: notification id, value: product key
+	 */
+	public void addPendingNotifications(@NotNull Map<String, String> notifications) {
+		if (!notifications.isEmpty()) {
+			AndroidDbUtils.doDbExec(this.getDatabaseHelper(), new AddPendingNotifications(notifications));
+		}
+	}
+
+	/**
+	 * @param productKey product key
+	 * @return ids of the notifications of the product which haven't been confirmed yet
+	 */
+	@NotNull
+	public List<String> getPendingNotifications(@NotNull String productKey) {
+		return AndroidDbUtils.doDbQuery(this.getDatabaseHelper(), new PendingNotifications(productKey));
+	}
+
+	/**
+	 * Removes confirmed notifications
+	 *
+	 * @param notificationIds ids of the confirmed notifications
+	 */
+	public void removePendingNotifications(@NotNull Collection<String> notificationIds) {
+		if (!notificationIds.isEmpty()) {
+			AndroidDbUtils.doDbExec(this.getDatabaseHelper(), new RemovePendingNotifications(notificationIds));
+		}
 	}
 
 	@NotNull
 	protected static Transaction createTransaction( @NotNull Cursor cursor) {
+		return createTransaction(cursor, AS_STORED);
+	}
+
+	@NotNull
+	private static Transaction createTransaction(@NotNull Cursor cursor, @NotNull ITransactionDecoder decoder) {
 		final Transaction purchase = new Transaction();
 
+		// see BLOB_FLAGS
+		final int blobs = cursor.getInt(6);
+
 		purchase.orderId = cursor.getString(0);
-		purchase.productId = cursor.getString(1);
+		purchase.productId = getStoredValue(cursor, 1, (blobs & 1) != 0, decoder);
 		purchase.purchaseState = PurchaseState.valueOf(cursor.getInt(2));
 		purchase.purchaseTime = cursor.getLong(3);
-		purchase.developerPayload = cursor.getString(4);
+		purchase.developerPayload = getStoredValue(cursor, 4, (blobs & 2) != 0, decoder);
+		purchase.productKey = cursor.getString(5);
 
 		return purchase;
 	}
 
 	static class CountPurchases implements DbQuery<Integer> {
 
+		// primary key lookup, see TABLE_PURCHASE_COUNTS
+		static final String SQL = "SELECT COALESCE((SELECT " + COLUMN_PURCHASE_COUNT + " FROM " + TABLE_PURCHASE_COUNTS + " WHERE " + COLUMN_PRODUCT_KEY + " = ?), 0)";
+
 		@NotNull
-		private final String productId;
+		private final String productKey;
 
-		public CountPurchases(@NotNull String productId) {
-			this.productId = productId;
+		public CountPurchases(@NotNull String productKey) {
+			this.productKey = productKey;
 		}
 
 		@NotNull
 		@Override
 		public Cursor createCursor(@NotNull SQLiteDatabase db) {
-			return db.query(TABLE_TRANSACTIONS, TABLE_TRANSACTIONS_COLUMNS, COLUMN_PRODUCT_ID + " = ? AND " + COLUMN_STATE + " = ?", new String[]{productId, String.valueOf(PurchaseState.PURCHASED.ordinal())}, null, null, null);
+			return db.rawQuery(SQL, new String[]{productKey});
 		}
 
 		@NotNull
 		@Override
 		public Integer retrieveData(@NotNull Cursor cursor) {
-			return cursor.getCount();
+			return cursor.moveToFirst() ? cursor.getInt(0) : 0;
 		}
 	}
 
-	static class TransactionsByProductId implements DbQuery<List<Transaction>> {
+	/**
+	 * Counts purchases (transactions with state PURCHASED) of all products in one query.
+	 * Result map contains only products with at least one purchase, key of the map is product id (as stored) of one of the product's transactions
+	 * (product id of the counts table is used only if all transactions of the product were folded)
+	 */
+	static class CountPurchasesByProduct implements DbQuery<Map<String, Integer>> {
+
+		@NotNull
+		@Override
+		public Cursor createCursor(@NotNull SQLiteDatabase db) {
+			return db.rawQuery("SELECT " + COLUMN_PRODUCT_ID + ", " + COLUMN_PURCHASE_COUNT + ", typeof(" + COLUMN_PRODUCT_ID + ") = 'blob' FROM (" +
+					"SELECT COALESCE((SELECT " + COLUMN_PRODUCT_ID + " FROM " + TABLE_TRANSACTIONS + " t WHERE t." + COLUMN_PRODUCT_KEY + " = c." + COLUMN_PRODUCT_KEY + " LIMIT 1), " +
+					"c." + COLUMN_PRODUCT_ID + ") AS " + COLUMN_PRODUCT_ID + ", " + COLUMN_PURCHASE_COUNT + " FROM " + TABLE_PURCHASE_COUNTS + " c" +
+					" WHERE " + COLUMN_PURCHASE_COUNT + " > 0)", null);
+		}
+
+		@NotNull
+		@Override
+		public Map<String, Integer> retrieveData(@NotNull Cursor cursor) {
+			final Map<String, Integer> result = new HashMap<String, Integer>(cursor.getCount());
+
+			while (cursor.moveToNext()) {
+				result.put(getStoredValue(cursor, 0, cursor.getInt(2) != 0), cursor.getInt(1));
+			}
+
+			return result;
+		}
+	}
+
+	static class TransactionsByProductKey implements DbQuery<List<Transaction>> {
+
+		// SQL is the same for every call => it is compiled only once by the statement cache of the connection
+		private static final String SQL_ALL = "SELECT " + COLUMN_ID + ", " + COLUMN_PRODUCT_ID + ", " + COLUMN_STATE + ", " +
+				COLUMN_PURCHASE_TIME + ", " + COLUMN_DEVELOPER_PAYLOAD + ", " + COLUMN_PRODUCT_KEY + ", " + BLOB_FLAGS + " FROM " + TABLE_TRANSACTIONS;
+		private static final String SQL_BY_PRODUCT_KEY = SQL_ALL + " WHERE " + COLUMN_PRODUCT_KEY + " = ?";
 
 		@Nullable
-		private final String productId;
+		private final String productKey;
 
-		public TransactionsByProductId(@Nullable String productId) {
-			this.productId = productId;
+		public TransactionsByProductKey(@Nullable String productKey) {
+			this.productKey = productKey;
 		}
 
 		@NotNull
 		@Override
 		public Cursor createCursor(@NotNull SQLiteDatabase db) {
-			if (productId != null) {
-				return db.query(TABLE_TRANSACTIONS, TABLE_TRANSACTIONS_COLUMNS, COLUMN_PRODUCT_ID + " = ?", new String[]{productId}, null, null, null);
+			if (productKey != null) {
+				return db.rawQuery(SQL_BY_PRODUCT_KEY, new String[]{productKey});
 			} else {
-				return db.query(TABLE_TRANSACTIONS, TABLE_TRANSACTIONS_COLUMNS, null, null, null, null, null);
+				return db.rawQuery(SQL_ALL, null);
 			}
 		}
 
@@ -156,7 +926,495 @@ public class BillingDB {
 		}
 	}
 
-	private class DatabaseHelper extends SQLiteOpenHelper {
+	/**
+	 * Returns one page of transactions, see {@link TransactionQuery}. All filters are applied in SQL, time range and keyset
+	 * conditions are written so that the range scan of the (productKey, purchaseTime, _id), (state, purchaseTime, _id)
+	 * or (purchaseTime, _id) index can be used
+	 */
+	static class TransactionsPage implements DbQuery<List<Transaction>> {
+
+		@NotNull
+		private final TransactionQuery query;
+
+		@NotNull
+		private final ITransactionDecoder decoder;
+
+		public TransactionsPage(@NotNull TransactionQuery query) {
+			this(query, AS_STORED);
+		}
+
+		public TransactionsPage(@NotNull TransactionQuery query, @NotNull ITransactionDecoder decoder) {
+			this.query = query;
+			this.decoder = decoder;
+		}
+
+		@NotNull
+		@Override
+		public Cursor createCursor(@NotNull SQLiteDatabase db) {
+			final StringBuilder selection = new StringBuilder();
+			final List<String> selectionArgs = new ArrayList<String>();
+
+			final String productKey = query.getProductKey();
+			if (productKey != null) {
+				selection.append(COLUMN_PRODUCT_KEY).append(" = ?");
+				selectionArgs.add(productKey);
+			}
+
+			final Set<PurchaseState> states = query.getStates();
+			if (states != null) {
+				and(selection).append(COLUMN_STATE).append(" IN (");
+				boolean first = true;
+				for (PurchaseState state : states) {
+					if (!first) {
+						selection.append(", ");
+					}
+					first = false;
+					selection.append("?");
+					selectionArgs.add(String.valueOf(state.ordinal()));
+				}
+				selection.append(")");
+			}
+
+			if (query.getFromTime() != Long.MIN_VALUE) {
+				and(selection).append(COLUMN_PURCHASE_TIME).append(" >= ?");
+				selectionArgs.add(String.valueOf(query.getFromTime()));
+			}
+
+			if (query.getToTime() != Long.MAX_VALUE) {
+				and(selection).append(COLUMN_PURCHASE_TIME).append(" < ?");
+				selectionArgs.add(String.valueOf(query.getToTime()));
+			}
+
+			if (query.hasAfter()) {
+				and(selection);
+				final String afterTime = String.valueOf(query.getAfterTime());
+				selection.append(COLUMN_PURCHASE_TIME).append(" >= ? AND (").append(COLUMN_PURCHASE_TIME).append(" > ? OR ").append(COLUMN_ID).append(" > ?)");
+				selectionArgs.add(afterTime);
+				selectionArgs.add(afterTime);
+				selectionArgs.add(query.getAfterOrderId());
+			}
+
+			return db.query(TABLE_TRANSACTIONS,
+					TABLE_TRANSACTIONS_COLUMNS,
+					selection.length() > 0 ? selection.toString() : null,
+					selectionArgs.toArray(new String[selectionArgs.size()]),
+					null,
+					null,
+					COLUMN_PURCHASE_TIME + ", " + COLUMN_ID,
+					String.valueOf(query.getLimit()));
+		}
+
+		@NotNull
+		private static StringBuilder and(@NotNull StringBuilder selection) {
+			if (selection.length() > 0) {
+				selection.append(" AND ");
+			}
+			return selection;
+		}
+
+		@NotNull
+		@Override
+		public List<Transaction> retrieveData(@NotNull Cursor cursor) {
+			final List<Transaction> result = new ArrayList<Transaction>();
+			while (cursor.moveToNext()) {
+				result.add(createTransaction(cursor, decoder));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Returns product ids (as stored) of the transactions stored before product keys were introduced
+	 * (key: row id, value: product id)
+	 */
+	static class ProductIdsWithoutKey implements DbQuery<Map<Long, String>> {
+
+		@NotNull
+		@Override
+		public Cursor createCursor(@NotNull SQLiteDatabase db) {
+			return db.rawQuery("SELECT rowid, " + COLUMN_PRODUCT_ID + ", typeof(" + COLUMN_PRODUCT_ID + ") = 'blob' FROM " + TABLE_TRANSACTIONS + " WHERE " + COLUMN_PRODUCT_KEY + " IS NULL", null);
+		}
+
+		@NotNull
+		@Override
+		public Map<Long, String> retrieveData(@NotNull Cursor cursor) {
+			final Map<Long, String> result = new HashMap<Long, String>(cursor.getCount());
+
+			while (cursor.moveToNext()) {
+				result.put(cursor.getLong(0), getStoredValue(cursor, 1, cursor.getInt(2) != 0));
+			}
+
+			return result;
+		}
+	}
+
+	static class UpdateProductKeys implements DbExec {
+
+		@NotNull
+		private final Map<Long, String> productKeys;
+
+		UpdateProductKeys(@NotNull Map<Long, String> productKeys) {
+			this.productKeys = productKeys;
+		}
+
+		@Override
+		public void exec(@NotNull SQLiteDatabase db) {
+			Compatibility.beginTransactionNonExclusive(db);
+			final SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE_TRANSACTIONS + " SET " + COLUMN_PRODUCT_KEY + " = ? WHERE rowid = ?");
+			try {
+				for (Map.Entry<Long, String> entry : productKeys.entrySet()) {
+					statement.clearBindings();
+					bindString(statement, 1, entry.getValue());
+					statement.bindLong(2, entry.getKey());
+					statement.execute();
+					convertToBlobs(db, entry.getKey(), entry.getValue());
+				}
+				db.execSQL("UPDATE " + TABLE_ORDER_STATES + " SET " + COLUMN_PRODUCT_KEY + " = " +
+						"(SELECT " + COLUMN_PRODUCT_KEY + " FROM " + TABLE_TRANSACTIONS + " WHERE " + TABLE_TRANSACTIONS + "." + COLUMN_ID + " = " + TABLE_ORDER_STATES + "." + COLUMN_ID + ") " +
+						"WHERE " + COLUMN_PRODUCT_KEY + " IS NULL");
+				// purchases without product key were not counted
+				rebuildPurchaseCounts(db);
+				db.setTransactionSuccessful();
+			} finally {
+				statement.close();
+				db.endTransaction();
+			}
+		}
+
+		// rows without product key are skipped by migrateToBlobs (it is not known if they are obfuscated)
+		private static void convertToBlobs(@NotNull SQLiteDatabase db, long rowId, @Nullable String productKey) {
+			final Object[] row;
+			final Cursor cursor = db.rawQuery("SELECT " +
+					"CASE WHEN typeof(" + COLUMN_PRODUCT_ID + ") = 'text' THEN " + COLUMN_PRODUCT_ID + " END, " +
+					"CASE WHEN typeof(" + COLUMN_DEVELOPER_PAYLOAD + ") = 'text' THEN " + COLUMN_DEVELOPER_PAYLOAD + " END " +
+					"FROM " + TABLE_TRANSACTIONS + " WHERE rowid = ?", new String[]{String.valueOf(rowId)});
+			try {
+				if (!cursor.moveToFirst() || !isObfuscated(productKey, cursor.getString(0))) {
+					return;
+				}
+				final String productId = cursor.getString(0);
+				final String developerPayload = cursor.getString(1);
+				row = new Object[]{productId, toStoredValue(productId, true), developerPayload, toStoredValue(developerPayload, true), rowId};
+			} finally {
+				cursor.close();
+			}
+			db.execSQL(SQL_CONVERT_TO_BLOBS, row);
+		}
+	}
+
+	static class AddPendingNotifications implements DbExec {
+
+		// key: notification id, value: product key
+		@NotNull
+		private final Map<String, String> notifications;
+
+		AddPendingNotifications(@NotNull Map<String, String> notifications) {
+			this.notifications = notifications;
+		}
+
+		@Override
+		public void exec(@NotNull SQLiteDatabase db) {
+			Compatibility.beginTransactionNonExclusive(db);
+			final SQLiteStatement statement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_PENDING_NOTIFICATIONS + "(" + COLUMN_NOTIFICATION_ID + ", " + COLUMN_PRODUCT_KEY + ") VALUES (?, ?)");
+			try {
+				for (Map.Entry<String, String> entry : notifications.entrySet()) {
+					statement.clearBindings();
+					bindString(statement, 1, entry.getKey());
+					bindString(statement, 2, entry.getValue());
+					statement.execute();
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				statement.close();
+				db.endTransaction();
+			}
+		}
+	}
+
+	static class PendingNotifications implements DbQuery<List<String>> {
+
+		@NotNull
+		private final String productKey;
+
+		PendingNotifications(@NotNull String productKey) {
+			this.productKey = productKey;
+		}
+
+		@NotNull
+		@Override
+		public Cursor createCursor(@NotNull SQLiteDatabase db) {
+			return db.rawQuery("SELECT " + COLUMN_NOTIFICATION_ID + " FROM " + TABLE_PENDING_NOTIFICATIONS + " WHERE " + COLUMN_PRODUCT_KEY + " = ?", new String[]{productKey});
+		}
+
+		@NotNull
+		@Override
+		public List<String> retrieveData(@NotNull Cursor cursor) {
+			final List<String> result = new ArrayList<String>(cursor.getCount());
+
+			while (cursor.moveToNext()) {
+				result.add(cursor.getString(0));
+			}
+
+			return result;
+		}
+	}
+
+	static class RemovePendingNotifications implements DbExec {
+
+		@NotNull
+		private final Collection<String> notificationIds;
+
+		RemovePendingNotifications(@NotNull Collection<String> notificationIds) {
+			this.notificationIds = notificationIds;
+		}
+
+		@Override
+		public void exec(@NotNull SQLiteDatabase db) {
+			Compatibility.beginTransactionNonExclusive(db);
+			final SQLiteStatement statement = db.compileStatement("DELETE FROM " + TABLE_PENDING_NOTIFICATIONS + " WHERE " + COLUMN_NOTIFICATION_ID + " = ?");
+			try {
+				for (String notificationId : notificationIds) {
+					statement.clearBindings();
+					bindString(statement, 1, notificationId);
+					statement.execute();
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				statement.close();
+				db.endTransaction();
+			}
+		}
+	}
+
+	/**
+	 * Folds all transactions of each product except the most recent ones (in the order of {@link TransactionQuery})
+	 * into the aggregate row of the product. Each product is folded in its own SQLite transaction
+	 */
+	static class CompactTransactions implements DbExec {
+
+		private final int keptTransactions;
+
+		private int folded;
+
+		CompactTransactions(int keptTransactions) {
+			this.keptTransactions = keptTransactions;
+		}
+
+		@Override
+		public void exec(@NotNull SQLiteDatabase db) {
+			final List<String> productKeys = new ArrayList<String>();
+			final Cursor cursor = db.rawQuery("SELECT " + COLUMN_PRODUCT_KEY + " FROM " + TABLE_TRANSACTIONS + " WHERE " + COLUMN_PRODUCT_KEY + " IS NOT NULL " +
+					"GROUP BY " + COLUMN_PRODUCT_KEY + " HAVING COUNT(*) > " + keptTransactions, null);
+			try {
+				while (cursor.moveToNext()) {
+					productKeys.add(cursor.getString(0));
+				}
+			} finally {
+				cursor.close();
+			}
+
+			for (String productKey : productKeys) {
+				Compatibility.beginTransactionNonExclusive(db);
+				try {
+					folded += fold(db, productKey);
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+		}
+
+		private int fold(@NotNull SQLiteDatabase db, @NotNull String productKey) {
+			// rows before the oldest kept row are folded
+			String where = COLUMN_PRODUCT_KEY + " = ?";
+			String[] args = new String[]{productKey};
+			if (keptTransactions > 0) {
+				final Cursor oldestKept = db.rawQuery("SELECT " + COLUMN_PURCHASE_TIME + ", " + COLUMN_ID + " FROM " + TABLE_TRANSACTIONS + " WHERE " + where +
+						" ORDER BY " + COLUMN_PURCHASE_TIME + " DESC, " + COLUMN_ID + " DESC LIMIT 1 OFFSET " + (keptTransactions - 1), args);
+				try {
+					if (!oldestKept.moveToFirst() || oldestKept.isNull(1)) {
+						return 0;
+					}
+					final String time = String.valueOf(oldestKept.getLong(0));
+					where += " AND (" + COLUMN_PURCHASE_TIME + " < ? OR (" + COLUMN_PURCHASE_TIME + " = ? AND " + COLUMN_ID + " < ?))";
+					args = new String[]{productKey, time, time, oldestKept.getString(1)};
+				} finally {
+					oldestKept.close();
+				}
+			}
+
+			final Aggregate aggregate;
+			final Cursor cursor = db.rawQuery("SELECT COUNT(*), SUM(" + COLUMN_STATE + " = " + PurchaseState.PURCHASED.ordinal() + "), " +
+					"MIN(" + COLUMN_PURCHASE_TIME + "), MAX(" + COLUMN_PURCHASE_TIME + "), MAX(" + COLUMN_PRODUCT_ID + "), typeof(MAX(" + COLUMN_PRODUCT_ID + ")) = 'blob' " +
+					"FROM " + TABLE_TRANSACTIONS + " WHERE " + where, args);
+			try {
+				if (!cursor.moveToFirst() || cursor.getInt(0) == 0) {
+					return 0;
+				}
+				aggregate = new Aggregate(getStoredValue(cursor, 4, cursor.getInt(5) != 0), cursor.getInt(0), cursor.getInt(1), cursor.getLong(2), cursor.getLong(3), latestState(db, where, args));
+			} finally {
+				cursor.close();
+			}
+
+			final Aggregate merged = aggregate.merge(loadAggregate(db, productKey));
+			db.execSQL("INSERT OR REPLACE INTO " + TABLE_AGGREGATES + " (" +
+					COLUMN_PRODUCT_KEY + ", " +
+					COLUMN_PRODUCT_ID + ", " +
+					COLUMN_TRANSACTION_COUNT + ", " +
+					COLUMN_PURCHASE_COUNT + ", " +
+					COLUMN_FIRST_PURCHASE_TIME + ", " +
+					COLUMN_LAST_PURCHASE_TIME + ", " +
+					COLUMN_STATE + ") VALUES (?, ?, ?, ?, ?, ?, ?)",
+					new Object[]{productKey, toStoredValue(merged.productId, !productKey.equals(merged.productId)), merged.transactions, merged.purchases, merged.firstPurchaseTime, merged.lastPurchaseTime, merged.state});
+			db.execSQL("INSERT OR REPLACE INTO " + TABLE_COMPACTED_ORDERS + " (" + COLUMN_ID + ", " + COLUMN_PRODUCT_KEY + ", " + COLUMN_STATE + ", " + COLUMN_PURCHASE_TIME + ") " +
+					"SELECT " + COLUMN_ID + ", " + COLUMN_PRODUCT_KEY + ", " + COLUMN_STATE + ", " + COLUMN_PURCHASE_TIME + " FROM " + TABLE_TRANSACTIONS +
+					" WHERE " + where + " AND " + COLUMN_ID + " IS NOT NULL", args);
+			db.execSQL("DELETE FROM " + TABLE_TRANSACTIONS + " WHERE " + where, args);
+
+			return aggregate.transactions;
+		}
+
+		private static int latestState(@NotNull SQLiteDatabase db, @NotNull String where, @NotNull String[] args) {
+			final Cursor cursor = db.rawQuery("SELECT " + COLUMN_STATE + " FROM " + TABLE_TRANSACTIONS + " WHERE " + where +
+					" ORDER BY " + COLUMN_PURCHASE_TIME + " DESC, " + COLUMN_ID + " DESC LIMIT 1", args);
+			try {
+				return cursor.moveToFirst() ? cursor.getInt(0) : PurchaseState.PURCHASED.ordinal();
+			} finally {
+				cursor.close();
+			}
+		}
+
+		@Nullable
+		private static Aggregate loadAggregate(@NotNull SQLiteDatabase db, @NotNull String productKey) {
+			final Cursor cursor = db.rawQuery("SELECT " +
+					COLUMN_PRODUCT_ID + ", " +
+					COLUMN_TRANSACTION_COUNT + ", " +
+					COLUMN_PURCHASE_COUNT + ", " +
+					COLUMN_FIRST_PURCHASE_TIME + ", " +
+					COLUMN_LAST_PURCHASE_TIME + ", " +
+					COLUMN_STATE + ", " +
+					"typeof(" + COLUMN_PRODUCT_ID + ") = 'blob' FROM " + TABLE_AGGREGATES + " WHERE " + COLUMN_PRODUCT_KEY + " = ?", new String[]{productKey});
+			try {
+				if (cursor.moveToFirst()) {
+					return new Aggregate(getStoredValue(cursor, 0, cursor.getInt(6) != 0), cursor.getInt(1), cursor.getInt(2), cursor.getLong(3), cursor.getLong(4), cursor.getInt(5));
+				} else {
+					return null;
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+
+		int getFolded() {
+			return folded;
+		}
+	}
+
+	/**
+	 * Compares the purchase counts table with the counts calculated from the stored transactions and the order states
+	 * and rebuilds it if any count differs. Check runs in one SQLite transaction => no writes happen in between
+	 */
+	static class CheckPurchaseCounts implements DbExec {
+
+		private int inconsistent;
+
+		@Override
+		public void exec(@NotNull SQLiteDatabase db) {
+			inconsistent = 0;
+
+			Compatibility.beginTransactionNonExclusive(db);
+			try {
+				// value: {purchases, entitled orders}
+				final Map<String, int[]> expected = new HashMap<String, int[]>();
+				final String purchased = String.valueOf(PurchaseState.PURCHASED.ordinal());
+				final Cursor calculated = db.rawQuery(SQL_CALCULATED_PURCHASE_COUNTS, new String[]{purchased, purchased});
+				try {
+					while (calculated.moveToNext()) {
+						expected.put(calculated.getString(0), new int[]{calculated.getInt(2), calculated.getInt(3)});
+					}
+				} finally {
+					calculated.close();
+				}
+
+				final Cursor cursor = db.rawQuery("SELECT " + COLUMN_PRODUCT_KEY + ", " + COLUMN_PURCHASE_COUNT + ", " + COLUMN_ENTITLED_COUNT + " FROM " + TABLE_PURCHASE_COUNTS, null);
+				try {
+					while (cursor.moveToNext()) {
+						final int[] counts = expected.remove(cursor.getString(0));
+						final int purchases = counts == null ? 0 : counts[0];
+						final int entitled = counts == null ? 0 : counts[1];
+						if (purchases != cursor.getInt(1) || entitled != cursor.getInt(2)) {
+							inconsistent++;
+						}
+					}
+				} finally {
+					cursor.close();
+				}
+				// products without row
+				inconsistent += expected.size();
+
+				if (inconsistent > 0) {
+					rebuildPurchaseCounts(db);
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+
+		int getInconsistent() {
+			return inconsistent;
+		}
+	}
+
+	/**
+	 * Recalculates all rows of the purchase counts table from the stored transactions (must be called inside SQLite transaction)
+	 *
+	 * @param db database
+	 */
+	static void rebuildPurchaseCounts(@NotNull SQLiteDatabase db) {
+		db.execSQL("DELETE FROM " + TABLE_PURCHASE_COUNTS);
+		db.execSQL("INSERT INTO " + TABLE_PURCHASE_COUNTS + " (" + COLUMN_PRODUCT_KEY + ", " + COLUMN_PRODUCT_ID + ", " + COLUMN_PURCHASE_COUNT + ", " + COLUMN_ENTITLED_COUNT + ") " +
+				SQL_CALCULATED_PURCHASE_COUNTS, new Object[]{PurchaseState.PURCHASED.ordinal(), PurchaseState.PURCHASED.ordinal()});
+	}
+
+	/**
+	 * Row of the aggregates table
+	 */
+	private static final class Aggregate {
+
+		@Nullable
+		private final String productId;
+		private final int transactions;
+		private final int purchases;
+		private final long firstPurchaseTime;
+		private final long lastPurchaseTime;
+		// state of the latest folded transaction
+		private final int state;
+
+		private Aggregate(@Nullable String productId, int transactions, int purchases, long firstPurchaseTime, long lastPurchaseTime, int state) {
+			this.productId = productId;
+			this.transactions = transactions;
+			this.purchases = purchases;
+			this.firstPurchaseTime = firstPurchaseTime;
+			this.lastPurchaseTime = lastPurchaseTime;
+			this.state = state;
+		}
+
+		@NotNull
+		private Aggregate merge(@Nullable Aggregate that) {
+			if (that == null) {
+				return this;
+			}
+			return new Aggregate(that.productId != null ? that.productId : productId,
+					transactions + that.transactions,
+					purchases + that.purchases,
+					Math.min(firstPurchaseTime, that.firstPurchaseTime),
+					Math.max(lastPurchaseTime, that.lastPurchaseTime),
+					lastPurchaseTime >= that.lastPurchaseTime ? state : that.state);
+		}
+	}
+
+	class DatabaseHelper extends SQLiteOpenHelper {
 
 		public DatabaseHelper(@NotNull Context context) {
 			super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -170,42 +1428,486 @@ public class BillingDB {
 		private void createTransactionsTable(@NotNull SQLiteDatabase db) {
 			db.execSQL("CREATE TABLE " + TABLE_TRANSACTIONS + "(" +
 					COLUMN_ID + " TEXT PRIMARY KEY, " +
-					COLUMN_PRODUCT_ID + " INTEGER, " +
-					COLUMN_STATE + " TEXT, " +
-					COLUMN_PURCHASE_TIME + " TEXT, " +
-					COLUMN_DEVELOPER_PAYLOAD + " INTEGER)");
+					COLUMN_PRODUCT_ID + " TEXT, " +
+					COLUMN_STATE + " INTEGER, " +
+					COLUMN_PURCHASE_TIME + " INTEGER, " +
+					COLUMN_DEVELOPER_PAYLOAD + " TEXT, " +
+					COLUMN_PRODUCT_KEY + " TEXT)");
+			createProductKeyIndex(db);
+			createPagingIndexes(db);
+			createStateIndex(db);
+			createCompactionTables(db);
+			createPendingNotificationsTable(db);
+			createPurchaseCountsTable(db);
+			createOrderStatesTable(db);
+		}
+
+		private void createPurchaseCountsTable(@NotNull SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + TABLE_PURCHASE_COUNTS + "(" +
+					COLUMN_PRODUCT_KEY + " TEXT PRIMARY KEY, " +
+					COLUMN_PRODUCT_ID + " TEXT, " +
+					COLUMN_PURCHASE_COUNT + " INTEGER NOT NULL, " +
+					COLUMN_ENTITLED_COUNT + " INTEGER NOT NULL DEFAULT 0)");
+		}
+
+		private void createOrderStatesTable(@NotNull SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + TABLE_ORDER_STATES + "(" +
+					COLUMN_ID + " TEXT PRIMARY KEY, " +
+					COLUMN_PRODUCT_KEY + " TEXT, " +
+					COLUMN_STATE + " INTEGER, " +
+					COLUMN_PURCHASE_TIME + " INTEGER)");
+		}
+
+		private void createBlobMigrationTable(@NotNull SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + TABLE_BLOB_MIGRATION + "(" + COLUMN_LAST_ROW_ID + " INTEGER)");
+			db.execSQL("INSERT INTO " + TABLE_BLOB_MIGRATION + " VALUES (0)");
+		}
+
+		private void createPendingNotificationsTable(@NotNull SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + TABLE_PENDING_NOTIFICATIONS + "(" +
+					COLUMN_NOTIFICATION_ID + " TEXT PRIMARY KEY, " +
+					COLUMN_PRODUCT_KEY + " TEXT NOT NULL)");
+			db.execSQL("CREATE INDEX " + INDEX_PENDING_NOTIFICATIONS_PRODUCT_KEY + " ON " + TABLE_PENDING_NOTIFICATIONS + "(" + COLUMN_PRODUCT_KEY + ")");
+		}
+
+		private void createCompactionTables(@NotNull SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + TABLE_AGGREGATES + "(" +
+					COLUMN_PRODUCT_KEY + " TEXT PRIMARY KEY, " +
+					COLUMN_PRODUCT_ID + " TEXT, " +
+					COLUMN_TRANSACTION_COUNT + " INTEGER, " +
+					COLUMN_PURCHASE_COUNT + " INTEGER, " +
+					COLUMN_FIRST_PURCHASE_TIME + " INTEGER, " +
+					COLUMN_LAST_PURCHASE_TIME + " INTEGER, " +
+					COLUMN_STATE + " INTEGER)");
+			db.execSQL("CREATE TABLE " + TABLE_COMPACTED_ORDERS + "(" +
+					COLUMN_ID + " TEXT PRIMARY KEY, " +
+					COLUMN_PRODUCT_KEY + " TEXT, " +
+					COLUMN_STATE + " INTEGER, " +
+					COLUMN_PURCHASE_TIME + " INTEGER)");
+		}
+
+		private void createStateIndex(@NotNull SQLiteDatabase db) {
+			db.execSQL("CREATE INDEX " + INDEX_STATE_PURCHASE_TIME_ID + " ON " + TABLE_TRANSACTIONS + "(" + COLUMN_STATE + ", " + COLUMN_PURCHASE_TIME + ", " + COLUMN_ID + ")");
+		}
+
+		private void createPagingIndexes(@NotNull SQLiteDatabase db) {
+			db.execSQL("CREATE INDEX " + INDEX_PURCHASE_TIME_ID + " ON " + TABLE_TRANSACTIONS + "(" + COLUMN_PURCHASE_TIME + ", " + COLUMN_ID + ")");
+			db.execSQL("CREATE INDEX " + INDEX_PRODUCT_KEY_PURCHASE_TIME_ID + " ON " + TABLE_TRANSACTIONS + "(" + COLUMN_PRODUCT_KEY + ", " + COLUMN_PURCHASE_TIME + ", " + COLUMN_ID + ")");
+		}
+
+		private void createProductKeyIndex(@NotNull SQLiteDatabase db) {
+			db.execSQL("CREATE INDEX " + INDEX_PRODUCT_KEY_STATE + " ON " + TABLE_TRANSACTIONS + "(" + COLUMN_PRODUCT_KEY + ", " + COLUMN_STATE + ")");
 		}
 
 		@Override
 		public void onUpgrade(@NotNull SQLiteDatabase db, int oldVersion, int newVersion) {
+			if (oldVersion < 2) {
+				// version 1 had wrong column types and no indexes: table is recreated and the rows are moved after the database is opened,
+				// see BillingDB#migrateTransactionsV1
+				db.execSQL("ALTER TABLE " + TABLE_TRANSACTIONS + " RENAME TO " + TABLE_TRANSACTIONS_V1);
+				createTransactionsTable(db);
+			} else {
+				if (oldVersion < 3) {
+					// product keys of existing rows can't be calculated here (key is not available) => they are set later,
+					// see net.robotmedia.billing.BillingController#updateProductKeys
+					db.execSQL("ALTER TABLE " + TABLE_TRANSACTIONS + " ADD COLUMN " + COLUMN_PRODUCT_KEY + " TEXT");
+					db.execSQL("DROP INDEX IF EXISTS " + INDEX_PRODUCT_ID_STATE);
+					createProductKeyIndex(db);
+				}
+				if (oldVersion < 4) {
+					db.execSQL("DROP INDEX IF EXISTS " + INDEX_PURCHASE_TIME);
+					createPagingIndexes(db);
+				}
+				if (oldVersion < 5) {
+					createStateIndex(db);
+				}
+				if (oldVersion < 6) {
+					createCompactionTables(db);
+				}
+				if (oldVersion < 7) {
+					createPendingNotificationsTable(db);
+				}
+				if (oldVersion < 9) {
+					createPurchaseCountsTable(db);
+				} else if (oldVersion < 10) {
+					db.execSQL("ALTER TABLE " + TABLE_PURCHASE_COUNTS + " ADD COLUMN " + COLUMN_ENTITLED_COUNT + " INTEGER NOT NULL DEFAULT 0");
+				}
+				if (oldVersion < 10) {
+					createOrderStatesTable(db);
+					// stored rows and folded orders are disjoint
+					final String columns = COLUMN_ID + ", " + COLUMN_PRODUCT_KEY + ", " + COLUMN_STATE + ", " + COLUMN_PURCHASE_TIME;
+					db.execSQL("INSERT OR REPLACE INTO " + TABLE_ORDER_STATES + " (" + columns + ") SELECT " + columns + " FROM " + TABLE_COMPACTED_ORDERS);
+					db.execSQL("INSERT OR REPLACE INTO " + TABLE_ORDER_STATES + " (" + columns + ") SELECT " + columns + " FROM " + TABLE_TRANSACTIONS +
+							" WHERE " + COLUMN_ID + " IS NOT NULL");
+					rebuildPurchaseCounts(db);
+				}
+			}
+			if (oldVersion < 8) {
+				// obfuscated fields were stored as TEXT: rows are converted after the database is opened, see BillingDB#migrateToBlobs
+				createBlobMigrationTable(db);
+			}
 		}
 	}
 
+	/**
+	 * NOTE: blocks until the database is opened. Rows of the first database version might still be migrated on the background
+	 * thread: they have no product key (see UpdateProductKeys) => queries by product key, counts and writes don't need them,
+	 * writes win over the old rows of the same orders. Queries which must see all rows use {@link #getMigratedDatabaseHelper()}
+	 *
+	 * @return database helper
+	 */
 	@NotNull
 	public DatabaseHelper getDatabaseHelper() {
+		awaitOpen();
 		return databaseHelper;
 	}
 
-	static class InsertTransaction implements DbExec {
+	/**
+	 * NOTE: blocks until the database is opened and the rows of the first database version have been migrated
+	 *
+	 * @return database helper
+	 */
+	@NotNull
+	DatabaseHelper getMigratedDatabaseHelper() {
+		awaitOpen();
+		awaitMigration();
+		return databaseHelper;
+	}
+
+	/**
+	 * Inserts or replaces transactions in one SQLite transaction. Each transaction is first compared with the stored row
+	 * (looked up by primary key) and rows which wouldn't change are not rewritten => neither the row nor the indexes
+	 * are touched when e.g. all transactions are restored again. Purchase counts of the products are updated in the same
+	 * SQLite transaction
+	 */
+	static class InsertTransactions implements DbExec {
+
+		// -1: no such row, 1: row is the same, 0: row differs (see Transaction#isSameAsStored)
+		private static final String SQL_COMPARE = "SELECT COALESCE((SELECT " +
+				COLUMN_STATE + " IS ? AND " +
+				COLUMN_PURCHASE_TIME + " IS ? AND " +
+				COLUMN_DEVELOPER_PAYLOAD + " IS ? AND " +
+				COLUMN_PRODUCT_KEY + " IS ? FROM " + TABLE_TRANSACTIONS + " WHERE " + COLUMN_ID + " = ?), -1)";
+
+		// purchase of the stored row is removed from the counts before the row is replaced
+		private static final String SQL_UNCOUNT = "UPDATE " + TABLE_PURCHASE_COUNTS + " SET " + COLUMN_PURCHASE_COUNT + " = " + COLUMN_PURCHASE_COUNT + " - 1 " +
+				"WHERE " + COLUMN_PRODUCT_KEY + " = (SELECT " + COLUMN_PRODUCT_KEY + " FROM " + TABLE_TRANSACTIONS + " WHERE " + COLUMN_ID + " = ? AND " + COLUMN_STATE + " = ?)";
+
+		// 1 if stored state of the order is newer than the transaction
+		private static final String SQL_IS_OLDER = "SELECT COALESCE((SELECT " + COLUMN_PURCHASE_TIME + " > ? FROM " + TABLE_ORDER_STATES + " WHERE " + COLUMN_ID + " = ?), 0)";
+
+		// entitlement of the stored state of the order is removed from the counts before the state is replaced
+		private static final String SQL_UNCOUNT_ENTITLED = "UPDATE " + TABLE_PURCHASE_COUNTS + " SET " + COLUMN_ENTITLED_COUNT + " = " + COLUMN_ENTITLED_COUNT + " - 1 " +
+				"WHERE " + COLUMN_PRODUCT_KEY + " = (SELECT " + COLUMN_PRODUCT_KEY + " FROM " + TABLE_ORDER_STATES + " WHERE " + COLUMN_ID + " = ? AND " + COLUMN_STATE + " = ?)";
+
+		private static final String SQL_ORDER_STATE = "INSERT OR REPLACE INTO " + TABLE_ORDER_STATES + " (" +
+				COLUMN_ID + ", " +
+				COLUMN_PRODUCT_KEY + ", " +
+				COLUMN_STATE + ", " +
+				COLUMN_PURCHASE_TIME + ") VALUES (?, ?, ?, ?)";
+
+		// -1: order was not folded, otherwise state of the folded transaction
+		private static final String SQL_COMPACTED = "SELECT COALESCE((SELECT " + COLUMN_STATE + " FROM " + TABLE_COMPACTED_ORDERS + " WHERE " + COLUMN_ID + " = ?), -1)";
+
+		private static final String SQL = "INSERT OR REPLACE INTO " + TABLE_TRANSACTIONS + " (" +
+				COLUMN_ID + ", " +
+				COLUMN_PRODUCT_ID + ", " +
+				COLUMN_STATE + ", " +
+				COLUMN_PURCHASE_TIME + ", " +
+				COLUMN_DEVELOPER_PAYLOAD + ", " +
+				COLUMN_PRODUCT_KEY + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+		@NotNull
+		private final Collection<Transaction> transactions;
+
+		@NotNull
+		private final StatementCache statements;
 
 		@NotNull
-		private final Transaction transaction;
+		private InsertResult result = InsertResult.EMPTY;
 
-		InsertTransaction(@NotNull Transaction transaction) {
-			this.transaction = transaction;
+		InsertTransactions(@NotNull Collection<Transaction> transactions, @NotNull StatementCache statements) {
+			this.transactions = transactions;
+			this.statements = statements;
 		}
 
 		@Override
 		public void exec(@NotNull SQLiteDatabase db) {
-			final ContentValues values = new ContentValues();
+			int inserted = 0;
+			int updated = 0;
+			int unchanged = 0;
+
+			// NOTE: transactions may be nested => safe even if caller has already started one
+			Compatibility.beginTransactionNonExclusive(db);
+			final SQLiteStatement compare = statements.get(db, SQL_COMPARE);
+			final SQLiteStatement compacted = statements.get(db, SQL_COMPACTED);
+			final SQLiteStatement statement = statements.get(db, SQL);
+			final SQLiteStatement uncount = statements.get(db, SQL_UNCOUNT);
+			final SQLiteStatement addPurchases = statements.get(db, SQL_ADD_PURCHASES);
+			try {
+				for (Transaction transaction : transactions) {
+					final long stored;
+					synchronized (compare) {
+						compare.clearBindings();
+						compare.bindLong(1, transaction.purchaseState.ordinal());
+						compare.bindLong(2, transaction.purchaseTime);
+						bindStoredValue(compare, 3, transaction.developerPayload, isObfuscated(transaction));
+						bindString(compare, 4, transaction.productKey);
+						bindString(compare, 5, transaction.orderId);
+						stored = compare.simpleQueryForLong();
+					}
+
+					if (stored == 1) {
+						unchanged++;
+						continue;
+					} else if (stored == 0) {
+						updated++;
+						synchronized (uncount) {
+							uncount.clearBindings();
+							uncount.bindString(1, transaction.orderId);
+							uncount.bindLong(2, PurchaseState.PURCHASED.ordinal());
+							uncount.execute();
+						}
+					} else if (transaction.orderId != null) {
+						final long foldedState;
+						synchronized (compacted) {
+							compacted.clearBindings();
+							compacted.bindString(1, transaction.orderId);
+							foldedState = compacted.simpleQueryForLong();
+						}
+						if (foldedState < 0) {
+							inserted++;
+						} else {
+							// folded order is never stored as a new row (it would be counted twice)
+							if (foldedState == transaction.purchaseState.ordinal()) {
+								unchanged++;
+							} else {
+								updateFolded(db, transaction, (int) foldedState);
+								updateOrderState(db, transaction);
+								updated++;
+							}
+							continue;
+						}
+					} else {
+						inserted++;
+					}
+
+					if (transaction.orderId != null) {
+						updateOrderState(db, transaction);
+					}
+
+					synchronized (statement) {
+						statement.clearBindings();
+						bindString(statement, 1, transaction.orderId);
+						bindStoredValue(statement, 2, transaction.productId, isObfuscated(transaction));
+						statement.bindLong(3, transaction.purchaseState.ordinal());
+						statement.bindLong(4, transaction.purchaseTime);
+						bindStoredValue(statement, 5, transaction.developerPayload, isObfuscated(transaction));
+						bindString(statement, 6, transaction.productKey);
+						statement.executeInsert();
+					}
+
+					// transactions without product key are not counted (as before product keys were set), see UpdateProductKeys
+					if (transaction.productKey != null && transaction.purchaseState == PurchaseState.PURCHASED) {
+						addProductCount(db, transaction);
+						synchronized (addPurchases) {
+							addPurchases.clearBindings();
+							addPurchases.bindLong(1, 1);
+							addPurchases.bindString(2, transaction.productKey);
+							addPurchases.execute();
+						}
+					}
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				// statements are cached and stay open
+				db.endTransaction();
+			}
+
+			result = new InsertResult(inserted, updated, unchanged);
+		}
+
+		/**
+		 * Replaces the stored state of the order unless the transaction is older and updates the entitled counts of the products
+		 */
+		private void updateOrderState(@NotNull SQLiteDatabase db, @NotNull Transaction transaction) {
+			final SQLiteStatement isOlder = statements.get(db, SQL_IS_OLDER);
+			synchronized (isOlder) {
+				isOlder.clearBindings();
+				isOlder.bindLong(1, transaction.purchaseTime);
+				isOlder.bindString(2, transaction.orderId);
+				if (isOlder.simpleQueryForLong() != 0) {
+					return;
+				}
+			}
+
+			final SQLiteStatement uncount = statements.get(db, SQL_UNCOUNT_ENTITLED);
+			synchronized (uncount) {
+				uncount.clearBindings();
+				uncount.bindString(1, transaction.orderId);
+				uncount.bindLong(2, PurchaseState.PURCHASED.ordinal());
+				uncount.execute();
+			}
+
+			final SQLiteStatement state = statements.get(db, SQL_ORDER_STATE);
+			synchronized (state) {
+				state.clearBindings();
+				state.bindString(1, transaction.orderId);
+				bindString(state, 2, transaction.productKey);
+				state.bindLong(3, transaction.purchaseState.ordinal());
+				state.bindLong(4, transaction.purchaseTime);
+				state.executeInsert();
+			}
+
+			if (transaction.productKey != null && transaction.purchaseState == PurchaseState.PURCHASED) {
+				addProductCount(db, transaction);
+				final SQLiteStatement addEntitled = statements.get(db, SQL_ADD_ENTITLED);
+				synchronized (addEntitled) {
+					addEntitled.clearBindings();
+					addEntitled.bindLong(1, 1);
+					addEntitled.bindString(2, transaction.productKey);
+					addEntitled.execute();
+				}
+			}
+		}
+
+		// row of the product in the purchase counts table
+		private void addProductCount(@NotNull SQLiteDatabase db, @NotNull Transaction transaction) {
+			final SQLiteStatement addProduct = statements.get(db, SQL_ADD_PRODUCT_COUNT);
+			synchronized (addProduct) {
+				addProduct.clearBindings();
+				addProduct.bindString(1, transaction.productKey);
+				bindStoredValue(addProduct, 2, transaction.productId, isObfuscated(transaction));
+				addProduct.execute();
+			}
+		}
+
+		/**
+		 * Updates the state of the folded order and the purchase count of its aggregate
+		 */
+		private static void updateFolded(@NotNull SQLiteDatabase db, @NotNull Transaction transaction, int foldedState) {
+			final int purchased = PurchaseState.PURCHASED.ordinal();
+			final int delta = (transaction.purchaseState.ordinal() == purchased ? 1 : 0) - (foldedState == purchased ? 1 : 0);
+
+			db.execSQL("UPDATE " + TABLE_AGGREGATES + " SET " +
+					COLUMN_PURCHASE_COUNT + " = " + COLUMN_PURCHASE_COUNT + " + ?, " +
+					COLUMN_STATE + " = CASE WHEN " + COLUMN_LAST_PURCHASE_TIME + " = ? THEN ? ELSE " + COLUMN_STATE + " END " +
+					"WHERE " + COLUMN_PRODUCT_KEY + " = (SELECT " + COLUMN_PRODUCT_KEY + " FROM " + TABLE_COMPACTED_ORDERS + " WHERE " + COLUMN_ID + " = ?)",
+					new Object[]{delta, transaction.purchaseTime, transaction.purchaseState.ordinal(), transaction.orderId});
+			if (delta != 0) {
+				final String productKey = "(SELECT " + COLUMN_PRODUCT_KEY + " FROM " + TABLE_COMPACTED_ORDERS + " WHERE " + COLUMN_ID + " = ?)";
+				db.execSQL("INSERT OR IGNORE INTO " + TABLE_PURCHASE_COUNTS + " (" + COLUMN_PRODUCT_KEY + ", " + COLUMN_PRODUCT_ID + ", " + COLUMN_PURCHASE_COUNT + ") " +
+						"SELECT " + COLUMN_PRODUCT_KEY + ", " + COLUMN_PRODUCT_ID + ", 0 FROM " + TABLE_AGGREGATES + " WHERE " + COLUMN_PRODUCT_KEY + " = " + productKey,
+						new Object[]{transaction.orderId});
+				db.execSQL("UPDATE " + TABLE_PURCHASE_COUNTS + " SET " + COLUMN_PURCHASE_COUNT + " = " + COLUMN_PURCHASE_COUNT + " + ? WHERE " + COLUMN_PRODUCT_KEY + " = " + productKey,
+						new Object[]{delta, transaction.orderId});
+			}
+			db.execSQL("UPDATE " + TABLE_COMPACTED_ORDERS + " SET " + COLUMN_STATE + " = ? WHERE " + COLUMN_ID + " = ?",
+					new Object[]{transaction.purchaseState.ordinal(), transaction.orderId});
+		}
+
+		/**
+		 * @return result of the last {@link #exec(SQLiteDatabase)}
+		 */
+		@NotNull
+		InsertResult getResult() {
+			return result;
+		}
+	}
+
+	static void bindString(@NotNull SQLiteStatement statement, int index, @Nullable String value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
+		}
+	}
+
+	/**
+	 * Product key is the hash of the product id only if transactions are obfuscated (without salt product key is the
+	 * product id itself) => product id and developer payload of the transaction are obfuscated iff they differ
+	 *
+	 * @param transaction transaction in the stored form
+	 * @return true if product id and developer payload of the transaction are obfuscated
+	 */
+	static boolean isObfuscated(@NotNull Transaction transaction) {
+		return isObfuscated(transaction.productKey, transaction.productId);
+	}
+
+	static boolean isObfuscated(@Nullable String productKey, @Nullable String productId) {
+		return productKey != null && !productKey.equals(productId);
+	}
+
+	/**
+	 * Obfuscated values are Base64 strings => they are stored as BLOBs with the decoded bytes (3/4 of the size, bytes
+	 * are decrypted directly on read, see {@link TransactionsPage}). Other values (i.e. fields written without salt)
+	 * are stored as TEXT whatever they look like
+	 *
+	 * @param value      value of product id or developer payload
+	 * @param obfuscated true if value is obfuscated, see {@link #isObfuscated(Transaction)}
+	 * @return byte[] if value is obfuscated, value itself otherwise
+	 */
+	@Nullable
+	static Object toStoredValue(@Nullable String value, boolean obfuscated) {
+		if (value == null || !obfuscated) {
+			return value;
+		}
+		try {
+			final byte[] bytes = Base64.decode(value);
+			// only values which are restored exactly are stored as bytes (corrupted value is kept as it is)
+			if (Base64.encode(bytes).equals(value)) {
+				return bytes;
+			}
+		} catch (Base64DecoderException e) {
+			// corrupted value, it can't be decrypted anyway
+		}
+		return value;
+	}
 
-			values.put(COLUMN_ID, transaction.orderId);
-			values.put(COLUMN_PRODUCT_ID, transaction.productId);
-			values.put(COLUMN_STATE, transaction.purchaseState.ordinal());
-			values.put(COLUMN_PURCHASE_TIME, transaction.purchaseTime);
-			values.put(COLUMN_DEVELOPER_PAYLOAD, transaction.developerPayload);
+	static void bindStoredValue(@NotNull SQLiteStatement statement, int index, @Nullable String value, boolean obfuscated) {
+		final Object stored = toStoredValue(value, obfuscated);
+		if (stored instanceof byte[]) {
+			statement.bindBlob(index, (byte[]) stored);
+		} else {
+			bindString(statement, index, value);
+		}
+	}
+
+	// returns values as written to toStoredValue(String, boolean)
+	static final ITransactionDecoder AS_STORED = new ITransactionDecoder() {
+		@Nullable
+		@Override
+		public String decode(@Nullable String stored) {
+			return stored;
+		}
+
+		@NotNull
+		@Override
+		public String decode(@NotNull byte[] stored) {
+			return Base64.encode(stored);
+		}
+	};
+
+	/**
+	 * @param cursor cursor
+	 * @param column column of the obfuscated field
+	 * @param blob   true if value is stored as BLOB (rows not yet converted by {@link #migrateToBlobs(SQLiteDatabase)} contain TEXT)
+	 * @return value as written to {@link #toStoredValue(String, boolean)}
+	 */
+	@Nullable
+	static String getStoredValue(@NotNull Cursor cursor, int column, boolean blob) {
+		return getStoredValue(cursor, column, blob, AS_STORED);
+	}
 
-			db.replace(TABLE_TRANSACTIONS, null /* nullColumnHack */, values);
+	@Nullable
+	private static String getStoredValue(@NotNull Cursor cursor, int column, boolean blob, @NotNull ITransactionDecoder decoder) {
+		if (cursor.isNull(column)) {
+			return null;
+		} else if (blob) {
+			// bytes are passed to the decoder as they are (no Base64 round trip)
+			return decoder.decode(cursor.getBlob(column));
+		} else {
+			return decoder.decode(cursor.getString(column));
 		}
 	}
 }
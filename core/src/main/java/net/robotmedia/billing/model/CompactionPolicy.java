@@ -0,0 +1,78 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+/**
+ * Retention policy for the purchase history of {@link BillingDB}, see {@link BillingDB#compact(CompactionPolicy)}.
+ * Only the most recent transactions of each product are kept as they are, older transactions are folded into
+ * one aggregate row per product (number of transactions and purchases, first and last purchase time, latest state) =>
+ * purchases are still counted but folded transactions are no longer returned by the queries.
+ * Managed items have at most one transaction per product and are never folded if at least one raw row is kept.
+ */
+public final class CompactionPolicy {
+
+	/**
+	 * Keeps 100 transactions per product, compacts once a day
+	 */
+	public static final CompactionPolicy DEFAULT = new CompactionPolicy(100, 24L * 60 * 60 * 1000, 256);
+
+	private final int keptTransactions;
+
+	private final long intervalMillis;
+
+	private final int vacuumPages;
+
+	/**
+	 * @param keptTransactions number of the most recent transactions of each product which are not folded
+	 * @param intervalMillis   interval between scheduled compactions, see {@link BillingDB#scheduleCompaction(CompactionPolicy)}
+	 * @param vacuumPages	  max number of free pages returned to the file system after each compaction (0 to skip vacuum)
+	 */
+	public CompactionPolicy(int keptTransactions, long intervalMillis, int vacuumPages) {
+		if (keptTransactions < 0) {
+			throw new IllegalArgumentException("Number of kept transactions must not be negative: " + keptTransactions);
+		}
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException("Interval must be positive: " + intervalMillis);
+		}
+		if (vacuumPages < 0) {
+			throw new IllegalArgumentException("Number of vacuumed pages must not be negative: " + vacuumPages);
+		}
+		this.keptTransactions = keptTransactions;
+		this.intervalMillis = intervalMillis;
+		this.vacuumPages = vacuumPages;
+	}
+
+	public int getKeptTransactions() {
+		return keptTransactions;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	public int getVacuumPages() {
+		return vacuumPages;
+	}
+
+	@Override
+	public String toString() {
+		return "CompactionPolicy{" +
+				"keptTransactions=" + keptTransactions +
+				", intervalMillis=" + intervalMillis +
+				", vacuumPages=" + vacuumPages +
+				'}';
+	}
+}
@@ -0,0 +1,496 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.content.Context;
+import android.util.Log;
+import net.robotmedia.billing.utils.BlockEncryptor;
+import net.robotmedia.billing.utils.Security;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transaction store which encrypts the whole file in big blocks (see {@link BlockEncryptor}) instead of obfuscating
+ * each field of each transaction => transactions must be stored unobfuscated (product key = product id).
+ * Store is decrypted once when opened and all reads are answered from memory.
+ *
+ * File format: header (magic + version + key check) followed by blocks: [int block length][int inverted block length][encrypted block].
+ * Decrypted block: [byte flags][records], record: [int length][payload], payload as in {@link JournalTransactionStore}.
+ * One {@link #insertAll(Collection)} writes one or more blocks and only the last one is marked with {@link #FLAG_LAST} =>
+ * partially written batch (e.g. after process was killed during write) is truncated when the store is opened.
+ * Only the end of the file can be torn => block length which doesn't match its inverted copy or a block which can't be
+ * decrypted before the last block means that the store was modified and it is not opened.
+ *
+ * NOTE: every write creates at least one block => many small writes should be batched (see {@link TransactionWriteQueue})
+ * or the store should be {@link #compact() compacted} from time to time
+ */
+public class EncryptedTransactionStore implements ITransactionStore {
+
+	private static final String TAG = EncryptedTransactionStore.class.getSimpleName();
+
+	public static final String FILE_NAME = "billing.store";
+
+	private static final int MAGIC = 0x42454e43;
+	// version 1 (never released) had no inverted block length
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 8 + BlockEncryptor.MAC_SIZE;
+
+	// length + inverted length
+	private static final int BLOCK_HEADER_SIZE = 8;
+
+	// max size of decrypted block (block may be bigger only if it contains one big record)
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	// blocks bigger than this are treated as corrupted
+	private static final int MAX_BLOCK_SIZE = 16 * BLOCK_SIZE;
+
+	private static final byte FLAG_LAST = 1;
+
+	@NotNull
+	private final File file;
+
+	@NotNull
+	private final BlockEncryptor encryptor;
+
+	// file is reopened after compaction, guarded by this
+	@NotNull
+	private RandomAccessFile randomAccessFile;
+
+	@NotNull
+	private FileChannel channel;
+
+	// decrypted transactions
+	@NotNull
+	private final InMemoryTransactionStore transactions = new InMemoryTransactionStore();
+
+	@NotNull
+	private final InsertResult.StoredTransactions stored = new InsertResult.StoredTransactions() {
+		@Nullable
+		@Override
+		public Transaction get(@NotNull String orderId) {
+			return transactions.getStored(orderId);
+		}
+	};
+
+	// end of the last valid block, guarded by this
+	private long size;
+
+	// number of the next block, guarded by this
+	private long blocks;
+
+	/**
+	 * Opens the store encrypted with the keys derived from the salt and the installation's password (see {@link Security#getPassword(Context)})
+	 *
+	 * @param context context
+	 * @param salt	salt
+	 * @throws IOException if store can't be read or was encrypted with another key
+	 */
+	public EncryptedTransactionStore(@NotNull Context context, @NotNull byte[] salt) throws IOException {
+		this(new File(context.getFilesDir(), FILE_NAME), new BlockEncryptor(salt, Security.getPassword(context)));
+	}
+
+	public EncryptedTransactionStore(@NotNull File file, @NotNull BlockEncryptor encryptor) throws IOException {
+		this.file = file;
+		this.encryptor = encryptor;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+
+		if (channel.size() < HEADER_SIZE) {
+			writeHeader(channel);
+			size = HEADER_SIZE;
+		} else {
+			recover();
+		}
+	}
+
+	private void writeHeader(@NotNull FileChannel channel) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.put(encryptor.getKeyCheck());
+		header.flip();
+
+		channel.truncate(0);
+		writeFully(channel, header, 0);
+		channel.force(true);
+	}
+
+	/**
+	 * Decrypts all the blocks and truncates everything after the last complete batch
+	 */
+	private synchronized void recover() throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(header, 0);
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("Not a transaction store: " + file);
+		}
+		final byte[] keyCheck = new byte[BlockEncryptor.MAC_SIZE];
+		header.get(keyCheck);
+		if (!MessageDigest.isEqual(keyCheck, encryptor.getKeyCheck())) {
+			// data must not be overwritten: it might be readable with the right key
+			throw new IOException("Transaction store " + file + " is encrypted with another key");
+		}
+
+		final long fileSize = channel.size();
+		final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+		final List<Transaction> batch = new ArrayList<Transaction>();
+
+		long position = HEADER_SIZE;
+		long batchStart = position;
+		long batchBlocks = 0;
+		while (position + BLOCK_HEADER_SIZE <= fileSize) {
+			blockHeader.clear();
+			readFully(blockHeader, position);
+			final int blockLength = blockHeader.getInt(0);
+			if (blockLength != ~blockHeader.getInt(4) || blockLength <= 0 || blockLength > MAX_BLOCK_SIZE) {
+				if (isZeroed(position)) {
+					// file was extended but the data didn't reach the disk
+					break;
+				}
+				throw new IOException("Transaction store " + file + " is corrupted: invalid block length at " + position);
+			}
+			if (position + BLOCK_HEADER_SIZE + blockLength > fileSize) {
+				// last block was not written completely
+				break;
+			}
+
+			final ByteBuffer block = ByteBuffer.allocate(blockLength);
+			readFully(block, position + BLOCK_HEADER_SIZE);
+
+			final byte[] decrypted;
+			try {
+				decrypted = encryptor.decrypt(blocks + batchBlocks, block.array());
+			} catch (GeneralSecurityException e) {
+				if (position + BLOCK_HEADER_SIZE + blockLength < fileSize) {
+					// not the last block => it was not torn but modified
+					throw new IOException("Transaction store " + file + " is corrupted", e);
+				}
+				break;
+			}
+
+			final ByteBuffer records = ByteBuffer.wrap(decrypted);
+			final byte flags = records.get();
+			while (records.hasRemaining()) {
+				final int recordLength = records.getInt();
+				final ByteBuffer record = records.slice();
+				record.limit(recordLength);
+				batch.add(JournalTransactionStore.decode(record));
+				records.position(records.position() + recordLength);
+			}
+
+			position += BLOCK_HEADER_SIZE + blockLength;
+			batchBlocks++;
+
+			if ((flags & FLAG_LAST) != 0) {
+				transactions.insertAll(batch);
+				batch.clear();
+				batchStart = position;
+				blocks += batchBlocks;
+				batchBlocks = 0;
+			}
+		}
+
+		if (batchStart < fileSize) {
+			Log.w(TAG, "Store " + file + " has incomplete tail: truncating " + (fileSize - batchStart) + " bytes");
+			channel.truncate(batchStart);
+			channel.force(true);
+		}
+		size = batchStart;
+	}
+
+	/**
+	 * @return true if the file contains only zeros from the specified position
+	 */
+	private boolean isZeroed(long from) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long position = from;
+		final long fileSize = channel.size();
+		while (position < fileSize) {
+			buffer.clear();
+			if (fileSize - position < buffer.capacity()) {
+				buffer.limit((int) (fileSize - position));
+			}
+			readFully(buffer, position);
+			while (buffer.hasRemaining()) {
+				if (buffer.get() != 0) {
+					return false;
+				}
+			}
+			position += buffer.limit();
+		}
+		return true;
+	}
+
+	@Override
+	public void insert(@NotNull Transaction transaction) {
+		insertAll(Collections.singletonList(transaction));
+	}
+
+	@NotNull
+	@Override
+	public synchronized InsertResult insertAll(@NotNull Collection<Transaction> transactions) {
+		final List<Transaction> changed = new ArrayList<Transaction>(transactions.size());
+		final InsertResult result = InsertResult.collectChanged(transactions, stored, changed);
+		if (changed.isEmpty()) {
+			return result;
+		}
+
+		try {
+			blocks += write(channel, size, blocks, changed);
+			channel.force(false);
+			size = channel.size();
+		} catch (IOException e) {
+			try {
+				// partially written batch must not be followed by the next one
+				channel.truncate(size);
+			} catch (IOException ignored) {
+				// will be truncated when the store is opened
+			}
+			throw new IllegalStateException("Unable to write to " + file, e);
+		}
+
+		// memory is updated only after the blocks are durable
+		this.transactions.insertAll(changed);
+		return result;
+	}
+
+	/**
+	 * Encrypts transactions into blocks and writes them to the channel starting from the specified position
+	 *
+	 * @return number of written blocks
+	 */
+	private long write(@NotNull FileChannel channel, long position, long blockNumber, @NotNull Collection<Transaction> transactions) throws IOException {
+		final long firstBlockNumber = blockNumber;
+
+		ByteBuffer block = newBlock(BLOCK_SIZE);
+
+		int left = transactions.size();
+		for (Transaction transaction : transactions) {
+			final byte[] payload = JournalTransactionStore.encode(transaction);
+			if (block.position() > 1 && block.remaining() < 4 + payload.length) {
+				position += writeBlock(channel, position, blockNumber++, block, false);
+				block = newBlock(BLOCK_SIZE);
+			}
+			if (block.remaining() < 4 + payload.length) {
+				// record doesn't fit into an empty block
+				block = newBlock(1 + 4 + payload.length);
+			}
+
+			block.putInt(payload.length);
+			block.put(payload);
+
+			left--;
+			if (left == 0) {
+				writeBlock(channel, position, blockNumber++, block, true);
+			}
+		}
+
+		return blockNumber - firstBlockNumber;
+	}
+
+	@NotNull
+	private static ByteBuffer newBlock(int capacity) {
+		final ByteBuffer result = ByteBuffer.allocate(capacity);
+		// flags
+		result.put((byte) 0);
+		return result;
+	}
+
+	private int writeBlock(@NotNull FileChannel channel, long position, long blockNumber, @NotNull ByteBuffer block, boolean last) throws IOException {
+		block.put(0, last ? FLAG_LAST : 0);
+
+		final byte[] encrypted = encryptor.encrypt(blockNumber, block.array(), 0, block.position());
+		final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE + encrypted.length);
+		buffer.putInt(encrypted.length);
+		buffer.putInt(~encrypted.length);
+		buffer.put(encrypted);
+		buffer.flip();
+		writeFully(channel, buffer, position);
+
+		return BLOCK_HEADER_SIZE + encrypted.length;
+	}
+
+	/**
+	 * Rewrites the store so that it contains only the latest transaction of each order packed into the full blocks.
+	 * New file is written next to the current one and replaces it only after it is complete
+	 */
+	public synchronized void compact() throws IOException {
+		final List<Transaction> transactions = this.transactions.getTransactions();
+
+		final File tmp = new File(file.getPath() + ".tmp");
+		final RandomAccessFile tmpFile = new RandomAccessFile(tmp, "rw");
+		final long tmpBlocks;
+		try {
+			final FileChannel tmpChannel = tmpFile.getChannel();
+			writeHeader(tmpChannel);
+			tmpBlocks = transactions.isEmpty() ? 0 : write(tmpChannel, HEADER_SIZE, 0, transactions);
+			tmpChannel.force(true);
+		} catch (IOException e) {
+			tmpFile.close();
+			tmp.delete();
+			throw e;
+		}
+
+		close();
+		if (!tmp.renameTo(file)) {
+			tmpFile.close();
+			reopen();
+			throw new IOException("Unable to replace " + file + " with " + tmp);
+		}
+
+		randomAccessFile = tmpFile;
+		channel = tmpFile.getChannel();
+		size = channel.size();
+		blocks = tmpBlocks;
+	}
+
+	private void reopen() throws IOException {
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		channel = randomAccessFile.getChannel();
+	}
+
+	@Override
+	public int countPurchases(@NotNull String productKey) {
+		return transactions.countPurchases(productKey);
+	}
+
+	@Override
+	public int countEntitled(@NotNull String productKey) {
+		return transactions.countEntitled(productKey);
+	}
+
+	@NotNull
+	@Override
+	public Map<String, Integer> countPurchasesByProduct() {
+		return transactions.countPurchasesByProduct();
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions() {
+		return transactions.getTransactions();
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull String productKey) {
+		return transactions.getTransactions(productKey);
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query) {
+		return transactions.getTransactions(query);
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query, @NotNull ITransactionDecoder decoder) {
+		return transactions.getTransactions(query, decoder);
+	}
+
+	@NotNull
+	@Override
+	public Map<Long, String> getProductIdsWithoutKey() {
+		// store is always written with product keys
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public void updateProductKeys(@NotNull Map<Long, String> productKeys) {
+	}
+
+	@Override
+	public void addPendingNotifications(@NotNull Map<String, String> notifications) {
+		// notifications are kept only in memory (see ITransactionStore#addPendingNotifications(Map))
+		transactions.addPendingNotifications(notifications);
+	}
+
+	@NotNull
+	@Override
+	public List<String> getPendingNotifications(@NotNull String productKey) {
+		return transactions.getPendingNotifications(productKey);
+	}
+
+	@Override
+	public void removePendingNotifications(@NotNull Collection<String> notificationIds) {
+		transactions.removePendingNotifications(notificationIds);
+	}
+
+	@Override
+	public boolean isEncrypted() {
+		return true;
+	}
+
+	@Override
+	public boolean isCompacted() {
+		return false;
+	}
+
+	@Override
+	public synchronized void drop(@NotNull Context context) {
+		try {
+			writeHeader(channel);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to truncate " + file, e);
+		}
+		size = HEADER_SIZE;
+		blocks = 0;
+		transactions.drop(context);
+	}
+
+	public synchronized void close() throws IOException {
+		channel.close();
+		randomAccessFile.close();
+	}
+
+	/**
+	 * @return size of the store file in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	private void readFully(@NotNull ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of " + file);
+			}
+			position += read;
+		}
+		buffer.flip();
+	}
+
+	private static void writeFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
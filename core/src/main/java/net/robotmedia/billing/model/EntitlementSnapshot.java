@@ -0,0 +1,366 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.content.Context;
+import android.util.Log;
+import net.robotmedia.billing.utils.Base64;
+import net.robotmedia.billing.utils.Base64DecoderException;
+import net.robotmedia.billing.utils.Security;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Small file with the number of purchases of each purchased product which can be read before the transaction store is
+ * opened => entitlement checks can be answered right after the process start.
+ * Products are identified by keyed hashes of product ids and the file is authenticated with HMAC. Keys are derived with
+ * one HMAC from the salt and the installation's password (unlike {@link net.robotmedia.billing.utils.AESObfuscator}
+ * which uses slow key derivation) => snapshot is cheap to read but only as well protected as the device identifiers.
+ *
+ * File format: [int magic][int version][int number of products][products: [short hash length][hash][int count]][MAC].
+ * File is replaced atomically (written to a temporary file and renamed).
+ *
+ * NOTE: snapshot is a cache of the store: it should be checked against the store (see {@link #verify(long, Map)}) once the store is available
+ */
+public class EntitlementSnapshot {
+
+	private static final String TAG = EntitlementSnapshot.class.getSimpleName();
+
+	public static final String FILE_NAME = "billing.snapshot";
+
+	private static final int MAGIC = 0x42534e50;
+	private static final int VERSION = 1;
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final int MAC_SIZE = 32;
+
+	// snapshot contains only purchased products => bigger files are treated as corrupted
+	private static final int MAX_SIZE = 1024 * 1024;
+
+	private static final String UTF8 = "UTF-8";
+	private static final String KEY_LABEL = "net.robotmedia.billing.model.EntitlementSnapshot";
+	private static final String HASH_KEY_LABEL = "net.robotmedia.billing.model.EntitlementSnapshot-hash";
+
+	@NotNull
+	private final File file;
+
+	// guarded by this
+	@NotNull
+	private final Mac mac;
+
+	// guarded by this
+	@NotNull
+	private final Mac hashMac;
+
+	// key: hash of product id, value: number of purchases (> 0), guarded by this
+	@NotNull
+	private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+	// true if counts are known for all the products (loaded from the valid file or set from the store), guarded by this
+	private boolean valid;
+
+	// incremented on every change of counts, guarded by this
+	private long version;
+
+	/**
+	 * @param context context
+	 * @param salt	salt
+	 * @return snapshot stored in the application's files directory (not loaded yet)
+	 */
+	@NotNull
+	public static EntitlementSnapshot newInstance(@NotNull Context context, @NotNull byte[] salt) {
+		return new EntitlementSnapshot(new File(context.getFilesDir(), FILE_NAME), deriveKey(salt, Security.getPassword(context)));
+	}
+
+	public EntitlementSnapshot(@NotNull File file, @NotNull byte[] key) {
+		this.file = file;
+		try {
+			mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+
+			hashMac = Mac.getInstance(MAC_ALGORITHM);
+			hashMac.init(new SecretKeySpec(mac.doFinal(toBytes(HASH_KEY_LABEL)), MAC_ALGORITHM));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Invalid environment", e);
+		}
+	}
+
+	@NotNull
+	private static byte[] deriveKey(@NotNull byte[] salt, @NotNull String password) {
+		try {
+			final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(salt, MAC_ALGORITHM));
+			mac.update(toBytes(KEY_LABEL));
+			return mac.doFinal(toBytes(password));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Invalid environment", e);
+		}
+	}
+
+	/**
+	 * Reads the snapshot file with one read
+	 *
+	 * @return true if snapshot was read and is authentic, false if there is no snapshot or it was modified (counts are then unknown)
+	 */
+	public synchronized boolean load() {
+		counts.clear();
+		valid = false;
+		version++;
+
+		if (!file.exists()) {
+			return false;
+		}
+
+		try {
+			final byte[] bytes;
+			final RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				final long length = in.length();
+				if (length < 12 + MAC_SIZE || length > MAX_SIZE) {
+					throw new IOException("Unexpected size of " + file + ": " + length);
+				}
+				bytes = new byte[(int) length];
+				in.readFully(bytes);
+			} finally {
+				in.close();
+			}
+
+			mac.update(bytes, 0, bytes.length - MAC_SIZE);
+			final byte[] expectedMac = mac.doFinal();
+			final byte[] actualMac = new byte[MAC_SIZE];
+			System.arraycopy(bytes, bytes.length - MAC_SIZE, actualMac, 0, MAC_SIZE);
+			if (!MessageDigest.isEqual(expectedMac, actualMac)) {
+				throw new IOException("Snapshot " + file + " is not authentic");
+			}
+
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - MAC_SIZE);
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not an entitlement snapshot: " + file);
+			}
+			final int products = buffer.getInt();
+			for (int i = 0; i < products; i++) {
+				final byte[] hash = new byte[buffer.getShort()];
+				buffer.get(hash);
+				counts.put(new String(hash, UTF8), buffer.getInt());
+			}
+
+			valid = true;
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to read snapshot: " + e.getMessage());
+			counts.clear();
+		} catch (RuntimeException e) {
+			// e.g. buffer underflow in the malformed (but authentic) file
+			Log.w(TAG, "Unable to read snapshot", e);
+			counts.clear();
+		}
+
+		return valid;
+	}
+
+	/**
+	 * @return true if counts of all the products are known
+	 */
+	public synchronized boolean isValid() {
+		return valid;
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param productId product id
+	 * @return number of purchases of the product (valid only if {@link #isValid()})
+	 */
+	public synchronized int countPurchases(@NotNull String productId) {
+		final Integer count = counts.get(hash(productId));
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Updates the number of purchases of one product (snapshot is not saved)
+	 */
+	public synchronized void setCount(@NotNull String productId, int count) {
+		version++;
+		if (count > 0) {
+			counts.put(hash(productId), count);
+		} else {
+			counts.remove(hash(productId));
+		}
+	}
+
+	/**
+	 * Replaces all counts with the counts from the store, snapshot becomes valid (but is not saved)
+	 *
+	 * @param counts number of purchases of each purchased product (key: product id)
+	 */
+	public synchronized void setCounts(@NotNull Map<String, Integer> counts) {
+		this.counts.clear();
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			setCount(entry.getKey(), entry.getValue());
+		}
+		valid = true;
+		version++;
+	}
+
+	/**
+	 * Checks the snapshot against the counts from the store and rebuilds (and saves) it if they differ. Nothing is done
+	 * if the snapshot was changed after the specified version was taken: counts from the store might be older than the change.
+	 *
+	 * @param version version of the snapshot taken before the counts were read from the store
+	 * @param counts  number of purchases of each purchased product as counted by the store (key: product id)
+	 * @return false if snapshot was changed in the meantime and should be verified again
+	 * @throws IOException if rebuilt snapshot can't be saved
+	 */
+	public synchronized boolean verify(long version, @NotNull Map<String, Integer> counts) throws IOException {
+		if (this.version != version) {
+			return false;
+		}
+
+		if (!matches(counts)) {
+			Log.w(TAG, "Snapshot differs from the store: rebuilding");
+			setCounts(counts);
+			save();
+		}
+		return true;
+	}
+
+	/**
+	 * @param counts number of purchases of each purchased product as counted by the store (key: product id)
+	 * @return true if snapshot is valid and contains the same counts
+	 */
+	public synchronized boolean matches(@NotNull Map<String, Integer> counts) {
+		if (!valid) {
+			return false;
+		}
+
+		int products = 0;
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			final int count = entry.getValue();
+			if (count > 0) {
+				products++;
+				if (countPurchases(entry.getKey()) != count) {
+					return false;
+				}
+			}
+		}
+		return products == this.counts.size();
+	}
+
+	public synchronized void save() throws IOException {
+		final Map<byte[], Integer> products = new HashMap<byte[], Integer>(counts.size());
+		int length = 12;
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			final byte[] hash = toBytes(entry.getKey());
+			products.put(hash, entry.getValue());
+			length += 2 + hash.length + 4;
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate(length + MAC_SIZE);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(products.size());
+		for (Map.Entry<byte[], Integer> entry : products.entrySet()) {
+			buffer.putShort((short) entry.getKey().length);
+			buffer.put(entry.getKey());
+			buffer.putInt(entry.getValue());
+		}
+		mac.update(buffer.array(), 0, length);
+		buffer.put(mac.doFinal());
+
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(buffer.array());
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Unable to replace " + file + " with " + tmp);
+		}
+	}
+
+	/**
+	 * Publishes the counts in the shared table (if snapshot is valid)
+	 *
+	 * @param table table to which counts are written
+	 * @throws IOException if table can't be written
+	 */
+	public synchronized void publish(@NotNull EntitlementTable table) throws IOException {
+		if (valid) {
+			final Map<Long, Integer> fingerprints = new HashMap<Long, Integer>(counts.size());
+			for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+				try {
+					fingerprints.put(toFingerprint(Base64.decode(entry.getKey())), entry.getValue());
+				} catch (Base64DecoderException e) {
+					throw new IOException("Invalid hash: " + entry.getKey());
+				}
+			}
+			table.publish(fingerprints);
+		}
+	}
+
+	/**
+	 * @param productId product id
+	 * @return fingerprint of the product in {@link EntitlementTable} (first bytes of its hash)
+	 */
+	public synchronized long fingerprint(@NotNull String productId) {
+		return toFingerprint(hashMac.doFinal(toBytes(productId)));
+	}
+
+	private static long toFingerprint(@NotNull byte[] hash) {
+		return ByteBuffer.wrap(hash, 0, 8).getLong();
+	}
+
+	/**
+	 * Deletes the snapshot file, counts become unknown
+	 */
+	public synchronized void delete() {
+		counts.clear();
+		valid = false;
+		version++;
+		file.delete();
+	}
+
+	// guarded by this
+	@NotNull
+	private String hash(@NotNull String productId) {
+		return Base64.encode(hashMac.doFinal(toBytes(productId)));
+	}
+
+	@NotNull
+	private static byte[] toBytes(@NotNull String s) {
+		try {
+			return s.getBytes(UTF8);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("Invalid environment", e);
+		}
+	}
+}
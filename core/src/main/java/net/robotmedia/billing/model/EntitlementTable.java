@@ -0,0 +1,302 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.content.Context;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Map;
+
+/**
+ * Memory-mapped file with the number of purchases of each purchased product shared by all processes of the application =>
+ * entitlement checks are answered from the shared memory without IPC and without locks.
+ * Table is published by the process which stores transactions (see {@link EntitlementSnapshot#publish(EntitlementTable)})
+ * and read by any process.
+ *
+ * Products are identified by 64-bit fingerprints (see {@link EntitlementSnapshot#fingerprint(String)}) and kept in the
+ * open addressing hash table of fixed capacity. Table is guarded by a sequence number (seqlock): writer makes it odd
+ * before the table is changed and even after => reader retries if the number was odd or has changed while the table
+ * was read. Each slot is additionally checked against the sequence number under which it was written (mapped memory
+ * has no ordering guarantees in Java) => torn slots are never returned. Writers of different processes are serialized
+ * with a file lock.
+ *
+ * File format: [int magic][int sequence][int number of products][int published][slots: [long fingerprint][int count][int check]]
+ */
+public final class EntitlementTable {
+
+	public static final String FILE_NAME = "billing.entitlements";
+
+	private static final int MAGIC = 0x42454e54;
+
+	private static final int OFFSET_MAGIC = 0;
+	private static final int OFFSET_SEQUENCE = 4;
+	private static final int OFFSET_PRODUCTS = 8;
+	private static final int OFFSET_PUBLISHED = 12;
+	private static final int HEADER_SIZE = 16;
+
+	private static final int SLOT_SIZE = 16;
+	private static final int CAPACITY = 255;
+	// more products => table is not published and readers fall back to the store
+	private static final int MAX_PRODUCTS = CAPACITY * 3 / 4;
+
+	static final int SIZE = HEADER_SIZE + CAPACITY * SLOT_SIZE;
+
+	// reader gives up if the table keeps changing
+	private static final int MAX_ATTEMPTS = 100;
+
+	/**
+	 * Returned by {@link #countPurchases(long)} if table is not published (or is being rewritten for too long)
+	 */
+	public static final int UNKNOWN = -1;
+
+	// returned by find() if slot was written under another sequence number
+	private static final int INCONSISTENT = -2;
+
+	@NotNull
+	private final FileChannel channel;
+
+	@NotNull
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * @param context context
+	 * @return table stored in the application's files directory
+	 * @throws IOException if file can't be mapped
+	 */
+	@NotNull
+	public static EntitlementTable open(@NotNull Context context) throws IOException {
+		return open(new File(context.getFilesDir(), FILE_NAME));
+	}
+
+	@NotNull
+	static EntitlementTable open(@NotNull File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final FileLock lock = channel.lock();
+			try {
+				final boolean created = raf.length() != SIZE;
+				if (created) {
+					raf.setLength(SIZE);
+				}
+				final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+				if (created || buffer.getInt(OFFSET_MAGIC) != MAGIC) {
+					// unpublished table
+					for (int i = 0; i < SIZE; i += 4) {
+						buffer.putInt(i, 0);
+					}
+					buffer.putInt(OFFSET_MAGIC, MAGIC);
+				}
+				return new EntitlementTable(channel, buffer);
+			} finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	private EntitlementTable(@NotNull FileChannel channel, @NotNull MappedByteBuffer buffer) {
+		this.channel = channel;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @param fingerprint fingerprint of the product
+	 * @return number of purchases of the product or {@link #UNKNOWN} if table is not published
+	 */
+	public int countPurchases(long fingerprint) {
+		fingerprint = nonZero(fingerprint);
+
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			final int sequence = buffer.getInt(OFFSET_SEQUENCE);
+			if ((sequence & 1) != 0) {
+				// being written
+				Thread.yield();
+				continue;
+			}
+
+			int result = UNKNOWN;
+			if (buffer.getInt(OFFSET_PUBLISHED) != 0) {
+				result = find(fingerprint, sequence);
+			}
+
+			if (buffer.getInt(OFFSET_SEQUENCE) == sequence && result != INCONSISTENT) {
+				return result;
+			}
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * @return true if table contains the counts of all the purchased products
+	 */
+	public boolean isPublished() {
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			final int sequence = buffer.getInt(OFFSET_SEQUENCE);
+			final boolean published = buffer.getInt(OFFSET_PUBLISHED) != 0;
+			if ((sequence & 1) == 0 && buffer.getInt(OFFSET_SEQUENCE) == sequence) {
+				return published;
+			}
+			Thread.yield();
+		}
+		return false;
+	}
+
+	private int find(long fingerprint, int sequence) {
+		int slot = slotOf(fingerprint);
+		for (int i = 0; i < CAPACITY; i++) {
+			final int offset = HEADER_SIZE + slot * SLOT_SIZE;
+			final long actual = buffer.getLong(offset);
+			final int count = buffer.getInt(offset + 8);
+			if (buffer.getInt(offset + 12) != check(actual, count, sequence)) {
+				return INCONSISTENT;
+			}
+			if (actual == fingerprint) {
+				return count;
+			} else if (actual == 0) {
+				// not purchased
+				return 0;
+			}
+			slot = (slot + 1) % CAPACITY;
+		}
+		return 0;
+	}
+
+	/**
+	 * Replaces the content of the table
+	 *
+	 * @param counts number of purchases of each purchased product (key: fingerprint of the product)
+	 * @throws IOException if file can't be locked
+	 */
+	public synchronized void publish(@NotNull Map<Long, Integer> counts) throws IOException {
+		int products = 0;
+		for (Integer count : counts.values()) {
+			if (count > 0) {
+				products++;
+			}
+		}
+
+		final FileLock lock = channel.lock();
+		try {
+			final int sequence = beginWrite();
+			clearSlots();
+			if (products <= MAX_PRODUCTS) {
+				for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+					final int count = entry.getValue();
+					if (count > 0) {
+						put(nonZero(entry.getKey()), count, sequence);
+					}
+				}
+				buffer.putInt(OFFSET_PRODUCTS, products);
+				buffer.putInt(OFFSET_PUBLISHED, 1);
+			} else {
+				buffer.putInt(OFFSET_PRODUCTS, 0);
+				buffer.putInt(OFFSET_PUBLISHED, 0);
+			}
+			// empty slots are checked by readers too
+			sealEmptySlots(sequence);
+			buffer.putInt(OFFSET_SEQUENCE, sequence);
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Removes all counts: readers fall back to other sources until the table is published again
+	 *
+	 * @throws IOException if file can't be locked
+	 */
+	public synchronized void clear() throws IOException {
+		final FileLock lock = channel.lock();
+		try {
+			final int sequence = beginWrite();
+			clearSlots();
+			buffer.putInt(OFFSET_PRODUCTS, 0);
+			buffer.putInt(OFFSET_PUBLISHED, 0);
+			buffer.putInt(OFFSET_SEQUENCE, sequence);
+		} finally {
+			lock.release();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Makes sequence number odd
+	 *
+	 * @return (even) sequence number to be set when write is finished
+	 */
+	private int beginWrite() {
+		final int sequence = buffer.getInt(OFFSET_SEQUENCE);
+		// odd number is left by a writer which has died in the middle of the write
+		final int writing = (sequence & 1) == 0 ? sequence + 1 : sequence + 2;
+		buffer.putInt(OFFSET_SEQUENCE, writing);
+		return writing + 1;
+	}
+
+	private void clearSlots() {
+		for (int offset = HEADER_SIZE; offset < SIZE; offset += 4) {
+			buffer.putInt(offset, 0);
+		}
+	}
+
+	private void put(long fingerprint, int count, int sequence) {
+		int slot = slotOf(fingerprint);
+		while (buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE) != 0) {
+			slot = (slot + 1) % CAPACITY;
+		}
+		final int offset = HEADER_SIZE + slot * SLOT_SIZE;
+		buffer.putLong(offset, fingerprint);
+		buffer.putInt(offset + 8, count);
+		buffer.putInt(offset + 12, check(fingerprint, count, sequence));
+	}
+
+	private void sealEmptySlots(int sequence) {
+		for (int slot = 0; slot < CAPACITY; slot++) {
+			final int offset = HEADER_SIZE + slot * SLOT_SIZE;
+			if (buffer.getLong(offset) == 0) {
+				buffer.putInt(offset + 12, check(0, 0, sequence));
+			}
+		}
+	}
+
+	private static int slotOf(long fingerprint) {
+		return (int) ((fingerprint & Long.MAX_VALUE) % CAPACITY);
+	}
+
+	// 0 marks an empty slot
+	private static long nonZero(long fingerprint) {
+		return fingerprint == 0 ? 1 : fingerprint;
+	}
+
+	private static int check(long fingerprint, int count, int sequence) {
+		int result = (int) (fingerprint ^ (fingerprint >>> 32));
+		result = 31 * result + count;
+		result = 31 * result + sequence;
+		// never equal to the check of the cleared slot
+		return result ^ 0x5bd1e995;
+	}
+}
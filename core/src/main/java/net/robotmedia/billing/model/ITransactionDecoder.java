@@ -0,0 +1,41 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decodes (e.g. unobfuscates) product id and developer payload of the stored transactions while they are read, see
+ * {@link ITransactionStore#getTransactions(TransactionQuery, ITransactionDecoder)}. Stores which keep these fields as
+ * bytes (see {@link BillingDB}) pass the bytes directly => they are not converted to strings first
+ */
+public interface ITransactionDecoder {
+
+	/**
+	 * @param stored value as stored
+	 * @return decoded value
+	 */
+	@Nullable
+	String decode(@Nullable String stored);
+
+	/**
+	 * @param stored value stored as bytes (i.e. Base64 decoded string)
+	 * @return decoded value
+	 */
+	@Nullable
+	String decode(@NotNull byte[] stored);
+}
@@ -0,0 +1,134 @@
+package net.robotmedia.billing.model;
+
+import android.content.Context;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage of (obfuscated) transactions used by {@link TransactionManager}.
+ * Transactions are identified by order id (transaction with the same order id replaces the stored one) and looked up by
+ * {@link Transaction#productKey}.
+ * NOTE: implementations must be thread safe
+ */
+public interface ITransactionStore {
+
+	void insert(@NotNull Transaction transaction);
+
+	/**
+	 * Inserts all transactions at once (i.e. either all transactions are stored or none of them).
+	 * Transactions which are the same as the stored ones (see {@link Transaction#isSameAsStored(Transaction)}) are not written
+	 *
+	 * @param transactions transactions to be stored
+	 * @return numbers of inserted, updated and unchanged transactions
+	 */
+	@NotNull
+	InsertResult insertAll(@NotNull Collection<Transaction> transactions);
+
+	/**
+	 * @param productKey product key
+	 * @return number of transactions with state PURCHASED of the product
+	 */
+	int countPurchases(@NotNull String productKey);
+
+	/**
+	 * Same as {@link #countPurchases(String)} but only the latest state of each order is counted => refunded and
+	 * cancelled orders are not counted even if their purchase is still stored (e.g. folded by the compaction or restored
+	 * after the refund). Stores which keep only the last transaction of each order may return {@link #countPurchases(String)}
+	 *
+	 * @param productKey product key
+	 * @return number of orders of the product whose latest state is PURCHASED
+	 */
+	int countEntitled(@NotNull String productKey);
+
+	/**
+	 * @return number of purchases for each product which has been purchased at least once (key: product id as stored
+	 * in one of the product's transactions)
+	 */
+	@NotNull
+	Map<String, Integer> countPurchasesByProduct();
+
+	/**
+	 * @return all stored transactions
+	 */
+	@NotNull
+	List<Transaction> getTransactions();
+
+	/**
+	 * @param productKey product key
+	 * @return all stored transactions of the product
+	 */
+	@NotNull
+	List<Transaction> getTransactions(@NotNull String productKey);
+
+	/**
+	 * @param query page to be returned
+	 * @return transactions of the page ordered as described in {@link TransactionQuery}
+	 */
+	@NotNull
+	List<Transaction> getTransactions(@NotNull TransactionQuery query);
+
+	/**
+	 * Same as {@link #getTransactions(TransactionQuery)} but product id and developer payload of the returned
+	 * transactions are decoded by <var>decoder</var>. Order id is returned as stored as it is used for paging
+	 *
+	 * @param query   page to be returned
+	 * @param decoder decoder of the stored values
+	 * @return decoded transactions of the page ordered as described in {@link TransactionQuery}
+	 */
+	@NotNull
+	List<Transaction> getTransactions(@NotNull TransactionQuery query, @NotNull ITransactionDecoder decoder);
+
+	/**
+	 * @return product ids (as stored) of the transactions without product key (key: row id)
+	 */
+	@NotNull
+	Map<Long, String> getProductIdsWithoutKey();
+
+	/**
+	 * @param productKeys product keys to be set (key: row id as returned by {@link #getProductIdsWithoutKey()}, value: product key)
+	 */
+	void updateProductKeys(@NotNull Map<Long, String> productKeys);
+
+	/**
+	 * Stores notifications which wait for the manual confirmation (see
+	 * {@link net.robotmedia.billing.BillingController#confirmNotifications(Context, String)}). Stores which can't persist
+	 * them keep them in memory: Market sends unconfirmed notifications again anyway
+	 *
+	 * @param notifications key: notification id, value: product key
+	 */
+	void addPendingNotifications(@NotNull Map<String, String> notifications);
+
+	/**
+	 * @param productKey product key
+	 * @return ids of the notifications of the product which haven't been confirmed yet
+	 */
+	@NotNull
+	List<String> getPendingNotifications(@NotNull String productKey);
+
+	/**
+	 * @param notificationIds ids of the confirmed notifications
+	 */
+	void removePendingNotifications(@NotNull Collection<String> notificationIds);
+
+	/**
+	 * @return true if store encrypts transactions itself => transactions must be stored unobfuscated and looked up by
+	 * product id
+	 */
+	boolean isEncrypted();
+
+	/**
+	 * @return true if some transactions were folded by the compaction (see {@link BillingDB#compact(CompactionPolicy)}) =>
+	 * {@link #getTransactions()} doesn't return all of them and the store can't be copied to another store or exported
+	 */
+	boolean isCompacted();
+
+	/**
+	 * Removes all stored transactions
+	 *
+	 * @param context context
+	 */
+	void drop(@NotNull Context context);
+}
@@ -0,0 +1,235 @@
+package net.robotmedia.billing.model;
+
+import android.content.Context;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transaction store which keeps transactions in memory only (nothing survives process death).
+ * Reads are lock-free, writes are serialized. Stored and returned transactions are copies => callers may modify them.
+ */
+public class InMemoryTransactionStore implements ITransactionStore {
+
+	// key: order id (or generated key for transactions without order id)
+	@NotNull
+	private final ConcurrentMap<String, Transaction> transactions = new ConcurrentHashMap<String, Transaction>();
+
+	// key: product key, value: transactions of the product (key: order id)
+	@NotNull
+	private final ConcurrentMap<String, ConcurrentMap<String, Transaction>> products = new ConcurrentHashMap<String, ConcurrentMap<String, Transaction>>();
+
+	// used to generate keys for transactions without order id
+	@NotNull
+	private final AtomicLong counter = new AtomicLong();
+
+	@NotNull
+	private final Object writeLock = new Object();
+
+	@NotNull
+	private final PendingNotificationSet pendingNotifications = new PendingNotificationSet();
+
+	@Override
+	public void insert(@NotNull Transaction transaction) {
+		insertAll(Collections.singletonList(transaction));
+	}
+
+	@NotNull
+	@Override
+	public InsertResult insertAll(@NotNull Collection<Transaction> transactions) {
+		int inserted = 0;
+		int updated = 0;
+		int unchanged = 0;
+
+		synchronized (writeLock) {
+			for (Transaction transaction : transactions) {
+				final Transaction old = transaction.orderId == null ? null : this.transactions.get(transaction.orderId);
+				if (old == null) {
+					inserted++;
+				} else if (transaction.isSameAsStored(old)) {
+					unchanged++;
+					continue;
+				} else {
+					updated++;
+				}
+				put(transaction.clone());
+			}
+		}
+
+		return new InsertResult(inserted, updated, unchanged);
+	}
+
+	/**
+	 * @return stored transaction (not a copy => must not be modified), null if there is no such transaction
+	 */
+	@Nullable
+	Transaction getStored(@NotNull String orderId) {
+		return transactions.get(orderId);
+	}
+
+	// guarded by writeLock
+	private void put(@NotNull Transaction transaction) {
+		final String key = transaction.orderId != null ? transaction.orderId : "#" + counter.incrementAndGet();
+
+		final Transaction old = transactions.put(key, transaction);
+		if (old != null) {
+			final Map<String, Transaction> oldProduct = old.productKey == null ? null : products.get(old.productKey);
+			if (oldProduct != null) {
+				oldProduct.remove(key);
+			}
+		}
+
+		if (transaction.productKey != null) {
+			ConcurrentMap<String, Transaction> product = products.get(transaction.productKey);
+			if (product == null) {
+				product = new ConcurrentHashMap<String, Transaction>();
+				products.put(transaction.productKey, product);
+			}
+			product.put(key, transaction);
+		}
+	}
+
+	@Override
+	public int countPurchases(@NotNull String productKey) {
+		return countPurchases(products.get(productKey));
+	}
+
+	@Override
+	public int countEntitled(@NotNull String productKey) {
+		// only the last transaction of each order is kept
+		return countPurchases(productKey);
+	}
+
+	private static int countPurchases(@Nullable Map<String, Transaction> product) {
+		int result = 0;
+
+		if (product != null) {
+			for (Transaction transaction : product.values()) {
+				if (transaction.purchaseState == Transaction.PurchaseState.PURCHASED) {
+					result++;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	@NotNull
+	@Override
+	public Map<String, Integer> countPurchasesByProduct() {
+		final Map<String, Integer> result = new HashMap<String, Integer>();
+
+		for (Map<String, Transaction> product : products.values()) {
+			final int count = countPurchases(product);
+			if (count > 0) {
+				// any transaction of the product will do
+				for (Transaction transaction : product.values()) {
+					result.put(transaction.productId, count);
+					break;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions() {
+		return copyOf(transactions.values());
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull String productKey) {
+		final Map<String, Transaction> product = products.get(productKey);
+		if (product == null) {
+			return new ArrayList<Transaction>();
+		} else {
+			return copyOf(product.values());
+		}
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query) {
+		final String productKey = query.getProductKey();
+
+		final Map<String, Transaction> candidates = productKey == null ? transactions : products.get(productKey);
+		if (candidates == null) {
+			return new ArrayList<Transaction>();
+		} else {
+			return copyOf(query.select(candidates.values()));
+		}
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query, @NotNull ITransactionDecoder decoder) {
+		return Transaction.decode(getTransactions(query), decoder);
+	}
+
+	@NotNull
+	private static List<Transaction> copyOf(@NotNull Collection<Transaction> transactions) {
+		final List<Transaction> result = new ArrayList<Transaction>(transactions.size());
+		for (Transaction transaction : transactions) {
+			result.add(transaction.clone());
+		}
+		return result;
+	}
+
+	@NotNull
+	@Override
+	public Map<Long, String> getProductIdsWithoutKey() {
+		// transactions are stored in memory only => there can't be transactions stored before product keys were introduced
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public void updateProductKeys(@NotNull Map<Long, String> productKeys) {
+	}
+
+	@Override
+	public void addPendingNotifications(@NotNull Map<String, String> notifications) {
+		pendingNotifications.add(notifications);
+	}
+
+	@NotNull
+	@Override
+	public List<String> getPendingNotifications(@NotNull String productKey) {
+		return pendingNotifications.get(productKey);
+	}
+
+	@Override
+	public void removePendingNotifications(@NotNull Collection<String> notificationIds) {
+		pendingNotifications.remove(notificationIds);
+	}
+
+	@Override
+	public boolean isEncrypted() {
+		return false;
+	}
+
+	@Override
+	public boolean isCompacted() {
+		return false;
+	}
+
+	@Override
+	public void drop(@NotNull Context context) {
+		synchronized (writeLock) {
+			transactions.clear();
+			products.clear();
+		}
+		pendingNotifications.clear();
+	}
+}
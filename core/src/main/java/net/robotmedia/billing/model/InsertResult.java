@@ -0,0 +1,120 @@
+package net.robotmedia.billing.model;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of {@link ITransactionStore#insertAll(Collection)}: number of transactions which were stored for the first time,
+ * which replaced the stored transaction with the same order id and which were skipped because the stored transaction
+ * was the same (see {@link Transaction#isSameAsStored(Transaction)})
+ */
+public final class InsertResult {
+
+	@NotNull
+	public static final InsertResult EMPTY = new InsertResult(0, 0, 0);
+
+	private final int inserted;
+	private final int updated;
+	private final int unchanged;
+
+	public InsertResult(int inserted, int updated, int unchanged) {
+		this.inserted = inserted;
+		this.updated = updated;
+		this.unchanged = unchanged;
+	}
+
+	public int getInserted() {
+		return inserted;
+	}
+
+	public int getUpdated() {
+		return updated;
+	}
+
+	public int getUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * @return number of transactions actually written to the store
+	 */
+	public int getWritten() {
+		return inserted + updated;
+	}
+
+	@NotNull
+	public InsertResult plus(@NotNull InsertResult that) {
+		return new InsertResult(inserted + that.inserted, updated + that.updated, unchanged + that.unchanged);
+	}
+
+	@Override
+	public String toString() {
+		return "InsertResult{" +
+				"inserted=" + inserted +
+				", updated=" + updated +
+				", unchanged=" + unchanged +
+				'}';
+	}
+
+	/**
+	 * Lookup of the stored transaction by order id
+	 */
+	static interface StoredTransactions {
+
+		@Nullable
+		Transaction get(@NotNull String orderId);
+	}
+
+	/**
+	 * Collects transactions which must be written to the store: transactions without order id, new orders and orders
+	 * which differ from the stored ones. Transaction is compared with the preceding transaction of the same order in
+	 * the batch (if any) as it will be stored by then.
+	 *
+	 * @param transactions transactions to be inserted
+	 * @param stored	   stored transactions
+	 * @param changed	  list to which transactions to be written are added (in the original order)
+	 * @return counts of the transactions
+	 */
+	@NotNull
+	static InsertResult collectChanged(@NotNull Collection<Transaction> transactions,
+									   @NotNull StoredTransactions stored,
+									   @NotNull List<Transaction> changed) {
+		int inserted = 0;
+		int updated = 0;
+		int unchanged = 0;
+
+		final Map<String, Transaction> batch = new HashMap<String, Transaction>();
+		for (Transaction transaction : transactions) {
+			final String orderId = transaction.orderId;
+
+			Transaction old = null;
+			if (orderId != null) {
+				old = batch.get(orderId);
+				if (old == null) {
+					old = stored.get(orderId);
+				}
+			}
+
+			if (old == null) {
+				inserted++;
+			} else if (transaction.isSameAsStored(old)) {
+				unchanged++;
+				continue;
+			} else {
+				updated++;
+			}
+
+			changed.add(transaction);
+			if (orderId != null) {
+				batch.put(orderId, transaction);
+			}
+		}
+
+		return new InsertResult(inserted, updated, unchanged);
+	}
+}
@@ -0,0 +1,699 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.content.Context;
+import android.util.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.zip.CRC32;
+
+/**
+ * Transaction store which appends transactions to a binary log file. Log is memory-mapped for reading and
+ * an index of record offsets (grouped by product) is kept in memory => counts are answered from the index
+ * and lookups read only the records of the requested product.
+ *
+ * Log format: header (magic + version) followed by records: [int payload length][int CRC32 of payload][payload].
+ * Records of one {@link #insertAll(Collection)} are followed by a commit marker: [int 0][int number of records in the batch].
+ * Record with the same order id supersedes the previous one. Torn or corrupted tail (e.g. after process was killed during write)
+ * is detected by length/checksum and the records after the last commit marker are truncated when the log is opened =>
+ * batch is either stored as a whole or not at all.
+ *
+ * File space is reserved (and mapped) ahead of the log's end and doubled when it is used up => log is not re-mapped
+ * on every write. Reserved space is released when the store is closed (zeroed space left by a process which was
+ * killed is kept and reused).
+ *
+ * Index entries are kept sorted in the order of {@link TransactionQuery} => page is read from the start of the page
+ * and iteration stops when the page is full.
+ *
+ * NOTE: log is never compacted => it is suitable for histories where orders are rarely updated (e.g. consumables).
+ * Log is mapped as a whole => its size is limited to 2GB
+ */
+public class JournalTransactionStore implements ITransactionStore {
+
+	private static final String TAG = JournalTransactionStore.class.getSimpleName();
+
+	public static final String FILE_NAME = "billing.journal";
+
+	private static final int MAGIC = 0x424a4e4c;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 8;
+
+	// length + checksum
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	// records bigger than this are rejected on write and treated as corrupted on read
+	static final int MAX_RECORD_SIZE = 64 * 1024;
+
+	// minimum space reserved for the log
+	private static final int MIN_CAPACITY = 64 * 1024;
+
+	private static final String UTF8 = "UTF-8";
+
+	@NotNull
+	private final File file;
+
+	@NotNull
+	private final RandomAccessFile randomAccessFile;
+
+	@NotNull
+	private final FileChannel channel;
+
+	// covers the whole file (including reserved space) => all indexed records are mapped
+	@NotNull
+	private volatile MappedByteBuffer mapped;
+
+	// end of the last commit marker, guarded by this
+	private long size;
+
+	// key: order id (or generated key for transactions without order id)
+	@NotNull
+	private final ConcurrentMap<String, IndexEntry> orders = new ConcurrentHashMap<String, IndexEntry>();
+
+	// entries of all orders in the page order
+	@NotNull
+	private final ConcurrentSkipListSet<IndexEntry> sorted = new ConcurrentSkipListSet<IndexEntry>(IndexEntry.ORDER);
+
+	// key: product key
+	@NotNull
+	private final ConcurrentMap<String, ProductIndex> products = new ConcurrentHashMap<String, ProductIndex>();
+
+	// notifications are not written to the journal (see ITransactionStore#addPendingNotifications(Map))
+	@NotNull
+	private final PendingNotificationSet pendingNotifications = new PendingNotificationSet();
+
+	@NotNull
+	private final InsertResult.StoredTransactions stored = new InsertResult.StoredTransactions() {
+		@Nullable
+		@Override
+		public Transaction get(@NotNull String orderId) {
+			final IndexEntry entry = orders.get(orderId);
+			return entry == null ? null : read(entry.offset);
+		}
+	};
+
+	// used to generate keys for transactions without order id, guarded by this
+	private long counter;
+
+	public JournalTransactionStore(@NotNull Context context) throws IOException {
+		this(new File(context.getFilesDir(), FILE_NAME));
+	}
+
+	public JournalTransactionStore(@NotNull File file) throws IOException {
+		this.file = file;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = randomAccessFile.getChannel();
+
+		if (channel.size() < HEADER_SIZE) {
+			channel.truncate(0);
+			writeHeader();
+		}
+		this.mapped = map();
+		recover();
+	}
+
+	private void writeHeader() throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.flip();
+
+		channel.write(header, 0);
+		channel.force(true);
+	}
+
+	@NotNull
+	private MappedByteBuffer map() throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	}
+
+	/**
+	 * Builds index from the log and truncates everything after the last committed batch
+	 */
+	private synchronized void recover() throws IOException {
+		final ByteBuffer buffer = mapped.duplicate();
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a transaction journal: " + file);
+		}
+
+		final CRC32 crc = new CRC32();
+
+		// records of the batch which is not committed yet
+		final List<Transaction> batch = new ArrayList<Transaction>();
+		final List<Long> offsets = new ArrayList<Long>();
+
+		long position = HEADER_SIZE;
+		long committed = HEADER_SIZE;
+		final long fileSize = buffer.limit();
+		while (position + RECORD_HEADER_SIZE <= fileSize) {
+			final int length = buffer.getInt((int) position);
+			if (length == 0) {
+				// commit marker, must count all the records of the batch (zeroed space is not a marker)
+				if (batch.isEmpty() || buffer.getInt((int) position + 4) != batch.size()) {
+					break;
+				}
+				position += RECORD_HEADER_SIZE;
+				committed = position;
+				for (int i = 0; i < batch.size(); i++) {
+					index(batch.get(i), offsets.get(i));
+				}
+				batch.clear();
+				offsets.clear();
+				continue;
+			}
+
+			final int checksum = buffer.getInt((int) position + 4);
+			if (length <= 0 || length > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + length > fileSize) {
+				break;
+			}
+
+			final byte[] payload = new byte[length];
+			buffer.position((int) position + RECORD_HEADER_SIZE);
+			buffer.get(payload);
+			crc.reset();
+			crc.update(payload, 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+
+			batch.add(decode(ByteBuffer.wrap(payload)));
+			offsets.add(position);
+			position += RECORD_HEADER_SIZE + length;
+		}
+
+		if (!isZeroed(buffer, committed)) {
+			Log.w(TAG, "Journal " + file + " has incomplete tail: truncating " + (fileSize - committed) + " bytes");
+			channel.truncate(committed);
+			channel.force(true);
+			mapped = map();
+		}
+		size = committed;
+	}
+
+	/**
+	 * @return true if the buffer contains only zeros from the specified position (e.g. space reserved by the process which
+	 * was killed before it closed the store) => nothing was written there
+	 */
+	private static boolean isZeroed(@NotNull ByteBuffer buffer, long from) {
+		int position = (int) from;
+		final int end = buffer.limit();
+		for (; position + 8 <= end; position += 8) {
+			if (buffer.getLong(position) != 0) {
+				return false;
+			}
+		}
+		for (; position < end; position++) {
+			if (buffer.get(position) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void putCommitMarker(@NotNull ByteBuffer buffer, int records) {
+		buffer.putInt(0);
+		buffer.putInt(records);
+	}
+
+	// guarded by this
+	private void write(@NotNull ByteBuffer buffer) throws IOException {
+		final long end = size + buffer.remaining();
+		final long capacity = channel.size();
+		if (end > capacity) {
+			final long newCapacity = Math.min(Math.max(end, Math.max(2 * capacity, MIN_CAPACITY)), Integer.MAX_VALUE);
+			if (newCapacity < end) {
+				throw new IOException("Journal " + file + " is full");
+			}
+			randomAccessFile.setLength(newCapacity);
+		}
+
+		long position = size;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		channel.force(false);
+		size = end;
+	}
+
+	@Override
+	public void insert(@NotNull Transaction transaction) {
+		insertAll(Collections.singletonList(transaction));
+	}
+
+	@NotNull
+	@Override
+	public synchronized InsertResult insertAll(@NotNull Collection<Transaction> all) {
+		final List<Transaction> transactions = new ArrayList<Transaction>(all.size());
+		final InsertResult result = InsertResult.collectChanged(all, stored, transactions);
+		if (transactions.isEmpty()) {
+			return result;
+		}
+
+		final List<byte[]> payloads = new ArrayList<byte[]>(transactions.size());
+		// commit marker
+		int length = RECORD_HEADER_SIZE;
+		for (Transaction transaction : transactions) {
+			final byte[] payload = encode(transaction);
+			if (payload.length > MAX_RECORD_SIZE) {
+				// nothing of the batch is written
+				throw new IllegalArgumentException("Transaction " + transaction.orderId + " is too big: " + payload.length + " bytes");
+			}
+			payloads.add(payload);
+			length += RECORD_HEADER_SIZE + payload.length;
+		}
+
+		final CRC32 crc = new CRC32();
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (byte[] payload : payloads) {
+			crc.reset();
+			crc.update(payload, 0, payload.length);
+			buffer.putInt(payload.length);
+			buffer.putInt((int) crc.getValue());
+			buffer.put(payload);
+		}
+		putCommitMarker(buffer, payloads.size());
+		buffer.flip();
+
+		final long start = size;
+		try {
+			write(buffer);
+			if (mapped.limit() < size) {
+				mapped = map();
+			}
+		} catch (IOException e) {
+			size = start;
+			throw new IllegalStateException("Unable to write to " + file, e);
+		}
+
+		// index is updated only after the records are durable and mapped
+		long position = start;
+		int i = 0;
+		for (Transaction transaction : transactions) {
+			index(transaction, position);
+			position += RECORD_HEADER_SIZE + payloads.get(i++).length;
+		}
+		return result;
+	}
+
+	// guarded by this
+	private void index(@NotNull Transaction transaction, long offset) {
+		final String key = transaction.orderId != null ? transaction.orderId : "#" + (++counter);
+		final IndexEntry entry = new IndexEntry(offset, transaction.orderId, transaction.purchaseTime, transaction.productKey, transaction.purchaseState);
+
+		final IndexEntry old = orders.put(key, entry);
+		if (old != null) {
+			sorted.remove(old);
+			if (old.productKey != null) {
+				final ProductIndex oldProduct = products.get(old.productKey);
+				if (oldProduct != null) {
+					oldProduct.remove(key, old);
+				}
+			}
+		}
+		sorted.add(entry);
+
+		if (transaction.productKey != null) {
+			ProductIndex product = products.get(transaction.productKey);
+			if (product == null) {
+				product = new ProductIndex();
+				products.put(transaction.productKey, product);
+			}
+			product.put(key, entry);
+		}
+	}
+
+	@Override
+	public int countPurchases(@NotNull String productKey) {
+		final ProductIndex product = products.get(productKey);
+		return product == null ? 0 : product.purchases;
+	}
+
+	@Override
+	public int countEntitled(@NotNull String productKey) {
+		// only the last transaction of each order is indexed
+		return countPurchases(productKey);
+	}
+
+	@NotNull
+	@Override
+	public Map<String, Integer> countPurchasesByProduct() {
+		final Map<String, Integer> result = new HashMap<String, Integer>();
+
+		for (ProductIndex product : products.values()) {
+			final int count = product.purchases;
+			if (count > 0) {
+				final IndexEntry entry = product.any();
+				if (entry != null) {
+					result.put(read(entry.offset).productId, count);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions() {
+		return read(orders.values());
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull String productKey) {
+		final ProductIndex product = products.get(productKey);
+		if (product == null) {
+			return new ArrayList<Transaction>();
+		} else {
+			return read(product.entries());
+		}
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query) {
+		final String productKey = query.getProductKey();
+
+		final NavigableSet<IndexEntry> candidates;
+		if (productKey == null) {
+			candidates = sorted;
+		} else {
+			final ProductIndex product = products.get(productKey);
+			if (product == null) {
+				return new ArrayList<Transaction>();
+			}
+			candidates = product.sorted;
+		}
+
+		// iteration starts at the first possible entry of the page
+		final IndexEntry from;
+		if (query.hasAfter() && query.getAfterTime() >= query.getFromTime()) {
+			from = IndexEntry.first(query.getAfterTime(), query.getAfterOrderId());
+		} else {
+			from = IndexEntry.first(query.getFromTime(), "");
+		}
+
+		// only the records of the page are read
+		final List<IndexEntry> entries = new ArrayList<IndexEntry>(Math.min(query.getLimit(), TransactionQuery.DEFAULT_LIMIT));
+		for (IndexEntry entry : candidates.tailSet(from, true)) {
+			if (entry.purchaseTime >= query.getToTime() || entries.size() >= query.getLimit()) {
+				break;
+			}
+			if (query.matches(entry.purchaseTime, entry.orderId, entry.state)) {
+				entries.add(entry);
+			}
+		}
+		return read(entries);
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query, @NotNull ITransactionDecoder decoder) {
+		return Transaction.decode(getTransactions(query), decoder);
+	}
+
+	@NotNull
+	private List<Transaction> read(@NotNull Collection<IndexEntry> entries) {
+		final List<Transaction> result = new ArrayList<Transaction>(entries.size());
+		for (IndexEntry entry : entries) {
+			result.add(read(entry.offset));
+		}
+		return result;
+	}
+
+	@NotNull
+	private Transaction read(long offset) {
+		// mapping is replaced before the records beyond it are indexed
+		final ByteBuffer record = mapped.duplicate();
+		final int length = record.getInt((int) offset);
+		record.position((int) offset + RECORD_HEADER_SIZE);
+		record.limit((int) offset + RECORD_HEADER_SIZE + length);
+		return decode(record);
+	}
+
+	@NotNull
+	@Override
+	public Map<Long, String> getProductIdsWithoutKey() {
+		// journal is always written with product keys
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public void updateProductKeys(@NotNull Map<Long, String> productKeys) {
+	}
+
+	@Override
+	public void addPendingNotifications(@NotNull Map<String, String> notifications) {
+		pendingNotifications.add(notifications);
+	}
+
+	@NotNull
+	@Override
+	public List<String> getPendingNotifications(@NotNull String productKey) {
+		return pendingNotifications.get(productKey);
+	}
+
+	@Override
+	public void removePendingNotifications(@NotNull Collection<String> notificationIds) {
+		pendingNotifications.remove(notificationIds);
+	}
+
+	@Override
+	public boolean isEncrypted() {
+		return false;
+	}
+
+	@Override
+	public boolean isCompacted() {
+		return false;
+	}
+
+	@Override
+	public synchronized void drop(@NotNull Context context) {
+		try {
+			channel.truncate(0);
+			writeHeader();
+			size = HEADER_SIZE;
+			mapped = map();
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to truncate " + file, e);
+		}
+		orders.clear();
+		sorted.clear();
+		products.clear();
+		pendingNotifications.clear();
+	}
+
+	public synchronized void close() throws IOException {
+		try {
+			// reserved space is released
+			channel.truncate(size);
+		} finally {
+			channel.close();
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * @return size of the log in bytes (without the space reserved ahead)
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	@NotNull
+	static byte[] encode(@NotNull Transaction transaction) {
+		final byte[] orderId = toBytes(transaction.orderId);
+		final byte[] productId = toBytes(transaction.productId);
+		final byte[] productKey = toBytes(transaction.productKey);
+		final byte[] developerPayload = toBytes(transaction.developerPayload);
+
+		final ByteBuffer result = ByteBuffer.allocate(1 + 8 + 4 * 4 + length(orderId) + length(productId) + length(productKey) + length(developerPayload));
+		result.put((byte) transaction.purchaseState.ordinal());
+		result.putLong(transaction.purchaseTime);
+		putBytes(result, orderId);
+		putBytes(result, productId);
+		putBytes(result, productKey);
+		putBytes(result, developerPayload);
+		return result.array();
+	}
+
+	@NotNull
+	static Transaction decode(@NotNull ByteBuffer buffer) {
+		final Transaction result = new Transaction();
+		result.purchaseState = Transaction.PurchaseState.valueOf(buffer.get());
+		result.purchaseTime = buffer.getLong();
+		result.orderId = getString(buffer);
+		result.productId = getString(buffer);
+		result.productKey = getString(buffer);
+		result.developerPayload = getString(buffer);
+		return result;
+	}
+
+	@Nullable
+	private static byte[] toBytes(@Nullable String s) {
+		try {
+			return s == null ? null : s.getBytes(UTF8);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static int length(@Nullable byte[] bytes) {
+		return bytes == null ? 0 : bytes.length;
+	}
+
+	private static void putBytes(@NotNull ByteBuffer buffer, @Nullable byte[] bytes) {
+		if (bytes == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	@Nullable
+	private static String getString(@NotNull ByteBuffer buffer) {
+		final int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		} else {
+			final byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			try {
+				return new String(bytes, UTF8);
+			} catch (UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+		}
+	}
+
+	private static final class IndexEntry {
+
+		// order of TransactionQuery, entries of the same order (e.g. without order id) are ordered by offset
+		private static final Comparator<IndexEntry> ORDER = new Comparator<IndexEntry>() {
+			@Override
+			public int compare(@NotNull IndexEntry lhs, @NotNull IndexEntry rhs) {
+				final int result = TransactionQuery.compare(lhs.purchaseTime, lhs.orderId, rhs.purchaseTime, rhs.orderId);
+				if (result != 0) {
+					return result;
+				}
+				return lhs.offset < rhs.offset ? -1 : (lhs.offset == rhs.offset ? 0 : 1);
+			}
+		};
+
+		private final long offset;
+
+		@Nullable
+		private final String orderId;
+
+		private final long purchaseTime;
+
+		@Nullable
+		private final String productKey;
+
+		@NotNull
+		private final Transaction.PurchaseState state;
+
+		private IndexEntry(long offset, @Nullable String orderId, long purchaseTime, @Nullable String productKey, @NotNull Transaction.PurchaseState state) {
+			this.offset = offset;
+			this.orderId = orderId;
+			this.purchaseTime = purchaseTime;
+			this.productKey = productKey;
+			this.state = state;
+		}
+
+		/**
+		 * @return entry which precedes all entries with the specified values (not stored in the index)
+		 */
+		@NotNull
+		private static IndexEntry first(long purchaseTime, @NotNull String orderId) {
+			return new IndexEntry(Long.MIN_VALUE, orderId, purchaseTime, null, Transaction.PurchaseState.PURCHASED);
+		}
+	}
+
+	/**
+	 * Offsets of the latest records of the product's orders. Modified only under store's lock
+	 */
+	private static final class ProductIndex {
+
+		@NotNull
+		private final ConcurrentMap<String, IndexEntry> entries = new ConcurrentHashMap<String, IndexEntry>();
+
+		// same entries in the page order
+		@NotNull
+		private final ConcurrentSkipListSet<IndexEntry> sorted = new ConcurrentSkipListSet<IndexEntry>(IndexEntry.ORDER);
+
+		private volatile int purchases;
+
+		private void put(@NotNull String key, @NotNull IndexEntry entry) {
+			final IndexEntry old = entries.put(key, entry);
+			int purchases = this.purchases;
+			if (old != null) {
+				sorted.remove(old);
+				if (old.state == Transaction.PurchaseState.PURCHASED) {
+					purchases--;
+				}
+			}
+			sorted.add(entry);
+			if (entry.state == Transaction.PurchaseState.PURCHASED) {
+				purchases++;
+			}
+			this.purchases = purchases;
+		}
+
+		private void remove(@NotNull String key, @NotNull IndexEntry entry) {
+			if (entries.remove(key, entry)) {
+				sorted.remove(entry);
+				if (entry.state == Transaction.PurchaseState.PURCHASED) {
+					purchases--;
+				}
+			}
+		}
+
+		@Nullable
+		private IndexEntry any() {
+			for (IndexEntry entry : entries.values()) {
+				return entry;
+			}
+			return null;
+		}
+
+		@NotNull
+		private Collection<IndexEntry> entries() {
+			return entries.values();
+		}
+	}
+}
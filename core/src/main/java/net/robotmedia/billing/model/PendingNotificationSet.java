@@ -0,0 +1,60 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Notifications waiting for the manual confirmation kept in memory by the stores which don't persist them
+ * (see {@link ITransactionStore#addPendingNotifications(Map)})
+ */
+final class PendingNotificationSet {
+
+	// key: notification id, value: product key, guarded by this
+	@NotNull
+	private final Map<String, String> notifications = new HashMap<String, String>();
+
+	public synchronized void add(@NotNull Map<String, String> notifications) {
+		this.notifications.putAll(notifications);
+	}
+
+	@NotNull
+	public synchronized List<String> get(@NotNull String productKey) {
+		final List<String> result = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : notifications.entrySet()) {
+			if (productKey.equals(entry.getValue())) {
+				result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	public synchronized void remove(@NotNull Collection<String> notificationIds) {
+		for (String notificationId : notificationIds) {
+			notifications.remove(notificationId);
+		}
+	}
+
+	public synchronized void clear() {
+		notifications.clear();
+	}
+}
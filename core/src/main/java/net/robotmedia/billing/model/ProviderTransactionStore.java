@@ -0,0 +1,368 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transaction store which accesses the store of {@link TransactionProvider} => can be used in all processes of the
+ * application while the database is open only in the provider's process.
+ * Numbers of purchases are cached and the cache is cleared when the provider notifies about a change of the store
+ * (see {@link android.content.ContentResolver#registerContentObserver(Uri, boolean, ContentObserver)}) => entitlement checks
+ * don't cross the process boundary until the transactions change. Transactions themselves are not cached.
+ *
+ * NOTE: inserted and updated transactions can't be told apart through {@link ContentResolver#bulkInsert(Uri, ContentValues[])}
+ * => all written transactions are reported as updated by {@link #insertAll(Collection)}
+ */
+public class ProviderTransactionStore implements ITransactionStore {
+
+	@NotNull
+	private final ContentResolver resolver;
+
+	@NotNull
+	private final Uri transactionsUri;
+
+	@NotNull
+	private final Uri purchasesUri;
+
+	@NotNull
+	private final Uri productIdsWithoutKeyUri;
+
+	@NotNull
+	private final Uri storeUri;
+
+	// package-private for tests
+	@NotNull
+	final ContentObserver observer = new ContentObserver(null) {
+		@Override
+		public void onChange(boolean selfChange) {
+			invalidate();
+		}
+	};
+
+	@NotNull
+	private final Object cacheLock = new Object();
+
+	// key: product key, guarded by cacheLock
+	@NotNull
+	private final Map<String, Integer> purchases = new HashMap<String, Integer>();
+
+	// key: product key, guarded by cacheLock
+	@NotNull
+	private final Map<String, Integer> entitled = new HashMap<String, Integer>();
+
+	// guarded by cacheLock
+	@Nullable
+	private Map<String, Integer> purchasesByProduct;
+
+	// incremented on every invalidation => values read before the invalidation are not cached, guarded by cacheLock
+	private long generation;
+
+	@Nullable
+	private volatile Boolean encrypted;
+
+	// notifications are kept only in memory of this process (see ITransactionStore#addPendingNotifications(Map))
+	@NotNull
+	private final PendingNotificationSet pendingNotifications = new PendingNotificationSet();
+
+	/**
+	 * Creates the store and starts to listen to the changes of the provider's store
+	 *
+	 * @param context context
+	 */
+	public ProviderTransactionStore(@NotNull Context context) {
+		this.resolver = context.getContentResolver();
+		this.transactionsUri = TransactionProvider.getTransactionsUri(context);
+		this.purchasesUri = TransactionProvider.getUri(context, TransactionProvider.PATH_PURCHASES);
+		this.productIdsWithoutKeyUri = TransactionProvider.getUri(context, TransactionProvider.PATH_PRODUCT_IDS_WITHOUT_KEY);
+		this.storeUri = TransactionProvider.getUri(context, TransactionProvider.PATH_STORE);
+		this.resolver.registerContentObserver(transactionsUri, true, observer);
+	}
+
+	/**
+	 * Stops listening to the changes of the provider's store (cache is not used after that)
+	 */
+	public void close() {
+		resolver.unregisterContentObserver(observer);
+		synchronized (cacheLock) {
+			// observer is gone => nothing can be cached anymore
+			generation = -1;
+			purchases.clear();
+			entitled.clear();
+			purchasesByProduct = null;
+		}
+	}
+
+	private void invalidate() {
+		synchronized (cacheLock) {
+			if (generation >= 0) {
+				generation++;
+			}
+			purchases.clear();
+			entitled.clear();
+			purchasesByProduct = null;
+		}
+	}
+
+	private long getGeneration() {
+		synchronized (cacheLock) {
+			return generation;
+		}
+	}
+
+	@Override
+	public void insert(@NotNull Transaction transaction) {
+		insertAll(Collections.singletonList(transaction));
+	}
+
+	@NotNull
+	@Override
+	public InsertResult insertAll(@NotNull Collection<Transaction> transactions) {
+		if (transactions.isEmpty()) {
+			return InsertResult.EMPTY;
+		}
+
+		final ContentValues[] values = new ContentValues[transactions.size()];
+		int i = 0;
+		for (Transaction transaction : transactions) {
+			values[i++] = TransactionProvider.toContentValues(transaction);
+		}
+
+		final int written = resolver.bulkInsert(transactionsUri, values);
+		if (written > 0) {
+			// notification from the provider is asynchronous => own changes must be visible at once
+			invalidate();
+		}
+		return new InsertResult(0, written, values.length - written);
+	}
+
+	@Override
+	public int countPurchases(@NotNull String productKey) {
+		synchronized (cacheLock) {
+			final Integer count = purchases.get(productKey);
+			if (count != null) {
+				return count;
+			}
+		}
+		return loadCounts(productKey)[0];
+	}
+
+	@Override
+	public int countEntitled(@NotNull String productKey) {
+		synchronized (cacheLock) {
+			final Integer count = entitled.get(productKey);
+			if (count != null) {
+				return count;
+			}
+		}
+		return loadCounts(productKey)[1];
+	}
+
+	/**
+	 * Both counts of the product are returned by one query and are cached together
+	 *
+	 * @return {number of purchases, number of entitled orders}
+	 */
+	@NotNull
+	private int[] loadCounts(@NotNull String productKey) {
+		final long generation = getGeneration();
+
+		final int[] counts = new int[2];
+		final Cursor cursor = query(purchasesUri.buildUpon().appendQueryParameter(TransactionProvider.PARAM_PRODUCT_KEY, productKey).build());
+		try {
+			if (cursor.moveToFirst()) {
+				counts[0] = cursor.getInt(1);
+				counts[1] = cursor.getInt(2);
+			}
+		} finally {
+			cursor.close();
+		}
+
+		synchronized (cacheLock) {
+			if (generation >= 0 && this.generation == generation) {
+				purchases.put(productKey, counts[0]);
+				entitled.put(productKey, counts[1]);
+			}
+		}
+		return counts;
+	}
+
+	@NotNull
+	@Override
+	public Map<String, Integer> countPurchasesByProduct() {
+		final long generation;
+		synchronized (cacheLock) {
+			if (purchasesByProduct != null) {
+				return new HashMap<String, Integer>(purchasesByProduct);
+			}
+			generation = this.generation;
+		}
+
+		final Map<String, Integer> result = new HashMap<String, Integer>();
+		final Cursor cursor = query(purchasesUri);
+		try {
+			while (cursor.moveToNext()) {
+				result.put(cursor.getString(0), cursor.getInt(1));
+			}
+		} finally {
+			cursor.close();
+		}
+
+		synchronized (cacheLock) {
+			if (generation >= 0 && this.generation == generation) {
+				purchasesByProduct = new HashMap<String, Integer>(result);
+			}
+		}
+		return result;
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions() {
+		return queryTransactions(transactionsUri);
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull String productKey) {
+		return queryTransactions(transactionsUri.buildUpon().appendQueryParameter(TransactionProvider.PARAM_PRODUCT_KEY, productKey).build());
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query) {
+		return queryTransactions(TransactionProvider.toUri(transactionsUri, query));
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query, @NotNull ITransactionDecoder decoder) {
+		return Transaction.decode(getTransactions(query), decoder);
+	}
+
+	@NotNull
+	private List<Transaction> queryTransactions(@NotNull Uri uri) {
+		final Cursor cursor = query(uri);
+		try {
+			final List<Transaction> result = new ArrayList<Transaction>(cursor.getCount());
+			while (cursor.moveToNext()) {
+				result.add(TransactionProvider.toTransaction(cursor));
+			}
+			return result;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@NotNull
+	@Override
+	public Map<Long, String> getProductIdsWithoutKey() {
+		final Map<Long, String> result = new HashMap<Long, String>();
+		final Cursor cursor = query(productIdsWithoutKeyUri);
+		try {
+			while (cursor.moveToNext()) {
+				result.put(cursor.getLong(0), cursor.getString(1));
+			}
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
+	@Override
+	public void updateProductKeys(@NotNull Map<Long, String> productKeys) {
+		if (!productKeys.isEmpty()) {
+			final ContentValues values = new ContentValues(productKeys.size());
+			for (Map.Entry<Long, String> entry : productKeys.entrySet()) {
+				values.put(String.valueOf(entry.getKey()), entry.getValue());
+			}
+			resolver.update(productIdsWithoutKeyUri, values, null, null);
+			invalidate();
+		}
+	}
+
+	@Override
+	public void addPendingNotifications(@NotNull Map<String, String> notifications) {
+		pendingNotifications.add(notifications);
+	}
+
+	@NotNull
+	@Override
+	public List<String> getPendingNotifications(@NotNull String productKey) {
+		return pendingNotifications.get(productKey);
+	}
+
+	@Override
+	public void removePendingNotifications(@NotNull Collection<String> notificationIds) {
+		pendingNotifications.remove(notificationIds);
+	}
+
+	@Override
+	public boolean isEncrypted() {
+		Boolean encrypted = this.encrypted;
+		if (encrypted == null) {
+			final Cursor cursor = query(storeUri);
+			try {
+				encrypted = cursor.moveToFirst() && cursor.getInt(0) != 0;
+			} finally {
+				cursor.close();
+			}
+			this.encrypted = encrypted;
+		}
+		return encrypted;
+	}
+
+	@Override
+	public boolean isCompacted() {
+		// changed by the compaction in the provider's process => never cached
+		final Cursor cursor = query(storeUri);
+		try {
+			return cursor.moveToFirst() && cursor.getInt(1) != 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public void drop(@NotNull Context context) {
+		resolver.delete(transactionsUri, null, null);
+		invalidate();
+		pendingNotifications.clear();
+	}
+
+	@NotNull
+	private Cursor query(@NotNull Uri uri) {
+		final Cursor cursor = resolver.query(uri, null, null, null, null);
+		if (cursor == null) {
+			throw new IllegalStateException("Transaction provider is not available: " + uri);
+		}
+		return cursor;
+	}
+}
@@ -0,0 +1,126 @@
+package net.robotmedia.billing.model;
+
+import android.content.Context;
+import org.jetbrains.annotations.NotNull;
+import org.solovyev.android.db.AndroidDbUtils;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transaction store backed by {@link BillingDB} (must be initialized with {@link BillingDB#init(android.app.Application)})
+ */
+public class SqliteTransactionStore implements ITransactionStore {
+
+	@Override
+	public void insert(@NotNull Transaction transaction) {
+		BillingDB.getInstance().insert(transaction);
+	}
+
+	@NotNull
+	@Override
+	public InsertResult insertAll(@NotNull Collection<Transaction> transactions) {
+		return BillingDB.getInstance().insertAll(transactions);
+	}
+
+	@Override
+	public int countPurchases(@NotNull String productKey) {
+		return BillingDB.getInstance().countPurchases(productKey);
+	}
+
+	@Override
+	public int countEntitled(@NotNull String productKey) {
+		return BillingDB.getInstance().countEntitled(productKey);
+	}
+
+	@NotNull
+	@Override
+	public Map<String, Integer> countPurchasesByProduct() {
+		return AndroidDbUtils.doDbQuery(getDatabaseHelper(), new BillingDB.CountPurchasesByProduct());
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions() {
+		return AndroidDbUtils.doDbQuery(getMigratedDatabaseHelper(), new BillingDB.TransactionsByProductKey(null));
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull String productKey) {
+		return AndroidDbUtils.doDbQuery(getDatabaseHelper(), new BillingDB.TransactionsByProductKey(productKey));
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query) {
+		// rows which are still migrated have no product key => only pages of all products must wait for them
+		final BillingDB.DatabaseHelper helper = query.getProductKey() == null ? getMigratedDatabaseHelper() : getDatabaseHelper();
+		return AndroidDbUtils.doDbQuery(helper, new BillingDB.TransactionsPage(query));
+	}
+
+	@NotNull
+	@Override
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query, @NotNull ITransactionDecoder decoder) {
+		final BillingDB.DatabaseHelper helper = query.getProductKey() == null ? getMigratedDatabaseHelper() : getDatabaseHelper();
+		return AndroidDbUtils.doDbQuery(helper, new BillingDB.TransactionsPage(query, decoder));
+	}
+
+	@NotNull
+	@Override
+	public Map<Long, String> getProductIdsWithoutKey() {
+		return AndroidDbUtils.doDbQuery(getMigratedDatabaseHelper(), new BillingDB.ProductIdsWithoutKey());
+	}
+
+	@Override
+	public void updateProductKeys(@NotNull Map<Long, String> productKeys) {
+		if (!productKeys.isEmpty()) {
+			AndroidDbUtils.doDbExec(getMigratedDatabaseHelper(), new BillingDB.UpdateProductKeys(productKeys));
+		}
+	}
+
+	@Override
+	public void addPendingNotifications(@NotNull Map<String, String> notifications) {
+		BillingDB.getInstance().addPendingNotifications(notifications);
+	}
+
+	@NotNull
+	@Override
+	public List<String> getPendingNotifications(@NotNull String productKey) {
+		return BillingDB.getInstance().getPendingNotifications(productKey);
+	}
+
+	@Override
+	public void removePendingNotifications(@NotNull Collection<String> notificationIds) {
+		BillingDB.getInstance().removePendingNotifications(notificationIds);
+	}
+
+	@Override
+	public boolean isEncrypted() {
+		return false;
+	}
+
+	@Override
+	public boolean isCompacted() {
+		return BillingDB.getInstance().isCompacted();
+	}
+
+	@Override
+	public void drop(@NotNull Context context) {
+		if (BillingDB.isInitialized()) {
+			BillingDB.getInstance().releaseStatements();
+		}
+		context.deleteDatabase(BillingDB.DATABASE_NAME);
+	}
+
+	@NotNull
+	private static BillingDB.DatabaseHelper getDatabaseHelper() {
+		return BillingDB.getInstance().getDatabaseHelper();
+	}
+
+	@NotNull
+	private static BillingDB.DatabaseHelper getMigratedDatabaseHelper() {
+		return BillingDB.getInstance().getMigratedDatabaseHelper();
+	}
+}
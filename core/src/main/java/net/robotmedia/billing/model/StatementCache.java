@@ -0,0 +1,71 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiled statements of one database reused between calls => SQL of the write paths (insert and counts maintenance)
+ * is compiled only once instead of on every call. Writes are serialized by the SQLite transaction => monitors of the
+ * statements are not contended. Reads must not use the cache: concurrent readers would wait for each other's statements
+ * (see BillingDB#queryForLong(String, String...)).
+ * NOTE: statement keeps its bindings and is not thread safe => it must be bound and executed while holding its monitor:
+ * <pre>
+ * final SQLiteStatement statement = cache.get(db, SQL);
+ * synchronized (statement) {
+ *     statement.clearBindings();
+ *     ...
+ * }
+ * </pre>
+ */
+final class StatementCache {
+
+	// key: SQL, guarded by this
+	@NotNull
+	private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+
+	/**
+	 * @param db  database (must be the same for all calls)
+	 * @param sql SQL of the statement
+	 * @return compiled statement (compiled on the first call)
+	 */
+	@NotNull
+	synchronized SQLiteStatement get(@NotNull SQLiteDatabase db, @NotNull String sql) {
+		SQLiteStatement statement = statements.get(sql);
+		if (statement == null) {
+			statement = db.compileStatement(sql);
+			statements.put(sql, statement);
+		}
+		return statement;
+	}
+
+	/**
+	 * Closes all compiled statements (e.g. before the database is deleted)
+	 */
+	synchronized void close() {
+		for (SQLiteStatement statement : statements.values()) {
+			synchronized (statement) {
+				statement.close();
+			}
+		}
+		statements.clear();
+	}
+}
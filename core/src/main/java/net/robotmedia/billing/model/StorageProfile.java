@@ -0,0 +1,123 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * SQLite settings applied by {@link BillingDB} when the database is opened, see {@link BillingDB#init(android.app.Application, StorageProfile)}.
+ * Settings which are not supported by the SQLite version of the device are ignored (e.g. write-ahead logging before
+ * Android 3.0 or memory-mapped I/O before Android 5.0)
+ */
+public final class StorageProfile {
+
+	public static enum JournalMode {
+		DELETE,
+		TRUNCATE,
+		PERSIST,
+		WAL
+	}
+
+	// ordinal is the value of the PRAGMA synchronous
+	public static enum Synchronous {
+		// data is handed to the OS without syncing: committed transactions may be lost and the database may be corrupted
+		// on power failure (but not on app crash)
+		OFF,
+		// in WAL mode: committed transactions may be lost on power failure, database stays consistent
+		NORMAL,
+		// every commit is synced to the disk
+		FULL
+	}
+
+	/**
+	 * Settings of the platform are not changed (journal mode is kept as stored in the database file, rollback journal
+	 * for databases created by the previous versions of the library). Used by {@link BillingDB#init(android.app.Application)}
+	 */
+	public static final StorageProfile PLATFORM_DEFAULT = new StorageProfile(null, null, 0, 0);
+
+	/**
+	 * Every commit is synced to the disk, nothing is lost on power failure
+	 */
+	public static final StorageProfile DURABLE = new StorageProfile(JournalMode.WAL, Synchronous.FULL, 0, 0);
+
+	/**
+	 * Last commits may be lost on power failure, database is never corrupted. Bigger cache
+	 */
+	public static final StorageProfile BALANCED = new StorageProfile(JournalMode.WAL, Synchronous.NORMAL, 2 * 1024, 4 * 1024 * 1024);
+
+	/**
+	 * Same durability as {@link #BALANCED} (last commits may be lost on power failure, database is never corrupted).
+	 * Big cache and memory-mapped reads.
+	 * NOTE: {@link Synchronous#OFF} is not used by any preset as the database may be corrupted on power failure
+	 */
+	public static final StorageProfile FAST = new StorageProfile(JournalMode.WAL, Synchronous.NORMAL, 8 * 1024, 32 * 1024 * 1024);
+
+	// null => journal mode stored in the database file
+	@Nullable
+	private final JournalMode journalMode;
+
+	// null => SQLite default
+	@Nullable
+	private final Synchronous synchronous;
+
+	// 0 => SQLite default
+	private final int cacheSizeKb;
+
+	// 0 => memory-mapped I/O is not used
+	private final long mmapSize;
+
+	/**
+	 * @param journalMode journal mode (null to keep the mode stored in the database file)
+	 * @param synchronous synchronous level (null for SQLite default)
+	 * @param cacheSizeKb page cache size in kilobytes (0 for SQLite default)
+	 * @param mmapSize	max number of bytes of the database file accessed with memory-mapped I/O (0 to disable)
+	 */
+	public StorageProfile(@Nullable JournalMode journalMode, @Nullable Synchronous synchronous, int cacheSizeKb, long mmapSize) {
+		this.journalMode = journalMode;
+		this.synchronous = synchronous;
+		this.cacheSizeKb = cacheSizeKb;
+		this.mmapSize = mmapSize;
+	}
+
+	@Nullable
+	public JournalMode getJournalMode() {
+		return journalMode;
+	}
+
+	@Nullable
+	public Synchronous getSynchronous() {
+		return synchronous;
+	}
+
+	public int getCacheSizeKb() {
+		return cacheSizeKb;
+	}
+
+	public long getMmapSize() {
+		return mmapSize;
+	}
+
+	@Override
+	public String toString() {
+		return "StorageProfile{" +
+				"journalMode=" + journalMode +
+				", synchronous=" + synchronous +
+				", cacheSizeKb=" + cacheSizeKb +
+				", mmapSize=" + mmapSize +
+				'}';
+	}
+}
@@ -20,6 +20,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.Date;
+import java.util.List;
 
 public class Transaction implements Cloneable {
 
@@ -85,6 +86,12 @@ public class Transaction implements Cloneable {
 	public PurchaseState purchaseState;
 	public long purchaseTime;
 
+	/**
+	 * Key by which transactions of one product are looked up in the storage (keyed hash of product id).
+	 * Set only for the stored transactions and not included in {@link #equals(Object)}
+	 */
+	public String productKey;
+
 	public Transaction() {
 	}
 
@@ -117,6 +124,39 @@ public class Transaction implements Cloneable {
 		return clone;
 	}
 
+	/**
+	 * Decodes product id and developer payload of the transactions in place
+	 *
+	 * @param transactions transactions in the stored form
+	 * @param decoder      decoder of the stored values
+	 * @return same list
+	 */
+	@NotNull
+	static List<Transaction> decode(@NotNull List<Transaction> transactions, @NotNull ITransactionDecoder decoder) {
+		for (Transaction transaction : transactions) {
+			transaction.productId = decoder.decode(transaction.productId);
+			transaction.developerPayload = decoder.decode(transaction.developerPayload);
+		}
+		return transactions;
+	}
+
+	/**
+	 * Checks if stored transaction of the same order must be rewritten with this transaction. Both transactions must be
+	 * in the stored form (i.e. obfuscated). Product id is not compared as it is obfuscated with random IV, order id is
+	 * the same by definition
+	 *
+	 * @param stored stored transaction with the same order id
+	 * @return true if both transactions have the same state, purchase time, developer payload and product key
+	 */
+	boolean isSameAsStored(@NotNull Transaction stored) {
+		if (purchaseState != stored.purchaseState) return false;
+		if (purchaseTime != stored.purchaseTime) return false;
+		if (developerPayload != null ? !developerPayload.equals(stored.developerPayload) : stored.developerPayload != null)
+			return false;
+		if (productKey != null ? !productKey.equals(stored.productKey) : stored.productKey != null) return false;
+
+		return true;
+	}
 
 	@Override
 	public boolean equals(Object o) {
@@ -0,0 +1,238 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming export/import of the transaction store (e.g. for backups or to inspect the stored data).
+ * Transactions are exported page by page (see {@link TransactionQuery}) and imported in batches with
+ * {@link ITransactionStore#insertAll(java.util.Collection)} => memory use doesn't depend on the number of stored transactions.
+ * Transactions are exported as stored (i.e. obfuscated or not, see {@link ITransactionStore#isEncrypted()}) =>
+ * archive must be imported to the store of the same kind.
+ *
+ * Format: [int magic][int version][records: [int length][record]][int 0], record:
+ * [byte flags][order id][product id][byte state][long purchase time][developer payload][product key] where strings
+ * are written as [int length][UTF-8 bytes] and null strings are marked in flags.
+ * Version 1 (never released) wrote strings with {@link DataOutputStream#writeUTF(String)} which is limited to 65535 bytes
+ */
+public final class TransactionArchive {
+
+	private static final int MAGIC = 0x42545841;
+	private static final int VERSION = 2;
+
+	public static final int DEFAULT_PAGE_SIZE = 500;
+
+	// bigger records are treated as corrupted (and are not exported)
+	private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+	private static final String UTF8 = "UTF-8";
+
+	@NotNull
+	private static final Transaction.PurchaseState[] STATES = Transaction.PurchaseState.values();
+
+	private static final int FLAG_ORDER_ID = 1;
+	private static final int FLAG_PRODUCT_ID = 1 << 1;
+	private static final int FLAG_DEVELOPER_PAYLOAD = 1 << 2;
+	private static final int FLAG_PRODUCT_KEY = 1 << 3;
+
+	private TransactionArchive() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Writes all stored transactions to the stream (stream is not closed)
+	 *
+	 * @param store	store to be exported
+	 * @param out	  stream to which transactions are written
+	 * @param pageSize number of transactions read from the store at once
+	 * @return number of exported transactions
+	 * @throws IOException		   if transactions can't be written
+	 * @throws IllegalStateException if the store is compacted (see {@link ITransactionStore#isCompacted()}): folded
+	 *                               transactions can't be exported. Nothing is written to the stream
+	 */
+	public static int export(@NotNull ITransactionStore store, @NotNull OutputStream out, int pageSize) throws IOException {
+		if (store.isCompacted()) {
+			throw new IllegalStateException("Store contains folded transactions and can't be exported");
+		}
+
+		final DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+
+		// record is serialized first to know its length, buffer is reused
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+		final DataOutputStream record = new DataOutputStream(buffer);
+
+		int exported = 0;
+		TransactionQuery query = new TransactionQuery(null, pageSize);
+		while (true) {
+			final List<Transaction> page = store.getTransactions(query);
+			for (Transaction transaction : page) {
+				buffer.reset();
+				write(record, transaction);
+				if (buffer.size() > MAX_RECORD_LENGTH) {
+					throw new IOException("Transaction " + transaction.orderId + " is too big to be exported: " + buffer.size() + " bytes");
+				}
+				data.writeInt(buffer.size());
+				buffer.writeTo(data);
+			}
+			exported += page.size();
+
+			if (page.size() < pageSize) {
+				break;
+			}
+			query = query.after(page.get(page.size() - 1));
+		}
+
+		data.writeInt(0);
+		data.flush();
+		return exported;
+	}
+
+	/**
+	 * Reads transactions from the stream and inserts them to the store (stream is not closed).
+	 * Each batch is inserted at once => if reading fails already inserted batches stay in the store
+	 *
+	 * @param store	 store to which transactions are imported
+	 * @param in		stream with exported transactions
+	 * @param batchSize number of transactions inserted at once
+	 * @return numbers of inserted, updated and unchanged transactions
+	 * @throws IOException if stream doesn't contain exported transactions
+	 */
+	@NotNull
+	public static InsertResult importTo(@NotNull ITransactionStore store, @NotNull InputStream in, int batchSize) throws IOException {
+		final DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not a transaction archive");
+		}
+		final int version = data.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported version of transaction archive: " + version);
+		}
+
+		InsertResult result = InsertResult.EMPTY;
+		final List<Transaction> batch = new ArrayList<Transaction>(batchSize);
+		byte[] bytes = new byte[256];
+		while (true) {
+			final int length = data.readInt();
+			if (length == 0) {
+				break;
+			}
+			if (length < 0 || length > MAX_RECORD_LENGTH) {
+				throw new IOException("Invalid length of record: " + length);
+			}
+			if (bytes.length < length) {
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			}
+			data.readFully(bytes, 0, length);
+
+			try {
+				batch.add(read(new DataInputStream(new ByteArrayInputStream(bytes, 0, length))));
+			} catch (EOFException e) {
+				throw new IOException("Truncated record");
+			}
+
+			if (batch.size() >= batchSize) {
+				result = result.plus(store.insertAll(batch));
+				batch.clear();
+			}
+		}
+
+		if (!batch.isEmpty()) {
+			result = result.plus(store.insertAll(batch));
+		}
+		return result;
+	}
+
+	private static void write(@NotNull DataOutputStream out, @NotNull Transaction transaction) throws IOException {
+		int flags = 0;
+		if (transaction.orderId != null) {
+			flags |= FLAG_ORDER_ID;
+		}
+		if (transaction.productId != null) {
+			flags |= FLAG_PRODUCT_ID;
+		}
+		if (transaction.developerPayload != null) {
+			flags |= FLAG_DEVELOPER_PAYLOAD;
+		}
+		if (transaction.productKey != null) {
+			flags |= FLAG_PRODUCT_KEY;
+		}
+
+		out.writeByte(flags);
+		writeString(out, transaction.orderId);
+		writeString(out, transaction.productId);
+		out.writeByte(transaction.purchaseState.ordinal());
+		out.writeLong(transaction.purchaseTime);
+		writeString(out, transaction.developerPayload);
+		writeString(out, transaction.productKey);
+	}
+
+	@NotNull
+	private static Transaction read(@NotNull DataInputStream in) throws IOException {
+		final int flags = in.readByte();
+
+		final Transaction transaction = new Transaction();
+		transaction.orderId = readString(in, flags, FLAG_ORDER_ID);
+		transaction.productId = readString(in, flags, FLAG_PRODUCT_ID);
+		final int state = in.readByte();
+		if (state < 0 || state >= STATES.length) {
+			throw new IOException("Invalid purchase state: " + state);
+		}
+		transaction.purchaseState = STATES[state];
+		transaction.purchaseTime = in.readLong();
+		transaction.developerPayload = readString(in, flags, FLAG_DEVELOPER_PAYLOAD);
+		transaction.productKey = readString(in, flags, FLAG_PRODUCT_KEY);
+		return transaction;
+	}
+
+	private static void writeString(@NotNull DataOutputStream out, @Nullable String s) throws IOException {
+		if (s != null) {
+			final byte[] bytes = s.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	@Nullable
+	private static String readString(@NotNull DataInputStream in, int flags, int flag) throws IOException {
+		if ((flags & flag) == 0) {
+			return null;
+		}
+
+		final int length = in.readInt();
+		// string can't be longer than the record
+		if (length < 0 || length > MAX_RECORD_LENGTH) {
+			throw new IOException("Invalid length of string: " + length);
+		}
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -16,38 +16,516 @@
 package net.robotmedia.billing.model;
 
 import android.content.Context;
+import android.os.Looper;
 import org.jetbrains.annotations.NotNull;
-import org.solovyev.android.db.AndroidDbUtils;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class TransactionManager {
 
-	public synchronized static void dropDatabase(@NotNull Context context) {
-		context.deleteDatabase(BillingDB.DATABASE_NAME);
+	/*
+	 * Locking: stores are thread safe => read lock is taken by both readers and writers (it only guards store and write
+	 * queue references), write lock is taken only when store or write queue is changed (or when nothing else may access the store).
+	 * Writers are serialized by writeLock => readers proceed concurrently with each other and with one writer
+	 */
+
+	@NotNull
+	private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	@NotNull
+	private static final Object writeLock = new Object();
+
+	// guarded by lock
+	@NotNull
+	private static ITransactionStore store = new SqliteTransactionStore();
+
+	// if null transactions are written directly to the store, guarded by lock
+	@Nullable
+	private static TransactionWriteQueue writeQueue;
+
+	private static volatile boolean mainThreadCheckEnabled = false;
+
+	// notified under writeLock
+	@Nullable
+	private static volatile Listener listener;
+
+	/**
+	 * If enabled methods which access the store throw {@link IllegalStateException} when called on the main thread.
+	 * Should be enabled in debug builds to find the places where {@link AsyncTransactionManager} should be used
+	 *
+	 * @param enabled true if main thread check should be enabled
+	 */
+	public static void setMainThreadCheckEnabled(boolean enabled) {
+		mainThreadCheckEnabled = enabled;
 	}
 
-	public synchronized static void addTransaction(@NotNull Transaction transaction) {
-		BillingDB.getInstance().insert(transaction);
+	static void checkNotMainThread() {
+		if (mainThreadCheckEnabled && Looper.myLooper() == Looper.getMainLooper()) {
+			throw new IllegalStateException("Transaction store must not be accessed on the main thread, see AsyncTransactionManager");
+		}
 	}
 
-	public synchronized static boolean isPurchased(@NotNull String productId) {
-		return countPurchases(productId) > 0;
+	/**
+	 * Sets the listener which is notified after every change of the stored transactions (e.g. to keep caches of the
+	 * purchase counts up to date). Listener is notified on the writing thread while other writers wait => it sees the
+	 * changes in the order they were made and can read the store
+	 *
+	 * @param listener listener, null to remove the current one
+	 */
+	public static void setListener(@Nullable Listener listener) {
+		TransactionManager.listener = listener;
 	}
 
-	public synchronized static int countPurchases(@NotNull String productId) {
-		return AndroidDbUtils.doDbQuery(BillingDB.getInstance().getDatabaseHelper(), new BillingDB.CountPurchases(productId));
+	// must be called under writeLock
+	private static void notifyListener(@Nullable Collection<Transaction> transactions) {
+		final Listener listener = TransactionManager.listener;
+		if (listener != null) {
+			listener.onTransactionsChanged(transactions);
+		}
+	}
+
+	/**
+	 * Notifies the listener about the change of the store made outside of this class (e.g. compaction of {@link BillingDB})
+	 */
+	static void onStoreChanged() {
+		lock.readLock().lock();
+		try {
+			synchronized (writeLock) {
+				notifyListener(null);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets the store in which transactions are kept. Queued transactions (if any) are committed to the previous store.
+	 * By default transactions are stored in SQLite database, see {@link SqliteTransactionStore}
+	 *
+	 * @param store transaction store
+	 */
+	public static void setStore(@NotNull ITransactionStore store) {
+		lock.writeLock().lock();
+		try {
+			final TransactionWriteQueue oldWriteQueue = writeQueue;
+			if (oldWriteQueue != null) {
+				oldWriteQueue.shutdown();
+				writeQueue = new TransactionWriteQueue(store, oldWriteQueue.getWindowMillis(), oldWriteQueue.getMaxBatchSize());
+			}
+			TransactionManager.store = store;
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
 	@NotNull
-	public synchronized static List<Transaction> getTransactions() {
-		return AndroidDbUtils.doDbQuery(BillingDB.getInstance().getDatabaseHelper(), new BillingDB.TransactionsByProductId(null));
+	public static ITransactionStore getStore() {
+		lock.readLock().lock();
+		try {
+			return store;
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
+	/**
+	 * Copies all transactions to the new store, switches to it and drops the previous store.
+	 * Transactions added in the meantime wait until migration is finished
+	 *
+	 * @param context   context
+	 * @param store	 new transaction store
+	 * @param converter converts transactions from the format of the previous store to the format of the new one
+	 * @throws IllegalStateException if the current store is compacted (see {@link ITransactionStore#isCompacted()}):
+	 *                               folded transactions would be lost
+	 */
+	public static void migrateStore(@NotNull Context context, @NotNull ITransactionStore store, @NotNull Converter converter) {
+		checkNotMainThread();
+		lock.writeLock().lock();
+		try {
+			flush();
+
+			final ITransactionStore oldStore = TransactionManager.store;
+			if (oldStore != store) {
+				if (oldStore.isCompacted()) {
+					throw new IllegalStateException("Store contains folded transactions and can't be migrated");
+				}
+				final List<Transaction> transactions = oldStore.getTransactions();
+				converter.convert(transactions);
+				store.insertAll(transactions);
+
+				setStore(store);
+				oldStore.drop(context);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes all stored transactions to the stream page by page, see {@link TransactionArchive}
+	 *
+	 * @param out stream to which transactions are written (not closed)
+	 * @return number of exported transactions
+	 * @throws IOException		   if transactions can't be written
+	 * @throws IllegalStateException if the store is compacted, see {@link TransactionArchive#export(ITransactionStore, OutputStream, int)}
+	 */
+	public static int exportTransactions(@NotNull OutputStream out) throws IOException {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			flush();
+			return TransactionArchive.export(store, out, TransactionArchive.DEFAULT_PAGE_SIZE);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Inserts transactions exported by {@link #exportTransactions(OutputStream)} in batches (bypassing the write queue).
+	 * Other writers wait until import is finished
+	 *
+	 * @param in stream with exported transactions (not closed)
+	 * @return numbers of inserted, updated and unchanged transactions
+	 * @throws IOException if stream doesn't contain exported transactions
+	 */
 	@NotNull
-	public synchronized static List<Transaction> getTransactions(@NotNull String productId) {
-		return AndroidDbUtils.doDbQuery(BillingDB.getInstance().getDatabaseHelper(), new BillingDB.TransactionsByProductId(productId));
+	public static InsertResult importTransactions(@NotNull InputStream in) throws IOException {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			flush();
+			synchronized (writeLock) {
+				try {
+					return TransactionArchive.importTo(store, in, TransactionArchive.DEFAULT_PAGE_SIZE);
+				} finally {
+					// some pages might have been imported even if the import failed
+					notifyListener(null);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public static void dropDatabase(@NotNull Context context) {
+		checkNotMainThread();
+		lock.writeLock().lock();
+		try {
+			if (writeQueue != null) {
+				writeQueue.flush();
+			}
+			store.drop(context);
+			synchronized (writeLock) {
+				notifyListener(null);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Enables write-behind mode: transactions are queued and committed in batches
+	 *
+	 * @param windowMillis time window in which transactions are collected to one batch
+	 * @param maxBatchSize max number of transactions in one batch
+	 */
+	public static void enableWriteQueue(long windowMillis, int maxBatchSize) {
+		lock.writeLock().lock();
+		try {
+			disableWriteQueue();
+			writeQueue = new TransactionWriteQueue(store, windowMillis, maxBatchSize);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Commits all queued transactions and switches to the write-through mode
+	 */
+	public static void disableWriteQueue() {
+		lock.writeLock().lock();
+		try {
+			if (writeQueue != null) {
+				writeQueue.shutdown();
+				writeQueue = null;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Commits all queued transactions (if any). Should be called on shutdown
+	 */
+	public static void flush() {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			if (writeQueue != null) {
+				writeQueue.flush();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
+	@Nullable
+	public static TransactionWriteQueue.Stats getWriteQueueStats() {
+		lock.readLock().lock();
+		try {
+			return writeQueue == null ? null : writeQueue.getStats();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public static void addTransaction(@NotNull Transaction transaction) {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			synchronized (writeLock) {
+				// queued transactions are counted by the queue => listener sees them as stored
+				if (writeQueue != null) {
+					writeQueue.add(transaction);
+				} else {
+					store.insert(transaction);
+				}
+				notifyListener(Collections.singletonList(transaction));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param transactions transactions to be stored
+	 * @return numbers of inserted, updated and unchanged transactions, null if transactions were queued (see {@link #enableWriteQueue(long, int)})
+	 */
+	@Nullable
+	public static InsertResult addTransactions(@NotNull Collection<Transaction> transactions) {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			synchronized (writeLock) {
+				final InsertResult result;
+				if (writeQueue != null) {
+					for (Transaction transaction : transactions) {
+						writeQueue.add(transaction);
+					}
+					result = null;
+				} else {
+					result = store.insertAll(transactions);
+				}
+				notifyListener(transactions);
+				return result;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public static boolean isPurchased(@NotNull String productKey) {
+		return countPurchases(productKey) > 0;
+	}
+
+	public static int countPurchases(@NotNull String productKey) {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			return writeQueue != null ? writeQueue.countPurchases(productKey) : store.countPurchases(productKey);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
 
+	public static boolean isEntitled(@NotNull String productKey) {
+		return countEntitled(productKey) > 0;
+	}
+
+	/**
+	 * @param productKey product key
+	 * @return number of orders of the product whose latest state is PURCHASED, see {@link ITransactionStore#countEntitled(String)}
+	 */
+	public static int countEntitled(@NotNull String productKey) {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			return writeQueue != null ? writeQueue.countEntitled(productKey) : store.countEntitled(productKey);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of purchases for each product which has been purchased at least once (key: product id as stored
+	 * in one of the product's transactions)
+	 */
+	@NotNull
+	public static Map<String, Integer> countPurchasesByProduct() {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			return writeQueue != null ? writeQueue.countPurchasesByProduct() : store.countPurchasesByProduct();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@NotNull
+	public static List<Transaction> getTransactions() {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			return writeQueue != null ? writeQueue.getTransactions() : store.getTransactions();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@NotNull
+	public static List<Transaction> getTransactions(@NotNull String productKey) {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			return writeQueue != null ? writeQueue.getTransactions(productKey) : store.getTransactions(productKey);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param query page to be returned
+	 * @return transactions of the page, see {@link TransactionQuery}
+	 */
+	@NotNull
+	public static List<Transaction> getTransactions(@NotNull TransactionQuery query) {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			return writeQueue != null ? writeQueue.getTransactions(query) : store.getTransactions(query);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param query   page to be returned
+	 * @param decoder decoder of the stored product ids and developer payloads
+	 * @return decoded transactions of the page, see {@link ITransactionStore#getTransactions(TransactionQuery, ITransactionDecoder)}
+	 */
+	@NotNull
+	public static List<Transaction> getTransactions(@NotNull TransactionQuery query, @NotNull ITransactionDecoder decoder) {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			return writeQueue != null ? writeQueue.getTransactions(query, decoder) : store.getTransactions(query, decoder);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return product ids (as stored) of the stored transactions without product key (key: row id)
+	 */
+	@NotNull
+	public static Map<Long, String> getProductIdsWithoutKey() {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			// queued transactions have no row ids => they are returned after they are committed
+			return store.getProductIdsWithoutKey();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param productKeys product keys to be set (key: row id, value: product key)
+	 */
+	public static void updateProductKeys(@NotNull Map<Long, String> productKeys) {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			synchronized (writeLock) {
+				store.updateProductKeys(productKeys);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param notifications notifications waiting for the manual confirmation (key: notification id, value: product key),
+	 *                      see {@link ITransactionStore#addPendingNotifications(Map)}
+	 */
+	public static void addPendingNotifications(@NotNull Map<String, String> notifications) {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			synchronized (writeLock) {
+				store.addPendingNotifications(notifications);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param productKey product key
+	 * @return ids of the notifications of the product which haven't been confirmed yet
+	 */
+	@NotNull
+	public static List<String> getPendingNotifications(@NotNull String productKey) {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			return store.getPendingNotifications(productKey);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param notificationIds ids of the confirmed notifications
+	 */
+	public static void removePendingNotifications(@NotNull Collection<String> notificationIds) {
+		checkNotMainThread();
+		lock.readLock().lock();
+		try {
+			synchronized (writeLock) {
+				store.removePendingNotifications(notificationIds);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public static interface Listener {
+
+		/**
+		 * Called after transactions are stored (or queued, see {@link #enableWriteQueue(long, int)})
+		 *
+		 * @param transactions stored transactions (as passed to the store), null if any stored transaction might have
+		 *                     changed (e.g. after import, compaction or drop)
+		 */
+		void onTransactionsChanged(@Nullable Collection<Transaction> transactions);
+	}
+
+	public static interface Converter {
+
+		/**
+		 * Converts transactions in place
+		 *
+		 * @param transactions transactions to be converted
+		 */
+		void convert(@NotNull List<Transaction> transactions);
+	}
 }
@@ -0,0 +1,433 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content provider which gives access to the transaction store to all processes of the application => only the
+ * provider's process keeps the database open and other processes use {@link ProviderTransactionStore}.
+ * Every change of the store is announced with {@link android.content.ContentResolver#notifyChange(Uri, android.database.ContentObserver)}
+ * on {@link #getTransactionsUri(Context)} (see {@link ProviderTransactionStore} for the cached counts).
+ * Transactions are inserted in one store transaction by {@link #bulkInsert(Uri, ContentValues[])} and by
+ * {@link #applyBatch(ArrayList)} (consecutive inserts of the batch are collected and inserted at once).
+ *
+ * Provider must be declared in the application's manifest with authority "&lt;package name&gt;.billing.transactions"
+ * (see {@link #getAuthority(Context)}), backing store is created in {@link #createStore()} when the provider is used
+ * for the first time.
+ */
+public class TransactionProvider extends ContentProvider {
+
+	static final String AUTHORITY_SUFFIX = ".billing.transactions";
+
+	static final String PATH_TRANSACTIONS = "transactions";
+	static final String PATH_PURCHASES = "purchases";
+	static final String PATH_PRODUCT_IDS_WITHOUT_KEY = "productIdsWithoutKey";
+	static final String PATH_STORE = "store";
+
+	static final String PARAM_PRODUCT_KEY = "productKey";
+	static final String PARAM_FROM_TIME = "fromTime";
+	static final String PARAM_TO_TIME = "toTime";
+	static final String PARAM_STATES = "states";
+	static final String PARAM_AFTER_TIME = "afterTime";
+	static final String PARAM_AFTER_ORDER_ID = "afterOrderId";
+	static final String PARAM_LIMIT = "limit";
+
+	static final String COLUMN_COUNT = "count";
+	static final String COLUMN_ENTITLED = "entitled";
+	static final String COLUMN_ENCRYPTED = "encrypted";
+	static final String COLUMN_COMPACTED = "compacted";
+
+	static final String[] TRANSACTION_COLUMNS = {
+			BillingDB.COLUMN_ID,
+			BillingDB.COLUMN_PRODUCT_ID,
+			BillingDB.COLUMN_STATE,
+			BillingDB.COLUMN_PURCHASE_TIME,
+			BillingDB.COLUMN_DEVELOPER_PAYLOAD,
+			BillingDB.COLUMN_PRODUCT_KEY
+	};
+
+	private static final int MATCH_TRANSACTIONS = 1;
+	private static final int MATCH_PURCHASES = 2;
+	private static final int MATCH_PRODUCT_IDS_WITHOUT_KEY = 3;
+	private static final int MATCH_STORE = 4;
+
+	private static final String TYPE_PREFIX = "vnd.android.cursor.dir/vnd.net.robotmedia.billing.";
+
+	@NotNull
+	private final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+	// guarded by this
+	@Nullable
+	private ITransactionStore store;
+
+	// inserts collected during applyBatch (null if no batch is applied in the current thread)
+	@NotNull
+	private final ThreadLocal<List<Transaction>> batch = new ThreadLocal<List<Transaction>>();
+
+	/**
+	 * @param context context
+	 * @return authority of the provider declared in the manifest of the application
+	 */
+	@NotNull
+	public static String getAuthority(@NotNull Context context) {
+		return context.getPackageName() + AUTHORITY_SUFFIX;
+	}
+
+	/**
+	 * @param context context
+	 * @return uri of all transactions: observers registered for this uri (with descendants) are notified about every change of the store
+	 */
+	@NotNull
+	public static Uri getTransactionsUri(@NotNull Context context) {
+		return getUri(context, PATH_TRANSACTIONS);
+	}
+
+	@NotNull
+	static Uri getUri(@NotNull Context context, @NotNull String path) {
+		return Uri.parse("content://" + getAuthority(context) + "/" + path);
+	}
+
+	@Override
+	public boolean onCreate() {
+		final String authority = getAuthority(getContext());
+		matcher.addURI(authority, PATH_TRANSACTIONS, MATCH_TRANSACTIONS);
+		matcher.addURI(authority, PATH_PURCHASES, MATCH_PURCHASES);
+		matcher.addURI(authority, PATH_PRODUCT_IDS_WITHOUT_KEY, MATCH_PRODUCT_IDS_WITHOUT_KEY);
+		matcher.addURI(authority, PATH_STORE, MATCH_STORE);
+		// store is created lazily: provider is created before Application#onCreate()
+		return true;
+	}
+
+	/**
+	 * Creates the store which is exposed by this provider. Called once, when the provider is used for the first time
+	 * (i.e. after the application was created).
+	 * NOTE: must not return {@link ProviderTransactionStore}
+	 *
+	 * @return store backed by {@link BillingDB} (database must be initialized in Application#onCreate() of the provider's process)
+	 */
+	@NotNull
+	protected ITransactionStore createStore() {
+		return new SqliteTransactionStore();
+	}
+
+	@NotNull
+	private synchronized ITransactionStore getStore() {
+		if (store == null) {
+			store = createStore();
+		}
+		return store;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		switch (matcher.match(uri)) {
+			case MATCH_TRANSACTIONS:
+				return TYPE_PREFIX + PATH_TRANSACTIONS;
+			case MATCH_PURCHASES:
+				return TYPE_PREFIX + PATH_PURCHASES;
+			case MATCH_PRODUCT_IDS_WITHOUT_KEY:
+				return TYPE_PREFIX + PATH_PRODUCT_IDS_WITHOUT_KEY;
+			case MATCH_STORE:
+				return TYPE_PREFIX + PATH_STORE;
+			default:
+				return null;
+		}
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		final ITransactionStore store = getStore();
+		final String productKey = uri.getQueryParameter(PARAM_PRODUCT_KEY);
+
+		final MatrixCursor result;
+		switch (matcher.match(uri)) {
+			case MATCH_TRANSACTIONS:
+				final List<Transaction> transactions;
+				if (uri.getQueryParameter(PARAM_LIMIT) != null) {
+					transactions = store.getTransactions(toQuery(uri));
+				} else if (productKey != null) {
+					transactions = store.getTransactions(productKey);
+				} else {
+					transactions = store.getTransactions();
+				}
+				result = new MatrixCursor(TRANSACTION_COLUMNS, transactions.size());
+				for (Transaction transaction : transactions) {
+					result.addRow(new Object[]{
+							transaction.orderId,
+							transaction.productId,
+							transaction.purchaseState.ordinal(),
+							transaction.purchaseTime,
+							transaction.developerPayload,
+							transaction.productKey});
+				}
+				break;
+			case MATCH_PURCHASES:
+				if (productKey != null) {
+					result = new MatrixCursor(new String[]{BillingDB.COLUMN_PRODUCT_KEY, COLUMN_COUNT, COLUMN_ENTITLED}, 1);
+					result.addRow(new Object[]{productKey, store.countPurchases(productKey), store.countEntitled(productKey)});
+				} else {
+					final Map<String, Integer> counts = store.countPurchasesByProduct();
+					result = new MatrixCursor(new String[]{BillingDB.COLUMN_PRODUCT_ID, COLUMN_COUNT}, counts.size());
+					for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+						result.addRow(new Object[]{entry.getKey(), entry.getValue()});
+					}
+				}
+				break;
+			case MATCH_PRODUCT_IDS_WITHOUT_KEY:
+				final Map<Long, String> productIds = store.getProductIdsWithoutKey();
+				result = new MatrixCursor(new String[]{BillingDB.COLUMN_ID, BillingDB.COLUMN_PRODUCT_ID}, productIds.size());
+				for (Map.Entry<Long, String> entry : productIds.entrySet()) {
+					result.addRow(new Object[]{entry.getKey(), entry.getValue()});
+				}
+				break;
+			case MATCH_STORE:
+				result = new MatrixCursor(new String[]{COLUMN_ENCRYPTED, COLUMN_COMPACTED}, 1);
+				result.addRow(new Object[]{store.isEncrypted() ? 1 : 0, store.isCompacted() ? 1 : 0});
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown uri: " + uri);
+		}
+
+		result.setNotificationUri(getContext().getContentResolver(), getTransactionsUri(getContext()));
+		return result;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		checkTransactions(uri);
+
+		final Transaction transaction = toTransaction(values);
+		final List<Transaction> batch = this.batch.get();
+		if (batch != null) {
+			batch.add(transaction);
+		} else {
+			if (getStore().insertAll(Collections.singletonList(transaction)).getWritten() > 0) {
+				notifyChange();
+			}
+		}
+		return transaction.orderId == null ? uri : Uri.withAppendedPath(uri, transaction.orderId);
+	}
+
+	/**
+	 * Inserts all transactions at once, see {@link ITransactionStore#insertAll(java.util.Collection)}
+	 *
+	 * @return number of written transactions (inserted or updated)
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		checkTransactions(uri);
+
+		final List<Transaction> transactions = new ArrayList<Transaction>(values.length);
+		for (ContentValues value : values) {
+			transactions.add(toTransaction(value));
+		}
+
+		final List<Transaction> batch = this.batch.get();
+		if (batch != null) {
+			batch.addAll(transactions);
+			return transactions.size();
+		} else {
+			return insertAll(transactions);
+		}
+	}
+
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+		final List<Transaction> batch = new ArrayList<Transaction>();
+		this.batch.set(batch);
+		try {
+			final ContentProviderResult[] results = super.applyBatch(operations);
+			flushBatch();
+			return results;
+		} finally {
+			this.batch.remove();
+		}
+	}
+
+	/**
+	 * Removes all the transactions, see {@link ITransactionStore#drop(Context)}
+	 */
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		checkTransactions(uri);
+		flushBatch();
+
+		getStore().drop(getContext());
+		notifyChange();
+		return 0;
+	}
+
+	/**
+	 * Updates product keys, see {@link ITransactionStore#updateProductKeys(Map)}
+	 *
+	 * @param values key: row id, value: product key
+	 */
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		if (matcher.match(uri) != MATCH_PRODUCT_IDS_WITHOUT_KEY) {
+			throw new IllegalArgumentException("Unsupported uri: " + uri);
+		}
+		flushBatch();
+
+		final Map<Long, String> productKeys = new HashMap<Long, String>();
+		for (Map.Entry<String, Object> entry : values.valueSet()) {
+			productKeys.put(Long.valueOf(entry.getKey()), (String) entry.getValue());
+		}
+		getStore().updateProductKeys(productKeys);
+		notifyChange();
+		return productKeys.size();
+	}
+
+	// inserts transactions collected by applyBatch so far (operations are applied in order)
+	private void flushBatch() {
+		final List<Transaction> batch = this.batch.get();
+		if (batch != null && !batch.isEmpty()) {
+			final List<Transaction> transactions = new ArrayList<Transaction>(batch);
+			batch.clear();
+			insertAll(transactions);
+		}
+	}
+
+	private int insertAll(@NotNull List<Transaction> transactions) {
+		final int written = getStore().insertAll(transactions).getWritten();
+		if (written > 0) {
+			notifyChange();
+		}
+		return written;
+	}
+
+	private void notifyChange() {
+		getContext().getContentResolver().notifyChange(getTransactionsUri(getContext()), null);
+	}
+
+	private void checkTransactions(@NotNull Uri uri) {
+		if (matcher.match(uri) != MATCH_TRANSACTIONS) {
+			throw new IllegalArgumentException("Unsupported uri: " + uri);
+		}
+	}
+
+	@NotNull
+	static ContentValues toContentValues(@NotNull Transaction transaction) {
+		final ContentValues values = new ContentValues(TRANSACTION_COLUMNS.length);
+		values.put(BillingDB.COLUMN_ID, transaction.orderId);
+		values.put(BillingDB.COLUMN_PRODUCT_ID, transaction.productId);
+		values.put(BillingDB.COLUMN_STATE, transaction.purchaseState.ordinal());
+		values.put(BillingDB.COLUMN_PURCHASE_TIME, transaction.purchaseTime);
+		values.put(BillingDB.COLUMN_DEVELOPER_PAYLOAD, transaction.developerPayload);
+		values.put(BillingDB.COLUMN_PRODUCT_KEY, transaction.productKey);
+		return values;
+	}
+
+	@NotNull
+	static Transaction toTransaction(@NotNull ContentValues values) {
+		final Transaction transaction = new Transaction();
+		transaction.orderId = values.getAsString(BillingDB.COLUMN_ID);
+		transaction.productId = values.getAsString(BillingDB.COLUMN_PRODUCT_ID);
+		transaction.purchaseState = Transaction.PurchaseState.valueOf(values.getAsInteger(BillingDB.COLUMN_STATE));
+		transaction.purchaseTime = values.getAsLong(BillingDB.COLUMN_PURCHASE_TIME);
+		transaction.developerPayload = values.getAsString(BillingDB.COLUMN_DEVELOPER_PAYLOAD);
+		transaction.productKey = values.getAsString(BillingDB.COLUMN_PRODUCT_KEY);
+		return transaction;
+	}
+
+	@NotNull
+	static Transaction toTransaction(@NotNull Cursor cursor) {
+		final Transaction transaction = new Transaction();
+		transaction.orderId = cursor.getString(0);
+		transaction.productId = cursor.getString(1);
+		transaction.purchaseState = Transaction.PurchaseState.valueOf(cursor.getInt(2));
+		transaction.purchaseTime = cursor.getLong(3);
+		transaction.developerPayload = cursor.getString(4);
+		transaction.productKey = cursor.getString(5);
+		return transaction;
+	}
+
+	/**
+	 * @return uri of the page of transactions described by the query
+	 */
+	@NotNull
+	static Uri toUri(@NotNull Uri transactionsUri, @NotNull TransactionQuery query) {
+		final Uri.Builder builder = transactionsUri.buildUpon();
+		if (query.getProductKey() != null) {
+			builder.appendQueryParameter(PARAM_PRODUCT_KEY, query.getProductKey());
+		}
+		builder.appendQueryParameter(PARAM_FROM_TIME, String.valueOf(query.getFromTime()));
+		builder.appendQueryParameter(PARAM_TO_TIME, String.valueOf(query.getToTime()));
+		final Set<Transaction.PurchaseState> states = query.getStates();
+		if (states != null) {
+			final StringBuilder value = new StringBuilder();
+			for (Transaction.PurchaseState state : states) {
+				if (value.length() > 0) {
+					value.append(',');
+				}
+				value.append(state.ordinal());
+			}
+			builder.appendQueryParameter(PARAM_STATES, value.toString());
+		}
+		if (query.hasAfter()) {
+			builder.appendQueryParameter(PARAM_AFTER_TIME, String.valueOf(query.getAfterTime()));
+			builder.appendQueryParameter(PARAM_AFTER_ORDER_ID, query.getAfterOrderId());
+		}
+		builder.appendQueryParameter(PARAM_LIMIT, String.valueOf(query.getLimit()));
+		return builder.build();
+	}
+
+	@NotNull
+	static TransactionQuery toQuery(@NotNull Uri uri) {
+		TransactionQuery query = new TransactionQuery(uri.getQueryParameter(PARAM_PRODUCT_KEY), Integer.parseInt(uri.getQueryParameter(PARAM_LIMIT)));
+		query = query.between(Long.parseLong(uri.getQueryParameter(PARAM_FROM_TIME)), Long.parseLong(uri.getQueryParameter(PARAM_TO_TIME)));
+
+		final String states = uri.getQueryParameter(PARAM_STATES);
+		if (states != null) {
+			final Set<Transaction.PurchaseState> set = EnumSet.noneOf(Transaction.PurchaseState.class);
+			if (states.length() > 0) {
+				for (String state : states.split(",")) {
+					set.add(Transaction.PurchaseState.values()[Integer.parseInt(state)]);
+				}
+			}
+			query = query.withStates(set);
+		}
+
+		final String afterTime = uri.getQueryParameter(PARAM_AFTER_TIME);
+		if (afterTime != null) {
+			final Transaction last = new Transaction();
+			last.purchaseTime = Long.parseLong(afterTime);
+			last.orderId = uri.getQueryParameter(PARAM_AFTER_ORDER_ID);
+			query = query.after(last);
+		}
+		return query;
+	}
+}
@@ -0,0 +1,212 @@
+package net.robotmedia.billing.model;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Query for one page of transactions. Transactions are ordered by purchase time and then by order id (as stored),
+ * next page is requested by {@link #after(Transaction)} with the last transaction of the current page (keyset paging) =>
+ * pages stay consistent if transactions are added between the requests.
+ * Transactions can be filtered by product, purchase time range and purchase states: filters are applied by the store
+ * (e.g. in SQL) => returned pages contain only matching transactions.
+ * NOTE: transactions without order id are ordered as if their order id was empty
+ */
+public final class TransactionQuery {
+
+	public static final int DEFAULT_LIMIT = 50;
+
+	static final Comparator<Transaction> ORDER = new Comparator<Transaction>() {
+		@Override
+		public int compare(@NotNull Transaction lhs, @NotNull Transaction rhs) {
+			return TransactionQuery.compare(lhs.purchaseTime, lhs.orderId, rhs.purchaseTime, rhs.orderId);
+		}
+	};
+
+	// null => transactions of all products
+	@Nullable
+	private final String productKey;
+
+	// inclusive
+	private final long fromTime;
+
+	// exclusive
+	private final long toTime;
+
+	// null => transactions in all states
+	@Nullable
+	private final Set<Transaction.PurchaseState> states;
+
+	// keyset of the last transaction of the previous page
+	private final boolean after;
+	private final long afterTime;
+	@NotNull
+	private final String afterOrderId;
+
+	private final int limit;
+
+	public TransactionQuery(@Nullable String productKey) {
+		this(productKey, DEFAULT_LIMIT);
+	}
+
+	public TransactionQuery(@Nullable String productKey, int limit) {
+		this(productKey, Long.MIN_VALUE, Long.MAX_VALUE, null, false, 0, "", limit);
+	}
+
+	private TransactionQuery(@Nullable String productKey,
+							 long fromTime,
+							 long toTime,
+							 @Nullable Set<Transaction.PurchaseState> states,
+							 boolean after,
+							 long afterTime,
+							 @NotNull String afterOrderId,
+							 int limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("Limit must be positive: " + limit);
+		}
+		this.productKey = productKey;
+		this.fromTime = fromTime;
+		this.toTime = toTime;
+		this.states = states;
+		this.after = after;
+		this.afterTime = afterTime;
+		this.afterOrderId = afterOrderId;
+		this.limit = limit;
+	}
+
+	/**
+	 * @param last last transaction of the current page (as returned by the store)
+	 * @return query for the next page
+	 */
+	@NotNull
+	public TransactionQuery after(@NotNull Transaction last) {
+		return new TransactionQuery(productKey, fromTime, toTime, states, true, last.purchaseTime, nonNull(last.orderId), limit);
+	}
+
+	/**
+	 * @param productKey product key (null for all products)
+	 * @return same query for the specified product
+	 */
+	@NotNull
+	public TransactionQuery forProduct(@Nullable String productKey) {
+		return new TransactionQuery(productKey, fromTime, toTime, states, after, afterTime, afterOrderId, limit);
+	}
+
+	/**
+	 * @param limit max number of transactions in the page
+	 * @return same query with another page size
+	 */
+	@NotNull
+	TransactionQuery withLimit(int limit) {
+		return new TransactionQuery(productKey, fromTime, toTime, states, after, afterTime, afterOrderId, limit);
+	}
+
+	/**
+	 * @param fromTime purchase time from which transactions are returned (inclusive)
+	 * @param toTime   purchase time until which transactions are returned (exclusive)
+	 * @return same query for the transactions purchased in the specified time range
+	 */
+	@NotNull
+	public TransactionQuery between(long fromTime, long toTime) {
+		return new TransactionQuery(productKey, fromTime, toTime, states, after, afterTime, afterOrderId, limit);
+	}
+
+	/**
+	 * @param states states of the returned transactions
+	 * @return same query for the transactions in the specified states
+	 */
+	@NotNull
+	public TransactionQuery withStates(@NotNull Collection<Transaction.PurchaseState> states) {
+		final Set<Transaction.PurchaseState> copy = states.isEmpty() ? EnumSet.noneOf(Transaction.PurchaseState.class) : EnumSet.copyOf(states);
+		return new TransactionQuery(productKey, fromTime, toTime, Collections.unmodifiableSet(copy), after, afterTime, afterOrderId, limit);
+	}
+
+	@Nullable
+	public String getProductKey() {
+		return productKey;
+	}
+
+	public long getFromTime() {
+		return fromTime;
+	}
+
+	public long getToTime() {
+		return toTime;
+	}
+
+	/**
+	 * @return states of the returned transactions, null if transactions in all states are returned
+	 */
+	@Nullable
+	public Set<Transaction.PurchaseState> getStates() {
+		return states;
+	}
+
+	public boolean hasAfter() {
+		return after;
+	}
+
+	public long getAfterTime() {
+		return afterTime;
+	}
+
+	@NotNull
+	public String getAfterOrderId() {
+		return afterOrderId;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return true if transaction with the specified values passes the filters and belongs to this page or to one of the next pages
+	 */
+	boolean matches(long purchaseTime, @Nullable String orderId, @NotNull Transaction.PurchaseState state) {
+		if (purchaseTime < fromTime || purchaseTime >= toTime) {
+			return false;
+		}
+		if (states != null && !states.contains(state)) {
+			return false;
+		}
+		return !after || compare(purchaseTime, orderId, afterTime, afterOrderId) > 0;
+	}
+
+	/**
+	 * Selects the page from the transactions (in any order) of the queried product
+	 *
+	 * @param transactions transactions of the queried product
+	 * @return transactions of the page in the page order
+	 */
+	@NotNull
+	List<Transaction> select(@NotNull Iterable<Transaction> transactions) {
+		final List<Transaction> result = new ArrayList<Transaction>();
+		for (Transaction transaction : transactions) {
+			if (matches(transaction.purchaseTime, transaction.orderId, transaction.purchaseState)) {
+				result.add(transaction);
+			}
+		}
+
+		Collections.sort(result, ORDER);
+		return result.size() > limit ? new ArrayList<Transaction>(result.subList(0, limit)) : result;
+	}
+
+	static int compare(long lhsTime, @Nullable String lhsOrderId, long rhsTime, @Nullable String rhsOrderId) {
+		if (lhsTime != rhsTime) {
+			return lhsTime < rhsTime ? -1 : 1;
+		}
+		return nonNull(lhsOrderId).compareTo(nonNull(rhsOrderId));
+	}
+
+	@NotNull
+	private static String nonNull(@Nullable String orderId) {
+		return orderId == null ? "" : orderId;
+	}
+}
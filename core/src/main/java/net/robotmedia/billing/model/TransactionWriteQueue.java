@@ -0,0 +1,694 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.util.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write-behind queue for transactions: transactions added within a time window (or up to max batch size transactions)
+ * are committed to the store at once (for SQLite store: in one SQLite transaction). One commit contains at most max batch
+ * size transactions, longer queue is committed in several batches.
+ * Queued transactions stay visible: reads done through the queue (e.g. {@link #countPurchases(String)}) return the stored
+ * transactions with the queued ones applied on top of them (as the store would apply them) => reads never commit the queue.
+ * NOTE: folded transactions of a compacted store (see {@link ITransactionStore#isCompacted()}) are not visible to the queue =>
+ * queued transactions of the read product are committed first if the store is compacted.
+ * If commit fails transactions stay in the queue and the commit is retried with exponential backoff.
+ */
+public class TransactionWriteQueue {
+
+	private static final String TAG = TransactionWriteQueue.class.getSimpleName();
+
+	public static final long DEFAULT_WINDOW_MILLIS = 200;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+	// delays of the retries after failed commits (doubled after every failure)
+	static final long MIN_RETRY_DELAY_MILLIS = 100;
+	static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+	@NotNull
+	private final ITransactionStore store;
+
+	private final long windowMillis;
+
+	private final int maxBatchSize;
+
+	@NotNull
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@NotNull
+		@Override
+		public Thread newThread(@NotNull Runnable r) {
+			final Thread thread = new Thread(r, "Billing write queue");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	@NotNull
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				// one batch per run => explicit flushes don't wait for the whole queue, the rest is scheduled by commitBatch
+				commitBatch(maxBatchSize);
+			} catch (RuntimeException e) {
+				// transactions stay in the queue, retry is scheduled by commitBatch
+				Log.e(TAG, "Unable to commit queued transactions", e);
+			}
+		}
+	};
+
+	// guarded by lock
+	@NotNull
+	private final List<Transaction> pending = new ArrayList<Transaction>();
+
+	// guarded by lock
+	// key: product key, value: number of queued transactions of the product
+	@NotNull
+	private final Map<String, Integer> pendingProducts = new HashMap<String, Integer>();
+
+	// guarded by lock
+	@Nullable
+	private ScheduledFuture<?> scheduledFlush;
+
+	// number of consecutive failed commits, guarded by lock
+	private int failures;
+
+	@NotNull
+	private final Object lock = new Object();
+
+	// only one commit at a time => transactions are committed in the order they were added
+	@NotNull
+	private final Object commitLock = new Object();
+
+	// write lock is held while the batch is committed and removed from the queue, read lock while the store and the queue
+	// are read together => reader sees every transaction either in the queue or in the store (never in both or none)
+	@NotNull
+	private final ReentrantReadWriteLock visibility = new ReentrantReadWriteLock();
+
+	@NotNull
+	private final AtomicLong commits = new AtomicLong();
+
+	@NotNull
+	private final AtomicLong committedTransactions = new AtomicLong();
+
+	@NotNull
+	private final AtomicLong maxCommittedBatchSize = new AtomicLong();
+
+	@NotNull
+	private final AtomicLong commitNanos = new AtomicLong();
+
+	@NotNull
+	private final AtomicLong maxCommitNanos = new AtomicLong();
+
+	@NotNull
+	private final AtomicLong failedCommits = new AtomicLong();
+
+	public TransactionWriteQueue(@NotNull ITransactionStore store) {
+		this(store, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	public TransactionWriteQueue(@NotNull ITransactionStore store, long windowMillis, int maxBatchSize) {
+		if (windowMillis < 0) {
+			throw new IllegalArgumentException("Window must not be negative: " + windowMillis);
+		}
+		if (maxBatchSize <= 0) {
+			throw new IllegalArgumentException("Max batch size must be positive: " + maxBatchSize);
+		}
+		this.store = store;
+		this.windowMillis = windowMillis;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public void add(@NotNull Transaction transaction) {
+		synchronized (lock) {
+			pending.add(transaction);
+
+			final Integer count = pendingProducts.get(transaction.productKey);
+			pendingProducts.put(transaction.productKey, count == null ? 1 : count + 1);
+
+			if (failures > 0) {
+				// retry is already scheduled
+			} else if (pending.size() >= maxBatchSize) {
+				schedule(0);
+			} else if (scheduledFlush == null) {
+				schedule(windowMillis);
+			}
+		}
+	}
+
+	public boolean hasPending(@Nullable String productKey) {
+		synchronized (lock) {
+			return pendingProducts.containsKey(productKey);
+		}
+	}
+
+	public boolean isEmpty() {
+		synchronized (lock) {
+			return pending.isEmpty();
+		}
+	}
+
+	/**
+	 * Commits queued transactions of specified product (together with all other queued transactions). Does nothing if there are no such transactions.
+	 *
+	 * @param productKey product key
+	 */
+	public void flush(@Nullable String productKey) {
+		if (hasPending(productKey)) {
+			flush();
+		}
+	}
+
+	/**
+	 * Commits all queued transactions in the calling thread. When this method returns all transactions added before the call are in the store.
+	 */
+	public void flush() {
+		synchronized (commitLock) {
+			int remaining;
+			synchronized (lock) {
+				remaining = pending.size();
+			}
+
+			while (remaining > 0) {
+				remaining -= commitBatch(Math.min(remaining, maxBatchSize));
+			}
+		}
+	}
+
+	/**
+	 * Commits up to the specified number of the oldest queued transactions in one {@link ITransactionStore#insertAll(java.util.Collection)}
+	 * and schedules the next flush if transactions remain in the queue (retry with backoff if commit fails)
+	 *
+	 * @param maxSize max number of committed transactions
+	 * @return number of committed transactions
+	 */
+	private int commitBatch(int maxSize) {
+		synchronized (commitLock) {
+			final List<Transaction> batch;
+			synchronized (lock) {
+				cancelScheduledFlush();
+				batch = new ArrayList<Transaction>(pending.subList(0, Math.min(maxSize, pending.size())));
+			}
+
+			if (batch.isEmpty()) {
+				return 0;
+			}
+
+			final long start = System.nanoTime();
+			visibility.writeLock().lock();
+			try {
+				try {
+					store.insertAll(batch);
+				} catch (RuntimeException e) {
+					failedCommits.incrementAndGet();
+					synchronized (lock) {
+						failures++;
+						schedule(getRetryDelayMillis(failures));
+					}
+					throw e;
+				}
+
+				// transactions must be removed only after they have been committed => readers always see them either in the queue or in the store
+				synchronized (lock) {
+					failures = 0;
+					pending.subList(0, batch.size()).clear();
+					for (Transaction transaction : batch) {
+						final Integer count = pendingProducts.get(transaction.productKey);
+						if (count == null || count <= 1) {
+							pendingProducts.remove(transaction.productKey);
+						} else {
+							pendingProducts.put(transaction.productKey, count - 1);
+						}
+					}
+
+					if (!pending.isEmpty()) {
+						// full batch is committed at once, otherwise the window of the remaining transactions is given a chance
+						schedule(pending.size() >= maxBatchSize ? 0 : windowMillis);
+					}
+				}
+			} finally {
+				visibility.writeLock().unlock();
+			}
+			onCommit(batch.size(), System.nanoTime() - start);
+			return batch.size();
+		}
+	}
+
+	/**
+	 * @param productKey product key
+	 * @return number of purchases of the product including the queued transactions, see {@link ITransactionStore#countPurchases(String)}
+	 */
+	public int countPurchases(@NotNull String productKey) {
+		if (!prepareRead(productKey)) {
+			return store.countPurchases(productKey);
+		}
+
+		visibility.readLock().lock();
+		try {
+			final List<Transaction> queued = getQueued(productKey);
+			final int stored = store.countPurchases(productKey);
+			if (queued.isEmpty()) {
+				return stored;
+			}
+			final List<Transaction> transactions = store.getTransactions(productKey);
+			// counted purchases which are not returned as transactions (e.g. folded ones) stay the same
+			return stored - countPurchases(transactions) + countPurchases(apply(transactions, queued));
+		} finally {
+			visibility.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param productKey product key
+	 * @return number of entitled orders of the product including the queued transactions, see {@link ITransactionStore#countEntitled(String)}
+	 */
+	public int countEntitled(@NotNull String productKey) {
+		if (!prepareRead(productKey)) {
+			return store.countEntitled(productKey);
+		}
+
+		visibility.readLock().lock();
+		try {
+			final List<Transaction> queued = getQueued(productKey);
+			final int stored = store.countEntitled(productKey);
+			if (queued.isEmpty()) {
+				return stored;
+			}
+
+			// key: order id, value: stored transaction of the order
+			final Map<String, Transaction> orders = new HashMap<String, Transaction>();
+			for (Transaction transaction : store.getTransactions(productKey)) {
+				if (transaction.orderId != null) {
+					orders.put(transaction.orderId, transaction);
+				}
+			}
+
+			// key: order id, value: latest (by purchase time) of the stored and queued transactions of the order
+			final Map<String, Transaction> latest = new HashMap<String, Transaction>();
+			for (Transaction transaction : queued) {
+				if (transaction.orderId != null) {
+					Transaction current = latest.get(transaction.orderId);
+					if (current == null) {
+						current = orders.get(transaction.orderId);
+					}
+					if (current == null || current.purchaseTime <= transaction.purchaseTime) {
+						latest.put(transaction.orderId, transaction);
+					}
+				}
+			}
+
+			int result = stored;
+			for (Map.Entry<String, Transaction> entry : latest.entrySet()) {
+				if (isPurchased(orders.get(entry.getKey()))) {
+					result--;
+				}
+				if (isPurchased(entry.getValue())) {
+					result++;
+				}
+			}
+			return result;
+		} finally {
+			visibility.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of purchases of each product including the queued transactions, see {@link ITransactionStore#countPurchasesByProduct()}
+	 */
+	@NotNull
+	public Map<String, Integer> countPurchasesByProduct() {
+		if (!prepareRead(null)) {
+			return store.countPurchasesByProduct();
+		}
+
+		visibility.readLock().lock();
+		try {
+			final Map<String, Integer> result = store.countPurchasesByProduct();
+
+			// key: product key, value: queued transactions of the product
+			final Map<String, List<Transaction>> products = new LinkedHashMap<String, List<Transaction>>();
+			for (Transaction transaction : getQueued(null)) {
+				// transactions without product key are not counted by the store
+				if (transaction.productKey != null) {
+					List<Transaction> queued = products.get(transaction.productKey);
+					if (queued == null) {
+						queued = new ArrayList<Transaction>();
+						products.put(transaction.productKey, queued);
+					}
+					queued.add(transaction);
+				}
+			}
+
+			for (Map.Entry<String, List<Transaction>> entry : products.entrySet()) {
+				final List<Transaction> transactions = store.getTransactions(entry.getKey());
+				final List<Transaction> applied = apply(transactions, entry.getValue());
+				final int count = store.countPurchases(entry.getKey()) - countPurchases(transactions) + countPurchases(applied);
+
+				// product is keyed by the product id of one of its transactions
+				for (Transaction transaction : transactions) {
+					result.remove(transaction.productId);
+				}
+				if (count > 0) {
+					result.put(applied.get(0).productId, count);
+				}
+			}
+			return result;
+		} finally {
+			visibility.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return all stored and queued transactions
+	 */
+	@NotNull
+	public List<Transaction> getTransactions() {
+		if (!prepareRead(null)) {
+			return store.getTransactions();
+		}
+
+		visibility.readLock().lock();
+		try {
+			return apply(store.getTransactions(), getQueued(null));
+		} finally {
+			visibility.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param productKey product key
+	 * @return stored and queued transactions of the product
+	 */
+	@NotNull
+	public List<Transaction> getTransactions(@NotNull String productKey) {
+		if (!prepareRead(productKey)) {
+			return store.getTransactions(productKey);
+		}
+
+		visibility.readLock().lock();
+		try {
+			return apply(store.getTransactions(productKey), getQueued(productKey));
+		} finally {
+			visibility.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param query page to be returned
+	 * @return page of the stored and queued transactions, see {@link TransactionQuery}
+	 */
+	@NotNull
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query) {
+		final String productKey = query.getProductKey();
+		if (!prepareRead(productKey)) {
+			return store.getTransactions(query);
+		}
+
+		visibility.readLock().lock();
+		try {
+			final List<Transaction> queued = getQueued(productKey);
+			if (queued.isEmpty()) {
+				return store.getTransactions(query);
+			}
+			// each queued transaction may replace one stored transaction of the page => page is read longer to stay full
+			final List<Transaction> stored = store.getTransactions(query.withLimit(extendLimit(query, queued)));
+			return query.select(apply(stored, queued));
+		} finally {
+			visibility.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Same as {@link #getTransactions(TransactionQuery)} but transactions are decoded, see
+	 * {@link ITransactionStore#getTransactions(TransactionQuery, ITransactionDecoder)}
+	 */
+	@NotNull
+	public List<Transaction> getTransactions(@NotNull TransactionQuery query, @NotNull ITransactionDecoder decoder) {
+		final String productKey = query.getProductKey();
+		if (!prepareRead(productKey)) {
+			return store.getTransactions(query, decoder);
+		}
+
+		visibility.readLock().lock();
+		try {
+			final List<Transaction> queued = getQueued(productKey);
+			if (queued.isEmpty()) {
+				return store.getTransactions(query, decoder);
+			}
+			// queued transactions are matched by order id which is not decoded
+			final List<Transaction> stored = store.getTransactions(query.withLimit(extendLimit(query, queued)), decoder);
+			return query.select(apply(stored, Transaction.decode(queued, decoder)));
+		} finally {
+			visibility.readLock().unlock();
+		}
+	}
+
+	// limit of the page read together with the queued transactions (page may already contain all transactions)
+	private static int extendLimit(@NotNull TransactionQuery query, @NotNull List<Transaction> queued) {
+		return (int) Math.min(Integer.MAX_VALUE, (long) query.getLimit() + queued.size());
+	}
+
+	/**
+	 * Checks if the store must be read together with the queue. Queued transactions of the product are committed if the
+	 * store is compacted: queued transaction of a folded order can't be matched with it
+	 *
+	 * @param productKey product key, null for all products
+	 * @return true if queued transactions of the product must be applied to the read transactions
+	 */
+	private boolean prepareRead(@Nullable String productKey) {
+		if (productKey == null ? isEmpty() : !hasPending(productKey)) {
+			return false;
+		}
+
+		if (store.isCompacted()) {
+			if (productKey == null) {
+				flush();
+			} else {
+				flush(productKey);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * NOTE: must be called with the read lock of {@link #visibility} held
+	 *
+	 * @param productKey product key, null for all products
+	 * @return queued transactions of the product in the order they were added
+	 */
+	@NotNull
+	private List<Transaction> getQueued(@Nullable String productKey) {
+		synchronized (lock) {
+			final List<Transaction> result = new ArrayList<Transaction>();
+			for (Transaction transaction : pending) {
+				if (productKey == null || productKey.equals(transaction.productKey)) {
+					result.add(transaction.clone());
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Applies queued transactions to the stored ones as the store would do: transaction replaces the stored transaction
+	 * with the same order id
+	 *
+	 * @param stored stored transactions
+	 * @param queued queued transactions in the order they were added
+	 * @return stored transactions with queued transactions applied
+	 */
+	@NotNull
+	static List<Transaction> apply(@NotNull List<Transaction> stored, @NotNull List<Transaction> queued) {
+		final List<Transaction> result = new ArrayList<Transaction>(stored.size() + queued.size());
+		// key: order id, value: position in the result
+		final Map<String, Integer> positions = new HashMap<String, Integer>();
+
+		for (Transaction transaction : stored) {
+			put(result, positions, transaction);
+		}
+		for (Transaction transaction : queued) {
+			put(result, positions, transaction);
+		}
+
+		return result;
+	}
+
+	private static void put(@NotNull List<Transaction> transactions, @NotNull Map<String, Integer> positions, @NotNull Transaction transaction) {
+		final Integer position = transaction.orderId == null ? null : positions.get(transaction.orderId);
+		if (position != null) {
+			transactions.set(position, transaction);
+		} else {
+			if (transaction.orderId != null) {
+				positions.put(transaction.orderId, transactions.size());
+			}
+			transactions.add(transaction);
+		}
+	}
+
+	private static int countPurchases(@NotNull List<Transaction> transactions) {
+		int result = 0;
+		for (Transaction transaction : transactions) {
+			if (isPurchased(transaction)) {
+				result++;
+			}
+		}
+		return result;
+	}
+
+	private static boolean isPurchased(@Nullable Transaction transaction) {
+		return transaction != null && transaction.purchaseState == Transaction.PurchaseState.PURCHASED;
+	}
+
+	static long getRetryDelayMillis(int failures) {
+		long delay = MIN_RETRY_DELAY_MILLIS;
+		for (int i = 1; i < failures && delay < MAX_RETRY_DELAY_MILLIS; i++) {
+			delay *= 2;
+		}
+		return Math.min(delay, MAX_RETRY_DELAY_MILLIS);
+	}
+
+	// guarded by lock
+	private void schedule(long delayMillis) {
+		cancelScheduledFlush();
+		if (!executor.isShutdown()) {
+			scheduledFlush = executor.schedule(flushTask, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// guarded by lock
+	private void cancelScheduledFlush() {
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+	}
+
+	/**
+	 * Commits all queued transactions and stops the background thread. Queue must not be used after this method is called.
+	 */
+	public void shutdown() {
+		flush();
+		executor.shutdown();
+	}
+
+	private void onCommit(int batchSize, long nanos) {
+		commits.incrementAndGet();
+		committedTransactions.addAndGet(batchSize);
+		commitNanos.addAndGet(nanos);
+		updateMax(maxCommittedBatchSize, batchSize);
+		updateMax(maxCommitNanos, nanos);
+	}
+
+	private static void updateMax(@NotNull AtomicLong max, long value) {
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	@NotNull
+	public Stats getStats() {
+		return new Stats(commits.get(), committedTransactions.get(), maxCommittedBatchSize.get(), commitNanos.get(), maxCommitNanos.get(), failedCommits.get());
+	}
+
+	public static final class Stats {
+
+		private final long commits;
+		private final long transactions;
+		private final long maxBatchSize;
+		private final long commitNanos;
+		private final long maxCommitNanos;
+		private final long failedCommits;
+
+		private Stats(long commits, long transactions, long maxBatchSize, long commitNanos, long maxCommitNanos, long failedCommits) {
+			this.commits = commits;
+			this.transactions = transactions;
+			this.maxBatchSize = maxBatchSize;
+			this.commitNanos = commitNanos;
+			this.maxCommitNanos = maxCommitNanos;
+			this.failedCommits = failedCommits;
+		}
+
+		public long getCommits() {
+			return commits;
+		}
+
+		public long getTransactions() {
+			return transactions;
+		}
+
+		public long getMaxBatchSize() {
+			return maxBatchSize;
+		}
+
+		public double getAverageBatchSize() {
+			return commits == 0 ? 0 : (double) transactions / commits;
+		}
+
+		public long getCommitNanos() {
+			return commitNanos;
+		}
+
+		public long getMaxCommitNanos() {
+			return maxCommitNanos;
+		}
+
+		public double getAverageCommitMillis() {
+			return commits == 0 ? 0 : commitNanos / 1000000d / commits;
+		}
+
+		public long getFailedCommits() {
+			return failedCommits;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats{" +
+					"commits=" + commits +
+					", transactions=" + transactions +
+					", maxBatchSize=" + maxBatchSize +
+					", averageBatchSize=" + getAverageBatchSize() +
+					", averageCommitMillis=" + getAverageCommitMillis() +
+					", maxCommitMillis=" + maxCommitNanos / 1000000d +
+					", failedCommits=" + failedCommits +
+					'}';
+		}
+	}
+}
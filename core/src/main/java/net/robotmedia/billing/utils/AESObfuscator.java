@@ -25,6 +25,7 @@ import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.security.spec.KeySpec;
 
 /**
@@ -36,17 +37,37 @@ public class AESObfuscator {
 
 	private static final String KEYGEN_ALGORITHM = "PBEWITHSHAAND256BITAES-CBC-BC";
 	private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+	private static final String HASH_ALGORITHM = "HmacSHA256";
+
+	private static final int BLOCK_SIZE = 16;
 
 	private static final byte[] IV = {16, 74, 71, -80, 32, 101, -47, 72, 117, -14, 0, -29, 70, 65, -12, 74};
 
+	// data obfuscated with random IV: VERSION_RANDOM_IV + IV + cipher text
+	// NOTE: length of such data is never a multiple of block size => it can be distinguished from data obfuscated with fixed IV
+	private static final byte VERSION_RANDOM_IV = 2;
+
 	private static final String header = "net.robotmedia.billing.utils.AESObfuscator-1|";
 
+	// used to derive hash key from the secret key => obfuscation and hashing never share the same key
+	private static final String HASH_KEY_LABEL = "net.robotmedia.billing.utils.AESObfuscator-hash";
+
+	// ciphers are not thread-safe => guarded by themselves
 	@NotNull
 	private final Cipher encryptor;
 
 	@NotNull
 	private final Cipher decryptor;
 
+	@NotNull
+	private final SecretKey secretKey;
+
+	@NotNull
+	private final Mac mac;
+
+	@NotNull
+	private final SecureRandom random = new SecureRandom();
+
 	public AESObfuscator(@NotNull byte[] salt, String password) {
 		try {
 			// get algorithm by name
@@ -56,12 +77,23 @@ public class AESObfuscator {
 			final SecretKey tmp = factory.generateSecret(publicKeySpec);
 			final SecretKey secretKeySpec = new SecretKeySpec(tmp.getEncoded(), "AES");
 
+			secretKey = secretKeySpec;
+
 			encryptor = Cipher.getInstance(CIPHER_ALGORITHM);
 			encryptor.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(IV));
 
 			decryptor = Cipher.getInstance(CIPHER_ALGORITHM);
 			decryptor.init(Cipher.DECRYPT_MODE, secretKeySpec, new IvParameterSpec(IV));
 
+			final Mac keyMac = Mac.getInstance(HASH_ALGORITHM);
+			keyMac.init(new SecretKeySpec(secretKeySpec.getEncoded(), HASH_ALGORITHM));
+			final byte[] hashKey = keyMac.doFinal(HASH_KEY_LABEL.getBytes(UTF8));
+
+			mac = Mac.getInstance(HASH_ALGORITHM);
+			mac.init(new SecretKeySpec(hashKey, HASH_ALGORITHM));
+
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("Invalid environment", e);
 		} catch (GeneralSecurityException e) {
 			// This can't happen on a compatible Android device.
 			throw new RuntimeException("Invalid environment", e);
@@ -76,7 +108,44 @@ public class AESObfuscator {
 
 		try {
 			// Header is appended as an integrity check
-			return Base64.encode(encryptor.doFinal((header + source).getBytes(UTF8)));
+			final byte[] encrypted;
+			synchronized (encryptor) {
+				encrypted = encryptor.doFinal((header + source).getBytes(UTF8));
+			}
+			return Base64.encode(encrypted);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("Invalid environment", e);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Invalid environment", e);
+		}
+	}
+
+	/**
+	 * Obfuscates source string using random IV => the same source string produces different results.
+	 * Result can be unobfuscated with {@link #unobfuscate(String)}
+	 *
+	 * @param source string to be obfuscated
+	 * @return obfuscated string. Null can be returned only if source string is null
+	 */
+	@Nullable
+	public String obfuscateRandomly(@Nullable String source) {
+		if (source == null) {
+			return null;
+		}
+
+		try {
+			final byte[] iv = new byte[BLOCK_SIZE];
+			random.nextBytes(iv);
+
+			final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+			cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
+			final byte[] encrypted = cipher.doFinal((header + source).getBytes(UTF8));
+
+			final byte[] result = new byte[1 + iv.length + encrypted.length];
+			result[0] = VERSION_RANDOM_IV;
+			System.arraycopy(iv, 0, result, 1, iv.length);
+			System.arraycopy(encrypted, 0, result, 1 + iv.length, encrypted.length);
+			return Base64.encode(result);
 		} catch (UnsupportedEncodingException e) {
 			throw new RuntimeException("Invalid environment", e);
 		} catch (GeneralSecurityException e) {
@@ -84,29 +153,81 @@ public class AESObfuscator {
 		}
 	}
 
+	/**
+	 * Calculates keyed hash (HMAC) of the source string. Unlike obfuscation hash is one-way but it is much cheaper
+	 * and it is the same for the same source => it can be used to look up obfuscated data
+	 *
+	 * @param source string to be hashed
+	 * @return hash of the source string. Null can be returned only if source string is null
+	 */
+	@Nullable
+	public String hash(@Nullable String source) {
+		if (source == null) {
+			return null;
+		}
+
+		try {
+			final byte[] hash;
+			synchronized (mac) {
+				hash = mac.doFinal(source.getBytes(UTF8));
+			}
+			return Base64.encode(hash);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("Invalid environment", e);
+		}
+	}
+
 	public String unobfuscate(String obfuscated) throws ValidationException {
 		if (obfuscated == null) {
 			return null;
 		}
 
 		try {
-			String result = new String(decryptor.doFinal(Base64.decode(obfuscated)), UTF8);
+			return unobfuscate(Base64.decode(obfuscated));
+		} catch (Base64DecoderException e) {
+			throw new ValidationException(e.getMessage() + ":" + obfuscated);
+		}
+	}
+
+	/**
+	 * Same as {@link #unobfuscate(String)} but takes the obfuscated bytes (i.e. Base64 string returned by {@link #obfuscate(String)}
+	 * or {@link #obfuscateRandomly(String)} decoded) => bytes stored by the caller are decrypted without converting them
+	 * to Base64 and back
+	 *
+	 * @param bytes obfuscated bytes
+	 * @return unobfuscated string
+	 * @throws ValidationException if bytes were not obfuscated with the same key
+	 */
+	@NotNull
+	public String unobfuscate(@NotNull byte[] bytes) throws ValidationException {
+		try {
+			final byte[] decrypted;
+			if (bytes.length % BLOCK_SIZE == 1 && bytes[0] == VERSION_RANDOM_IV) {
+				final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+				cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(bytes, 1, BLOCK_SIZE));
+				decrypted = cipher.doFinal(bytes, 1 + BLOCK_SIZE, bytes.length - 1 - BLOCK_SIZE);
+			} else {
+				synchronized (decryptor) {
+					decrypted = decryptor.doFinal(bytes);
+				}
+			}
+
+			String result = new String(decrypted, UTF8);
 			// Check for presence of header. This serves as a final integrity check, for cases
 			// where the block size is correct during decryption.
 			int headerIndex = result.indexOf(header);
 			if (headerIndex != 0) {
-				throw new ValidationException("Header not found (invalid data or key)" + ":" +
-						obfuscated);
+				throw new ValidationException("Header not found (invalid data or key)");
 			}
 			return result.substring(header.length(), result.length());
-		} catch (Base64DecoderException e) {
-			throw new ValidationException(e.getMessage() + ":" + obfuscated);
 		} catch (IllegalBlockSizeException e) {
-			throw new ValidationException(e.getMessage() + ":" + obfuscated);
+			throw new ValidationException(e.getMessage());
 		} catch (BadPaddingException e) {
-			throw new ValidationException(e.getMessage() + ":" + obfuscated);
+			throw new ValidationException(e.getMessage());
 		} catch (UnsupportedEncodingException e) {
 			throw new RuntimeException("Invalid environment", e);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Invalid environment", e);
 		}
 	}
 
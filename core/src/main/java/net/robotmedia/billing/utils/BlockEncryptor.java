@@ -0,0 +1,189 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+
+/**
+ * Encrypts data in (big) blocks with AES and authenticates each block with HMAC (encrypt-then-MAC).
+ * Keys are derived from salt and password in the same way as in {@link AESObfuscator}.
+ *
+ * Encrypted block: [IV][cipher text][MAC], MAC covers block number, IV and cipher text => blocks can't be reordered or
+ * moved to another position
+ */
+public class BlockEncryptor {
+
+	private static final String UTF8 = "UTF-8";
+
+	private static final String KEYGEN_ALGORITHM = "PBEWITHSHAAND256BITAES-CBC-BC";
+	private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	public static final int IV_SIZE = 16;
+	public static final int MAC_SIZE = 32;
+
+	private static final String ENCRYPTION_KEY_LABEL = "net.robotmedia.billing.utils.BlockEncryptor-encryption";
+	private static final String MAC_KEY_LABEL = "net.robotmedia.billing.utils.BlockEncryptor-mac";
+	private static final String KEY_CHECK_LABEL = "net.robotmedia.billing.utils.BlockEncryptor-check";
+
+	@NotNull
+	private final SecretKey encryptionKey;
+
+	@NotNull
+	private final SecretKey macKey;
+
+	@NotNull
+	private final SecureRandom random = new SecureRandom();
+
+	public BlockEncryptor(@NotNull byte[] salt, @NotNull String password) {
+		this(deriveMasterKey(salt, password));
+	}
+
+	/**
+	 * @param masterKey key from which encryption and authentication keys are derived
+	 */
+	public BlockEncryptor(@NotNull byte[] masterKey) {
+		try {
+			encryptionKey = new SecretKeySpec(derive(masterKey, ENCRYPTION_KEY_LABEL), 0, 32, "AES");
+			macKey = new SecretKeySpec(derive(masterKey, MAC_KEY_LABEL), MAC_ALGORITHM);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Invalid environment", e);
+		}
+	}
+
+	@NotNull
+	private static byte[] deriveMasterKey(@NotNull byte[] salt, @NotNull String password) {
+		try {
+			final SecretKeyFactory factory = SecretKeyFactory.getInstance(KEYGEN_ALGORITHM);
+			final KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, 1024, 256);
+			return factory.generateSecret(keySpec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			// This can't happen on a compatible Android device.
+			throw new RuntimeException("Invalid environment", e);
+		}
+	}
+
+	@NotNull
+	private static byte[] derive(@NotNull byte[] masterKey, @NotNull String label) throws GeneralSecurityException {
+		final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(masterKey, MAC_ALGORITHM));
+		return mac.doFinal(toBytes(label));
+	}
+
+	/**
+	 * @return value which depends only on the keys => can be stored to check that the same keys are used later
+	 */
+	@NotNull
+	public byte[] getKeyCheck() {
+		try {
+			final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(macKey);
+			return mac.doFinal(toBytes(KEY_CHECK_LABEL));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Invalid environment", e);
+		}
+	}
+
+	/**
+	 * @param blockNumber number of the block (position of the block in the sequence of blocks)
+	 * @param data		data to be encrypted
+	 * @param offset	  offset of the data
+	 * @param length	  length of the data
+	 * @return encrypted and authenticated block
+	 */
+	@NotNull
+	public byte[] encrypt(long blockNumber, @NotNull byte[] data, int offset, int length) {
+		try {
+			final byte[] iv = new byte[IV_SIZE];
+			random.nextBytes(iv);
+
+			final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+			cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+
+			final int cipherTextLength = cipher.getOutputSize(length);
+			final byte[] result = new byte[IV_SIZE + cipherTextLength + MAC_SIZE];
+			System.arraycopy(iv, 0, result, 0, IV_SIZE);
+			final int encrypted = cipher.doFinal(data, offset, length, result, IV_SIZE);
+			if (encrypted != cipherTextLength) {
+				throw new GeneralSecurityException("Unexpected cipher text length: " + encrypted);
+			}
+
+			final byte[] mac = mac(blockNumber, result, IV_SIZE + cipherTextLength);
+			System.arraycopy(mac, 0, result, IV_SIZE + cipherTextLength, MAC_SIZE);
+			return result;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Invalid environment", e);
+		}
+	}
+
+	/**
+	 * @param blockNumber number of the block (must be the same as in {@link #encrypt(long, byte[], int, int)})
+	 * @param block	   encrypted block
+	 * @return decrypted data
+	 * @throws GeneralSecurityException if block was modified, moved or encrypted with another key
+	 */
+	@NotNull
+	public byte[] decrypt(long blockNumber, @NotNull byte[] block) throws GeneralSecurityException {
+		if (block.length < IV_SIZE + MAC_SIZE) {
+			throw new GeneralSecurityException("Block is too short: " + block.length);
+		}
+
+		final int macOffset = block.length - MAC_SIZE;
+		final byte[] expectedMac = mac(blockNumber, block, macOffset);
+		final byte[] actualMac = new byte[MAC_SIZE];
+		System.arraycopy(block, macOffset, actualMac, 0, MAC_SIZE);
+		if (!MessageDigest.isEqual(expectedMac, actualMac)) {
+			throw new GeneralSecurityException("Block " + blockNumber + " is not authentic");
+		}
+
+		final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+		cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(block, 0, IV_SIZE));
+		return cipher.doFinal(block, IV_SIZE, macOffset - IV_SIZE);
+	}
+
+	@NotNull
+	private byte[] mac(long blockNumber, @NotNull byte[] data, int length) throws GeneralSecurityException {
+		final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(macKey);
+		for (int i = 7; i >= 0; i--) {
+			mac.update((byte) (blockNumber >>> (i * 8)));
+		}
+		mac.update(data, 0, length);
+		return mac.doFinal();
+	}
+
+	@NotNull
+	private static byte[] toBytes(@NotNull String s) {
+		try {
+			return s.getBytes(UTF8);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("Invalid environment", e);
+		}
+	}
+}
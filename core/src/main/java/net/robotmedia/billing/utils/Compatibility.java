@@ -20,6 +20,7 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender;
+import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -35,6 +36,14 @@ public class Compatibility {
     @Nullable
     private static Method contextMethod;
 
+    // API 11
+    @Nullable
+    private static Method enableWriteAheadLoggingMethod;
+
+    // API 11
+    @Nullable
+    private static Method beginTransactionNonExclusiveMethod;
+
 	public static int START_NOT_STICKY;
 
 	@SuppressWarnings("rawtypes")
@@ -56,8 +65,21 @@ public class Compatibility {
 
         activityMethod = initMethod(Activity.class);
         contextMethod = initMethod(Context.class);
+
+        enableWriteAheadLoggingMethod = initDatabaseMethod("enableWriteAheadLogging");
+        beginTransactionNonExclusiveMethod = initDatabaseMethod("beginTransactionNonExclusive");
 	}
 
+    @Nullable
+    private static Method initDatabaseMethod(@NotNull String name) {
+        try {
+            return SQLiteDatabase.class.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            // old Android version
+            return null;
+        }
+    }
+
     @Nullable
     private static Method initMethod(@NotNull Class<? extends Context> clazz) {
         Method result;
@@ -106,6 +128,42 @@ public class Compatibility {
         }
     }
 
+    /**
+     * Enables write-ahead logging (if supported by Android version): readers don't block writer and each other and
+     * are executed on separate connections
+     *
+     * @param db database (must not be in transaction)
+     * @return true if write-ahead logging has been enabled
+     */
+    public static boolean enableWriteAheadLogging(@NotNull SQLiteDatabase db) {
+        if (enableWriteAheadLoggingMethod != null) {
+            try {
+                return Boolean.TRUE.equals(enableWriteAheadLoggingMethod.invoke(db));
+            } catch (Exception e) {
+                Log.e(TAG, "enableWriteAheadLogging", e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Begins transaction in IMMEDIATE mode if supported (otherwise in EXCLUSIVE mode): with write-ahead logging
+     * readers can read the database while transaction is in progress
+     *
+     * @param db database
+     */
+    public static void beginTransactionNonExclusive(@NotNull SQLiteDatabase db) {
+        if (beginTransactionNonExclusiveMethod != null) {
+            try {
+                beginTransactionNonExclusiveMethod.invoke(db);
+                return;
+            } catch (Exception e) {
+                Log.e(TAG, "beginTransactionNonExclusive", e);
+            }
+        }
+        db.beginTransaction();
+    }
+
     public static boolean isStartIntentSenderSupported(@NotNull Context context) {
         if (context instanceof Activity) {
             return activityMethod != null;
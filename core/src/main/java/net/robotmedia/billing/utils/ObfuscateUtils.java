@@ -1,6 +1,7 @@
 package net.robotmedia.billing.utils;
 
 import android.content.Context;
+import net.robotmedia.billing.model.ITransactionDecoder;
 import net.robotmedia.billing.model.Transaction;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -26,7 +27,8 @@ public final class ObfuscateUtils {
 
 	/**
 	 * Obfuscates the specified purchase. Only the order id, product id and
-	 * developer payload are obfuscated.
+	 * developer payload are obfuscated. Product id is obfuscated with random IV as transactions are looked up by
+	 * {@link net.robotmedia.billing.model.Transaction#productKey}.
 	 *
 	 * @param context context
 	 * @param t	   purchase to be obfuscated.
@@ -34,14 +36,52 @@ public final class ObfuscateUtils {
 	 * @see #unobfuscate(android.content.Context, net.robotmedia.billing.model.Transaction, byte[])
 	 */
 	public static void obfuscate(@NotNull Context context, @NotNull Transaction t, @Nullable byte[] salt) {
+		t.productKey = Security.hash(context, salt, t.productId);
 		if (salt == null) {
 			return;
 		}
 		t.orderId = Security.obfuscate(context, salt, t.orderId);
-		t.productId = Security.obfuscate(context, salt, t.productId);
+		t.productId = Security.obfuscateRandomly(context, salt, t.productId);
 		t.developerPayload = Security.obfuscate(context, salt, t.developerPayload);
 	}
 
+	/**
+	 * Creates decoder which unobfuscates product ids and developer payloads while transactions are read from the store
+	 * (values stored as bytes are decrypted directly). Order ids are not decoded by the store, see
+	 * {@link #unobfuscateOrderId(android.content.Context, net.robotmedia.billing.model.Transaction, byte[])}
+	 *
+	 * @param context context
+	 * @param salt	salt
+	 * @return decoder
+	 */
+	@NotNull
+	public static ITransactionDecoder newDecoder(@NotNull final Context context, @Nullable final byte[] salt) {
+		return new ITransactionDecoder() {
+			@Nullable
+			@Override
+			public String decode(@Nullable String stored) {
+				return Security.unobfuscate(context, salt, stored);
+			}
+
+			@Nullable
+			@Override
+			public String decode(@NotNull byte[] stored) {
+				return Security.unobfuscate(context, salt, stored);
+			}
+		};
+	}
+
+	/**
+	 * Unobfuscates order id of the transaction read with the decoder returned by {@link #newDecoder(android.content.Context, byte[])}
+	 *
+	 * @param context context
+	 * @param t	   transaction with unobfuscated product id and developer payload
+	 * @param salt	salt
+	 */
+	public static void unobfuscateOrderId(@NotNull Context context, @NotNull Transaction t, @Nullable byte[] salt) {
+		t.orderId = Security.unobfuscate(context, salt, t.orderId);
+	}
+
 	/**
 	 * Unobfuscate the specified purchase.
 	 *
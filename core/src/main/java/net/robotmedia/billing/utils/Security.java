@@ -24,6 +24,8 @@ import org.jetbrains.annotations.Nullable;
 
 import java.security.SecureRandom;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 public class Security {
@@ -38,6 +40,18 @@ public class Security {
 	@NotNull
 	private static final Object obfuscatorLock = new Object();
 
+	private static final int HASHES_CACHE_SIZE = 64;
+
+	// most recently used hashes, synchronized field
+	// key: source, value: hash
+	@NotNull
+	private static final Map<String, String> hashes = new LinkedHashMap<String, String>(HASHES_CACHE_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > HASHES_CACHE_SIZE;
+		}
+	};
+
 
 	/** Generate and register nonce
 	 * @return nonce. This method guarantees that created nonce will be unique (i.e. there is only one instance of registered nonce)
@@ -84,24 +98,77 @@ public class Security {
 		return salt == null ? source : getObfuscator(context, salt).obfuscate(source);
 	}
 
+	/**
+	 * Same as {@link #obfuscate(android.content.Context, byte[], String)} but uses random IV => the same source string is obfuscated differently each time.
+	 * Such strings can't be used for lookups, use {@link #hash(android.content.Context, byte[], String)} instead
+	 *
+	 * @param context context
+	 * @param salt salt to be used for obfuscation
+	 * @param source string to be obfuscated
+	 *
+	 * @return obfuscated string. Null can be returned only if source string is null
+	 */
+	@Nullable
+	public static String obfuscateRandomly(@NotNull Context context, @Nullable byte[] salt, @Nullable String source) {
+		return salt == null ? source : getObfuscator(context, salt).obfuscateRandomly(source);
+	}
+
+	/**
+	 * Calculates keyed hash of the source string. The key is derived from the same salt and password as obfuscation key.
+	 * Recently calculated hashes are cached.
+	 *
+	 * @param context context
+	 * @param salt salt to be used for hashing
+	 * @param source string to be hashed
+	 *
+	 * @return hashed string. Null can be returned only if source string is null
+	 */
+	@Nullable
+	public static String hash(@NotNull Context context, @Nullable byte[] salt, @Nullable String source) {
+		if (salt == null || source == null) {
+			return source;
+		}
+
+		synchronized (hashes) {
+			final String hash = hashes.get(source);
+			if (hash != null) {
+				return hash;
+			}
+		}
+
+		final String hash = getObfuscator(context, salt).hash(source);
+		synchronized (hashes) {
+			hashes.put(source, hash);
+		}
+		return hash;
+	}
+
 	@NotNull
 	private static AESObfuscator getObfuscator(@NotNull Context context, @NotNull byte[] salt) {
 		// todo serso: optimize synchronization
 		// obfuscatorLock object used only in order not to lock the whole class by synchronizing method
 		synchronized (obfuscatorLock) {
 			if (obfuscator == null) {
-
-				final String installationId = Installation.id(context);
-				final String deviceId = Settings.Secure.getString(context.getContentResolver(), Settings.Secure.ANDROID_ID);
-				final String password = installationId + deviceId + context.getPackageName();
-
-				obfuscator = new AESObfuscator(salt, password);
+				obfuscator = new AESObfuscator(salt, getPassword(context));
 			}
 
 			return obfuscator;
 		}
 	}
 
+	/**
+	 * Returns the password from which obfuscation keys are derived (together with salt). Password is unique for the application installation
+	 *
+	 * @param context context
+	 * @return password
+	 */
+	@NotNull
+	public static String getPassword(@NotNull Context context) {
+		final String installationId = Installation.id(context);
+		final String deviceId = Settings.Secure.getString(context.getContentResolver(), Settings.Secure.ANDROID_ID);
+		return installationId + deviceId + context.getPackageName();
+	}
+
 	/**
 	 * Method unobfuscates the string using AES algorithm with specified salt.
 	 *
@@ -128,4 +195,32 @@ public class Security {
 		}
 	}
 
+	/**
+	 * Same as {@link #unobfuscate(Context, byte[], String)} but takes the obfuscated string as decoded Base64 bytes
+	 * (e.g. as stored in BLOB)
+	 *
+	 * @param context context
+	 * @param salt unobfuscation salt (must be provided the same as was used in obfuscation)
+	 * @param obfuscated Base64 decoded obfuscated string
+	 *
+	 * @return unobfuscated string. Null is returned if unobfuscation failed. If there is no salt, nothing was obfuscated
+	 * and the string is encoded back to Base64
+	 */
+	@Nullable
+	public static String unobfuscate(@NotNull Context context, @Nullable byte[] salt, @NotNull byte[] obfuscated) {
+		if (salt != null) {
+			final AESObfuscator obfuscator = getObfuscator(context, salt);
+			try {
+				return obfuscator.unobfuscate(obfuscated);
+			} catch (ValidationException e) {
+				Log.w(TAG, "Invalid obfuscated data or key");
+			}
+
+			return null;
+
+		} else {
+			return Base64.encode(obfuscated);
+		}
+	}
+
 }
@@ -15,6 +15,7 @@
 
 package net.robotmedia.billing;
 
+import android.app.Application;
 import android.app.PendingIntent;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
@@ -32,18 +33,18 @@ import java.util.Set;
 
 public class BillingControllerTest extends AndroidTestCase {
 
-	private BillingDB mData;
-	
 	@Override
 	protected void tearDown() throws Exception {
+		BillingDB.getInstance().close();
+		BillingDBTest.deleteDB(getContext());
 		super.tearDown();
-		BillingDBTest.deleteDB(mData);
 	}
 	
 	@Override
 	protected void setUp() throws Exception {
 		super.setUp();
-		mData = new BillingDB(getContext());
+		BillingDBTest.deleteDB(getContext());
+		BillingDB.init((Application) getContext().getApplicationContext());
 	}
 	
 	@MediumTest
@@ -0,0 +1,105 @@
+package net.robotmedia.billing.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AsyncTransactionManagerTest extends TestCase {
+
+	private ITransactionStore oldStore;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		oldStore = TransactionManager.getStore();
+		TransactionManager.setStore(new InMemoryTransactionStore());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TransactionManager.setStore(oldStore);
+		super.tearDown();
+	}
+
+	@SmallTest
+	public void testReadSeesPreviousWrites() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+
+		// write is blocked until the read is submitted
+		final CountDownLatch latch = new CountDownLatch(1);
+		AsyncTransactionManager.write(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				latch.await();
+				return null;
+			}
+		}, null);
+		AsyncTransactionManager.addTransactions(Arrays.asList(t1, t2), null);
+
+		final Future<List<Transaction>> transactions = AsyncTransactionManager.getTransactions(null);
+		final Future<Integer> count = AsyncTransactionManager.countPurchases(t1.productKey, null);
+		latch.countDown();
+
+		assertEquals(2, transactions.get().size());
+		assertEquals(Integer.valueOf(1), count.get());
+	}
+
+	@SmallTest
+	public void testFailedWrite() throws Exception {
+		final Future<Void> write = AsyncTransactionManager.write(new Callable<Void>() {
+			@Override
+			public Void call() {
+				throw new IllegalStateException();
+			}
+		}, null);
+
+		try {
+			write.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		// reads are not affected by failed writes
+		assertEquals(0, AsyncTransactionManager.getTransactions(null).get().size());
+	}
+
+	@SmallTest
+	public void testAwaitWritesIsCheckedOnMainThread() throws Exception {
+		final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+		final CountDownLatch latch = new CountDownLatch(1);
+		TransactionManager.setMainThreadCheckEnabled(true);
+		try {
+			new Handler(Looper.getMainLooper()).post(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						AsyncTransactionManager.awaitWrites();
+					} catch (RuntimeException e) {
+						error.set(e);
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+		} finally {
+			TransactionManager.setMainThreadCheckEnabled(false);
+		}
+		assertTrue(error.get() instanceof IllegalStateException);
+
+		// other threads may wait
+		AsyncTransactionManager.awaitWrites();
+	}
+}
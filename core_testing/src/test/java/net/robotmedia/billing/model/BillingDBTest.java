@@ -15,12 +15,34 @@
 
 package net.robotmedia.billing.model;
 
+import android.app.Application;
+import android.content.ContentValues;
+import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import net.robotmedia.billing.utils.Security;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.solovyev.android.db.AndroidDbUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BillingDBTest extends AndroidTestCase {
 
+	private static final byte[] SALT = new byte[]{41, -90, -116, -41, 66, -53, 122, -110, -127, -96, -88, 77, 127, 115, 1, 73, 57, 110, 48, -116};
+
 	private BillingDB mData;
 	
 	public static void assertEqualsFromDb(Transaction a, Transaction b) {
@@ -34,100 +56,575 @@ public class BillingDBTest extends AndroidTestCase {
 	@Override
 	protected void setUp() throws Exception {
 		super.setUp();
-		mData = new BillingDB(getContext());
+		getContext().deleteDatabase(BillingDB.DATABASE_NAME);
+		BillingDB.init((Application) getContext().getApplicationContext());
+		mData = BillingDB.getInstance();
 	}
 	
-	public static final void deleteDB(BillingDB data) {
-		data.db.delete(BillingDB.TABLE_TRANSACTIONS, null, null);
-		data.close();
+	/**
+	 * Deletes the database file => no table (transactions, purchase counts, order states, aggregates, pending notifications)
+	 * is left for the next test. Database must be initialized again with {@link BillingDB#init}
+	 */
+	public static void deleteDB(@NotNull Context context) {
+		new SqliteTransactionStore().drop(context);
 	}
 	
 	@Override
 	protected void tearDown() throws Exception {
+		mData.close();
+		deleteDB(getContext());
 		super.tearDown();
-		deleteDB(mData);
 	}
 		
 	@SmallTest
 	public void testInsert() throws Exception {
-		mData.insert(TransactionTest.TRANSACTION_1);
-		final Cursor cursor = mData.getAllTransactionsQuery();
-		assertEquals(cursor.getCount(), 1);
-		cursor.moveToNext();
-		final Transaction stored = BillingDB.createTransaction(cursor);
-		stored.packageName = TransactionTest.TRANSACTION_1.packageName; // Not stored in DB
-		stored.notificationId = TransactionTest.TRANSACTION_1.notificationId; // Not stored in DB
-		assertEqualsFromDb(TransactionTest.TRANSACTION_1, stored);
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		mData.insert(t1);
+		final List<Transaction> stored = getTransactions(null);
+		assertEquals(1, stored.size());
+		final Transaction transaction = stored.get(0);
+		transaction.packageName = t1.packageName; // Not stored in DB
+		transaction.notificationId = t1.notificationId; // Not stored in DB
+		TransactionTest.assertEquals(t1, transaction);
 	}
 
 	@SmallTest
 	public void testUnique() throws Exception {
-		mData.insert(TransactionTest.TRANSACTION_1);
-		mData.insert(TransactionTest.TRANSACTION_1);
-		final Cursor cursor = mData.getAllTransactionsQuery();
-		assertEquals(cursor.getCount(), 1);
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		mData.insert(t1);
+		mData.insert(t1);
+		assertEquals(1, getTransactions(null).size());
 	}
 	
 	@SmallTest
 	public void testQueryTransactions() throws Exception {
-		final Cursor cursor1 = mData.getAllTransactionsQuery();
-		assertEquals(cursor1.getCount(), 0);
-		cursor1.close();
-
-		mData.insert(TransactionTest.TRANSACTION_1);
-		final Cursor cursor2 = mData.getAllTransactionsQuery();
-		assertEquals(cursor2.getCount(), 1);
-		cursor2.moveToNext();
-		final Transaction stored = BillingDB.createTransaction(cursor2);
-		stored.packageName = TransactionTest.TRANSACTION_1.packageName; // Not stored in DB
-		stored.notificationId = TransactionTest.TRANSACTION_1.notificationId; // Not stored in DB
-		TransactionTest.assertEquals(TransactionTest.TRANSACTION_1, stored);
-		cursor2.close();
-
-		mData.insert(TransactionTest.TRANSACTION_2_REFUNDED);
-		final Cursor cursor3 = mData.getAllTransactionsQuery();
-		assertEquals(cursor3.getCount(), 2);
-		cursor3.close();
+		assertEquals(0, getTransactions(null).size());
+
+		mData.insert(TransactionTest.withProductKey(TransactionTest.TRANSACTION_1));
+		assertEquals(1, getTransactions(null).size());
+
+		mData.insert(TransactionTest.withProductKey(TransactionTest.TRANSACTION_2_REFUNDED));
+		assertEquals(2, getTransactions(null).size());
 	}
 	
 	@SmallTest
 	public void testQueryTransactionsString() throws Exception {
-		final Cursor cursor1 = mData.getTransactionsQuery(TransactionTest.TRANSACTION_1.productId);
-		assertEquals(cursor1.getCount(), 0);
-		cursor1.close();
-
-		mData.insert(TransactionTest.TRANSACTION_1);
-		final Cursor cursor2 = mData.getTransactionsQuery(TransactionTest.TRANSACTION_1.productId);
-		assertEquals(cursor2.getCount(), 1);
-		cursor2.moveToNext();
-		final Transaction stored = BillingDB.createTransaction(cursor2);
-		stored.packageName = TransactionTest.TRANSACTION_1.packageName; // Not stored in DB
-		stored.notificationId = TransactionTest.TRANSACTION_1.notificationId; // Not stored in DB
-		TransactionTest.assertEquals(TransactionTest.TRANSACTION_1, stored);
-		cursor2.close();
-
-		mData.insert(TransactionTest.TRANSACTION_2_REFUNDED);
-		final Cursor cursor3 = mData.getTransactionsQuery(TransactionTest.TRANSACTION_1.productId);
-		assertEquals(cursor3.getCount(), 1);
-		cursor3.close();
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		assertEquals(0, getTransactions(t1.productKey).size());
+
+		mData.insert(t1);
+		final List<Transaction> stored = getTransactions(t1.productKey);
+		assertEquals(1, stored.size());
+		assertEqualsFromDb(t1, stored.get(0));
+
+		mData.insert(TransactionTest.withProductKey(TransactionTest.TRANSACTION_2_REFUNDED));
+		assertEquals(1, getTransactions(t1.productKey).size());
 	}
 	
 	@SmallTest
 	public void testQueryTransactionsStringPurchaseState() throws Exception {
-		final Cursor cursor1 = mData.getTransactionsQuery(TransactionTest.TRANSACTION_1.productId, TransactionTest.TRANSACTION_1.purchaseState);
-		assertEquals(cursor1.getCount(), 0);
-		cursor1.close();
-
-		mData.insert(TransactionTest.TRANSACTION_1);
-		mData.insert(TransactionTest.TRANSACTION_2_REFUNDED);
-		final Cursor cursor2 = mData.getTransactionsQuery(TransactionTest.TRANSACTION_1.productId, TransactionTest.TRANSACTION_1.purchaseState);
-		assertEquals(cursor2.getCount(), 1);
-		cursor2.moveToNext();
-		final Transaction stored = BillingDB.createTransaction(cursor2);
-		stored.packageName = TransactionTest.TRANSACTION_1.packageName; // Not stored in DB
-		stored.notificationId = TransactionTest.TRANSACTION_1.notificationId; // Not stored in DB
-		TransactionTest.assertEquals(TransactionTest.TRANSACTION_1, stored);
-		cursor2.close();
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final TransactionQuery query = new TransactionQuery(t1.productKey).withStates(Arrays.asList(t1.purchaseState));
+		assertEquals(0, AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.TransactionsPage(query)).size());
+
+		mData.insert(t1);
+		mData.insert(TransactionTest.withProductKey(TransactionTest.TRANSACTION_2_REFUNDED));
+		final List<Transaction> stored = AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.TransactionsPage(query));
+		assertEquals(1, stored.size());
+		assertEqualsFromDb(t1, stored.get(0));
 	}
-	
+
+	@NotNull
+	private List<Transaction> getTransactions(@Nullable String productKey) {
+		return AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.TransactionsByProductKey(productKey));
+	}
+
+	@SmallTest
+	public void testInsertAll() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		mData.insertAll(Arrays.asList(t1, TransactionTest.withProductKey(TransactionTest.TRANSACTION_2), TransactionTest.withProductKey(TransactionTest.TRANSACTION_2_REFUNDED), t1));
+		final List<Transaction> stored = AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.TransactionsByProductKey(null));
+		assertEquals(3, stored.size());
+
+		final List<Transaction> stored1 = AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.TransactionsByProductKey(t1.productKey));
+		assertEquals(1, stored1.size());
+		assertEqualsFromDb(t1, stored1.get(0));
+	}
+
+	@SmallTest
+	public void testCountPurchases() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t1Refunded = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1_REFUNDED);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+		mData.insertAll(Arrays.asList(t1, t1Refunded, t2));
+
+		assertEquals(Integer.valueOf(1), AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.CountPurchases(t1.productKey)));
+
+		final Map<String, Integer> counts = AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.CountPurchasesByProduct());
+		assertEquals(2, counts.size());
+		assertEquals(Integer.valueOf(1), counts.get(t1.productId));
+		assertEquals(Integer.valueOf(1), counts.get(t2.productId));
+	}
+
+	@MediumTest
+	public void testConcurrentReads() throws Exception {
+		// 10 purchases of each product
+		mData.insertAll(TransactionTest.newTransactions(0, 10 * TransactionTest.PRODUCTS));
+
+		final int readers = 4;
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < readers; i++) {
+			final int reader = i;
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < 500; j++) {
+							// each reader binds its own product key => results would be mixed up if readers shared bindings
+							final String productKey = TransactionTest.productKey((reader + j * readers) % TransactionTest.PRODUCTS);
+							assertEquals(10, mData.countPurchases(productKey));
+							assertTrue(mData.isPurchased(productKey));
+							assertEquals(10, mData.countEntitled(productKey));
+							assertFalse(mData.isPurchased("unknown" + reader));
+							assertFalse(mData.isCompacted());
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		// writer changes other rows while readers run
+		start.countDown();
+		final Transaction other = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+		for (int i = 0; i < 100; i++) {
+			other.orderId = "other" + i;
+			mData.insert(other);
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(100, mData.countPurchases(other.productKey));
+	}
+
+	@SmallTest
+	public void testCompactionKeepsCounts() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final List<Transaction> transactions = new ArrayList<Transaction>();
+		for (int i = 0; i < 10; i++) {
+			final Transaction transaction = t1.clone();
+			transaction.orderId = "order" + i;
+			transaction.purchaseTime = i;
+			transaction.purchaseState = i % 3 == 0 ? Transaction.PurchaseState.REFUNDED : Transaction.PurchaseState.PURCHASED;
+			transactions.add(transaction);
+		}
+		mData.insertAll(transactions);
+		final Integer count = AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.CountPurchases(t1.productKey));
+		assertFalse(mData.isCompacted());
+
+		assertEquals(7, mData.compact(new CompactionPolicy(3, 1000, 16)));
+		assertTrue(mData.isCompacted());
+		assertEquals(3, AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.TransactionsByProductKey(t1.productKey)).size());
+		assertEquals(count, AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.CountPurchases(t1.productKey)));
+		assertEquals(count, AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.CountPurchasesByProduct()).get(t1.productId));
+
+		// restored folded orders are not stored again, refund of the folded order is counted
+		final Transaction refunded = transactions.get(1).clone();
+		refunded.purchaseState = Transaction.PurchaseState.REFUNDED;
+		final InsertResult result = mData.insertAll(Arrays.asList(transactions.get(0), refunded));
+		assertEquals(1, result.getUnchanged());
+		assertEquals(1, result.getUpdated());
+		assertEquals(Integer.valueOf(count - 1), AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.CountPurchases(t1.productKey)));
+	}
+
+	@SmallTest
+	public void testPendingNotifications() throws Exception {
+		final Map<String, String> notifications = new HashMap<String, String>();
+		notifications.put("notification1", "key1");
+		notifications.put("notification2", "key1");
+		notifications.put("notification3", "key2");
+		mData.addPendingNotifications(notifications);
+
+		final List<String> pending = mData.getPendingNotifications("key1");
+		assertEquals(2, pending.size());
+		assertTrue(pending.containsAll(Arrays.asList("notification1", "notification2")));
+
+		mData.removePendingNotifications(Arrays.asList("notification1", "notification3"));
+		assertEquals(Arrays.asList("notification2"), mData.getPendingNotifications("key1"));
+		assertTrue(mData.getPendingNotifications("key2").isEmpty());
+
+		mData.removePendingNotifications(Arrays.asList("notification2"));
+	}
+
+	@SmallTest
+	public void testPurchaseCounts() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+		final Transaction t2Refunded = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2_REFUNDED);
+		mData.insertAll(Arrays.asList(t1, t2, t2Refunded));
+		assertEquals(1, mData.countPurchases(t1.productKey));
+		assertEquals(1, mData.countPurchases(t2.productKey));
+		assertTrue(mData.isPurchased(t2.productKey));
+
+		// state change of the stored order
+		final Transaction t2Cancelled = t2.clone();
+		t2Cancelled.purchaseState = Transaction.PurchaseState.CANCELLED;
+		mData.insert(t2Cancelled);
+		assertEquals(0, mData.countPurchases(t2.productKey));
+		assertFalse(mData.isPurchased(t2.productKey));
+		assertEquals(0, mData.checkPurchaseCounts());
+
+		// counts changed outside of the library are rebuilt from the transactions
+		final SQLiteDatabase db = mData.awaitOpen();
+		db.execSQL("UPDATE " + BillingDB.TABLE_PURCHASE_COUNTS + " SET " + BillingDB.COLUMN_PURCHASE_COUNT + " = 5");
+		db.execSQL("INSERT INTO " + BillingDB.TABLE_PURCHASE_COUNTS + " VALUES ('unknown', NULL, 1)");
+		assertEquals(3, mData.checkPurchaseCounts());
+		assertEquals(1, mData.countPurchases(t1.productKey));
+		assertEquals(0, mData.countPurchases(t2.productKey));
+		assertEquals(0, mData.countPurchases("unknown"));
+		assertEquals(0, mData.checkPurchaseCounts());
+	}
+
+	@SmallTest
+	public void testEntitlementFollowsLatestState() throws Exception {
+		final Transaction purchased = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		purchased.purchaseTime = 1000;
+		mData.insert(purchased);
+		assertEquals(1, mData.countEntitled(purchased.productKey));
+		assertTrue(mData.isEntitled(purchased.productKey));
+
+		final Transaction refunded = purchased.clone();
+		refunded.purchaseState = Transaction.PurchaseState.REFUNDED;
+		refunded.purchaseTime = 2000;
+		mData.insert(refunded);
+		assertEquals(0, mData.countEntitled(purchased.productKey));
+		assertFalse(mData.isEntitled(purchased.productKey));
+		assertEquals(0, mData.checkPurchaseCounts());
+	}
+
+	@SmallTest
+	public void testOlderTransactionDoesNotChangeOrderState() throws Exception {
+		final Transaction refunded = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2_REFUNDED);
+		refunded.purchaseTime = 2000;
+		mData.insert(refunded);
+
+		// older transaction of the order (e.g. restored)
+		final Transaction purchased = refunded.clone();
+		purchased.purchaseState = Transaction.PurchaseState.PURCHASED;
+		purchased.purchaseTime = 1000;
+		mData.insert(purchased);
+		assertEquals(1, mData.countPurchases(purchased.productKey));
+		assertEquals(0, mData.countEntitled(purchased.productKey));
+		assertFalse(mData.isEntitled(purchased.productKey));
+		assertEquals(0, mData.checkPurchaseCounts());
+	}
+
+	@SmallTest
+	public void testFoldedOrdersAreEntitled() throws Exception {
+		final Transaction purchased = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final List<Transaction> transactions = new ArrayList<Transaction>();
+		for (int i = 0; i < 10; i++) {
+			final Transaction transaction = purchased.clone();
+			transaction.orderId = "entitled" + i;
+			transaction.purchaseTime = 3000 + i;
+			transactions.add(transaction);
+		}
+		mData.insertAll(transactions);
+		assertEquals(10, mData.countEntitled(purchased.productKey));
+		assertEquals(7, mData.compact(new CompactionPolicy(3, 1000, 16)));
+		assertEquals(10, mData.countEntitled(purchased.productKey));
+
+		// state change of the folded order
+		final Transaction cancelled = transactions.get(0).clone();
+		cancelled.purchaseState = Transaction.PurchaseState.CANCELLED;
+		cancelled.purchaseTime = 4000;
+		mData.insert(cancelled);
+		assertEquals(9, mData.countEntitled(purchased.productKey));
+		assertEquals(0, mData.checkPurchaseCounts());
+	}
+
+	@SmallTest
+	public void testProductKeysAreBackfilled() throws Exception {
+		// transactions stored before product keys were introduced
+		final Transaction t1 = TransactionTest.TRANSACTION_1.clone();
+		final Transaction t2 = TransactionTest.TRANSACTION_2.clone();
+		mData.insertAll(Arrays.asList(t1, t2));
+
+		final SqliteTransactionStore store = new SqliteTransactionStore();
+		final Map<Long, String> productIds = store.getProductIdsWithoutKey();
+		assertEquals(2, productIds.size());
+		assertTrue(productIds.values().containsAll(Arrays.asList(t1.productId, t2.productId)));
+
+		// not counted until product keys are set
+		final String key1 = Security.hash(getContext(), SALT, t1.productId);
+		assertEquals(0, mData.countPurchases(key1));
+
+		final Map<Long, String> productKeys = new HashMap<Long, String>();
+		for (Map.Entry<Long, String> entry : productIds.entrySet()) {
+			productKeys.put(entry.getKey(), Security.hash(getContext(), SALT, entry.getValue()));
+		}
+		store.updateProductKeys(productKeys);
+
+		assertTrue(store.getProductIdsWithoutKey().isEmpty());
+		assertEquals(1, mData.countPurchases(key1));
+		assertEquals(1, mData.countEntitled(key1));
+		final List<Transaction> stored = getTransactions(key1);
+		assertEquals(1, stored.size());
+		assertEqualsFromDb(t1, stored.get(0));
+		assertEquals(Integer.valueOf(1), AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.CountPurchasesByProduct()).get(t1.productId));
+		assertEquals(0, mData.checkPurchaseCounts());
+	}
+
+	@SmallTest
+	public void testHashedProductKeys() throws Exception {
+		final String productId = TransactionTest.TRANSACTION_1.productId;
+		final String key = Security.hash(getContext(), SALT, productId);
+		assertNotNull(key);
+		assertFalse(productId.equals(key));
+		assertEquals(key, Security.hash(getContext(), SALT, productId));
+		assertFalse(key.equals(Security.hash(getContext(), SALT, TransactionTest.TRANSACTION_2.productId)));
+		// no salt => nothing is obfuscated => product id is the key
+		assertEquals(productId, Security.hash(getContext(), null, productId));
+
+		// lookups by the hashed key find the obfuscated transaction
+		final Transaction transaction = TransactionTest.TRANSACTION_1.clone();
+		transaction.productId = Security.obfuscateRandomly(getContext(), SALT, productId);
+		transaction.productKey = key;
+		mData.insert(transaction);
+		assertEquals(1, mData.countPurchases(key));
+		assertTrue(mData.isPurchased(key));
+		assertEquals(0, mData.countPurchases(productId));
+	}
+
+	@MediumTest
+	public void testUpgradeFromFirstVersion() throws Exception {
+		// database of the current version is replaced by the database of the first version
+		mData.close();
+		deleteDB(getContext());
+		final int count = 2 * BillingDB.MIGRATION_CHUNK_SIZE + 1;
+		final SQLiteDatabase v1 = getContext().openOrCreateDatabase(BillingDB.DATABASE_NAME, Context.MODE_PRIVATE, null);
+		try {
+			v1.execSQL("CREATE TABLE " + BillingDB.TABLE_TRANSACTIONS + "(" +
+					BillingDB.COLUMN_ID + " TEXT PRIMARY KEY, " +
+					BillingDB.COLUMN_PRODUCT_ID + " INTEGER, " +
+					BillingDB.COLUMN_STATE + " TEXT, " +
+					BillingDB.COLUMN_PURCHASE_TIME + " TEXT, " +
+					BillingDB.COLUMN_DEVELOPER_PAYLOAD + " INTEGER)");
+			for (int i = 0; i < count; i++) {
+				v1.execSQL("INSERT INTO " + BillingDB.TABLE_TRANSACTIONS + " VALUES (?, ?, ?, ?, ?)",
+						new Object[]{"order" + i, "android.test.product" + i % 3, String.valueOf(i % 2), String.valueOf(1000 + i), "payload" + i});
+			}
+			v1.setVersion(1);
+		} finally {
+			v1.close();
+		}
+
+		BillingDB.init((Application) getContext().getApplicationContext());
+		mData = BillingDB.getInstance();
+
+		// new transactions are stored and counted while the old rows are migrated
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		mData.insert(t1);
+		assertEquals(1, mData.countPurchases(t1.productKey));
+
+		final SqliteTransactionStore store = new SqliteTransactionStore();
+		final Map<String, Transaction> stored = new HashMap<String, Transaction>();
+		for (Transaction transaction : store.getTransactions()) {
+			stored.put(transaction.orderId, transaction);
+		}
+		assertEquals(count + 1, stored.size());
+		for (int i = 0; i < count; i++) {
+			final Transaction transaction = stored.get("order" + i);
+			assertEquals("android.test.product" + i % 3, transaction.productId);
+			assertEquals(Transaction.PurchaseState.valueOf(i % 2), transaction.purchaseState);
+			assertEquals(1000 + i, transaction.purchaseTime);
+			assertEquals("payload" + i, transaction.developerPayload);
+			assertNull(transaction.productKey);
+		}
+		assertEqualsFromDb(t1, stored.get(t1.orderId));
+
+		// old table is dropped, migrated rows get their product keys later
+		final SQLiteDatabase db = mData.awaitOpen();
+		final Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM sqlite_master WHERE name = ?", new String[]{BillingDB.TABLE_TRANSACTIONS_V1});
+		try {
+			assertTrue(cursor.moveToFirst());
+			assertEquals(0, cursor.getInt(0));
+		} finally {
+			cursor.close();
+		}
+		assertEquals(count, store.getProductIdsWithoutKey().size());
+		assertEquals(0, mData.checkPurchaseCounts());
+	}
+
+	@SmallTest
+	public void testOpenListener() throws Exception {
+		mData.close();
+		final CountDownLatch opening = new CountDownLatch(1);
+		final AtomicLong openMillis = new AtomicLong(-1);
+		final AtomicLong waitMillis = new AtomicLong(-1);
+		BillingDB.init((Application) getContext().getApplicationContext(), StorageProfile.PLATFORM_DEFAULT, new BillingDB.OpenListener() {
+			@Override
+			public void onOpened(long millis) {
+				try {
+					// database stays unopened until the caller is waiting
+					opening.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				openMillis.set(millis);
+			}
+
+			@Override
+			public void onWaited(long millis) {
+				waitMillis.set(millis);
+			}
+		});
+		mData = BillingDB.getInstance();
+		final Future<?> open = mData.getOpenFuture();
+		assertFalse(open.isDone());
+
+		final Thread caller = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				mData.countPurchases("key");
+			}
+		});
+		caller.start();
+		while (caller.getState() != Thread.State.WAITING && caller.getState() != Thread.State.TERMINATED) {
+			Thread.sleep(10);
+		}
+		assertFalse(open.isDone());
+		assertEquals(-1, waitMillis.get());
+
+		opening.countDown();
+		caller.join(10000);
+		open.get(10, TimeUnit.SECONDS);
+		assertTrue(openMillis.get() >= 0);
+		assertTrue(waitMillis.get() >= 0);
+
+		// opened database is used without waiting
+		waitMillis.set(-1);
+		mData.countPurchases("key");
+		assertEquals(-1, waitMillis.get());
+	}
+
+	@SmallTest
+	public void testClose() throws Exception {
+		mData.getOpenFuture().get();
+		mData.close();
+		assertFalse(BillingDB.isInitialized());
+		try {
+			BillingDB.getInstance();
+			fail();
+		} catch (IllegalStateException e) {
+			// ok
+		}
+		// closing twice does nothing
+		mData.close();
+	}
+
+	@SmallTest
+	public void testObfuscatedFieldsAreStoredAsBlobs() throws Exception {
+		// obfuscated values (product key is the hash of the product id) are stored as bytes
+		final Transaction obfuscated = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		obfuscated.productId = "cHJvZHVjdA==";
+		obfuscated.developerPayload = "cGF5bG9hZA==";
+		// values written without salt (product key is the product id) are stored as text even if they look like Base64
+		final Transaction plain = TransactionTest.TRANSACTION_2.clone();
+		plain.productId = "cGxhaW4=";
+		plain.productKey = plain.productId;
+		mData.insertAll(Arrays.asList(obfuscated, plain));
+
+		final SQLiteDatabase db = mData.awaitOpen();
+		assertEquals("blob", typeOfProductId(db, obfuscated.orderId));
+		assertEquals("text", typeOfProductId(db, plain.orderId));
+
+		// row written before the conversion
+		final Transaction legacy = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2_REFUNDED);
+		legacy.orderId = "legacy";
+		legacy.productId = "bGVnYWN5";
+		final ContentValues values = new ContentValues();
+		values.put(BillingDB.COLUMN_ID, legacy.orderId);
+		values.put(BillingDB.COLUMN_PRODUCT_ID, legacy.productId);
+		values.put(BillingDB.COLUMN_STATE, legacy.purchaseState.ordinal());
+		values.put(BillingDB.COLUMN_PURCHASE_TIME, legacy.purchaseTime);
+		values.put(BillingDB.COLUMN_DEVELOPER_PAYLOAD, legacy.developerPayload);
+		values.put(BillingDB.COLUMN_PRODUCT_KEY, legacy.productKey);
+		db.insert(BillingDB.TABLE_TRANSACTIONS, null, values);
+		assertEquals("text", typeOfProductId(db, legacy.orderId));
+
+		db.execSQL("CREATE TABLE " + BillingDB.TABLE_BLOB_MIGRATION + "(" + BillingDB.COLUMN_LAST_ROW_ID + " INTEGER)");
+		db.execSQL("INSERT INTO " + BillingDB.TABLE_BLOB_MIGRATION + " VALUES (0)");
+		BillingDB.migrateToBlobs(db);
+		assertEquals("blob", typeOfProductId(db, legacy.orderId));
+		assertEquals("text", typeOfProductId(db, plain.orderId));
+
+		final Map<String, Transaction> stored = new HashMap<String, Transaction>();
+		for (Transaction transaction : AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.TransactionsByProductKey(null))) {
+			stored.put(transaction.orderId, transaction);
+		}
+		assertEquals(3, stored.size());
+		assertEqualsFromDb(obfuscated, stored.get(obfuscated.orderId));
+		assertEqualsFromDb(plain, stored.get(plain.orderId));
+		assertEqualsFromDb(legacy, stored.get(legacy.orderId));
+
+		// stored values are compared as written => same transactions are not rewritten
+		assertEquals(2, mData.insertAll(Arrays.asList(obfuscated, plain)).getUnchanged());
+	}
+
+	@SmallTest
+	public void testDecoderGetsBlobsAsBytes() throws Exception {
+		final Transaction obfuscated = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		obfuscated.productId = "cHJvZHVjdA==";
+		obfuscated.developerPayload = "cGF5bG9hZA==";
+		final Transaction plain = TransactionTest.TRANSACTION_2.clone();
+		plain.productId = "cGxhaW4=";
+		plain.productKey = plain.productId;
+		mData.insertAll(Arrays.asList(obfuscated, plain));
+
+		final ITransactionDecoder decoder = new ITransactionDecoder() {
+			@Nullable
+			@Override
+			public String decode(@Nullable String stored) {
+				return stored == null ? null : "text:" + stored;
+			}
+
+			@NotNull
+			@Override
+			public String decode(@NotNull byte[] stored) {
+				return "bytes:" + new String(stored);
+			}
+		};
+
+		final List<Transaction> obfuscatedPage = AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.TransactionsPage(new TransactionQuery(obfuscated.productKey), decoder));
+		assertEquals(1, obfuscatedPage.size());
+		assertEquals("bytes:product", obfuscatedPage.get(0).productId);
+		assertEquals("bytes:payload", obfuscatedPage.get(0).developerPayload);
+		// order id is the keyset of the page => it is returned as stored
+		assertEquals(obfuscated.orderId, obfuscatedPage.get(0).orderId);
+
+		final List<Transaction> plainPage = AndroidDbUtils.doDbQuery(mData.getDatabaseHelper(), new BillingDB.TransactionsPage(new TransactionQuery(plain.productKey), decoder));
+		assertEquals(1, plainPage.size());
+		assertEquals("text:cGxhaW4=", plainPage.get(0).productId);
+	}
+
+	@NotNull
+	private static String typeOfProductId(@NotNull SQLiteDatabase db, @NotNull String orderId) {
+		final Cursor cursor = db.rawQuery("SELECT typeof(" + BillingDB.COLUMN_PRODUCT_ID + ") FROM " + BillingDB.TABLE_TRANSACTIONS + " WHERE " + BillingDB.COLUMN_ID + " = ?", new String[]{orderId});
+		try {
+			assertTrue(cursor.moveToFirst());
+			return cursor.getString(0);
+		} finally {
+			cursor.close();
+		}
+	}
+
 }
@@ -0,0 +1,115 @@
+package net.robotmedia.billing.model;
+
+import android.app.Application;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import net.robotmedia.billing.utils.ObfuscateUtils;
+import org.jetbrains.annotations.NotNull;
+import org.solovyev.android.db.AndroidDbUtils;
+
+import java.util.List;
+
+/**
+ * Compares database size and read latency of obfuscated transactions stored as Base64 TEXT (as before version 8 of the database)
+ * and as BLOBs (after {@link BillingDB#migrateToBlobs(SQLiteDatabase)}).
+ * Results are written to the log (tag: BlobStorageBenchmark)
+ */
+public class BlobStorageBenchmark extends AndroidTestCase {
+
+	private static final String TAG = BlobStorageBenchmark.class.getSimpleName();
+
+	private static final byte[] SALT = {39, -12, 75, 32, 120, -1, 55, 98, 11, -23, 44, 71, 80, -100, 3, 5, 17, -34, 64, 12};
+
+	private static final int ROWS = 10000;
+	private static final int READS = 10;
+
+	private BillingDB db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		getContext().deleteDatabase(BillingDB.DATABASE_NAME);
+		BillingDB.init((Application) getContext().getApplicationContext());
+		db = BillingDB.getInstance();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		new SqliteTransactionStore().drop(getContext());
+		BillingDB.init((Application) getContext().getApplicationContext());
+		super.tearDown();
+	}
+
+	@LargeTest
+	public void testTextVsBlob() throws Exception {
+		final SQLiteDatabase database = db.awaitOpen();
+
+		// rows as written before version 8
+		final List<Transaction> transactions = TransactionTest.newTransactions(0, ROWS);
+		database.beginTransaction();
+		try {
+			for (Transaction transaction : transactions) {
+				ObfuscateUtils.obfuscate(getContext(), transaction, SALT);
+				final ContentValues values = new ContentValues();
+				values.put(BillingDB.COLUMN_ID, transaction.orderId);
+				values.put(BillingDB.COLUMN_PRODUCT_ID, transaction.productId);
+				values.put(BillingDB.COLUMN_STATE, transaction.purchaseState.ordinal());
+				values.put(BillingDB.COLUMN_PURCHASE_TIME, transaction.purchaseTime);
+				values.put(BillingDB.COLUMN_DEVELOPER_PAYLOAD, transaction.developerPayload);
+				values.put(BillingDB.COLUMN_PRODUCT_KEY, transaction.productKey);
+				database.insert(BillingDB.TABLE_TRANSACTIONS, null, values);
+			}
+			database.execSQL("CREATE TABLE " + BillingDB.TABLE_BLOB_MIGRATION + "(" + BillingDB.COLUMN_LAST_ROW_ID + " INTEGER)");
+			database.execSQL("INSERT INTO " + BillingDB.TABLE_BLOB_MIGRATION + " VALUES (0)");
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+
+		measure("TEXT", database);
+
+		final long start = System.nanoTime();
+		BillingDB.migrateToBlobs(database);
+		final long migrationNanos = System.nanoTime() - start;
+		Log.i(TAG, "migration: " + ROWS * 1000000000L / migrationNanos + " rows/s");
+
+		measure("BLOB", database);
+	}
+
+	private void measure(@NotNull String name, @NotNull SQLiteDatabase database) {
+		// free pages are not counted
+		database.execSQL("VACUUM");
+		final long size = (queryLong(database, "PRAGMA page_count") - queryLong(database, "PRAGMA freelist_count")) * queryLong(database, "PRAGMA page_size");
+
+		long readNanos = 0;
+		long unobfuscateNanos = 0;
+		for (int i = 0; i < READS; i++) {
+			long start = System.nanoTime();
+			final List<Transaction> transactions = AndroidDbUtils.doDbQuery(db.getDatabaseHelper(), new BillingDB.TransactionsByProductKey(null));
+			readNanos += System.nanoTime() - start;
+			assertEquals(ROWS, transactions.size());
+
+			start = System.nanoTime();
+			ObfuscateUtils.unobfuscate(getContext(), transactions, SALT);
+			unobfuscateNanos += System.nanoTime() - start;
+			assertEquals("product0", transactions.get(0).productId);
+		}
+
+		Log.i(TAG, name + ": database size: " + size / 1024 + " KB" +
+				", read: " + readNanos / READS / ROWS + " ns/row" +
+				", read + unobfuscate: " + (readNanos + unobfuscateNanos) / READS / ROWS + " ns/row");
+	}
+
+	private static long queryLong(@NotNull SQLiteDatabase database, @NotNull String sql) {
+		final Cursor cursor = database.rawQuery(sql, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+}
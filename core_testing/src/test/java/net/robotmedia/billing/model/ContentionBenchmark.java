@@ -0,0 +1,140 @@
+package net.robotmedia.billing.model;
+
+import android.app.Application;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures read throughput of {@link TransactionManager} with different numbers of reader threads (optionally with one
+ * concurrent writer). Results are written to the log (tag: ContentionBenchmark)
+ */
+public class ContentionBenchmark extends AndroidTestCase {
+
+	private static final String TAG = ContentionBenchmark.class.getSimpleName();
+
+	private static final int ROWS = 10000;
+	private static final int PRODUCTS = 100;
+	private static final int READS_PER_THREAD = 2000;
+	private static final int[] THREADS = {1, 2, 4, 8};
+
+	private ITransactionStore oldStore;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		BillingDB.init((Application) getContext().getApplicationContext());
+		oldStore = TransactionManager.getStore();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TransactionManager.setStore(oldStore);
+		super.tearDown();
+	}
+
+	@LargeTest
+	public void testSqliteReaders() throws Exception {
+		benchmark(new SqliteTransactionStore(), false);
+	}
+
+	@LargeTest
+	public void testSqliteReadersWithWriter() throws Exception {
+		benchmark(new SqliteTransactionStore(), true);
+	}
+
+	@LargeTest
+	public void testInMemoryReaders() throws Exception {
+		benchmark(new InMemoryTransactionStore(), false);
+	}
+
+	@LargeTest
+	public void testInMemoryReadersWithWriter() throws Exception {
+		benchmark(new InMemoryTransactionStore(), true);
+	}
+
+	private void benchmark(@NotNull ITransactionStore store, boolean withWriter) throws Exception {
+		TransactionManager.setStore(store);
+		TransactionManager.dropDatabase(getContext());
+		for (int i = 0; i < ROWS; i += 1000) {
+			TransactionManager.addTransactions(TransactionTest.newTransactions(i, 1000));
+		}
+
+		for (int threads : THREADS) {
+			final AtomicBoolean stop = new AtomicBoolean();
+			final AtomicLong writes = new AtomicLong();
+			Thread writer = null;
+			if (withWriter) {
+				writer = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						int i = ROWS;
+						while (!stop.get()) {
+							TransactionManager.addTransactions(TransactionTest.newTransactions(i, 10));
+							i += 10;
+							writes.addAndGet(10);
+						}
+					}
+				});
+				writer.start();
+			}
+
+			final long nanos = read(threads);
+
+			stop.set(true);
+			if (writer != null) {
+				writer.join();
+			}
+
+			final long reads = (long) threads * READS_PER_THREAD;
+			Log.i(TAG, store.getClass().getSimpleName() + ", readers: " + threads +
+					", writer: " + withWriter +
+					", reads: " + reads * 1000000000L / nanos + " ops/s" +
+					(withWriter ? ", writes: " + writes.get() * 1000000000L / nanos + " rows/s" : ""));
+		}
+
+		TransactionManager.dropDatabase(getContext());
+	}
+
+	/**
+	 * @return time (in nanoseconds) it took for all threads to do their reads
+	 */
+	private long read(int threads) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		final List<Thread> readers = new ArrayList<Thread>(threads);
+		for (int i = 0; i < threads; i++) {
+			final int offset = i;
+			final Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < READS_PER_THREAD; j++) {
+							TransactionManager.isPurchased(TransactionTest.productKey((offset + j) % PRODUCTS));
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+			reader.start();
+			readers.add(reader);
+		}
+
+		final long startNanos = System.nanoTime();
+		start.countDown();
+		done.await();
+		return System.nanoTime() - startNanos;
+	}
+}
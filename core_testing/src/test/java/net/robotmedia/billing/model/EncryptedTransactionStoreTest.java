@@ -0,0 +1,198 @@
+package net.robotmedia.billing.model;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import net.robotmedia.billing.utils.BlockEncryptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class EncryptedTransactionStoreTest extends TestCase {
+
+	private static final byte[] KEY = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+	// magic + version + key check
+	private static final int HEADER_SIZE = 8 + BlockEncryptor.MAC_SIZE;
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("billing", ".store");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		file.delete();
+	}
+
+	@SmallTest
+	public void testReopen() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+
+		EncryptedTransactionStore store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+		store.insertAll(Arrays.asList(t1, t2));
+		final Transaction refunded = t1.clone();
+		refunded.purchaseState = Transaction.PurchaseState.REFUNDED;
+		store.insert(refunded);
+		store.close();
+
+		store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+		assertEquals(2, store.getTransactions().size());
+		assertEquals(0, store.countPurchases(t1.productKey));
+		assertEquals(1, store.countPurchases(t2.productKey));
+		BillingDBTest.assertEqualsFromDb(refunded, store.getTransactions(t1.productKey).get(0));
+		store.close();
+	}
+
+	@SmallTest
+	public void testWrongKey() throws Exception {
+		EncryptedTransactionStore store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+		store.insert(TransactionTest.withProductKey(TransactionTest.TRANSACTION_1));
+		store.close();
+		final long size = file.length();
+
+		try {
+			new EncryptedTransactionStore(file, new BlockEncryptor(new byte[]{1}));
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(size, file.length());
+	}
+
+	@SmallTest
+	public void testTornTailIsTruncated() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+
+		EncryptedTransactionStore store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+		store.insert(t1);
+		final long validSize = store.getSize();
+		store.insert(t2);
+		store.close();
+
+		// simulate process death in the middle of the last write
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+		assertEquals(validSize, store.getSize());
+		assertEquals(1, store.getTransactions().size());
+
+		// store must be writable after recovery
+		store.insert(t2);
+		store.close();
+
+		store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+		assertEquals(1, store.countPurchases(t2.productKey));
+		store.close();
+	}
+
+	@SmallTest
+	public void testModifiedBlock() throws Exception {
+		EncryptedTransactionStore store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+		store.insert(TransactionTest.withProductKey(TransactionTest.TRANSACTION_1));
+		store.insert(TransactionTest.withProductKey(TransactionTest.TRANSACTION_2));
+		store.close();
+
+		// first block starts after the header (48 bytes) and its length (8 bytes)
+		flip(HEADER_SIZE + 8 + 20, 1);
+
+		try {
+			new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@SmallTest
+	public void testModifiedBlockLength() throws Exception {
+		// {byte of the big-endian length, mask}: flipped bit changes the length of the middle block by one, makes it bigger than the file or negative
+		for (int[] flip : new int[][]{{3, 1}, {2, 0x10}, {0, 0x80}}) {
+			file.delete();
+			EncryptedTransactionStore store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+			store.insert(TransactionTest.withProductKey(TransactionTest.TRANSACTION_1));
+			final long secondBlock = store.getSize();
+			store.insert(TransactionTest.withProductKey(TransactionTest.TRANSACTION_2));
+			store.insert(TransactionTest.withProductKey(TransactionTest.TRANSACTION_2_REFUNDED));
+			store.close();
+
+			flip(secondBlock + flip[0], flip[1]);
+
+			try {
+				new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+				fail();
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	@SmallTest
+	public void testZeroedTailIsTruncated() throws Exception {
+		EncryptedTransactionStore store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+		store.insert(TransactionTest.withProductKey(TransactionTest.TRANSACTION_1));
+		final long size = store.getSize();
+		store.close();
+
+		// file was extended but the written data didn't reach the disk
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(size + 100);
+		raf.close();
+
+		store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+		assertEquals(size, store.getSize());
+		assertEquals(1, store.getTransactions().size());
+		store.close();
+	}
+
+	private void flip(long position, int mask) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(position);
+			final int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ mask);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@SmallTest
+	public void testCompact() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+
+		EncryptedTransactionStore store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+		for (int i = 0; i < 10; i++) {
+			final Transaction updated = t1.clone();
+			updated.developerPayload = "payload " + i;
+			store.insert(updated);
+		}
+		store.insert(t2);
+		final long size = store.getSize();
+		store.compact();
+		assertTrue(store.getSize() < size);
+
+		// store must be writable after compaction
+		final Transaction refunded = t2.clone();
+		refunded.purchaseState = Transaction.PurchaseState.REFUNDED;
+		store.insert(refunded);
+		store.close();
+
+		store = new EncryptedTransactionStore(file, new BlockEncryptor(KEY));
+		assertEquals(2, store.getTransactions().size());
+		assertEquals(1, store.countPurchases(t1.productKey));
+		assertEquals(0, store.countPurchases(t2.productKey));
+		store.close();
+	}
+}
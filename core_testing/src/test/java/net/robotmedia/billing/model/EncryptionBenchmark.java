@@ -0,0 +1,113 @@
+package net.robotmedia.billing.model;
+
+import android.app.Application;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import net.robotmedia.billing.utils.BlockEncryptor;
+import net.robotmedia.billing.utils.ObfuscateUtils;
+import net.robotmedia.billing.utils.Security;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Compares bulk write/read throughput of per-field obfuscation (SQLite store) with whole-store encryption.
+ * Results are written to the log (tag: EncryptionBenchmark)
+ */
+public class EncryptionBenchmark extends AndroidTestCase {
+
+	private static final String TAG = EncryptionBenchmark.class.getSimpleName();
+
+	private static final byte[] SALT = {39, -12, 75, 32, 120, -1, 55, 98, 11, -23, 44, 71, 80, -100, 3, 5, 17, -34, 64, 12};
+
+	private static final int BATCH_SIZE = 1000;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		BillingDB.init((Application) getContext().getApplicationContext());
+	}
+
+	@LargeTest
+	public void testObfuscated10k() throws Exception {
+		benchmarkObfuscated(10000);
+	}
+
+	@LargeTest
+	public void testEncrypted10k() throws Exception {
+		benchmarkEncrypted(10000);
+	}
+
+	@LargeTest
+	public void testObfuscated100k() throws Exception {
+		benchmarkObfuscated(100000);
+	}
+
+	@LargeTest
+	public void testEncrypted100k() throws Exception {
+		benchmarkEncrypted(100000);
+	}
+
+	private void benchmarkObfuscated(int rows) throws Exception {
+		final SqliteTransactionStore store = new SqliteTransactionStore();
+		store.drop(getContext());
+
+		long start = System.nanoTime();
+		for (int i = 0; i < rows; i += BATCH_SIZE) {
+			final List<Transaction> transactions = TransactionTest.newTransactions(i, Math.min(BATCH_SIZE, rows - i));
+			for (Transaction transaction : transactions) {
+				ObfuscateUtils.obfuscate(getContext(), transaction, SALT);
+			}
+			store.insertAll(transactions);
+		}
+		final long writeNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		final List<Transaction> transactions = store.getTransactions();
+		ObfuscateUtils.unobfuscate(getContext(), transactions, SALT);
+		final long readNanos = System.nanoTime() - start;
+		assertEquals(rows, transactions.size());
+
+		log("per-field obfuscation", rows, writeNanos, readNanos, getContext().getDatabasePath(BillingDB.DATABASE_NAME).length());
+		store.drop(getContext());
+	}
+
+	private void benchmarkEncrypted(int rows) throws Exception {
+		final File file = new File(getContext().getFilesDir(), "benchmark.store");
+		file.delete();
+
+		EncryptedTransactionStore store = new EncryptedTransactionStore(file, newEncryptor());
+
+		long start = System.nanoTime();
+		for (int i = 0; i < rows; i += BATCH_SIZE) {
+			store.insertAll(TransactionTest.newTransactions(i, Math.min(BATCH_SIZE, rows - i)));
+		}
+		final long writeNanos = System.nanoTime() - start;
+		store.close();
+
+		// whole store is decrypted when opened
+		start = System.nanoTime();
+		store = new EncryptedTransactionStore(file, newEncryptor());
+		final List<Transaction> transactions = store.getTransactions();
+		final long readNanos = System.nanoTime() - start;
+		assertEquals(rows, transactions.size());
+
+		log("whole-store encryption", rows, writeNanos, readNanos, store.getSize());
+		store.close();
+		file.delete();
+	}
+
+	@NotNull
+	private BlockEncryptor newEncryptor() {
+		return new BlockEncryptor(SALT, Security.getPassword(getContext()));
+	}
+
+	private static void log(@NotNull String mode, int rows, long writeNanos, long readNanos, long bytes) {
+		Log.i(TAG, mode + ", rows: " + rows +
+				", write: " + rows * 1000000000L / writeNanos + " rows/s" +
+				", read: " + rows * 1000000000L / readNanos + " rows/s" +
+				", size: " + bytes / 1024 + " KB");
+	}
+}
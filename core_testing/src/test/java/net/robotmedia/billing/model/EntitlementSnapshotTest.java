@@ -0,0 +1,87 @@
+package net.robotmedia.billing.model;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+public class EntitlementSnapshotTest extends TestCase {
+
+	private static final byte[] KEY = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("billing", ".snapshot");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		file.delete();
+	}
+
+	@SmallTest
+	public void testSaveAndLoad() throws Exception {
+		EntitlementSnapshot snapshot = new EntitlementSnapshot(file, KEY);
+		assertFalse(snapshot.load());
+
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		counts.put("product1", 1);
+		counts.put("product2", 3);
+		snapshot.setCounts(counts);
+		snapshot.setCount("product2", 4);
+		snapshot.save();
+
+		snapshot = new EntitlementSnapshot(file, KEY);
+		assertTrue(snapshot.load());
+		assertEquals(1, snapshot.countPurchases("product1"));
+		assertEquals(4, snapshot.countPurchases("product2"));
+		assertEquals(0, snapshot.countPurchases("product3"));
+	}
+
+	@SmallTest
+	public void testModifiedSnapshotIsNotLoaded() throws Exception {
+		final EntitlementSnapshot snapshot = new EntitlementSnapshot(file, KEY);
+		snapshot.setCounts(new HashMap<String, Integer>());
+		snapshot.setCount("product1", 1);
+		snapshot.save();
+
+		// purchase count is the last int before MAC
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length() - 32 - 4);
+		raf.writeInt(100);
+		raf.close();
+
+		assertFalse(snapshot.load());
+		assertFalse(snapshot.isValid());
+		assertFalse(new EntitlementSnapshot(file, new byte[]{1}).load());
+	}
+
+	@SmallTest
+	public void testVerify() throws Exception {
+		final EntitlementSnapshot snapshot = new EntitlementSnapshot(file, KEY);
+		snapshot.load();
+
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		counts.put("product1", 2);
+
+		final long version = snapshot.getVersion();
+		snapshot.setCount("product2", 1);
+		// changed in the meantime => must be verified again
+		assertFalse(snapshot.verify(version, counts));
+		assertFalse(snapshot.isValid());
+
+		assertTrue(snapshot.verify(snapshot.getVersion(), counts));
+		assertTrue(snapshot.isValid());
+		assertEquals(2, snapshot.countPurchases("product1"));
+		assertEquals(0, snapshot.countPurchases("product2"));
+		assertTrue(new EntitlementSnapshot(file, KEY).load());
+	}
+}
@@ -0,0 +1,74 @@
+package net.robotmedia.billing.model;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+public class EntitlementTableTest extends TestCase {
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("billing", ".entitlements");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		file.delete();
+	}
+
+	@SmallTest
+	public void testPublish() throws Exception {
+		final EntitlementTable writer = EntitlementTable.open(file);
+		assertFalse(writer.isPublished());
+		assertEquals(EntitlementTable.UNKNOWN, writer.countPurchases(1));
+
+		final Map<Long, Integer> counts = new HashMap<Long, Integer>();
+		for (long i = 0; i < 100; i++) {
+			counts.put(i * 255, (int) i);
+		}
+		writer.publish(counts);
+
+		// another mapping of the same file (as in another process)
+		final EntitlementTable reader = EntitlementTable.open(file);
+		assertTrue(reader.isPublished());
+		for (long i = 0; i < 100; i++) {
+			assertEquals((int) i, reader.countPurchases(i * 255));
+		}
+		assertEquals(0, reader.countPurchases(-1));
+
+		counts.put(255L, 0);
+		writer.publish(counts);
+		assertEquals(0, reader.countPurchases(255));
+		assertEquals(2, reader.countPurchases(510));
+
+		writer.clear();
+		assertFalse(reader.isPublished());
+		assertEquals(EntitlementTable.UNKNOWN, reader.countPurchases(510));
+
+		writer.close();
+		reader.close();
+	}
+
+	@SmallTest
+	public void testTooManyProductsAreNotPublished() throws Exception {
+		final EntitlementTable table = EntitlementTable.open(file);
+
+		final Map<Long, Integer> counts = new HashMap<Long, Integer>();
+		for (long i = 1; i <= 1000; i++) {
+			counts.put(i, 1);
+		}
+		table.publish(counts);
+		assertFalse(table.isPublished());
+		assertEquals(EntitlementTable.UNKNOWN, table.countPurchases(1));
+
+		table.close();
+	}
+}
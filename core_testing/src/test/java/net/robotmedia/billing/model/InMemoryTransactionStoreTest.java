@@ -0,0 +1,151 @@
+package net.robotmedia.billing.model;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class InMemoryTransactionStoreTest extends TestCase {
+
+	private ITransactionStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		store = new InMemoryTransactionStore();
+	}
+
+	@SmallTest
+	public void testInsertAll() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		store.insertAll(Arrays.asList(t1, TransactionTest.withProductKey(TransactionTest.TRANSACTION_2), t1));
+
+		assertEquals(2, store.getTransactions().size());
+
+		final List<Transaction> stored = store.getTransactions(t1.productKey);
+		assertEquals(1, stored.size());
+		BillingDBTest.assertEqualsFromDb(t1, stored.get(0));
+	}
+
+	@SmallTest
+	public void testUnchangedTransactionsAreSkipped() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+		InsertResult result = store.insertAll(Arrays.asList(t1, t2));
+		assertEquals(2, result.getInserted());
+		assertEquals(0, result.getUpdated());
+		assertEquals(0, result.getUnchanged());
+
+		final Transaction refunded = t1.clone();
+		refunded.purchaseState = Transaction.PurchaseState.REFUNDED;
+		result = store.insertAll(Arrays.asList(refunded, t2.clone()));
+		assertEquals(0, result.getInserted());
+		assertEquals(1, result.getUpdated());
+		assertEquals(1, result.getUnchanged());
+		assertEquals(0, store.countPurchases(t1.productKey));
+	}
+
+	@SmallTest
+	public void testReplace() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		store.insert(t1);
+		assertEquals(1, store.countPurchases(t1.productKey));
+
+		final Transaction refunded = t1.clone();
+		refunded.purchaseState = Transaction.PurchaseState.REFUNDED;
+		store.insert(refunded);
+		assertEquals(0, store.countPurchases(t1.productKey));
+		assertEquals(1, store.getTransactions(t1.productKey).size());
+	}
+
+	@SmallTest
+	public void testCountPurchasesByProduct() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+		store.insertAll(Arrays.asList(t1, t2, TransactionTest.withProductKey(TransactionTest.TRANSACTION_2_REFUNDED)));
+
+		final Map<String, Integer> counts = store.countPurchasesByProduct();
+		assertEquals(2, counts.size());
+		assertEquals(Integer.valueOf(1), counts.get(t1.productId));
+		assertEquals(Integer.valueOf(1), counts.get(t2.productId));
+	}
+
+	@SmallTest
+	public void testReturnedTransactionsAreCopies() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		store.insert(t1);
+		store.getTransactions(t1.productKey).get(0).productId = "changed";
+		assertEquals(t1.productId, store.getTransactions(t1.productKey).get(0).productId);
+	}
+
+	@SmallTest
+	public void testPaging() throws Exception {
+		final List<Transaction> transactions = TransactionTest.newTransactions(0, 25);
+		// same purchase time => ordered by order id ("order10" < "order9")
+		transactions.get(9).purchaseTime = transactions.get(10).purchaseTime;
+		Collections.reverse(transactions);
+		store.insertAll(transactions);
+
+		TransactionQuery query = new TransactionQuery(null, 10);
+		List<Transaction> page = store.getTransactions(query);
+		assertEquals(10, page.size());
+		assertEquals("order0", page.get(0).orderId);
+		assertEquals("order10", page.get(9).orderId);
+
+		page = store.getTransactions(query.after(page.get(9)));
+		assertEquals(10, page.size());
+		assertEquals("order9", page.get(0).orderId);
+		assertEquals("order11", page.get(1).orderId);
+
+		page = store.getTransactions(query.after(page.get(9)));
+		assertEquals(5, page.size());
+		assertEquals("order24", page.get(4).orderId);
+
+		page = store.getTransactions(new TransactionQuery(TransactionTest.productKey(3), 10));
+		assertEquals(1, page.size());
+		assertEquals("order3", page.get(0).orderId);
+	}
+
+	@SmallTest
+	public void testFilters() throws Exception {
+		final List<Transaction> transactions = TransactionTest.newTransactions(0, 20);
+		for (int i = 0; i < transactions.size(); i += 3) {
+			transactions.get(i).purchaseState = Transaction.PurchaseState.REFUNDED;
+		}
+		store.insertAll(transactions);
+
+		final TransactionQuery query = new TransactionQuery(null, 3)
+				.between(5, 15)
+				.withStates(Arrays.asList(Transaction.PurchaseState.REFUNDED));
+
+		List<Transaction> page = store.getTransactions(query);
+		assertEquals(3, page.size());
+		assertEquals("order6", page.get(0).orderId);
+		assertEquals("order9", page.get(1).orderId);
+		assertEquals("order12", page.get(2).orderId);
+
+		page = store.getTransactions(query.after(page.get(2)));
+		assertEquals(0, page.size());
+	}
+
+	@SmallTest
+	public void testPendingNotifications() throws Exception {
+		final Map<String, String> notifications = new HashMap<String, String>();
+		notifications.put("notification1", "key1");
+		notifications.put("notification2", "key1");
+		notifications.put("notification3", "key2");
+		store.addPendingNotifications(notifications);
+
+		final List<String> pending = store.getPendingNotifications("key1");
+		assertEquals(2, pending.size());
+		assertTrue(pending.containsAll(Arrays.asList("notification1", "notification2")));
+
+		store.removePendingNotifications(Arrays.asList("notification1", "notification3"));
+		assertEquals(Arrays.asList("notification2"), store.getPendingNotifications("key1"));
+		assertTrue(store.getPendingNotifications("key2").isEmpty());
+	}
+}
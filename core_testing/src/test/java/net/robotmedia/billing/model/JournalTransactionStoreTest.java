@@ -0,0 +1,237 @@
+package net.robotmedia.billing.model;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+public class JournalTransactionStoreTest extends TestCase {
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("billing", ".journal");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		file.delete();
+	}
+
+	@SmallTest
+	public void testReopen() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+
+		JournalTransactionStore store = new JournalTransactionStore(file);
+		store.insertAll(Arrays.asList(t1, t2));
+		final Transaction refunded = t1.clone();
+		refunded.purchaseState = Transaction.PurchaseState.REFUNDED;
+		store.insert(refunded);
+		store.close();
+
+		store = new JournalTransactionStore(file);
+		assertEquals(2, store.getTransactions().size());
+		assertEquals(0, store.countPurchases(t1.productKey));
+		assertEquals(1, store.countPurchases(t2.productKey));
+		BillingDBTest.assertEqualsFromDb(refunded, store.getTransactions(t1.productKey).get(0));
+		store.close();
+	}
+
+	@SmallTest
+	public void testUnchangedTransactionsAreNotWritten() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction refunded = t1.clone();
+		refunded.purchaseState = Transaction.PurchaseState.REFUNDED;
+
+		JournalTransactionStore store = new JournalTransactionStore(file);
+		store.insert(t1);
+		final long size = store.getSize();
+
+		InsertResult result = store.insertAll(Arrays.asList(t1.clone(), t1.clone()));
+		assertEquals(2, result.getUnchanged());
+		assertEquals(size, store.getSize());
+
+		// order changes back and forth in one batch => each change is compared with the previous one
+		result = store.insertAll(Arrays.asList(refunded, t1.clone()));
+		assertEquals(2, result.getUpdated());
+		store.close();
+
+		store = new JournalTransactionStore(file);
+		assertEquals(1, store.countPurchases(t1.productKey));
+		store.close();
+	}
+
+	@SmallTest
+	public void testTornTailIsTruncated() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+
+		JournalTransactionStore store = new JournalTransactionStore(file);
+		store.insert(t1);
+		final long validSize = store.getSize();
+		store.insert(t2);
+		store.close();
+
+		// simulate process death in the middle of the last write
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		store = new JournalTransactionStore(file);
+		assertEquals(validSize, store.getSize());
+		assertEquals(1, store.getTransactions().size());
+		assertEquals(0, store.countPurchases(t2.productKey));
+
+		// log must be writable after recovery
+		store.insert(t2);
+		assertEquals(1, store.countPurchases(t2.productKey));
+		store.close();
+	}
+
+	@SmallTest
+	public void testIncompleteBatchIsDiscarded() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+
+		JournalTransactionStore store = new JournalTransactionStore(file);
+		store.insert(t1);
+		final long validSize = store.getSize();
+		final Transaction refunded = t1.clone();
+		refunded.purchaseState = Transaction.PurchaseState.REFUNDED;
+		store.insertAll(Arrays.asList(refunded, t2));
+		store.close();
+
+		// both records are intact, only the commit marker is lost
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 1);
+		raf.close();
+
+		store = new JournalTransactionStore(file);
+		assertEquals(validSize, store.getSize());
+		assertEquals(1, store.getTransactions().size());
+		assertEquals(1, store.countPurchases(t1.productKey));
+		assertEquals(0, store.countPurchases(t2.productKey));
+		store.close();
+	}
+
+	@SmallTest
+	public void testTooBigTransactionIsRejected() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction big = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+		final StringBuilder payload = new StringBuilder();
+		while (payload.length() <= JournalTransactionStore.MAX_RECORD_SIZE) {
+			payload.append("0123456789");
+		}
+		big.developerPayload = payload.toString();
+
+		JournalTransactionStore store = new JournalTransactionStore(file);
+		final long size = store.getSize();
+		try {
+			store.insertAll(Arrays.asList(t1, big));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// ok
+		}
+		assertEquals(size, store.getSize());
+		assertEquals(0, store.getTransactions().size());
+
+		store.insert(t1);
+		store.close();
+
+		store = new JournalTransactionStore(file);
+		assertEquals(1, store.getTransactions().size());
+		store.close();
+	}
+
+	@SmallTest
+	public void testSpaceIsReservedAhead() throws Exception {
+		JournalTransactionStore store = new JournalTransactionStore(file);
+		store.insertAll(TransactionTest.newTransactions(0, 10));
+		final long capacity = file.length();
+		assertTrue(capacity > store.getSize());
+
+		// fits into the reserved space => file is not extended
+		store.insertAll(TransactionTest.newTransactions(10, 10));
+		assertEquals(capacity, file.length());
+		assertEquals(20, store.getTransactions().size());
+
+		// reserved space is doubled when it is used up
+		store.insertAll(TransactionTest.newTransactions(20, 2000));
+		assertTrue(file.length() >= 2 * capacity);
+		assertEquals(2020, store.getTransactions().size());
+		final long size = store.getSize();
+		store.close();
+		assertEquals(size, file.length());
+
+		store = new JournalTransactionStore(file);
+		assertEquals(size, store.getSize());
+		assertEquals(2020, store.getTransactions().size());
+		store.close();
+	}
+
+	@SmallTest
+	public void testZeroedTailIsKept() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+
+		JournalTransactionStore store = new JournalTransactionStore(file);
+		store.insert(t1);
+		final long size = store.getSize();
+		store.close();
+
+		// simulate process death: reserved space is not released
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(size + 4099);
+		raf.close();
+
+		store = new JournalTransactionStore(file);
+		assertEquals(size, store.getSize());
+		assertEquals(size + 4099, file.length());
+		assertEquals(1, store.getTransactions().size());
+
+		// reserved space is reused
+		store.insert(t2);
+		assertEquals(size + 4099, file.length());
+		store.close();
+
+		store = new JournalTransactionStore(file);
+		assertEquals(2, store.getTransactions().size());
+		store.close();
+	}
+
+	@SmallTest
+	public void testPaging() throws Exception {
+		final JournalTransactionStore store = new JournalTransactionStore(file);
+		store.insertAll(TransactionTest.newTransactions(0, 25));
+
+		final TransactionQuery query = new TransactionQuery(null, 10);
+		List<Transaction> page = store.getTransactions(query);
+		assertEquals(10, page.size());
+		assertEquals("order9", page.get(9).orderId);
+
+		page = store.getTransactions(query.after(page.get(9)));
+		page = store.getTransactions(query.after(page.get(9)));
+		assertEquals(5, page.size());
+		assertEquals("order20", page.get(0).orderId);
+
+		// pages of one product in a time range: orders 0, 100, .., 400 belong to the first product
+		store.insertAll(TransactionTest.newTransactions(25, 400));
+		final TransactionQuery productQuery = new TransactionQuery(TransactionTest.productKey(0), 1).between(150, 400);
+		page = store.getTransactions(productQuery);
+		assertEquals(1, page.size());
+		assertEquals("order200", page.get(0).orderId);
+		page = store.getTransactions(productQuery.after(page.get(0)));
+		assertEquals(1, page.size());
+		assertEquals("order300", page.get(0).orderId);
+		assertTrue(store.getTransactions(productQuery.after(page.get(0))).isEmpty());
+		store.close();
+	}
+}
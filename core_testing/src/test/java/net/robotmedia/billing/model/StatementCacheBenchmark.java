@@ -0,0 +1,158 @@
+package net.robotmedia.billing.model;
+
+import android.app.Application;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import org.jetbrains.annotations.NotNull;
+import org.solovyev.android.db.AndroidDbUtils;
+
+/**
+ * Compares per-call latency and allocations of the hot paths of {@link BillingDB} with and without {@link StatementCache}
+ * ("before": SQL built and compiled on every call as it was done before the cache was introduced). Reads ("after") don't use
+ * the cache: they run constant SQL which is compiled once per connection, see {@link BillingDBTest#testConcurrentReads()}.
+ * Results are written to the log (tag: StatementCacheBenchmark)
+ */
+public class StatementCacheBenchmark extends AndroidTestCase {
+
+	private static final String TAG = StatementCacheBenchmark.class.getSimpleName();
+
+	private static final int ROWS = 10000;
+	private static final int PRODUCTS = 100;
+	private static final int CALLS = 2000;
+
+	private BillingDB db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		getContext().deleteDatabase(BillingDB.DATABASE_NAME);
+		BillingDB.init((Application) getContext().getApplicationContext());
+		db = BillingDB.getInstance();
+		db.insertAll(TransactionTest.newTransactions(0, ROWS));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		new SqliteTransactionStore().drop(getContext());
+		BillingDB.init((Application) getContext().getApplicationContext());
+		super.tearDown();
+	}
+
+	@LargeTest
+	public void testCountPurchases() throws Exception {
+		measure("countPurchases before", new Call() {
+			@Override
+			public void call(int i) {
+				AndroidDbUtils.doDbQuery(db.getDatabaseHelper(), new BillingDB.CountPurchases(TransactionTest.productKey(i % PRODUCTS)));
+			}
+		});
+		measure("countPurchases after", new Call() {
+			@Override
+			public void call(int i) {
+				db.countPurchases(TransactionTest.productKey(i % PRODUCTS));
+			}
+		});
+	}
+
+	@LargeTest
+	public void testIsPurchased() throws Exception {
+		measure("isPurchased before", new Call() {
+			@Override
+			public void call(int i) {
+				final Cursor cursor = db.awaitOpen().query(BillingDB.TABLE_TRANSACTIONS, new String[]{BillingDB.COLUMN_ID},
+						BillingDB.COLUMN_PRODUCT_KEY + " = ? AND " + BillingDB.COLUMN_STATE + " = ?",
+						new String[]{TransactionTest.productKey(i % PRODUCTS), String.valueOf(Transaction.PurchaseState.PURCHASED.ordinal())}, null, null, null, "1");
+				try {
+					cursor.moveToFirst();
+				} finally {
+					cursor.close();
+				}
+			}
+		});
+		measure("isPurchased after", new Call() {
+			@Override
+			public void call(int i) {
+				db.isPurchased(TransactionTest.productKey(i % PRODUCTS));
+			}
+		});
+	}
+
+	@LargeTest
+	public void testGetTransactions() throws Exception {
+		measure("getTransactions before", new Call() {
+			@Override
+			public void call(int i) {
+				final Cursor cursor = db.awaitOpen().query(BillingDB.TABLE_TRANSACTIONS, BillingDB.TABLE_TRANSACTIONS_COLUMNS,
+						BillingDB.COLUMN_PRODUCT_KEY + " = ?", new String[]{TransactionTest.productKey(i % PRODUCTS)}, null, null, null);
+				try {
+					while (cursor.moveToNext()) {
+						BillingDB.createTransaction(cursor);
+					}
+				} finally {
+					cursor.close();
+				}
+			}
+		});
+		measure("getTransactions after", new Call() {
+			@Override
+			public void call(int i) {
+				AndroidDbUtils.doDbQuery(db.getDatabaseHelper(), new BillingDB.TransactionsByProductKey(TransactionTest.productKey(i % PRODUCTS)));
+			}
+		});
+	}
+
+	@LargeTest
+	public void testInsert() throws Exception {
+		measure("insert before", new Call() {
+			@Override
+			public void call(int i) {
+				final Transaction transaction = TransactionTest.newTransactions(ROWS + i, 1).get(0);
+				final ContentValues values = new ContentValues();
+				values.put(BillingDB.COLUMN_ID, transaction.orderId);
+				values.put(BillingDB.COLUMN_PRODUCT_ID, transaction.productId);
+				values.put(BillingDB.COLUMN_STATE, transaction.purchaseState.ordinal());
+				values.put(BillingDB.COLUMN_PURCHASE_TIME, transaction.purchaseTime);
+				values.put(BillingDB.COLUMN_DEVELOPER_PAYLOAD, transaction.developerPayload);
+				values.put(BillingDB.COLUMN_PRODUCT_KEY, transaction.productKey);
+				final SQLiteDatabase database = db.awaitOpen();
+				database.replace(BillingDB.TABLE_TRANSACTIONS, null, values);
+			}
+		});
+		measure("insert after", new Call() {
+			@Override
+			public void call(int i) {
+				db.insert(TransactionTest.newTransactions(ROWS + CALLS + i, 1).get(0));
+			}
+		});
+	}
+
+	private static interface Call {
+		void call(int i);
+	}
+
+	private void measure(@NotNull String name, @NotNull Call call) {
+		// warm up
+		for (int i = 0; i < CALLS / 10; i++) {
+			call.call(i);
+		}
+
+		Debug.resetThreadAllocCount();
+		Debug.resetThreadAllocSize();
+		Debug.startAllocCounting();
+		final long start = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			call.call(i);
+		}
+		final long nanos = System.nanoTime() - start;
+		Debug.stopAllocCounting();
+
+		Log.i(TAG, name + ": " + nanos / CALLS / 1000 + " us/call" +
+				", " + Debug.getThreadAllocCount() / CALLS + " allocations/call" +
+				", " + Debug.getThreadAllocSize() / CALLS + " bytes/call");
+	}
+}
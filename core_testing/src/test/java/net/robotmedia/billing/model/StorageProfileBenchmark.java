@@ -0,0 +1,95 @@
+package net.robotmedia.billing.model;
+
+import android.app.Application;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+
+/**
+ * Measures insert/query throughput of the SQLite store with each {@link StorageProfile} preset.
+ * Results are written to the log (tag: StorageProfileBenchmark)
+ */
+public class StorageProfileBenchmark extends AndroidTestCase {
+
+	private static final String TAG = StorageProfileBenchmark.class.getSimpleName();
+
+	private static final int SINGLE_INSERTS = 1000;
+	private static final int BATCHES = 100;
+	private static final int BATCH_SIZE = 100;
+	private static final int PRODUCTS = 100;
+	private static final int QUERIES = 1000;
+
+	@Override
+	protected void tearDown() throws Exception {
+		// other tests expect default settings
+		BillingDB.init((Application) getContext().getApplicationContext());
+		super.tearDown();
+	}
+
+	@LargeTest
+	public void testPlatformDefault() throws Exception {
+		benchmark("PLATFORM_DEFAULT", StorageProfile.PLATFORM_DEFAULT);
+	}
+
+	@LargeTest
+	public void testDurable() throws Exception {
+		benchmark("DURABLE", StorageProfile.DURABLE);
+	}
+
+	@LargeTest
+	public void testBalanced() throws Exception {
+		benchmark("BALANCED", StorageProfile.BALANCED);
+	}
+
+	@LargeTest
+	public void testFast() throws Exception {
+		benchmark("FAST", StorageProfile.FAST);
+	}
+
+	@LargeTest
+	public void testRollbackJournal() throws Exception {
+		benchmark("DELETE/FULL", new StorageProfile(StorageProfile.JournalMode.DELETE, StorageProfile.Synchronous.FULL, 0, 0));
+	}
+
+	private void benchmark(@NotNull String name, @NotNull StorageProfile profile) throws Exception {
+		getContext().deleteDatabase(BillingDB.DATABASE_NAME);
+		BillingDB.init((Application) getContext().getApplicationContext(), profile);
+		final SqliteTransactionStore store = new SqliteTransactionStore();
+
+		// every insert is a separate commit => shows the cost of syncing
+		long start = System.nanoTime();
+		for (int i = 0; i < SINGLE_INSERTS; i++) {
+			store.insertAll(Collections.singletonList(TransactionTest.newTransactions(i, 1).get(0)));
+		}
+		final long singleNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < BATCHES; i++) {
+			store.insertAll(TransactionTest.newTransactions(SINGLE_INSERTS + i * BATCH_SIZE, BATCH_SIZE));
+		}
+		final long batchNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < QUERIES; i++) {
+			store.countPurchases(TransactionTest.productKey(i % PRODUCTS));
+		}
+		final long countNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int read = 0;
+		for (int i = 0; i < PRODUCTS; i++) {
+			read += store.getTransactions(TransactionTest.productKey(i)).size();
+		}
+		final long readNanos = System.nanoTime() - start;
+		assertEquals(SINGLE_INSERTS + BATCHES * BATCH_SIZE, read);
+
+		Log.i(TAG, name + ": " + profile +
+				", single inserts: " + SINGLE_INSERTS * 1000000000L / singleNanos + " rows/s" +
+				", batch inserts: " + BATCHES * BATCH_SIZE * 1000000000L / batchNanos + " rows/s" +
+				", countPurchases: " + countNanos / QUERIES / 1000 + " us/call" +
+				", getTransactions: " + read * 1000000000L / readNanos + " rows/s");
+	}
+}
@@ -0,0 +1,85 @@
+package net.robotmedia.billing.model;
+
+import android.app.Application;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Measures export/import throughput of {@link TransactionArchive} with the SQLite store.
+ * Results are written to the log (tag: TransactionArchiveBenchmark)
+ */
+public class TransactionArchiveBenchmark extends AndroidTestCase {
+
+	private static final String TAG = TransactionArchiveBenchmark.class.getSimpleName();
+
+	private static final int BATCH_SIZE = 1000;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		BillingDB.init((Application) getContext().getApplicationContext());
+	}
+
+	@LargeTest
+	public void test10k() throws Exception {
+		benchmark(10000);
+	}
+
+	@LargeTest
+	public void test100k() throws Exception {
+		benchmark(100000);
+	}
+
+	private void benchmark(int rows) throws Exception {
+		final ITransactionStore store = new SqliteTransactionStore();
+		store.drop(getContext());
+		for (int i = 0; i < rows; i += BATCH_SIZE) {
+			store.insertAll(TransactionTest.newTransactions(i, Math.min(BATCH_SIZE, rows - i)));
+		}
+
+		final File file = new File(getContext().getFilesDir(), "benchmark.archive");
+		final Runtime runtime = Runtime.getRuntime();
+		runtime.gc();
+		final long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+
+		long start = System.nanoTime();
+		final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			assertEquals(rows, TransactionArchive.export(store, out, TransactionArchive.DEFAULT_PAGE_SIZE));
+		} finally {
+			out.close();
+		}
+		final long exportNanos = System.nanoTime() - start;
+		final long usedAfter = runtime.totalMemory() - runtime.freeMemory();
+
+		store.drop(getContext());
+
+		start = System.nanoTime();
+		final InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			assertEquals(rows, TransactionArchive.importTo(store, in, BATCH_SIZE).getInserted());
+		} finally {
+			in.close();
+		}
+		final long importNanos = System.nanoTime() - start;
+
+		Log.i(TAG, "rows: " + rows +
+				", archive: " + file.length() / 1024 + " KiB" +
+				", export: " + rows * 1000000000L / exportNanos + " rows/s" +
+				", import: " + rows * 1000000000L / importNanos + " rows/s" +
+				", heap growth during export: " + (usedAfter - usedBefore) / 1024 + " KiB");
+
+		file.delete();
+		store.drop(getContext());
+	}
+}
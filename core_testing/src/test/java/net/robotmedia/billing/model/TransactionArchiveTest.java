@@ -0,0 +1,122 @@
+package net.robotmedia.billing.model;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class TransactionArchiveTest extends TestCase {
+
+	@SmallTest
+	public void testExportAndImport() throws Exception {
+		final ITransactionStore store = new InMemoryTransactionStore();
+		store.insertAll(TransactionTest.newTransactions(0, 1234));
+		final Transaction withoutOrder = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		withoutOrder.orderId = null;
+		withoutOrder.developerPayload = null;
+		store.insert(withoutOrder);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		// page boundaries must not lose or duplicate transactions
+		assertEquals(1235, TransactionArchive.export(store, out, 100));
+
+		final ITransactionStore copy = new InMemoryTransactionStore();
+		final InsertResult result = TransactionArchive.importTo(copy, new ByteArrayInputStream(out.toByteArray()), 300);
+		assertEquals(1235, result.getInserted());
+
+		final List<Transaction> expected = store.getTransactions(new TransactionQuery(null, 10000));
+		final List<Transaction> actual = copy.getTransactions(new TransactionQuery(null, 10000));
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			BillingDBTest.assertEqualsFromDb(expected.get(i), actual.get(i));
+			assertEquals(expected.get(i).productKey, actual.get(i).productKey);
+		}
+
+		// same transactions are not written again (except the transaction without order id)
+		assertEquals(1234, TransactionArchive.importTo(copy, new ByteArrayInputStream(out.toByteArray()), 300).getUnchanged());
+	}
+
+	@SmallTest
+	public void testCompactedStoreIsNotExported() throws Exception {
+		final ITransactionStore store = new InMemoryTransactionStore() {
+			@Override
+			public boolean isCompacted() {
+				return true;
+			}
+		};
+		store.insertAll(TransactionTest.newTransactions(0, 10));
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			TransactionArchive.export(store, out, 100);
+			fail();
+		} catch (IllegalStateException e) {
+			// ok
+		}
+		assertEquals(0, out.size());
+	}
+
+	@SmallTest
+	public void testLongStrings() throws Exception {
+		final ITransactionStore store = new InMemoryTransactionStore();
+		final Transaction transaction = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final StringBuilder payload = new StringBuilder();
+		while (payload.length() < 70000) {
+			// multi-byte characters => more than 65535 bytes in UTF-8
+			payload.append("payload \u00e9\u20ac ");
+		}
+		transaction.developerPayload = payload.toString();
+		store.insert(transaction);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(1, TransactionArchive.export(store, out, 100));
+
+		final ITransactionStore copy = new InMemoryTransactionStore();
+		assertEquals(1, TransactionArchive.importTo(copy, new ByteArrayInputStream(out.toByteArray()), 100).getInserted());
+		assertEquals(transaction.developerPayload, copy.getTransactions().get(0).developerPayload);
+	}
+
+	@SmallTest
+	public void testInvalidState() throws Exception {
+		final ITransactionStore store = new InMemoryTransactionStore();
+		final Transaction transaction = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		store.insert(transaction);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TransactionArchive.export(store, out, 100);
+		final byte[] bytes = out.toByteArray();
+
+		// [magic][version][record length][flags][order id][product id][state]
+		final int stateOffset = 4 + 4 + 4 + 1 + 4 + transaction.orderId.getBytes("UTF-8").length + 4 + transaction.productId.getBytes("UTF-8").length;
+		assertEquals(transaction.purchaseState.ordinal(), bytes[stateOffset]);
+		bytes[stateOffset] = 42;
+
+		try {
+			TransactionArchive.importTo(new InMemoryTransactionStore(), new ByteArrayInputStream(bytes), 100);
+			fail();
+		} catch (IOException e) {
+			// ok
+		}
+	}
+
+	@SmallTest
+	public void testTruncatedArchive() throws Exception {
+		final ITransactionStore store = new InMemoryTransactionStore();
+		store.insertAll(TransactionTest.newTransactions(0, 10));
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TransactionArchive.export(store, out, 100);
+		final byte[] bytes = Arrays.copyOf(out.toByteArray(), out.size() - 10);
+
+		try {
+			TransactionArchive.importTo(new InMemoryTransactionStore(), new ByteArrayInputStream(bytes), 100);
+			fail();
+		} catch (IOException e) {
+			// ok
+		}
+	}
+}
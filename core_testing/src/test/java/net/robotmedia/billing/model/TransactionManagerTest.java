@@ -15,69 +15,146 @@
 
 package net.robotmedia.billing.model;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
+import android.app.Application;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class TransactionManagerTest extends AndroidTestCase {
-	
+
+	private static final Transaction TRANSACTION_1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+	private static final Transaction TRANSACTION_2_REFUNDED = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2_REFUNDED);
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		getContext().deleteDatabase(BillingDB.DATABASE_NAME);
+		BillingDB.init((Application) getContext().getApplicationContext());
+		TransactionManager.setStore(new SqliteTransactionStore());
+	}
+
 	@Override
 	protected void tearDown() throws Exception {
+		TransactionManager.setListener(null);
+		BillingDB.getInstance().close();
+		BillingDBTest.deleteDB(getContext());
 		super.tearDown();
-		BillingDB mData = new BillingDB(getContext());
-		mData.db.delete(BillingDB.TABLE_TRANSACTIONS, null, null);
-		mData.close();
 	}
 	
 	@MediumTest
 	public void testAddPurchase() throws Exception {
-		TransactionManager.addTransaction(getContext(), TransactionTest.TRANSACTION_1);
-		final List<Transaction> purchases = TransactionManager.getTransactions(getContext());
+		TransactionManager.addTransaction(TRANSACTION_1);
+		final List<Transaction> purchases = TransactionManager.getTransactions();
 		assertEquals(purchases.size(), 1);
 		final Transaction stored = purchases.get(0);
-		BillingDBTest.assertEqualsFromDb(TransactionTest.TRANSACTION_1, stored);
+		BillingDBTest.assertEqualsFromDb(TRANSACTION_1, stored);
 	}
 	
 	@MediumTest
 	public void testCountPurchases() throws Exception {
-		assertEquals(TransactionManager.countPurchases(getContext(), TransactionTest.TRANSACTION_1.productId), 0);
-		TransactionManager.addTransaction(getContext(), TransactionTest.TRANSACTION_1);
-		assertEquals(TransactionManager.countPurchases(getContext(), TransactionTest.TRANSACTION_1.productId), 1);
-		final Transaction newOrder = TransactionTest.TRANSACTION_1.clone();
+		assertEquals(TransactionManager.countPurchases(TRANSACTION_1.productKey), 0);
+		TransactionManager.addTransaction(TRANSACTION_1);
+		assertEquals(TransactionManager.countPurchases(TRANSACTION_1.productKey), 1);
+		final Transaction newOrder = TRANSACTION_1.clone();
 		newOrder.orderId = "newOrder";
-		TransactionManager.addTransaction(getContext(), newOrder);
-		assertEquals(TransactionManager.countPurchases(getContext(), TransactionTest.TRANSACTION_1.productId), 2);
+		TransactionManager.addTransaction(newOrder);
+		assertEquals(TransactionManager.countPurchases(TRANSACTION_1.productKey), 2);
 	}
 	
 	@MediumTest
 	public void testIsPurchased() throws Exception {
-		assertFalse(TransactionManager.isPurchased(getContext(), TransactionTest.TRANSACTION_1.productId));
-		TransactionManager.addTransaction(getContext(), TransactionTest.TRANSACTION_1);
-		assertTrue(TransactionManager.isPurchased(getContext(), TransactionTest.TRANSACTION_1.productId));
+		assertFalse(TransactionManager.isPurchased(TRANSACTION_1.productKey));
+		TransactionManager.addTransaction(TRANSACTION_1);
+		assertTrue(TransactionManager.isPurchased(TRANSACTION_1.productKey));
 	}
 	
 	@MediumTest
 	public void testGetTransactions() throws Exception {
-		final List<Transaction> transactions1 = TransactionManager.getTransactions(getContext());
+		final List<Transaction> transactions1 = TransactionManager.getTransactions();
 		assertEquals(transactions1.size(), 0);
-		TransactionManager.addTransaction(getContext(), TransactionTest.TRANSACTION_1);
-		final List<Transaction> transactions2 = TransactionManager.getTransactions(getContext());
+		TransactionManager.addTransaction(TRANSACTION_1);
+		final List<Transaction> transactions2 = TransactionManager.getTransactions();
 		assertEquals(transactions2.size(), 1);
-		TransactionManager.addTransaction(getContext(), TransactionTest.TRANSACTION_2_REFUNDED);
-		final List<Transaction> transactions3 = TransactionManager.getTransactions(getContext());
+		TransactionManager.addTransaction(TRANSACTION_2_REFUNDED);
+		final List<Transaction> transactions3 = TransactionManager.getTransactions();
 		assertEquals(transactions3.size(), 2);
 	}
 	
+	@MediumTest
+	public void testCompactedStoreIsNotMigrated() throws Exception {
+		final ITransactionStore compacted = new InMemoryTransactionStore() {
+			@Override
+			public boolean isCompacted() {
+				return true;
+			}
+		};
+		compacted.insert(TRANSACTION_1);
+		TransactionManager.setStore(compacted);
+
+		final ITransactionStore store = new InMemoryTransactionStore();
+		try {
+			TransactionManager.migrateStore(getContext(), store, new TransactionManager.Converter() {
+				@Override
+				public void convert(@NotNull List<Transaction> transactions) {
+				}
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			// ok
+		}
+		assertSame(compacted, TransactionManager.getStore());
+		assertEquals(0, store.getTransactions().size());
+		assertEquals(1, compacted.getTransactions().size());
+	}
+
+	@MediumTest
+	public void testListenerIsNotifiedOnEveryWrite() throws Exception {
+		TransactionManager.setStore(new InMemoryTransactionStore());
+		final List<Collection<Transaction>> changes = new ArrayList<Collection<Transaction>>();
+		TransactionManager.setListener(new TransactionManager.Listener() {
+			@Override
+			public void onTransactionsChanged(@Nullable Collection<Transaction> transactions) {
+				// listener reads the store after the write
+				assertTrue(TransactionManager.isPurchased(TRANSACTION_1.productKey));
+				changes.add(transactions);
+			}
+		});
+
+		TransactionManager.addTransaction(TRANSACTION_1);
+		assertEquals(1, changes.size());
+		assertEquals(Arrays.asList(TRANSACTION_1), new ArrayList<Transaction>(changes.get(0)));
+
+		TransactionManager.addTransactions(Arrays.asList(TRANSACTION_1, TRANSACTION_2_REFUNDED));
+		assertEquals(2, changes.size());
+		assertEquals(2, changes.get(1).size());
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TransactionManager.exportTransactions(out);
+		assertEquals(2, changes.size());
+
+		// imported transactions are not listed => any product might have changed
+		TransactionManager.importTransactions(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(3, changes.size());
+		assertNull(changes.get(2));
+	}
+
 	@MediumTest
 	public void testGetTransactionsString() throws Exception {
-		final List<Transaction> transactions1 = TransactionManager.getTransactions(getContext(), TransactionTest.TRANSACTION_1.productId);
+		final List<Transaction> transactions1 = TransactionManager.getTransactions(TRANSACTION_1.productKey);
 		assertEquals(transactions1.size(), 0);
-		TransactionManager.addTransaction(getContext(), TransactionTest.TRANSACTION_1);
-		final List<Transaction> transactions2 = TransactionManager.getTransactions(getContext(), TransactionTest.TRANSACTION_1.productId);
+		TransactionManager.addTransaction(TRANSACTION_1);
+		final List<Transaction> transactions2 = TransactionManager.getTransactions(TRANSACTION_1.productKey);
 		assertEquals(transactions2.size(), 1);
-		TransactionManager.addTransaction(getContext(), TransactionTest.TRANSACTION_2_REFUNDED);
-		final List<Transaction> transactions3 = TransactionManager.getTransactions(getContext(), TransactionTest.TRANSACTION_1.productId);
+		TransactionManager.addTransaction(TRANSACTION_2_REFUNDED);
+		final List<Transaction> transactions3 = TransactionManager.getTransactions(TRANSACTION_1.productKey);
 		assertEquals(transactions3.size(), 1);
 	}
 	
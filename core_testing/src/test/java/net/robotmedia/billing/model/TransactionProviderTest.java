@@ -0,0 +1,210 @@
+package net.robotmedia.billing.model;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.SmallTest;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests {@link TransactionProvider} and {@link ProviderTransactionStore} through the content resolver of the isolated context
+ * (provider is backed by the in-memory store)
+ */
+public class TransactionProviderTest extends ProviderTestCase2<TransactionProviderTest.InMemoryProvider> {
+
+	private static final String AUTHORITY = "net.robotmedia.billing.test" + TransactionProvider.AUTHORITY_SUFFIX;
+
+	private ProviderTransactionStore store;
+
+	public TransactionProviderTest() {
+		super(InMemoryProvider.class, AUTHORITY);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		store = new ProviderTransactionStore(getMockContext());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		store.close();
+		super.tearDown();
+	}
+
+	@SmallTest
+	public void testInsertAll() throws Exception {
+		final List<Transaction> transactions = TransactionTest.newTransactions(0, 250);
+		final InsertResult result = store.insertAll(transactions);
+		assertEquals(250, result.getWritten());
+
+		// unchanged transactions are not written again
+		assertEquals(250, store.insertAll(transactions).getUnchanged());
+
+		final List<Transaction> stored = store.getTransactions();
+		assertEquals(250, stored.size());
+		final Map<String, Transaction> byOrderId = new HashMap<String, Transaction>();
+		for (Transaction transaction : stored) {
+			byOrderId.put(transaction.orderId, transaction);
+		}
+		for (Transaction transaction : transactions) {
+			BillingDBTest.assertEqualsFromDb(transaction, byOrderId.get(transaction.orderId));
+			assertEquals(transaction.productKey, byOrderId.get(transaction.orderId).productKey);
+		}
+
+		assertEquals(3, store.getTransactions(TransactionTest.productKey(0)).size());
+		final List<Transaction> page = store.getTransactions(new TransactionQuery(null, 10).between(100, 200));
+		assertEquals(10, page.size());
+		assertEquals("order100", page.get(0).orderId);
+	}
+
+	@SmallTest
+	public void testInsert() throws Exception {
+		final Transaction transaction = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Uri uri = getMockContentResolver().insert(TransactionProvider.getTransactionsUri(getMockContext()), TransactionProvider.toContentValues(transaction));
+		assertEquals(transaction.orderId, uri.getLastPathSegment());
+
+		final List<Transaction> stored = store.getTransactions(transaction.productKey);
+		assertEquals(1, stored.size());
+		BillingDBTest.assertEqualsFromDb(transaction, stored.get(0));
+	}
+
+	@SmallTest
+	public void testCounts() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		final Transaction t1Refunded = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1_REFUNDED);
+		final Transaction t2 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_2);
+		store.insertAll(Arrays.asList(t1, t1Refunded, t2));
+
+		assertEquals(1, store.countPurchases(t1.productKey));
+		assertEquals(1, store.countEntitled(t1.productKey));
+		assertEquals(0, store.countPurchases("unknown"));
+
+		final Map<String, Integer> counts = store.countPurchasesByProduct();
+		assertEquals(2, counts.size());
+		assertEquals(Integer.valueOf(1), counts.get(t1.productId));
+		assertEquals(Integer.valueOf(1), counts.get(t2.productId));
+
+		assertFalse(store.isEncrypted());
+		assertFalse(store.isCompacted());
+	}
+
+	@SmallTest
+	public void testCountsAreInvalidatedByObserver() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		store.insert(t1);
+		assertEquals(1, store.countPurchases(t1.productKey));
+		assertEquals(1, store.countPurchasesByProduct().get(t1.productId).intValue());
+
+		// written by another process: cached counts are used until the provider notifies about the change
+		final Transaction newOrder = t1.clone();
+		newOrder.orderId = "newOrder";
+		getProvider().getInMemoryStore().insert(newOrder);
+		assertEquals(1, store.countPurchases(t1.productKey));
+		assertEquals(1, store.countPurchasesByProduct().get(t1.productId).intValue());
+
+		store.observer.dispatchChange(false);
+		assertEquals(2, store.countPurchases(t1.productKey));
+		assertEquals(2, store.countPurchasesByProduct().get(t1.productId).intValue());
+
+		// own writes are visible at once
+		final Transaction refunded = newOrder.clone();
+		refunded.purchaseState = Transaction.PurchaseState.REFUNDED;
+		store.insert(refunded);
+		assertEquals(1, store.countPurchases(t1.productKey));
+	}
+
+	@SmallTest
+	public void testApplyBatch() throws Exception {
+		final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		final Uri transactionsUri = TransactionProvider.getTransactionsUri(getMockContext());
+		for (Transaction transaction : TransactionTest.newTransactions(0, 20)) {
+			operations.add(ContentProviderOperation.newInsert(transactionsUri).withValues(TransactionProvider.toContentValues(transaction)).build());
+		}
+		getMockContentResolver().applyBatch(AUTHORITY, operations);
+
+		// inserts of the batch are stored at once
+		assertEquals(1, getProvider().getInMemoryStore().insertAllCalls);
+		assertEquals(20, store.getTransactions().size());
+	}
+
+	@SmallTest
+	public void testUpdateProductKeys() throws Exception {
+		final Map<Long, String> productKeys = new HashMap<Long, String>();
+		productKeys.put(1L, "key1");
+		productKeys.put(25L, "key25");
+		store.updateProductKeys(productKeys);
+
+		// keys of the content values are row ids
+		assertEquals(productKeys, getProvider().getInMemoryStore().updatedProductKeys);
+
+		final ContentResolver resolver = getMockContentResolver();
+		final ContentValues values = new ContentValues();
+		values.put("7", "key7");
+		assertEquals(1, resolver.update(TransactionProvider.getUri(getMockContext(), TransactionProvider.PATH_PRODUCT_IDS_WITHOUT_KEY), values, null, null));
+		assertEquals("key7", getProvider().getInMemoryStore().updatedProductKeys.get(7L));
+	}
+
+	@SmallTest
+	public void testDrop() throws Exception {
+		final Transaction t1 = TransactionTest.withProductKey(TransactionTest.TRANSACTION_1);
+		store.insert(t1);
+		assertEquals(1, store.countPurchases(t1.productKey));
+
+		store.drop(getMockContext());
+		assertEquals(0, store.getTransactions().size());
+		assertEquals(0, store.countPurchases(t1.productKey));
+	}
+
+	/**
+	 * Provider backed by the in-memory store which records the calls
+	 */
+	public static class InMemoryProvider extends TransactionProvider {
+
+		@NotNull
+		private final RecordingStore store = new RecordingStore();
+
+		@NotNull
+		@Override
+		protected ITransactionStore createStore() {
+			return store;
+		}
+
+		@NotNull
+		RecordingStore getInMemoryStore() {
+			return store;
+		}
+	}
+
+	private static final class RecordingStore extends InMemoryTransactionStore {
+
+		volatile int insertAllCalls;
+
+		@NotNull
+		final Map<Long, String> updatedProductKeys = new HashMap<Long, String>();
+
+		@NotNull
+		@Override
+		public InsertResult insertAll(@NotNull Collection<Transaction> transactions) {
+			insertAllCalls++;
+			return super.insertAll(transactions);
+		}
+
+		@Override
+		public void updateProductKeys(@NotNull Map<Long, String> productKeys) {
+			synchronized (updatedProductKeys) {
+				updatedProductKeys.putAll(productKeys);
+			}
+			super.updateProductKeys(productKeys);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package net.robotmedia.billing.model;
+
+import android.app.Application;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+/**
+ * Compares throughput of transaction stores. Results are written to the log (tag: TransactionStoreBenchmark)
+ */
+public class TransactionStoreBenchmark extends AndroidTestCase {
+
+	private static final String TAG = TransactionStoreBenchmark.class.getSimpleName();
+
+	private static final int BATCH_SIZE = 1000;
+	private static final int QUERIES = 1000;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		BillingDB.init((Application) getContext().getApplicationContext());
+	}
+
+	@LargeTest
+	public void testSqlite10k() throws Exception {
+		benchmark(new SqliteTransactionStore(), 10000);
+	}
+
+	@LargeTest
+	public void testJournal10k() throws Exception {
+		benchmark(newJournalStore(), 10000);
+	}
+
+	@LargeTest
+	public void testSqlite100k() throws Exception {
+		benchmark(new SqliteTransactionStore(), 100000);
+	}
+
+	@LargeTest
+	public void testJournal100k() throws Exception {
+		benchmark(newJournalStore(), 100000);
+	}
+
+	@LargeTest
+	public void testSqlite1m() throws Exception {
+		benchmark(new SqliteTransactionStore(), 1000000);
+	}
+
+	@LargeTest
+	public void testJournal1m() throws Exception {
+		benchmark(newJournalStore(), 1000000);
+	}
+
+	@NotNull
+	private JournalTransactionStore newJournalStore() throws Exception {
+		final File file = new File(getContext().getFilesDir(), "benchmark.journal");
+		file.delete();
+		return new JournalTransactionStore(file);
+	}
+
+	private void benchmark(@NotNull ITransactionStore store, int rows) throws Exception {
+		store.drop(getContext());
+
+		long start = System.nanoTime();
+		for (int i = 0; i < rows; i += BATCH_SIZE) {
+			store.insertAll(TransactionTest.newTransactions(i, Math.min(BATCH_SIZE, rows - i)));
+		}
+		final long insertNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < QUERIES; i++) {
+			store.countPurchases(TransactionTest.productKey(i % TransactionTest.PRODUCTS));
+		}
+		final long countNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int read = 0;
+		for (int i = 0; i < TransactionTest.PRODUCTS; i++) {
+			read += store.getTransactions(TransactionTest.productKey(i)).size();
+		}
+		final long readNanos = System.nanoTime() - start;
+		assertEquals(rows, read);
+
+		Log.i(TAG, store.getClass().getSimpleName() + ", rows: " + rows +
+				", insert: " + rows * 1000000000L / insertNanos + " rows/s" +
+				", countPurchases: " + countNanos / QUERIES / 1000 + " us/call" +
+				", getTransactions: " + rows * 1000000000L / readNanos + " rows/s");
+
+		store.drop(getContext());
+		if (store instanceof JournalTransactionStore) {
+			((JournalTransactionStore) store).close();
+		}
+	}
+}
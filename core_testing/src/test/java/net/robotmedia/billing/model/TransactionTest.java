@@ -17,9 +17,12 @@ package net.robotmedia.billing.model;
 
 import android.test.suitebuilder.annotation.SmallTest;
 import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 public class TransactionTest extends TestCase {
 	
@@ -30,6 +33,36 @@ public class TransactionTest extends TestCase {
 	public static void assertEquals(Transaction a, Transaction b) {
 		assertTrue(a.equals(b));
 	}
+
+	// number of products of the transactions created by newTransactions
+	static final int PRODUCTS = 100;
+
+	/**
+	 * @return purchased transactions "order<from>".."order<from + count - 1>" (purchase time = number of the order) spread over
+	 * {@link #PRODUCTS} products, product keys are set as in the store
+	 */
+	@NotNull
+	static List<Transaction> newTransactions(int from, int count) {
+		final List<Transaction> result = new ArrayList<Transaction>(count);
+		for (int i = from; i < from + count; i++) {
+			final Transaction transaction = new Transaction("order" + i, "product" + i % PRODUCTS, "com.example", Transaction.PurchaseState.PURCHASED, null, i, "developerPayload" + i);
+			transaction.productKey = productKey(i % PRODUCTS);
+			result.add(transaction);
+		}
+		return result;
+	}
+
+	@NotNull
+	static String productKey(int product) {
+		return "key" + product;
+	}
+
+	@NotNull
+	static Transaction withProductKey(@NotNull Transaction transaction) {
+		final Transaction result = transaction.clone();
+		result.productKey = "key_" + transaction.productId;
+		return result;
+	}
 	
 	@SmallTest
 	public void testParseAllFields() throws Exception {
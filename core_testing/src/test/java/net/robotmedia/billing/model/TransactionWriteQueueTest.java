@@ -0,0 +1,319 @@
+package net.robotmedia.billing.model;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+public class TransactionWriteQueueTest extends TestCase {
+
+	// long enough not to elapse during the test
+	private static final long LONG_WINDOW_MILLIS = 60000;
+
+	private static final long TIMEOUT_MILLIS = 5000;
+
+	@SmallTest
+	public void testFlushIsTriggeredBySize() throws Exception {
+		final RecordingStore store = new RecordingStore();
+		final TransactionWriteQueue queue = new TransactionWriteQueue(store, LONG_WINDOW_MILLIS, 10);
+
+		for (Transaction transaction : TransactionTest.newTransactions(0, 10)) {
+			queue.add(transaction);
+		}
+		awaitEmpty(queue);
+
+		assertEquals(10, store.countStored());
+		assertEquals(1, queue.getStats().getCommits());
+		queue.shutdown();
+	}
+
+	@SmallTest
+	public void testFlushIsTriggeredByWindow() throws Exception {
+		final RecordingStore store = new RecordingStore();
+		final TransactionWriteQueue queue = new TransactionWriteQueue(store, 50, 100);
+
+		for (Transaction transaction : TransactionTest.newTransactions(0, 3)) {
+			queue.add(transaction);
+		}
+		assertFalse(queue.isEmpty());
+		awaitEmpty(queue);
+
+		assertEquals(3, store.countStored());
+		assertEquals(1, queue.getStats().getCommits());
+		queue.shutdown();
+	}
+
+	@SmallTest
+	public void testBatchIsCappedByMaxBatchSize() throws Exception {
+		final RecordingStore store = new RecordingStore();
+		final TransactionWriteQueue queue = new TransactionWriteQueue(store, LONG_WINDOW_MILLIS, 10);
+		store.blocked = true;
+
+		// first batch is blocked in the store while the rest is queued
+		for (Transaction transaction : TransactionTest.newTransactions(0, 35)) {
+			queue.add(transaction);
+		}
+		store.unblock();
+		queue.flush();
+
+		assertTrue(queue.isEmpty());
+		assertEquals(35, store.countStored());
+		for (Integer size : store.batchSizes) {
+			assertTrue("Batch too big: " + size, size <= 10);
+		}
+		assertEquals(10, queue.getStats().getMaxBatchSize());
+		queue.shutdown();
+	}
+
+	@SmallTest
+	public void testFlushOfProduct() throws Exception {
+		final RecordingStore store = new RecordingStore();
+		final TransactionWriteQueue queue = new TransactionWriteQueue(store, LONG_WINDOW_MILLIS, 100);
+
+		final List<Transaction> transactions = TransactionTest.newTransactions(0, 2);
+		queue.add(transactions.get(0));
+		assertTrue(queue.hasPending(transactions.get(0).productKey));
+		assertFalse(queue.hasPending(transactions.get(1).productKey));
+
+		// nothing is queued for the product => nothing is committed
+		queue.flush(transactions.get(1).productKey);
+		assertEquals(0, store.countStored());
+
+		queue.flush(transactions.get(0).productKey);
+		assertEquals(1, store.countStored());
+		assertFalse(queue.hasPending(transactions.get(0).productKey));
+		assertTrue(queue.isEmpty());
+		queue.shutdown();
+	}
+
+	@SmallTest
+	public void testFailedCommitIsRetried() throws Exception {
+		final RecordingStore store = new RecordingStore();
+		final TransactionWriteQueue queue = new TransactionWriteQueue(store, 0, 100);
+		store.failures = 2;
+
+		for (Transaction transaction : TransactionTest.newTransactions(0, 5)) {
+			queue.add(transaction);
+		}
+		// retried without any other add or flush
+		awaitEmpty(queue);
+
+		assertEquals(5, store.countStored());
+		final TransactionWriteQueue.Stats stats = queue.getStats();
+		assertEquals(2, stats.getFailedCommits());
+		assertEquals(1, stats.getCommits());
+		assertEquals(5, stats.getTransactions());
+		queue.shutdown();
+	}
+
+	@SmallTest
+	public void testRetryDelayIsDoubled() throws Exception {
+		assertEquals(TransactionWriteQueue.MIN_RETRY_DELAY_MILLIS, TransactionWriteQueue.getRetryDelayMillis(1));
+		assertEquals(TransactionWriteQueue.MIN_RETRY_DELAY_MILLIS * 4, TransactionWriteQueue.getRetryDelayMillis(3));
+		assertEquals(TransactionWriteQueue.MAX_RETRY_DELAY_MILLIS, TransactionWriteQueue.getRetryDelayMillis(100));
+	}
+
+	@SmallTest
+	public void testStats() throws Exception {
+		final RecordingStore store = new RecordingStore();
+		final TransactionWriteQueue queue = new TransactionWriteQueue(store, LONG_WINDOW_MILLIS, 100);
+
+		for (Transaction transaction : TransactionTest.newTransactions(0, 6)) {
+			queue.add(transaction);
+		}
+		queue.flush();
+		for (Transaction transaction : TransactionTest.newTransactions(6, 2)) {
+			queue.add(transaction);
+		}
+		queue.flush();
+
+		final TransactionWriteQueue.Stats stats = queue.getStats();
+		assertEquals(2, stats.getCommits());
+		assertEquals(8, stats.getTransactions());
+		assertEquals(6, stats.getMaxBatchSize());
+		assertEquals(4d, stats.getAverageBatchSize());
+		assertEquals(0, stats.getFailedCommits());
+		assertTrue(stats.getMaxCommitNanos() <= stats.getCommitNanos());
+		queue.shutdown();
+	}
+
+	@SmallTest
+	public void testQueuedTransactionsAreVisibleToReaders() throws Exception {
+		final ITransactionStore previous = TransactionManager.getStore();
+		final InMemoryTransactionStore store = new InMemoryTransactionStore();
+		TransactionManager.setStore(store);
+		TransactionManager.enableWriteQueue(LONG_WINDOW_MILLIS, 100);
+		try {
+			final Transaction transaction = TransactionTest.newTransactions(0, 1).get(0);
+			TransactionManager.addTransaction(transaction);
+
+			assertEquals(1, TransactionManager.countPurchases(transaction.productKey));
+			assertTrue(TransactionManager.isPurchased(transaction.productKey));
+			assertEquals(1, TransactionManager.countEntitled(transaction.productKey));
+			assertEquals(1, TransactionManager.getTransactions(transaction.productKey).size());
+			assertEquals(1, TransactionManager.getTransactions().size());
+			assertEquals(1, TransactionManager.getTransactions(new TransactionQuery(transaction.productKey)).size());
+			assertEquals(Integer.valueOf(1), TransactionManager.countPurchasesByProduct().get(transaction.productId));
+
+			// reads don't commit the queue
+			assertEquals(0, store.countPurchases(transaction.productKey));
+			assertEquals(0, TransactionManager.getWriteQueueStats().getCommits());
+		} finally {
+			TransactionManager.disableWriteQueue();
+			TransactionManager.setStore(previous);
+		}
+	}
+
+	@SmallTest
+	public void testQueuedTransactionReplacesStoredOrder() throws Exception {
+		final InMemoryTransactionStore store = new InMemoryTransactionStore();
+		final TransactionWriteQueue queue = new TransactionWriteQueue(store, LONG_WINDOW_MILLIS, 100);
+
+		final List<Transaction> transactions = TransactionTest.newTransactions(0, 2 * TransactionTest.PRODUCTS);
+		final Transaction purchase = transactions.get(0);
+		final Transaction otherPurchase = transactions.get(TransactionTest.PRODUCTS);
+		store.insertAll(Arrays.asList(purchase, otherPurchase));
+
+		final Transaction refund = purchase.clone();
+		refund.purchaseState = Transaction.PurchaseState.REFUNDED;
+		refund.purchaseTime = otherPurchase.purchaseTime + 1;
+		queue.add(refund);
+
+		assertEquals(1, queue.countPurchases(purchase.productKey));
+		assertEquals(1, queue.countEntitled(purchase.productKey));
+		assertEquals(Integer.valueOf(1), queue.countPurchasesByProduct().get(otherPurchase.productId));
+
+		final List<Transaction> stored = queue.getTransactions(purchase.productKey);
+		assertEquals(2, stored.size());
+		for (Transaction transaction : stored) {
+			assertEquals(transaction.orderId.equals(purchase.orderId) ? Transaction.PurchaseState.REFUNDED : Transaction.PurchaseState.PURCHASED, transaction.purchaseState);
+		}
+
+		// refund moves the order after the other purchase
+		final List<Transaction> page = queue.getTransactions(new TransactionQuery(purchase.productKey, 1));
+		assertEquals(1, page.size());
+		assertEquals(otherPurchase.orderId, page.get(0).orderId);
+		final List<Transaction> nextPage = queue.getTransactions(new TransactionQuery(purchase.productKey, 1).after(page.get(0)));
+		assertEquals(1, nextPage.size());
+		assertEquals(Transaction.PurchaseState.REFUNDED, nextPage.get(0).purchaseState);
+
+		assertEquals(2, store.countPurchases(purchase.productKey));
+		queue.shutdown();
+		assertEquals(1, store.countPurchases(purchase.productKey));
+	}
+
+	@SmallTest
+	public void testQueuedTransactionsAreDecoded() throws Exception {
+		final InMemoryTransactionStore store = new InMemoryTransactionStore();
+		final TransactionWriteQueue queue = new TransactionWriteQueue(store, LONG_WINDOW_MILLIS, 100);
+
+		final List<Transaction> transactions = TransactionTest.newTransactions(0, 2 * TransactionTest.PRODUCTS);
+		final Transaction purchase = transactions.get(0);
+		store.insert(purchase);
+		final Transaction otherPurchase = transactions.get(TransactionTest.PRODUCTS);
+		queue.add(otherPurchase);
+
+		final ITransactionDecoder decoder = new ITransactionDecoder() {
+			@Override
+			public String decode(String stored) {
+				return "decoded:" + stored;
+			}
+
+			@NotNull
+			@Override
+			public String decode(@NotNull byte[] stored) {
+				throw new AssertionError();
+			}
+		};
+		final List<Transaction> page = queue.getTransactions(new TransactionQuery(purchase.productKey), decoder);
+		assertEquals(2, page.size());
+		for (Transaction transaction : page) {
+			assertEquals("decoded:" + purchase.productId, transaction.productId);
+			assertTrue(transaction.developerPayload.startsWith("decoded:"));
+			assertFalse(transaction.orderId.startsWith("decoded:"));
+		}
+
+		// queued transaction is not changed
+		for (Transaction transaction : queue.getTransactions(purchase.productKey)) {
+			assertEquals(purchase.productId, transaction.productId);
+		}
+		queue.shutdown();
+	}
+
+	@SmallTest
+	public void testOlderQueuedTransactionDoesNotChangeEntitlement() throws Exception {
+		final InMemoryTransactionStore store = new InMemoryTransactionStore();
+		final TransactionWriteQueue queue = new TransactionWriteQueue(store, LONG_WINDOW_MILLIS, 100);
+
+		final Transaction purchase = TransactionTest.newTransactions(1, 1).get(0);
+		store.insert(purchase);
+
+		final Transaction cancelled = purchase.clone();
+		cancelled.purchaseState = Transaction.PurchaseState.CANCELLED;
+		cancelled.purchaseTime = purchase.purchaseTime - 1;
+		queue.add(cancelled);
+
+		assertEquals(1, queue.countEntitled(purchase.productKey));
+		queue.shutdown();
+	}
+
+	private static void awaitEmpty(@NotNull TransactionWriteQueue queue) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!queue.isEmpty()) {
+			assertTrue("Queue was not flushed", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * In-memory store which records the sizes of the committed batches and can fail or block commits
+	 */
+	private static final class RecordingStore extends InMemoryTransactionStore {
+
+		@NotNull
+		final List<Integer> batchSizes = new ArrayList<Integer>();
+
+		volatile int failures;
+
+		volatile boolean blocked;
+
+		private final Object blockLock = new Object();
+
+		@NotNull
+		@Override
+		public InsertResult insertAll(@NotNull Collection<Transaction> transactions) {
+			synchronized (blockLock) {
+				while (blocked) {
+					try {
+						blockLock.wait();
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+			if (failures > 0) {
+				failures--;
+				throw new IllegalStateException("Commit failed");
+			}
+			synchronized (batchSizes) {
+				batchSizes.add(transactions.size());
+			}
+			return super.insertAll(transactions);
+		}
+
+		void unblock() {
+			synchronized (blockLock) {
+				blocked = false;
+				blockLock.notifyAll();
+			}
+		}
+
+		int countStored() {
+			return getTransactions().size();
+		}
+	}
+}
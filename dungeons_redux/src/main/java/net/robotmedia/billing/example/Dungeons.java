@@ -14,6 +14,7 @@ import net.robotmedia.billing.ResponseCode;
 import net.robotmedia.billing.example.auxiliary.CatalogAdapter;
 import net.robotmedia.billing.example.auxiliary.CatalogEntry;
 import net.robotmedia.billing.helper.AbstractBillingObserver;
+import net.robotmedia.billing.model.AsyncTransactionManager;
 import net.robotmedia.billing.model.Transaction;
 import net.robotmedia.billing.model.Transaction.PurchaseState;
 import org.jetbrains.annotations.NotNull;
@@ -164,7 +165,24 @@ public class Dungeons extends Activity {
 	}
 
 	private void updateTransactions() {
-		final List<Transaction> items = BillingController.getTransactions(this);
+		// transactions are read on the background thread => main thread is not blocked by disk I/O
+		BillingController.getTransactionsAsync(this, new AsyncTransactionManager.Callback<List<Transaction>>() {
+			@Override
+			public void onSuccess(List<Transaction> transactions) {
+				onTransactionsLoaded(transactions);
+			}
+
+			@Override
+			public void onError(@NotNull Exception e) {
+				Log.e(TAG, "Unable to load transactions", e);
+			}
+		});
+	}
+
+	private void onTransactionsLoaded(@NotNull List<Transaction> items) {
+		if (isFinishing()) {
+			return;
+		}
 
 		Toast.makeText(this, items.size() + " items found!", Toast.LENGTH_SHORT).show();
 